@@ -0,0 +1,100 @@
+package org.phoenix.bench;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.Random;
+import java.util.stream.Stream;
+import org.phoenix.assetdatabase.AssetDatabaseImpl;
+import org.phoenix.assetdatabase.IndexEntry;
+import org.phoenix.assetdatabase.Subfile;
+import org.phoenix.assetdatabase.TypeGroupInstance;
+
+/**
+ * Fixtures shared by the benchmarks.
+ *
+ * @author Vince
+ */
+final class BenchmarkPads {
+
+    public static final int TYPE = 0x5EB4B100;
+
+    private BenchmarkPads() {
+    }
+
+    /**
+     * Returns the TGI of the i-th subfile of a benchmark PAD.
+     *
+     * @param i
+     * @return
+     */
+    static TypeGroupInstance tgi(int i) {
+        return new TypeGroupInstance(TYPE, i & 0xF, 0x1000_0000_0000L + i);
+    }
+
+    /**
+     * Creates a subfile with random data, an MD5 hash, and one metadata tag.
+     *
+     * @param random
+     * @param payloadSize
+     * @return
+     */
+    static Subfile subfile(Random random, int payloadSize) {
+        byte[] data = new byte[payloadSize];
+        random.nextBytes(data);
+        Subfile sf = new Subfile();
+        sf.getMetadata().put("Author", "bench");
+        sf.setData(data, true);
+        return sf;
+    }
+
+    /**
+     * Creates a V3 PAD with <code>entries</code> subfiles of
+     * <code>payloadSize</code> bytes each.
+     *
+     * @param pad Where to write the PAD.
+     * @param entries
+     * @param payloadSize
+     * @return The location of the PAD.
+     * @throws IOException
+     */
+    static Path createPad(Path pad, int entries, int payloadSize) throws IOException {
+        return createPad(pad, entries, payloadSize, AssetDatabaseImpl.VERSION_3);
+    }
+
+    /**
+     * Writes a PAD in the given format version.
+     *
+     * @see #createPad(Path, int, int)
+     * @param version {@link AssetDatabaseImpl#VERSION_3} or
+     * {@link AssetDatabaseImpl#VERSION_4}.
+     */
+    static Path createPad(Path pad, int entries, int payloadSize, int version) throws IOException {
+        Random random = new Random(entries * 31L + payloadSize);
+        AssetDatabaseImpl db = new AssetDatabaseImpl(pad);
+        db.setStreamingSave(true);
+        db.setVersion(version);
+        for (int i = 0; i < entries; i++) {
+            db.putSubfile(new IndexEntry(tgi(i)), subfile(random, payloadSize));
+        }
+        db.getMetadata().put("Title", "Benchmark PAD");
+        db.save();
+        return pad;
+    }
+
+    /**
+     * Deletes a directory and everything in it.
+     *
+     * @param dir
+     * @throws IOException
+     */
+    static void delete(Path dir) throws IOException {
+        if (dir == null || Files.notExists(dir)) {
+            return;
+        }
+        try (Stream<Path> s = Files.walk(dir)) {
+            s.sorted(Comparator.reverseOrder()).forEach((p) -> p.toFile().delete());
+        }
+    }
+}
@@ -0,0 +1,122 @@
+package org.phoenix.bench;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.phoenix.assetdatabase.AssetDatabaseImpl;
+import org.phoenix.assetdatabase.Subfile;
+import org.phoenix.assetdatabase.TypeGroupInstance;
+
+/**
+ * {@link AssetDatabaseImpl#load()},
+ * {@link AssetDatabaseImpl#loadSubfile(TypeGroupInstance)}, and
+ * {@link AssetDatabaseImpl#loadSubfiles(java.util.Collection)}.
+ * <p>
+ * <i>Cold</i> benchmarks open and load a new database for every operation, as
+ * a caller without a long-lived database would; <i>warm</i> ones reuse a
+ * loaded database. Neither drops the operating system's page cache. Both are
+ * run against version 3 and version 4 PADs.
+ *
+ * @author Vince
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class DatabaseBenchmark {
+
+    public static final int BATCH_SIZE = 64;
+
+    @Param({"1000", "10000"})
+    public int entries;
+    @Param({"4096"})
+    public int payloadSize;
+    @Param({"3", "4"})
+    public int version;
+
+    private Path dir;
+    private Path pad;
+    private AssetDatabaseImpl warm;
+    private TypeGroupInstance[] probes;
+    private List<List<TypeGroupInstance>> batches;
+    private int next;
+
+    @Setup
+    public void setup() throws IOException {
+        dir = Files.createTempDirectory("padbench");
+        pad = BenchmarkPads.createPad(dir.resolve("database.pad"), entries, payloadSize, version);
+        warm = new AssetDatabaseImpl(pad);
+        warm.load();
+        probes = new TypeGroupInstance[1024];
+        for (int i = 0; i < probes.length; i++) {
+            probes[i] = BenchmarkPads.tgi((int) ((i * 2654435761L) % entries));
+        }
+        batches = new ArrayList<>();
+        for (int b = 0; b < 16; b++) {
+            List<TypeGroupInstance> batch = new ArrayList<>(BATCH_SIZE);
+            for (int i = 0; i < BATCH_SIZE; i++) {
+                batch.add(probes[(b * BATCH_SIZE + i) & (probes.length - 1)]);
+            }
+            batches.add(batch);
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        warm.close();
+        BenchmarkPads.delete(dir);
+    }
+
+    private TypeGroupInstance nextProbe() {
+        return probes[next++ & (probes.length - 1)];
+    }
+
+    @Benchmark
+    public AssetDatabaseImpl load() throws IOException {
+        AssetDatabaseImpl db = new AssetDatabaseImpl(pad);
+        db.load();
+        return db;
+    }
+
+    @Benchmark
+    public Subfile loadSubfileCold() throws IOException {
+        AssetDatabaseImpl db = new AssetDatabaseImpl(pad);
+        db.load();
+        return db.loadSubfile(nextProbe());
+    }
+
+    @Benchmark
+    public Subfile loadSubfileWarm() throws IOException {
+        return warm.loadSubfile(nextProbe());
+    }
+
+    @Benchmark
+    public Map<TypeGroupInstance, Subfile> loadSubfilesCold() throws IOException {
+        AssetDatabaseImpl db = new AssetDatabaseImpl(pad);
+        db.load();
+        return db.loadSubfiles(batches.get(next++ & (batches.size() - 1)));
+    }
+
+    @Benchmark
+    public Map<TypeGroupInstance, Subfile> loadSubfilesWarm() throws IOException {
+        return warm.loadSubfiles(batches.get(next++ & (batches.size() - 1)));
+    }
+}
@@ -0,0 +1,65 @@
+package org.phoenix.bench;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.phoenix.assetdatabase.HoleIndex;
+import org.phoenix.assetdatabase.HoleIndexEntry;
+
+/**
+ * {@link HoleIndex#compact()} of a fragmented hole index where about half of
+ * the holes are adjacent to the previous one.
+ *
+ * @author Vince
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class HoleIndexBenchmark {
+
+    @Param({"100", "10000"})
+    public int holes;
+
+    private HoleIndexEntry[] entries;
+    private HoleIndex holeIndex;
+
+    @Setup
+    public void setup() {
+        Random random = new Random(holes);
+        entries = new HoleIndexEntry[holes];
+        long offset = 4096;
+        for (int i = 0; i < holes; i++) {
+            long size = 16 + random.nextInt(4096);
+            entries[i] = new HoleIndexEntry(offset, size);
+            offset += size + (random.nextBoolean() ? 0 : 1 + random.nextInt(4096));
+        }
+    }
+
+    @Setup(Level.Invocation)
+    public void fill() {
+        holeIndex = new HoleIndex();
+        for (HoleIndexEntry e : entries) {
+            holeIndex.getEntries().add(e);
+        }
+    }
+
+    @Benchmark
+    public HoleIndex compact() {
+        holeIndex.compact();
+        return holeIndex;
+    }
+}
@@ -0,0 +1,80 @@
+package org.phoenix.bench;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.phoenix.assetdatabase.AssetDatabaseImpl;
+import org.phoenix.assetdatabase.Index;
+import org.phoenix.assetdatabase.IndexEntry;
+import org.phoenix.assetdatabase.TypeGroupInstance;
+
+/**
+ * {@link Index#load(RandomAccessFile, int)} and
+ * {@link Index#getEntry(TypeGroupInstance)}.
+ *
+ * @author Vince
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class IndexBenchmark {
+
+    @Param({"1000", "100000"})
+    public int entries;
+
+    private Path dir;
+    private RandomAccessFile raf;
+    private Index index;
+    private TypeGroupInstance[] probes;
+    private int next;
+
+    @Setup
+    public void setup() throws IOException {
+        dir = Files.createTempDirectory("padbench");
+        Path pad = BenchmarkPads.createPad(dir.resolve("index.pad"), entries, 16);
+        raf = new RandomAccessFile(pad.toFile(), "r");
+        index = new Index();
+        raf.seek(AssetDatabaseImpl.HEADER_SIZE);
+        index.load(raf, entries);
+        probes = new TypeGroupInstance[1024];
+        for (int i = 0; i < probes.length; i++) {
+            probes[i] = BenchmarkPads.tgi((int) ((i * 2654435761L) % entries));
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        raf.close();
+        BenchmarkPads.delete(dir);
+    }
+
+    @Benchmark
+    public Index load() throws IOException {
+        Index i = new Index();
+        raf.seek(AssetDatabaseImpl.HEADER_SIZE);
+        i.load(raf, entries);
+        return i;
+    }
+
+    @Benchmark
+    public IndexEntry getEntry() {
+        return index.getEntry(probes[next++ & (probes.length - 1)]);
+    }
+}
@@ -0,0 +1,317 @@
+package org.phoenix.bench;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import org.phoenix.assetdatabase.AssetDatabaseImpl;
+import org.phoenix.assetdatabase.IndexEntry;
+import org.phoenix.assetdatabase.Subfile;
+import org.phoenix.assetdatabase.TypeGroupInstance;
+import org.phoenix.assetdatabase.instrumentation.Histogram;
+import org.phoenix.assetmanager.simple.SimpleFolderAssetManager;
+
+/**
+ * Drives a {@link SimpleFolderAssetManager} over a folder of PADs (for example
+ * one made by {@link PadGenerator}) with a mixed, multi-threaded workload and
+ * reports throughput and latency percentiles per operation:
+ * <ul>
+ * <li><b>index</b> loads the index of a random PAD,</li>
+ * <li><b>lookup</b> reads one subfile through the manager,</li>
+ * <li><b>batch</b> reads a batch of subfiles through the manager,</li>
+ * <li><b>save</b> replaces a few subfiles in the thread's private copy of a PAD
+ * and saves it.</li>
+ * </ul>
+ * The time to index the whole folder is reported once at startup.
+ *
+ * <pre>
+ * Usage: LoadDriver --dir DIR [options]
+ *   --threads N       Worker threads (available processors)
+ *   --duration S      Measured seconds (30)
+ *   --warmup S        Unmeasured seconds before measuring (5)
+ *   --mix SPEC        Operation weights (index=5,lookup=70,batch=20,save=5)
+ *   --batch N         Subfiles per batch (64)
+ *   --skew F          0 for uniform keys, towards 1 for a few hot keys (0)
+ *   --streaming B     Use streaming saves (true)
+ *   --seed N          Random seed (1)
+ * </pre>
+ *
+ * @author Vince
+ */
+public class LoadDriver {
+
+    enum Operation {
+        INDEX, LOOKUP, BATCH, SAVE
+    }
+
+    private static final int SAVE_CHANGES = 4;
+
+    private final Path dir;
+    private int threads = Runtime.getRuntime().availableProcessors();
+    private int duration = 30;
+    private int warmup = 5;
+    private final int[] weights = {5, 70, 20, 5};
+    private int batchSize = 64;
+    private double skew;
+    private boolean streaming = true;
+    private long seed = 1;
+
+    private SimpleFolderAssetManager manager;
+    private List<Path> pads;
+    private TypeGroupInstance[] keys;
+    private Path scratch;
+
+    public LoadDriver(Path dir) {
+        this.dir = dir;
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length % 2 != 0) {
+            usage("Missing value for " + args[args.length - 1]);
+        }
+        LoadDriver driver = null;
+        for (int i = 0; i < args.length; i += 2) {
+            if ("--dir".equals(args[i])) {
+                driver = new LoadDriver(Paths.get(args[i + 1]));
+            }
+        }
+        if (driver == null) {
+            usage("--dir is required");
+            return;
+        }
+        for (int i = 0; i < args.length; i += 2) {
+            String value = args[i + 1];
+            switch (args[i]) {
+                case "--dir":
+                    break;
+                case "--threads":
+                    driver.threads = Integer.parseInt(value);
+                    break;
+                case "--duration":
+                    driver.duration = Integer.parseInt(value);
+                    break;
+                case "--warmup":
+                    driver.warmup = Integer.parseInt(value);
+                    break;
+                case "--mix":
+                    driver.parseMix(value);
+                    break;
+                case "--batch":
+                    driver.batchSize = Integer.parseInt(value);
+                    break;
+                case "--skew":
+                    driver.skew = Double.parseDouble(value);
+                    break;
+                case "--streaming":
+                    driver.streaming = Boolean.parseBoolean(value);
+                    break;
+                case "--seed":
+                    driver.seed = Long.parseLong(value);
+                    break;
+                default:
+                    usage("Unknown option " + args[i]);
+            }
+        }
+        driver.run();
+    }
+
+    private static void usage(String error) {
+        System.err.println(error);
+        System.err.println("Usage: LoadDriver --dir DIR [--threads N] [--duration S] [--warmup S]");
+        System.err.println("       [--mix index=5,lookup=70,batch=20,save=5] [--batch N] [--skew F] [--streaming B] [--seed N]");
+        System.exit(2);
+    }
+
+    private void parseMix(String spec) {
+        int[] w = new int[weights.length];
+        for (String part : spec.split(",")) {
+            String[] kv = part.split("=");
+            w[Operation.valueOf(kv[0].trim().toUpperCase(Locale.ROOT)).ordinal()] = Integer.parseInt(kv[1].trim());
+        }
+        System.arraycopy(w, 0, weights, 0, w.length);
+    }
+
+    /**
+     * Indexes the folder, runs the workload, and prints the results.
+     *
+     * @throws Exception
+     */
+    public void run() throws Exception {
+        try (Stream<Path> s = Files.list(dir)) {
+            pads = s.filter((p) -> p.getFileName().toString().endsWith("." + PadGenerator.EXTENSION)).
+                    sorted().collect(Collectors.toList());
+        }
+        if (pads.isEmpty()) {
+            throw new IOException("No PADs in " + dir);
+        }
+        manager = new SimpleFolderAssetManager(dir, AssetDatabaseImpl::new);
+        manager.getAcceptableFileExts().add(PadGenerator.EXTENSION);
+        long start = System.nanoTime();
+        manager.indexAssets();
+        long indexNanos = System.nanoTime() - start;
+        keys = manager.findInRange(new TypeGroupInstance(0, 0, 0L), new TypeGroupInstance(-1, -1, -1L)).
+                toArray(TypeGroupInstance[]::new);
+        if (keys.length == 0) {
+            throw new IOException("No subfiles in " + dir);
+        }
+        //  Scatter hot keys across PADs
+        Random random = new Random(seed);
+        for (int i = keys.length - 1; i > 0; i--) {
+            int j = random.nextInt(i + 1);
+            TypeGroupInstance t = keys[i];
+            keys[i] = keys[j];
+            keys[j] = t;
+        }
+        System.out.printf(Locale.ROOT, "Indexed %d PADs, %d TGIs in %.1f ms%n", pads.size(), keys.length, indexNanos / 1e6);
+
+        scratch = Files.createTempDirectory("padload");
+        try {
+            runWorkers();
+        } finally {
+            BenchmarkPads.delete(scratch);
+        }
+    }
+
+    private void runWorkers() throws Exception {
+        final long measureStart = System.nanoTime() + warmup * 1_000_000_000L;
+        final long end = measureStart + duration * 1_000_000_000L;
+        final List<Histogram[]> results = Collections.synchronizedList(new ArrayList<>());
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+        final CountDownLatch done = new CountDownLatch(threads);
+        for (int t = 0; t < threads; t++) {
+            final int id = t;
+            Thread worker = new Thread(() -> {
+                try {
+                    results.add(work(id, measureStart, end));
+                } catch (Throwable ex) {
+                    failure.compareAndSet(null, ex);
+                } finally {
+                    done.countDown();
+                }
+            }, "load-" + t);
+            worker.setDaemon(true);
+            worker.start();
+        }
+        done.await();
+        if (failure.get() != null) {
+            throw new IllegalStateException("Worker failed", failure.get());
+        }
+        Histogram[] total = new Histogram[Operation.values().length];
+        for (int i = 0; i < total.length; i++) {
+            total[i] = new Histogram();
+            for (Histogram[] r : results) {
+                total[i].add(r[i]);
+            }
+        }
+        report(total);
+    }
+
+    private Histogram[] work(int id, long measureStart, long end) throws IOException {
+        Random random = new Random(seed * 31 + id);
+        Histogram[] hist = new Histogram[Operation.values().length];
+        for (int i = 0; i < hist.length; i++) {
+            hist[i] = new Histogram();
+        }
+        int totalWeight = 0;
+        for (int w : weights) {
+            totalWeight += w;
+        }
+        Path savePad = null;
+        List<TypeGroupInstance> batch = new ArrayList<>(batchSize);
+        while (true) {
+            long now = System.nanoTime();
+            if (now >= end) {
+                break;
+            }
+            int r = random.nextInt(totalWeight);
+            int op = 0;
+            while (r >= weights[op]) {
+                r -= weights[op++];
+            }
+            long t0;
+            switch (Operation.values()[op]) {
+                case INDEX: {
+                    Path p = pads.get(random.nextInt(pads.size()));
+                    t0 = System.nanoTime();
+                    new AssetDatabaseImpl(p).load();
+                    break;
+                }
+                case LOOKUP: {
+                    TypeGroupInstance tgi = nextKey(random);
+                    t0 = System.nanoTime();
+                    manager.getSubfile(tgi).getData();
+                    break;
+                }
+                case BATCH: {
+                    batch.clear();
+                    for (int i = 0; i < batchSize; i++) {
+                        batch.add(nextKey(random));
+                    }
+                    t0 = System.nanoTime();
+                    for (Subfile sf : manager.getSubfiles(batch).values()) {
+                        sf.getData();
+                    }
+                    break;
+                }
+                default: {
+                    if (savePad == null) {
+                        savePad = scratch.resolve("save-" + id + "." + PadGenerator.EXTENSION);
+                        Files.copy(pads.get(id % pads.size()), savePad, StandardCopyOption.REPLACE_EXISTING);
+                    }
+                    AssetDatabaseImpl db = new AssetDatabaseImpl(savePad);
+                    db.setStreamingSave(streaming);
+                    t0 = System.nanoTime();
+                    db.load();
+                    List<IndexEntry> ies = db.getIndex().getEntriesAsList();
+                    for (int i = 0; i < SAVE_CHANGES && !ies.isEmpty(); i++) {
+                        IndexEntry ie = ies.get(random.nextInt(ies.size()));
+                        db.putSubfile(new IndexEntry(ie.getTgi()), BenchmarkPads.subfile(random, (int) ie.getFileSize()));
+                    }
+                    db.save();
+                    break;
+                }
+            }
+            long t1 = System.nanoTime();
+            if (t0 >= measureStart) {
+                hist[op].record(t1 - t0);
+            }
+        }
+        return hist;
+    }
+
+    /**
+     * Picks a key, uniformly or skewed towards the start of the (shuffled) key
+     * array.
+     */
+    private TypeGroupInstance nextKey(Random random) {
+        double u = random.nextDouble();
+        if (skew > 0) {
+            u = Math.pow(u, 1.0 / (1.0 - Math.min(skew, 0.999)));
+        }
+        return keys[(int) (u * keys.length)];
+    }
+
+    private void report(Histogram[] total) {
+        System.out.printf(Locale.ROOT, "%d threads, %d s measured%n", threads, duration);
+        System.out.printf(Locale.ROOT, "%-8s %10s %10s %10s %10s %10s %10s %10s%n",
+                "op", "count", "ops/s", "mean us", "p50 us", "p99 us", "p999 us", "max us");
+        for (Operation op : Operation.values()) {
+            Histogram h = total[op.ordinal()];
+            System.out.printf(Locale.ROOT, "%-8s %10d %10.1f %10.1f %10.1f %10.1f %10.1f %10.1f%n",
+                    op.name().toLowerCase(Locale.ROOT), h.getCount(), h.getCount() / (double) duration,
+                    h.getMean() / 1e3, h.getValueAtQuantile(0.50) / 1e3, h.getValueAtQuantile(0.99) / 1e3,
+                    h.getValueAtQuantile(0.999) / 1e3, h.getMax() / 1e3);
+        }
+    }
+
+}
@@ -0,0 +1,78 @@
+package org.phoenix.bench;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.phoenix.assetdatabase.MetadataList;
+
+/**
+ * {@link MetadataList#save(java.io.DataOutput)},
+ * {@link MetadataList#load(java.io.DataInput, int)}, and
+ * {@link MetadataList#getSizeBytes()}.
+ *
+ * @author Vince
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class MetadataBenchmark {
+
+    @Param({"4", "32"})
+    public int tags;
+    @Param({"false", "true"})
+    public boolean multibyte;
+
+    private MetadataList metadata;
+    private byte[] saved;
+    private ByteArrayOutputStream baos;
+    private DataOutputStream out;
+
+    @Setup
+    public void setup() throws IOException {
+        metadata = new MetadataList();
+        for (int i = 0; i < tags; i++) {
+            metadata.put("Key" + i, "Some value for tag number " + i + (multibyte ? " \u00E9\u20AC" : ""));
+        }
+        baos = new ByteArrayOutputStream();
+        out = new DataOutputStream(baos);
+        metadata.save(out);
+        saved = baos.toByteArray();
+    }
+
+    @Benchmark
+    public int save() throws IOException {
+        baos.reset();
+        return metadata.save(out);
+    }
+
+    @Benchmark
+    public MetadataList load() throws IOException {
+        MetadataList ml = new MetadataList();
+        ml.load(new DataInputStream(new ByteArrayInputStream(saved)), tags);
+        //  Loaded lists are decoded on first access
+        ml.getTagsImmutable().size();
+        return ml;
+    }
+
+    @Benchmark
+    public int getSizeBytes() {
+        return metadata.getSizeBytes();
+    }
+}
@@ -0,0 +1,278 @@
+package org.phoenix.bench;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Locale;
+import java.util.Random;
+import org.phoenix.assetdatabase.AssetDatabase;
+import org.phoenix.assetdatabase.AssetDatabaseImpl;
+import org.phoenix.assetdatabase.HoleIndex;
+import org.phoenix.assetdatabase.HoleIndexEntry;
+import org.phoenix.assetdatabase.Index;
+import org.phoenix.assetdatabase.IndexEntry;
+import org.phoenix.assetdatabase.MetadataList;
+import org.phoenix.assetdatabase.Subfile;
+import org.phoenix.assetdatabase.TypeGroupInstance;
+
+/**
+ * Generates synthetic V3 PADs for load testing.
+ * <p>
+ * Subfiles are written one at a time straight to disk in the same layout that
+ * {@link AssetDatabaseImpl#save()} produces (header, index, hole index,
+ * metadata, data), so packs with millions of entries can be generated without
+ * holding their data in memory. Holes are left as unused space between
+ * subfiles and recorded in the hole index.
+ *
+ * <pre>
+ * Usage: PadGenerator --out DIR [options]
+ *   --pads N          Number of PADs to generate (1)
+ *   --entries N       Subfiles per PAD (1000)
+ *   --payload DIST    Payload size distribution (fixed:4096)
+ *                       fixed:SIZE, uniform:MIN:MAX, lognormal:MEDIAN:SIGMA
+ *   --metadata N      Metadata tags per subfile (1)
+ *   --holes F         Fraction of subfiles followed by a hole (0)
+ *   --types N         Number of distinct TypeIDs (16)
+ *   --overlap F       Fraction of TGIs that override a TGI of the previous PAD (0)
+ *   --md5 true|false  Whether to store MD5 hashes (true)
+ *   --seed N          Random seed (1)
+ * </pre>
+ *
+ * @author Vince
+ */
+public class PadGenerator {
+
+    public static final int BASE_TYPE = 0x5EB40000;
+    public static final String EXTENSION = "pad";
+    /**
+     * Payloads are never larger than this, whatever the distribution.
+     */
+    public static final int MAX_PAYLOAD_SIZE = 64 << 20;
+
+    private final Path outputDir;
+    private int pads = 1;
+    private int entries = 1000;
+    private String payload = "fixed:4096";
+    private int metadataTags = 1;
+    private double holes;
+    private int types = 16;
+    private double overlap;
+    private boolean md5 = true;
+    private long seed = 1;
+
+    public PadGenerator(Path outputDir) {
+        this.outputDir = outputDir;
+    }
+
+    public static void main(String[] args) throws IOException {
+        Path out = null;
+        String[][] opts = new String[args.length / 2][];
+        if (args.length % 2 != 0) {
+            usage("Missing value for " + args[args.length - 1]);
+        }
+        for (int i = 0; i < opts.length; i++) {
+            opts[i] = new String[]{args[i * 2], args[i * 2 + 1]};
+            if ("--out".equals(opts[i][0])) {
+                out = Paths.get(opts[i][1]);
+            }
+        }
+        if (out == null) {
+            usage("--out is required");
+            return;
+        }
+        PadGenerator gen = new PadGenerator(out);
+        for (String[] opt : opts) {
+            switch (opt[0]) {
+                case "--out":
+                    break;
+                case "--pads":
+                    gen.pads = Integer.parseInt(opt[1]);
+                    break;
+                case "--entries":
+                    gen.entries = Integer.parseInt(opt[1]);
+                    break;
+                case "--payload":
+                    gen.payload = opt[1];
+                    break;
+                case "--metadata":
+                    gen.metadataTags = Integer.parseInt(opt[1]);
+                    break;
+                case "--holes":
+                    gen.holes = Double.parseDouble(opt[1]);
+                    break;
+                case "--types":
+                    gen.types = Integer.parseInt(opt[1]);
+                    break;
+                case "--overlap":
+                    gen.overlap = Double.parseDouble(opt[1]);
+                    break;
+                case "--md5":
+                    gen.md5 = Boolean.parseBoolean(opt[1]);
+                    break;
+                case "--seed":
+                    gen.seed = Long.parseLong(opt[1]);
+                    break;
+                default:
+                    usage("Unknown option " + opt[0]);
+            }
+        }
+        gen.generate();
+    }
+
+    private static void usage(String error) {
+        System.err.println(error);
+        System.err.println("Usage: PadGenerator --out DIR [--pads N] [--entries N] [--payload fixed:SIZE|uniform:MIN:MAX|lognormal:MEDIAN:SIGMA]");
+        System.err.println("       [--metadata N] [--holes F] [--types N] [--overlap F] [--md5 true|false] [--seed N]");
+        System.exit(2);
+    }
+
+    /**
+     * Generates every PAD.
+     *
+     * @throws IOException
+     */
+    public void generate() throws IOException {
+        Files.createDirectories(outputDir);
+        sizeOf(new Random(0));  //  Validate the distribution up front
+        long start = System.nanoTime();
+        long bytes = 0;
+        for (int p = 0; p < pads; p++) {
+            Path pad = outputDir.resolve(String.format(Locale.ROOT, "pack%05d.%s", p, EXTENSION));
+            bytes += generatePad(pad, p);
+            System.out.printf(Locale.ROOT, "Generated %s%n", pad);
+        }
+        double secs = (System.nanoTime() - start) / 1e9;
+        System.out.printf(Locale.ROOT, "%d PADs, %d subfiles, %.1f MiB in %.1f s%n", pads, (long) pads * entries, bytes / 1048576.0, secs);
+    }
+
+    /**
+     * Returns the TGI of subfile <code>i</code> of PAD <code>pad</code>.
+     */
+    private TypeGroupInstance tgiOf(int pad, int i) {
+        long n = (long) pad * entries + i;
+        return new TypeGroupInstance(BASE_TYPE + (int) (n % types), (int) ((n / types) & 0xFF), n);
+    }
+
+    /**
+     * Draws a payload size from the configured distribution.
+     */
+    private int sizeOf(Random random) {
+        String[] s = payload.split(":");
+        long size;
+        switch (s[0]) {
+            case "fixed":
+                size = Long.parseLong(s[1]);
+                break;
+            case "uniform":
+                long min = Long.parseLong(s[1]);
+                long max = Long.parseLong(s[2]);
+                size = min + (long) (random.nextDouble() * (max - min + 1));
+                break;
+            case "lognormal":
+                double median = Double.parseDouble(s[1]);
+                double sigma = Double.parseDouble(s[2]);
+                size = Math.round(median * Math.exp(sigma * random.nextGaussian()));
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown payload distribution " + payload);
+        }
+        return (int) Math.max(0, Math.min(MAX_PAYLOAD_SIZE, size));
+    }
+
+    private long generatePad(Path pad, int p) throws IOException {
+        //  Holes and subfile TGIs are drawn from their own generators so the
+        //  tables can be sized before any data is written
+        long padSeed = seed * 1000003L + p;
+        Index index = new Index();
+        HoleIndex holeIndex = new HoleIndex();
+        Random tgiRandom = new Random(padSeed);
+        Random holeRandom = new Random(padSeed ^ 0x484F4C45L);
+        TypeGroupInstance[] tgis = new TypeGroupInstance[entries];
+        for (int i = 0; i < entries; i++) {
+            TypeGroupInstance tgi = tgiOf(p, i);
+            if (p > 0 && tgiRandom.nextDouble() < overlap) {
+                tgi = tgiOf(p - 1, tgiRandom.nextInt(entries));
+            }
+            if (!index.getEntries().add(new IndexEntry(tgi))) {
+                //  Overlap picked a TGI twice, fall back to our own
+                tgi = tgiOf(p, i);
+                index.getEntries().add(new IndexEntry(tgi));
+            }
+            tgis[i] = tgi;
+        }
+        int numHoles = 0;
+        for (int i = 0; i < entries; i++) {
+            if (holeRandom.nextDouble() < holes) {
+                numHoles++;
+            }
+        }
+        MetadataList metadata = new MetadataList();
+        metadata.put("Title", "Synthetic PAD " + p);
+        metadata.put("Generator", PadGenerator.class.getSimpleName());
+
+        long dataStart = AssetDatabaseImpl.HEADER_SIZE + index.getSizeBytes()
+                + (long) numHoles * HoleIndexEntry.SIZEOF + metadata.getSizeBytes();
+        Random dataRandom = new Random(padSeed ^ 0x44415441L);
+        holeRandom = new Random(padSeed ^ 0x484F4C45L);
+        long pos = dataStart;
+        try (OutputStream fos = Files.newOutputStream(pad);
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos, 1 << 16))) {
+            byte[] zeros = new byte[1 << 16];
+            for (long n = dataStart; n > 0; n -= zeros.length) {
+                out.write(zeros, 0, (int) Math.min(zeros.length, n));
+            }
+            for (int i = 0; i < entries; i++) {
+                Subfile sf = new Subfile();
+                for (int t = 0; t < metadataTags; t++) {
+                    sf.getMetadata().put("Key" + t, randomAscii(dataRandom, 4 + dataRandom.nextInt(28)));
+                }
+                byte[] data = new byte[sizeOf(dataRandom)];
+                dataRandom.nextBytes(data);
+                sf.setData(data, md5);
+                IndexEntry ie = index.getEntry(tgis[i]);
+                ie.setFileOffset(pos);
+                ie.setFileSize(sf.getCompressedSize());
+                pos += sf.save(out);
+                if (holeRandom.nextDouble() < holes) {
+                    int gap = Math.max(1, sizeOf(dataRandom));
+                    holeIndex.getEntries().add(new HoleIndexEntry(pos, gap));
+                    for (long n = gap; n > 0; n -= zeros.length) {
+                        out.write(zeros, 0, (int) Math.min(zeros.length, n));
+                    }
+                    pos += gap;
+                }
+            }
+        }
+        try (RandomAccessFile raf = new RandomAccessFile(pad.toFile(), "rw")) {
+            long indexOffset = AssetDatabaseImpl.HEADER_SIZE;
+            long holeIndexOffset = indexOffset + index.getSizeBytes();
+            long metadataOffset = holeIndexOffset + holeIndex.getSizeBytes();
+            raf.writeInt(AssetDatabase.MAGIC_NUMBER);
+            raf.writeInt(AssetDatabaseImpl.VERSION_3);
+            raf.writeLong(indexOffset);
+            raf.writeInt(index.getEntries().size());
+            raf.writeLong(holeIndexOffset);
+            raf.writeInt(holeIndex.getEntries().size());
+            raf.writeLong(metadataOffset);
+            raf.writeShort(metadata.size());
+            index.save(raf);
+            holeIndex.save(raf);
+            metadata.save(raf);
+        }
+        return pos;
+    }
+
+    private static String randomAscii(Random random, int length) {
+        char[] c = new char[length];
+        for (int i = 0; i < length; i++) {
+            c[i] = (char) ('a' + random.nextInt(26));
+        }
+        return new String(c);
+    }
+
+}
@@ -0,0 +1,79 @@
+package org.phoenix.bench;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.phoenix.assetdatabase.AssetDatabaseImpl;
+import org.phoenix.assetdatabase.IndexEntry;
+
+/**
+ * {@link AssetDatabaseImpl#save()} of a V3 PAD after replacing 10% of its
+ * subfiles, at several pack sizes, with and without streaming.
+ *
+ * @author Vince
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class SaveBenchmark {
+
+    @Param({"100", "1000", "10000"})
+    public int entries;
+    @Param({"4096"})
+    public int payloadSize;
+    @Param({"false", "true"})
+    public boolean streaming;
+
+    private Path dir;
+    private Path base;
+    private Path work;
+    private AssetDatabaseImpl db;
+
+    @Setup
+    public void setup() throws IOException {
+        dir = Files.createTempDirectory("padbench");
+        base = BenchmarkPads.createPad(dir.resolve("base.pad"), entries, payloadSize);
+        work = dir.resolve("work.pad");
+    }
+
+    @Setup(Level.Invocation)
+    public void prepare() throws IOException {
+        Files.copy(base, work, StandardCopyOption.REPLACE_EXISTING);
+        db = new AssetDatabaseImpl(work);
+        db.setStreamingSave(streaming);
+        db.load();
+        Random random = new Random(entries);
+        for (int i = 0; i < entries; i += 10) {
+            db.putSubfile(new IndexEntry(BenchmarkPads.tgi(i)), BenchmarkPads.subfile(random, payloadSize));
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        BenchmarkPads.delete(dir);
+    }
+
+    @Benchmark
+    public void save() throws IOException {
+        db.save();
+    }
+}
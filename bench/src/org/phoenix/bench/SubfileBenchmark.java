@@ -0,0 +1,56 @@
+package org.phoenix.bench;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.phoenix.assetdatabase.Subfile;
+
+/**
+ * {@link Subfile#getData()} of a freshly loaded subfile, including hash
+ * verification.
+ *
+ * @author Vince
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class SubfileBenchmark {
+
+    @Param({"1024", "65536", "1048576"})
+    public int payloadSize;
+
+    private byte[] record;
+
+    @Setup
+    public void setup() throws IOException {
+        Subfile sf = BenchmarkPads.subfile(new Random(payloadSize), payloadSize);
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        sf.save(new DataOutputStream(baos));
+        record = baos.toByteArray();
+    }
+
+    @Benchmark
+    public byte[] getData() throws IOException {
+        Subfile sf = new Subfile();
+        sf.load(new DataInputStream(new ByteArrayInputStream(record)));
+        return sf.getData();
+    }
+}
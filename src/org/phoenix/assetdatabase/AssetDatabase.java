@@ -2,8 +2,16 @@ package org.phoenix.assetdatabase;
 
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.stream.Collectors;
 
 /**
  * Represents a Phoenix Asset Database, which is a file database/container
@@ -11,8 +19,8 @@ import java.util.Map;
  * files. Each {@link TypeGroupInstance} triplet is unique within a database and
  * should be kept universally unique within an application. Duplicate entries
  * should result in the last loaded entry overriding any previous entries. Files
- * can be compressed and have validation hashes (currently MD5, support for others
- * in the future possibly)
+ * can be compressed and have validation hashes (MD5 by default, see
+ * {@link HashAlgorithm} for the others)
  * <p>
  *
  * @version 0.0.0.3
@@ -22,6 +30,10 @@ import java.util.Map;
 public interface AssetDatabase {
 
     public static final int MAGIC_NUMBER = 0x50414442;  //  'PADB'
+    /**
+     * Default in-flight limit of {@link #publish()}, in bytes.
+     */
+    public static final long DEFAULT_PUBLISH_IN_FLIGHT = 64L * 1024 * 1024;
 
     /**
      * Saves the database to file.
@@ -73,6 +85,177 @@ public interface AssetDatabase {
      */
     public Map<TypeGroupInstance, Subfile> loadSubfiles(Collection<TypeGroupInstance> tgis) throws FileNotFoundException, IOException;
 
+    /**
+     * Describes a subfile without reading its data. Only the record header
+     * and metadata are read, so this is much cheaper than
+     * {@link #loadSubfile(TypeGroupInstance)} for listing a database.
+     * <p>
+     * The default implementation loads the subfile and describes it;
+     * implementations should read only the record header and metadata.
+     *
+     * @param tgi The TGI of the subfile to describe.
+     * @return A {@link SubfileStat} describing the subfile.
+     * @throws FileNotFoundException If no subfile with the specified TGI was
+     * found in the database.
+     * @throws IOException If there was an issue reading the subfile record
+     * from the file.
+     */
+    public default SubfileStat statSubfile(TypeGroupInstance tgi) throws FileNotFoundException, IOException {
+        return statSubfiles(Collections.singletonList(tgi)).get(tgi);
+    }
+
+    /**
+     * Describes multiple subfiles without reading their data (bulk operation).
+     *
+     * @see AssetDatabase#statSubfile(TypeGroupInstance)
+     * @param tgis A collection of TGIs to describe.
+     * @return A Map of results.
+     * @throws FileNotFoundException If no subfile(s) could be found with a
+     * given TGI in the collection.
+     * @throws IOException If there was an issue reading any subfile record
+     * from the file.
+     */
+    public default Map<TypeGroupInstance, SubfileStat> statSubfiles(Collection<TypeGroupInstance> tgis) throws FileNotFoundException, IOException {
+        Map<TypeGroupInstance, Subfile> loaded = loadSubfiles(tgis);
+        Set<TypeGroupInstance> wanted = new HashSet<>(tgis);
+        Map<TypeGroupInstance, Long> offsets = new HashMap<>(loaded.size());
+        for (IndexEntry ie : getIndex().getEntries()) {
+            if (wanted.contains(ie.getTgi())) {
+                offsets.put(ie.getTgi(), ie.getFileOffset());
+            }
+        }
+        Map<TypeGroupInstance, SubfileStat> result = new HashMap<>(loaded.size());
+        for (Map.Entry<TypeGroupInstance, Subfile> e : loaded.entrySet()) {
+            Long offset = offsets.get(e.getKey());
+            result.put(e.getKey(), SubfileStat.describe(e.getKey(), offset == null ? -1L : offset, e.getValue()));
+            e.getValue().release();
+        }
+        return result;
+    }
+
+    /**
+     * Returns the TGIs of the subfiles whose metadata maps <code>key</code>
+     * to exactly <code>value</code>. Like {@link #getIndex()}, this describes
+     * the database on disk.
+     * <p>
+     * The default implementation describes every subfile with
+     * {@link #statSubfiles(Collection)}; implementations should use an index
+     * where they have one.
+     *
+     * @param key The metadata key.
+     * @param value The metadata value.
+     * @return The TGIs of the matching subfiles.
+     * @throws IOException If there was an issue reading the metadata.
+     */
+    public default Set<TypeGroupInstance> findByMetadata(String key, String value) throws IOException {
+        return statSubfiles(getIndex().getEntries().stream().
+                map(IndexEntry::getTgi).
+                collect(Collectors.toList())).
+                values().stream().
+                filter((st) -> value.equals(st.getMetadata().getTagsImmutable().get(key))).
+                map(SubfileStat::getTgi).
+                collect(Collectors.toSet());
+    }
+
+    /**
+     * Returns the TGIs of the subfiles whose metadata maps <code>key</code>
+     * to a value starting with <code>prefix</code>.
+     *
+     * @see AssetDatabase#findByMetadata(String, String)
+     * @param key The metadata key.
+     * @param prefix The value prefix.
+     * @return The TGIs of the matching subfiles.
+     * @throws IOException If there was an issue reading the metadata.
+     */
+    public default Set<TypeGroupInstance> findByMetadataPrefix(String key, String prefix) throws IOException {
+        return statSubfiles(getIndex().getEntries().stream().
+                map(IndexEntry::getTgi).
+                collect(Collectors.toList())).
+                values().stream().
+                filter((st) -> {
+                    String v = st.getMetadata().getTagsImmutable().get(key);
+                    return v != null && v.startsWith(prefix);
+                }).
+                map(SubfileStat::getTgi).
+                collect(Collectors.toSet());
+    }
+
+    /**
+     * Checks the integrity of the database on disk: reads every subfile,
+     * checks its data against its hash, and reports every problem found
+     * rather than stopping at the first. Meant to run in the background on
+     * live databases, so reading can be rate limited.
+     * <p>
+     * The default implementation loads the subfiles of {@link #getIndex()} one
+     * at a time, in file order; implementations should read their files
+     * sequentially and check their layout as well.
+     *
+     * @param parallelism The number of threads checking hashes.
+     * @param maxBytesPerSecond The most bytes to read per second, or 0 for no
+     * limit.
+     * @return The report.
+     * @throws IOException If the database could not be opened, or the thread
+     * was interrupted. Problems in the data are reported instead.
+     */
+    public default ScrubReport scrub(int parallelism, long maxBytesPerSecond) throws IOException {
+        try (Scrubber scrubber = new Scrubber(parallelism, maxBytesPerSecond)) {
+            scrubber.report.addPad();
+            List<IndexEntry> entries = new ArrayList<>(getIndex().getEntries());
+            entries.sort((e, f) -> Long.compare(e.getFileOffset(), f.getFileOffset()));
+            for (IndexEntry ie : entries) {
+                Subfile sf;
+                try {
+                    sf = loadSubfile(ie.getTgi());
+                } catch (IOException | RuntimeException e) {
+                    scrubber.report.addProblem(null, ie.getTgi(), ie.getFileOffset(), ScrubReport.Kind.READ_ERROR, String.valueOf(e.getMessage()));
+                    continue;
+                }
+                long bytes = Subfile.HEADER_SIZE + sf.getCompressedSize() + sf.getMetadata().getSizeBytes();
+                scrubber.report.addRecord(1, bytes);
+                scrubber.throttle(bytes);
+                if (sf.isTombstone()) {
+                    sf.release();
+                } else {
+                    scrubber.verify(null, ie.getTgi(), ie.getFileOffset(), sf);
+                }
+            }
+            return scrubber.finish();
+        }
+    }
+
+    /**
+     * Returns a publisher of every subfile of the database on disk, for
+     * exporting a whole pack. Each subscription reads the database as it is
+     * when the subscription starts, in file order, on its own thread, and
+     * emits one {@link ExportedSubfile} per entry of {@link #getIndex()}.
+     * Reading only runs ahead of the subscriber's requests by one record, and
+     * pauses while the emitted subfiles that are not released add up to
+     * <code>maxInFlightBytes</code> or more.
+     * <p>
+     * The default implementation loads the subfiles of {@link #getIndex()} one
+     * at a time; implementations should read their files sequentially.
+     *
+     * @param maxInFlightBytes The most bytes of records read but not released
+     * (one record may exceed it).
+     * @param executor Runs the reading of each subscription, or null for a
+     * new thread each.
+     * @return The publisher.
+     */
+    public default AssetFlow.Publisher<ExportedSubfile> publish(long maxInFlightBytes, Executor executor) {
+        return new SubfilePublisher(() -> SubfilePublisher.loading(this), maxInFlightBytes, executor);
+    }
+
+    /**
+     * Returns a publisher of every subfile of the database on disk, with an
+     * in-flight limit of {@value #DEFAULT_PUBLISH_IN_FLIGHT} bytes.
+     *
+     * @see #publish(long, Executor)
+     * @return The publisher.
+     */
+    public default AssetFlow.Publisher<ExportedSubfile> publish() {
+        return publish(DEFAULT_PUBLISH_IN_FLIGHT, null);
+    }
+
     /**
      * Adds a subfile to the database for writing.
      * <p>
@@ -1,23 +1,76 @@
 package org.phoenix.assetdatabase;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.EOFException;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+import org.phoenix.assetdatabase.instrumentation.Instrumentation;
+import org.phoenix.assetdatabase.instrumentation.SavePhase;
 
 import static java.util.Objects.requireNonNull;
+import static org.phoenix.assetdatabase.instrumentation.Instrumentation.trace;
 
 /**
- * Implementation of the Phoenix Asset Database, supporting reading and writing version 3 PADs.
+ * Implementation of the Phoenix Asset Database, supporting reading and writing version 3 and 4 PADs.
+ * <p>
+ * Version 4 PADs keep the subfile record format of version 3, but store the
+ * index as fixed-width records sorted by TGI after the data, with a
+ * checksummed header pointing at it. Loading one only maps the index (see
+ * {@link MappedIndex}), so it takes constant time and memory regardless of the
+ * number of entries, and lookups binary-search the mapping. The {@link Index}
+ * returned by {@link #getIndex()} is built on first use. Records at least
+ * {@link #getBlockAlignment()} bytes long start on a block boundary.
+ * <p>
+ * In <i>journaled</i> mode every put, remove, and clear is appended to a
+ * write-ahead journal next to the PAD (see {@link #setJournaled(boolean)}) and
+ * is durable once the call returns, without rewriting the PAD. The journal is
+ * replayed on {@link #load()} and folded into the PAD by {@link #save()}.
+ * <p>
+ * With <i>streaming save</i> enabled (see {@link #setStreamingSave(boolean)})
+ * {@link #save()} copies unchanged subfiles from the old file to a new one
+ * through a fixed-size buffer instead of loading them all, so the memory needed
+ * does not depend on the size of the PAD. Streaming saves keep blocks that are
+ * shared by several index entries shared, and copy a block only while at least
+ * one entry still references it. With <i>deduplication</i> (see
+ * {@link #setDeduplicate(boolean)}) identical subfile records are also merged
+ * into a single block.
+ * <p>
+ * Metadata queries ({@link #findByMetadata(String, String)} and
+ * {@link #findByMetadataPrefix(String, String)}) are answered from a
+ * {@link MetadataIndex} kept in a sidecar file next to the PAD. It is written
+ * on save when {@link #setMetadataIndexed(boolean)} is enabled, and otherwise
+ * built on first use.
  * 
  * @version 0.0.0.3
  * @since 2013-11-23
@@ -27,6 +80,44 @@ public class AssetDatabaseImpl implements AssetDatabase {
 
     public static final int HEADER_SIZE = 42;
     public static final int VERSION_3 = 3;
+    public static final int VERSION_4 = 4;
+    public static final int HEADER_SIZE_V4 = 80;
+    /**
+     * Default alignment of large subfile records in version 4 PADs, in bytes.
+     */
+    public static final int DEFAULT_BLOCK_ALIGNMENT = 4096;
+    /**
+     * Version 4 header flag: the index is in hash order and followed by a
+     * perfect hash (see {@link #seal()}).
+     */
+    public static final int FLAG_SEALED = 0x1;
+    /**
+     * Largest subfile, in bytes, used as a sample by
+     * {@link #trainDictionary(int, int, int)}.
+     */
+    public static final int MAX_DICTIONARY_SAMPLE_SIZE = 64 * 1024;
+    /**
+     * Sample bytes read per dictionary byte when training.
+     */
+    private static final int DICTIONARY_SAMPLE_FACTOR = 100;
+    /**
+     * Prefix of the pack metadata keys written by saves with a
+     * {@link CompressionPolicy}: <code>Compression.&lt;codec&gt;.Subfiles</code>,
+     * <code>.StoredBytes</code>, and <code>.RawBytes</code> for each codec in
+     * use, and <code>Compression.Ratio</code>, stored over raw bytes.
+     */
+    public static final String COMPRESSION_STATISTICS_PREFIX = "Compression.";
+    private static final String[] CODEC_NAMES = {"None", "Deflate", "Dictionary"};
+    /**
+     * Default size of the copy buffer used by streaming saves.
+     */
+    public static final int DEFAULT_SAVE_BUFFER_SIZE = 1 << 20;
+    /**
+     * Read buffer size of {@link #scrub(int, long)} and
+     * {@link #publish(long, Executor)}. Smaller gaps between records are read
+     * through rather than seeked over.
+     */
+    private static final int SEQUENTIAL_BUFFER_SIZE = 4 << 20;
 
     public final Path location;
     /**
@@ -34,6 +125,14 @@ public class AssetDatabaseImpl implements AssetDatabase {
      * save()).
      */
     private final Index index;
+    /**
+     * Mapped index of a version 4 PAD on disk, or null. While set,
+     * <code>index</code> and <code>modIndex</code> are only filled on first
+     * use (see {@link #getIndex()} and {@link #modIndex()}).
+     */
+    private volatile MappedIndex mappedIndex;
+    private volatile boolean indexPending;
+    private boolean modIndexPending;
     /**
      * Working index/index in memory (changes as modifications are made).
      */
@@ -44,6 +143,45 @@ public class AssetDatabaseImpl implements AssetDatabase {
     private final MetadataList metadata;
 
     private int version;
+    private int blockAlignment;
+    private boolean sealed;
+
+    private boolean streamingSave;
+    private int saveBufferSize;
+    private boolean deduplicate;
+    /**
+     * Position of each TGI in the record order of a relayout, or null to copy
+     * records in their old order.
+     */
+    private Map<TypeGroupInstance, Integer> layoutRanks;
+    /**
+     * Pool that loaded subfile data is read into, or null to read it onto the
+     * heap.
+     */
+    private volatile BufferPool bufferPool;
+    /**
+     * Dictionaries read from the PAD on disk, by id.
+     */
+    private final Map<Integer, CompressionDictionary> dictionaries = new ConcurrentHashMap<>();
+    /**
+     * Whether the index describes the PAD on disk. Until it does, subfiles can
+     * only be read at known offsets, and their dictionaries are looked up in
+     * the file.
+     */
+    private volatile boolean indexLoaded;
+    private CompressionPolicy compressionPolicy;
+
+    private boolean journaled;
+    /**
+     * Open journal in journaled mode, or null.
+     */
+    private Journal journal;
+
+    private boolean metadataIndexed;
+    /**
+     * Metadata index of the PAD on disk, or null if not read yet.
+     */
+    private MetadataIndex metadataIndex;
 
     public AssetDatabaseImpl(Path loc) {
         location = requireNonNull(loc, "Location cannot be null.");
@@ -52,31 +190,309 @@ public class AssetDatabaseImpl implements AssetDatabase {
         holeIndex = new HoleIndex();
         metadata = new MetadataList();
         modifiedSubfiles = new HashMap<>();
-        version = 3;
+        version = getLatestVersion();
+        blockAlignment = DEFAULT_BLOCK_ALIGNMENT;
+        saveBufferSize = DEFAULT_SAVE_BUFFER_SIZE;
     }
 
     @Override
     public void load() throws IOException {
+        metadataIndex = null;
+        if (journaled && Files.notExists(location)) {
+            //  Nothing saved yet, only journal records
+            trace("Empty/nonexistant file.");
+            indexLoaded = true;
+        } else {
+            loadFile();
+        }
+        if (journaled) {
+            replayJournal();
+        }
+    }
+
+    private void loadFile() throws IOException {
         try (RandomAccessFile raf = new RandomAccessFile(location.toFile(), "r")) {
-            //  Magic Number
-            raf.seek(0);
-            int magic = raf.readInt();
-            if (magic != MAGIC_NUMBER) {
-                throw new IOException(String.format("Invalid magic number for file: Expected 0x%08X, got 0x%08X", MAGIC_NUMBER, magic));
-            }
-            version = raf.readInt();
-            debug("Version is %s.", version);
-            switch (version) {
-                case VERSION_3:
-                    loadV3(raf);
-                    break;
-                default:
-                    throw new UnsupportedOperationException("Cannot process PAD version " + version);
-            }
+            loadFile(raf);
         } catch (EOFException eof) {
-            debug("Empty/nonexistant file.");
-            version = getLatestVersion();
+            trace("Empty/nonexistant file.");
+            indexLoaded = true;
+        }
+    }
+
+    private void loadFile(RandomAccessFile raf) throws IOException {
+        //  Magic Number
+        raf.seek(0);
+        int magic = raf.readInt();
+        if (magic != MAGIC_NUMBER) {
+            throw new IOException(String.format("Invalid magic number for file: Expected 0x%08X, got 0x%08X", MAGIC_NUMBER, magic));
+        }
+        long start = Instrumentation.startTimer();
+        version = raf.readInt();
+        trace("Version is %s.", version);
+        mappedIndex = null;
+        indexPending = false;
+        modIndexPending = false;
+        sealed = false;
+        dictionaries.clear();
+        switch (version) {
+            case VERSION_3:
+                loadV3(raf);
+                if (Instrumentation.isEnabled()) {
+                    long bytes = HEADER_SIZE + index.getSizeBytes() + holeIndex.getSizeBytes() + metadata.getSizeBytes();
+                    Instrumentation.indexLoaded(location, index.getEntries().size(), bytes, start);
+                }
+                break;
+            case VERSION_4:
+                loadV4(raf);
+                if (Instrumentation.isEnabled()) {
+                    long bytes = HEADER_SIZE_V4 + holeIndex.getSizeBytes() + metadata.getSizeBytes();
+                    Instrumentation.indexLoaded(location, mappedIndex.size(), bytes, start);
+                }
+                break;
+            default:
+                throw new UnsupportedOperationException("Cannot process PAD version " + version);
+        }
+        indexLoaded = true;
+    }
+
+    /**
+     * Applies the changes recorded in the journal, if any, to the working index.
+     */
+    private void replayJournal() throws IOException {
+        int count = openJournal().replay(new Journal.Handler() {
+            @Override
+            public void put(IndexEntry ie, Subfile sf) {
+                applyPut(ie, sf);
+            }
+
+            @Override
+            public void remove(TypeGroupInstance tgi) {
+                applyRemove(tgi);
+            }
+
+            @Override
+            public void clear() {
+                applyClear();
+            }
+        });
+        trace("Replayed %s journal records.", count);
+    }
+
+    private synchronized Journal openJournal() throws IOException {
+        if (journal == null) {
+            journal = new Journal(location);
+        }
+        return journal;
+    }
+
+    public boolean isStreamingSave() {
+        return streamingSave;
+    }
+
+    /**
+     * Enables or disables streaming saves, which copy unchanged subfiles from
+     * the old file through a buffer of {@link #getSaveBufferSize()} bytes and
+     * replace the PAD atomically once the new file is complete.
+     *
+     * @param streamingSave
+     */
+    public void setStreamingSave(boolean streamingSave) {
+        this.streamingSave = streamingSave;
+    }
+
+    public int getSaveBufferSize() {
+        return saveBufferSize;
+    }
+
+    /**
+     * Sets the size of the copy buffer used by streaming saves.
+     *
+     * @param saveBufferSize The buffer size, in bytes.
+     */
+    public void setSaveBufferSize(int saveBufferSize) {
+        if (saveBufferSize < Subfile.HEADER_SIZE) {
+            throw new IllegalArgumentException("Buffer size must be at least " + Subfile.HEADER_SIZE + " bytes.");
+        }
+        this.saveBufferSize = saveBufferSize;
+    }
+
+    public BufferPool getBufferPool() {
+        return bufferPool;
+    }
+
+    /**
+     * Sets the pool that subfile data is loaded into. With a pool, loaded
+     * subfiles hold their data in a pooled direct buffer (see
+     * {@link Subfile#getDataBuffer()}) until they are released with
+     * {@link Subfile#release()}. With none (the default), data is loaded onto
+     * the heap.
+     *
+     * @param bufferPool The pool, or null.
+     */
+    public void setBufferPool(BufferPool bufferPool) {
+        this.bufferPool = bufferPool;
+    }
+
+    public CompressionPolicy getCompressionPolicy() {
+        return compressionPolicy;
+    }
+
+    /**
+     * Sets the policy that chooses how changed subfiles are compressed when
+     * the database is saved, which implies a streaming save. Each version 4
+     * save with a policy also records, for each codec, how many subfiles use
+     * it and their stored and decompressed sizes in the pack metadata (see
+     * {@link #COMPRESSION_STATISTICS_PREFIX}).
+     *
+     * @param compressionPolicy The policy, or null to store subfiles as they
+     * were created.
+     */
+    public void setCompressionPolicy(CompressionPolicy compressionPolicy) {
+        this.compressionPolicy = compressionPolicy;
+    }
+
+    public boolean isDeduplicate() {
+        return deduplicate;
+    }
+
+    /**
+     * Enables or disables deduplication on save, which implies a streaming
+     * save. Subfile records with the same hash and size are compared byte for
+     * byte, and identical ones are stored once with every {@link IndexEntry}
+     * pointing at the same block. Since a record includes its metadata, only
+     * subfiles with identical data <i>and</i> metadata can share a block, and
+     * subfiles without a hash are never deduplicated.
+     *
+     * @param deduplicate
+     */
+    public void setDeduplicate(boolean deduplicate) {
+        this.deduplicate = deduplicate;
+    }
+
+    public boolean isJournaled() {
+        return journaled;
+    }
+
+    /**
+     * Enables or disables journaled mode. Should be set before
+     * {@link #load()}, so that outstanding journal records are replayed.
+     * <p>
+     * In journaled mode {@link #putSubfile(IndexEntry, Subfile)},
+     * {@link #removeSubfile(TypeGroupInstance)}, and {@link #clear()} append a
+     * record to the journal and force it to disk before returning; concurrent
+     * callers share a single force. I/O errors are thrown as
+     * {@link UncheckedIOException}. {@link #save()} checkpoints the journal by
+     * folding it into the PAD and truncating it.
+     *
+     * @param journaled
+     */
+    public void setJournaled(boolean journaled) {
+        this.journaled = journaled;
+    }
+
+    public boolean isMetadataIndexed() {
+        return metadataIndexed;
+    }
+
+    /**
+     * Enables or disables writing the {@link MetadataIndex} sidecar on save.
+     * If the sidecar of the previous file is up to date only the changed
+     * subfiles are indexed; otherwise the metadata of every subfile is read
+     * back from the new file.
+     *
+     * @param metadataIndexed
+     */
+    public void setMetadataIndexed(boolean metadataIndexed) {
+        this.metadataIndexed = metadataIndexed;
+    }
+
+    public int getVersion() {
+        return version;
+    }
+
+    /**
+     * Sets the format version written by the next {@link #save()}. Loading a
+     * PAD sets this to the version of the file, so this should be called
+     * after {@link #load()} to convert an existing PAD. Version 4 saves always
+     * stream (see {@link #setStreamingSave(boolean)}).
+     *
+     * @param version {@link #VERSION_3} or {@link #VERSION_4}.
+     */
+    public void setVersion(int version) {
+        if (version != VERSION_3 && version != VERSION_4) {
+            throw new IllegalArgumentException("Cannot write PAD version " + version);
+        }
+        this.version = version;
+        if (version != VERSION_4) {
+            sealed = false;
+        }
+    }
+
+    /**
+     * Checks whether the PAD is sealed, that is whether it is (or will be,
+     * once saved) written with a perfect hash over its index.
+     *
+     * @return
+     */
+    public boolean isSealed() {
+        return sealed;
+    }
+
+    /**
+     * Seals the database: saves it as version 4 with a minimal perfect hash
+     * ({@link TGIPerfectHash}) over its TGIs, and the index records stored in
+     * hash order. Looking up a TGI in a sealed PAD is then one hash and one
+     * comparison against the mapped index record, instead of a binary search,
+     * and the only memory used is the mapped hash of a few bits per TGI.
+     * <p>
+     * Sealing is meant for PADs that are written once and then only read. A
+     * sealed PAD can still be modified; each later save rebuilds the hash,
+     * until {@link #setVersion(int)} selects version 3.
+     *
+     * @throws IOException If the PAD could not be written.
+     */
+    public synchronized void seal() throws IOException {
+        version = VERSION_4;
+        sealed = true;
+        save();
+    }
+
+    /**
+     * Checks whether the file at a location is a sealed PAD, by reading only
+     * its header.
+     *
+     * @param location The file to check.
+     * @return False if the file is not a sealed PAD, or could not be read.
+     */
+    public static boolean isSealed(Path location) {
+        requireNonNull(location, "Location cannot be null.");
+        try (FileChannel channel = FileChannel.open(location, StandardOpenOption.READ)) {
+            ByteBuffer header = ByteBuffer.allocate(16);
+            readFully(channel, header, 0);
+            return header.getInt(0x00) == MAGIC_NUMBER && header.getInt(0x04) == VERSION_4
+                    && (header.getInt(0x0C) & FLAG_SEALED) != 0;
+        } catch (IOException ex) {
+            return false;
+        }
+    }
+
+    public int getBlockAlignment() {
+        return blockAlignment;
+    }
+
+    /**
+     * Sets the alignment of subfile records in version 4 PADs. Records at
+     * least this long start on a multiple of it, so that they can be mapped
+     * or read without touching an extra page; smaller records are packed.
+     *
+     * @param blockAlignment The alignment, in bytes. Must be a power of two;
+     * 1 disables alignment.
+     */
+    public void setBlockAlignment(int blockAlignment) {
+        if (blockAlignment < 1 || Integer.bitCount(blockAlignment) != 1) {
+            throw new IllegalArgumentException("Block alignment must be a power of two.");
         }
+        this.blockAlignment = blockAlignment;
     }
 
     private void loadV3(RandomAccessFile raf) throws IOException {
@@ -86,9 +502,9 @@ public class AssetDatabaseImpl implements AssetDatabase {
         int numHoleEntries = raf.readInt();
         long metadataOffset = raf.readLong();
         int numMetadataEntries = raf.readUnsignedShort();
-        debug("Index located at 0x%08X with %s entries.", indexOffset, numIndexEntries);
-        debug("HoleIndex located at 0x%08X with %s entries.", holeIndexOffset, numHoleEntries);
-        debug("MetadataTable located at 0x%08X with %s entries.", metadataOffset, numMetadataEntries);
+        trace("Index located at 0x%08X with %s entries.", indexOffset, numIndexEntries);
+        trace("HoleIndex located at 0x%08X with %s entries.", holeIndexOffset, numHoleEntries);
+        trace("MetadataTable located at 0x%08X with %s entries.", metadataOffset, numMetadataEntries);
 
         if (numIndexEntries > 0 && indexOffset >= HEADER_SIZE) {
             raf.seek(indexOffset);
@@ -105,7 +521,108 @@ public class AssetDatabaseImpl implements AssetDatabase {
         }
     }
 
+    /**
+     * Reads the version 4 header and maps the index.
+     *
+     * <pre>
+     * HEADER FORMAT
+     * OFFSET  BYTES   CONTENT
+     * 0x0000  4       Magic number ('PADB')
+     * 0x0004  4       Version
+     * 0x0008  4       Header size
+     * 0x000C  4       Flags ({@link #FLAG_SEALED})
+     * 0x0010  4       Block alignment
+     * 0x0014  4       Index record size
+     * 0x0018  8       Index offset
+     * 0x0020  4       Index entries
+     * 0x0024  4       Hole index entries
+     * 0x0028  8       Hole index offset
+     * 0x0030  8       Metadata offset
+     * 0x0038  2       Metadata entries
+     * 0x003A  6       Reserved
+     * 0x0040  8       Hash index offset (sealed only)
+     * 0x0048  4       Hash index size (sealed only)
+     * 0x004C  4       CRC32 of bytes 0x0000-0x004B
+     * </pre>
+     *
+     * In a sealed PAD the index records are in the slot order of the
+     * {@link TGIPerfectHash} stored at the hash index offset, rather than in
+     * TGI order.
+     */
+    private void loadV4(RandomAccessFile raf) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE_V4);
+        readFully(raf.getChannel(), header, 0);
+        CRC32 crc = new CRC32();
+        crc.update(header.array(), 0, HEADER_SIZE_V4 - 4);
+        if ((int) crc.getValue() != header.getInt(0x4C)) {
+            throw new IOException("Header checksum mismatch in " + location);
+        }
+        int headerSize = header.getInt(0x08);
+        int flags = header.getInt(0x0C);
+        int alignment = header.getInt(0x10);
+        int recordSize = header.getInt(0x14);
+        long indexOffset = header.getLong(0x18);
+        int numIndexEntries = header.getInt(0x20);
+        int numHoleEntries = header.getInt(0x24);
+        long holeIndexOffset = header.getLong(0x28);
+        long metadataOffset = header.getLong(0x30);
+        int numMetadataEntries = header.getShort(0x38) & 0xFFFF;
+        long hashOffset = header.getLong(0x40);
+        int hashSize = header.getInt(0x48);
+        trace("Index located at 0x%08X with %s entries of %s bytes.", indexOffset, numIndexEntries, recordSize);
+        trace("HoleIndex located at 0x%08X with %s entries.", holeIndexOffset, numHoleEntries);
+        trace("MetadataTable located at 0x%08X with %s entries.", metadataOffset, numMetadataEntries);
+        if (headerSize < HEADER_SIZE_V4 || recordSize < MappedIndex.RECORD_SIZE || numIndexEntries < 0
+                || indexOffset < headerSize || indexOffset + (long) numIndexEntries * recordSize > raf.length()) {
+            throw new IOException("Invalid index location in " + location);
+        }
+        if (alignment >= 1 && Integer.bitCount(alignment) == 1) {
+            blockAlignment = alignment;
+        }
+        index.clear();
+        modIndex.clear();
+        modifiedSubfiles.clear();
+        TGIPerfectHash hash = null;
+        if ((flags & FLAG_SEALED) != 0) {
+            trace("Hash index located at 0x%08X with %s bytes.", hashOffset, hashSize);
+            if (hashOffset < headerSize || hashSize < 0 || hashOffset + hashSize > raf.length()) {
+                throw new IOException("Invalid hash index location in " + location);
+            }
+            hash = TGIPerfectHash.load(raf.getChannel().map(FileChannel.MapMode.READ_ONLY, hashOffset, hashSize));
+            if (hash.size() != numIndexEntries) {
+                throw new IOException("Hash index does not match the index in " + location);
+            }
+            sealed = true;
+        }
+        mappedIndex = MappedIndex.map(raf.getChannel(), indexOffset, numIndexEntries, recordSize, hash);
+        indexPending = true;
+        modIndexPending = true;
+        if (numHoleEntries > 0 && holeIndexOffset >= headerSize) {
+            raf.seek(holeIndexOffset);
+            holeIndex.load(raf, numHoleEntries);
+        }
+        if (numMetadataEntries > 0 && metadataOffset >= headerSize) {
+            raf.seek(metadataOffset);
+            metadata.load(raf, numMetadataEntries);
+        }
+    }
+
+    /**
+     * Returns the working index, building it from the mapped index first if
+     * needed.
+     */
+    private synchronized Index modIndex() {
+        if (modIndexPending) {
+            //  Nothing can have been modified yet, every change goes through here
+            modIndexPending = false;
+            modIndex = getIndex().clone();
+        }
+        return modIndex;
+    }
+
     public void syncModIndex() {
+        modIndexPending = false;
+        getIndex();
         if (modIndex != null) {
             modIndex.clear();
         }
@@ -114,21 +631,50 @@ public class AssetDatabaseImpl implements AssetDatabase {
     }
 
     public void syncIndex() {
+        Index working = modIndex();
+        //  The file has been rewritten, so any mapping is stale
+        mappedIndex = null;
+        indexPending = false;
+        indexLoaded = true;
         index.clear();
-        index.getEntries().addAll(modIndex.getEntries());
+        index.getEntries().addAll(working.getEntries());
         modifiedSubfiles.clear();
+        dictionaries.clear();
     }
 
     @Override
-    public void save() throws IOException {
+    public synchronized void save() throws IOException {
+        applyCompressionPolicy();
+        checkDictionaries();
+        MetadataIndex previousIndex = null;
+        Map<TypeGroupInstance, Subfile> changed = null;
+        if (metadataIndexed) {
+            //  Before the PAD is replaced and the modified subfiles are cleared
+            previousIndex = readMetadataIndex();
+            changed = new HashMap<>(modifiedSubfiles);
+        }
         switch (version) {
-            case 3:
-                saveV3(version);
+            case VERSION_3:
+                //  A mapped file must not be truncated in place
+                if (streamingSave || deduplicate || mappedIndex != null || compressionPolicy != null) {
+                    saveStreaming(VERSION_3, location);
+                } else {
+                    saveV3(version);
+                }
                 break;
-            default:
-                //  Update to latest
-                saveV3(version);
+            case VERSION_4:
+                saveStreaming(VERSION_4, location);
                 break;
+            default:
+                throw new UnsupportedOperationException("Cannot write PAD version " + version);
+        }
+        metadataIndex = null;
+        if (metadataIndexed) {
+            saveMetadataIndex(previousIndex, changed);
+        }
+        if (journal != null) {
+            //  Everything in the journal is now in the PAD
+            journal.reset();
         }
     }
 
@@ -139,6 +685,7 @@ public class AssetDatabaseImpl implements AssetDatabase {
         //  For now, do a naive save that simply loads up the data from disk, applies the changes, and saves it back to disk.
         try (RandomAccessFile raf = new RandomAccessFile(location.toFile(), "rw")) {
             HashMap<TypeGroupInstance, Subfile> subfiles = new HashMap<>();
+            long start = Instrumentation.startTimer();
             if (Files.exists(location)) {
                 try {
                     AssetDatabaseImpl adi = new AssetDatabaseImpl(location);
@@ -146,58 +693,33 @@ public class AssetDatabaseImpl implements AssetDatabase {
                     List<TypeGroupInstance> tgis = new ArrayList();
                     adi.getIndex().getEntries().stream().
                             //  Only load files that still remain
-                            filter(modIndex.getEntries()::contains).
+                            filter(modIndex().getEntries()::contains).
                             forEach((e) -> tgis.add(e.getTgi()));
                     subfiles.putAll(adi.loadSubfiles(tgis));
                     //  The Asset Database is automatically released
                 } catch (IOException e) {
-                    debug("No previous file or invalid file:\n%s", e.getLocalizedMessage());
+                    trace("No previous file or invalid file:\n%s", e.getLocalizedMessage());
                 }
             }
             //  Patch in the changed subfiles
             subfiles.putAll(modifiedSubfiles);
+            Instrumentation.savePhase(location, SavePhase.READ_PREVIOUS, 0L, start);
 
             //  Write the file
             raf.seek(0);
             raf.setLength(0);
-            //  Using hardcoded offsets for now
-            int indexOffset = HEADER_SIZE;
-            int holeIndexOffset = indexOffset + modIndex.getSizeBytes();
-            int metadataOffset = holeIndexOffset + holeIndex.getSizeBytes();
-
-            //  Header
-            raf.writeInt(MAGIC_NUMBER);                         //  Magic               4   0x0000
-            raf.writeInt(VERSION_3);                            //  Version             4   0x0004
-            raf.writeLong(indexOffset);                         //  Index offset        8   0x0008
-            raf.writeInt(modIndex.getEntries().size());         //  Index entries       4   0x0010
-            raf.writeLong(holeIndexOffset);                     //  Hole index offset   8   0x0014
-            raf.writeInt(holeIndex.getEntries().size());        //  Hole index entries  4   0x001C
-            raf.writeLong(metadataOffset);                      //  Metadata offset     8   0x0020
-            raf.writeShort(metadata.getTagsImmutable().size()); //  Metadata entries    2   0x0028
-            //  Index and hole index will be saved on second pass
-            debug("End of header at 0x%08X", raf.getFilePointer()); //                      0x002A
-            raf.seek(raf.getFilePointer() + modIndex.getSizeBytes() + holeIndex.getSizeBytes() + metadata.getSizeBytes());
-            debug("Skipped to position 0x%08X", raf.getFilePointer());
+            //  The file is rewritten without gaps, the old holes are gone
+            holeIndex.getEntries().clear();
+            writeHeaderV3(raf);
             //  Write file data and track offsets
-            debug("Writing file data starting at pos 0x%08X", raf.getFilePointer());
+            start = Instrumentation.startTimer();
+            long dataStart = raf.getFilePointer();
+            trace("Writing file data starting at pos 0x%08X", dataStart);
             for (Entry<TypeGroupInstance, Subfile> e : subfiles.entrySet()) {
                 doWriteFileV3(e, raf);
             }
-
-            //  Save the index
-            raf.seek(indexOffset);
-            debug("Seeked to pos 0x%08X for index writing.", raf.getFilePointer());
-            modIndex.save(raf);
-            debug("Finished writing index, ended at pos 0x%08X", raf.getFilePointer());
-            //  Save hole index
-            raf.seek(holeIndexOffset);
-            debug("Seeked to pos 0x%08X for hole index writing.", raf.getFilePointer());
-            holeIndex.save(raf);
-            debug("Finished writing hole index, ended at pos 0x%08X", raf.getFilePointer());
-            //  Save metadata
-            debug("Seeked to pos 0x%08X for metadata writing.", raf.getFilePointer());
-            metadata.save(raf);
-            debug("Finished writing metadata, ended at pos 0x%08X", raf.getFilePointer());
+            Instrumentation.savePhase(location, SavePhase.WRITE_DATA, raf.getFilePointer() - dataStart, start);
+            writeTablesV3(raf);
             raf.close();
 
             //  Synchronize the index so that the main index now refers to our new index (modIndex).
@@ -205,99 +727,1683 @@ public class AssetDatabaseImpl implements AssetDatabase {
         }
     }
 
-    private void doWriteFileV3(Map.Entry<TypeGroupInstance, Subfile> e, RandomAccessFile raf) throws IOException {
-        IndexEntry ie = modIndex.getEntry(e.getKey());
-        if(ie == null) {
-            return;
+    /**
+     * Updates <code>previousIndex</code> (or builds a new index, if null) to
+     * describe the saved PAD and writes it to the sidecar.
+     */
+    private void saveMetadataIndex(MetadataIndex previousIndex, Map<TypeGroupInstance, Subfile> changed) throws IOException {
+        MetadataIndex mi;
+        if (previousIndex == null) {
+            mi = MetadataIndex.build(statSubfilesAt(index.getEntries()).values());
+        } else {
+            mi = previousIndex;
+            mi.removeIf((tgi) -> changed.containsKey(tgi) || index.getEntry(tgi) == null);
+            for (Entry<TypeGroupInstance, Subfile> e : changed.entrySet()) {
+                if (index.getEntry(e.getKey()) != null) {
+                    mi.add(e.getKey(), e.getValue().getMetadata());
+                }
+            }
         }
-        SaveInformation si = e.getValue().save(raf);
-        ie.setFileOffset(si.diskOffset);
-        ie.setFileSize(si.diskSize);
-        debug("Wrote %s at 0x%08X", e.getKey().toString(), si.diskOffset);
-    }
-
-    @Override
-    public boolean contains(TypeGroupInstance tgi) {
-        return getIndex().getEntries().contains(new IndexEntry(tgi));
+        writeMetadataIndex(mi);
+        metadataIndex = mi;
     }
 
-    @Override
-    public Subfile loadSubfile(TypeGroupInstance tgi) throws FileNotFoundException, IOException {
-        IndexEntry ie = index.getEntry(tgi);
-        if (ie == null) {
-            throw new FileNotFoundException("TGI " + tgi.toString() + " not in database.");
+    /**
+     * Reads the metadata index sidecar.
+     *
+     * @return The index, or null if it is missing, unreadable, or out of date.
+     */
+    private MetadataIndex readMetadataIndex() {
+        Path sidecar = MetadataIndex.sidecarFor(location);
+        if (Files.notExists(sidecar) || Files.notExists(location)) {
+            return null;
         }
-        try (RandomAccessFile raf = new RandomAccessFile(location.toFile(), "r")) {
-            return loadSubfileImpl(raf, ie);
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(sidecar)))) {
+            MetadataIndex mi = MetadataIndex.load(in);
+            if (mi.matchesStamp(Files.size(location), Files.getLastModifiedTime(location).toMillis())) {
+                return mi;
+            }
+        } catch (IOException ex) {
+            trace("Could not read metadata index:\n%s", ex.getLocalizedMessage());
         }
+        return null;
     }
 
-    @Override
-    public Map<TypeGroupInstance, Subfile> loadSubfiles(Collection<TypeGroupInstance> tgis) throws FileNotFoundException, IOException {
-        if (tgis.isEmpty()) {
-            return Collections.emptyMap();
+    private void writeMetadataIndex(MetadataIndex mi) throws IOException {
+        mi.setStamp(Files.size(location), Files.getLastModifiedTime(location).toMillis());
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(MetadataIndex.sidecarFor(location))))) {
+            mi.save(out);
         }
-        Map<TypeGroupInstance, Subfile> result = new HashMap<>(tgis.size());
-        try (RandomAccessFile raf = new RandomAccessFile(location.toFile(), "r")) {
-            for (TypeGroupInstance tgi : tgis) {
-                IndexEntry ie = index.getEntry(tgi);
-                if (ie == null) {
-                    throw new FileNotFoundException("TGI " + tgi.toString() + " not in database.");
+    }
+
+    /**
+     * Returns the metadata index of the database on disk. The sidecar is read
+     * on first use; if it is missing or out of date the index is built by
+     * describing every subfile (see {@link #statSubfilesAt(Collection)}) and
+     * written back if possible.
+     *
+     * @return
+     * @throws IOException If the index could not be built.
+     */
+    public synchronized MetadataIndex getMetadataIndex() throws IOException {
+        if (metadataIndex == null) {
+            MetadataIndex mi = readMetadataIndex();
+            if (mi == null) {
+                mi = new MetadataIndex();
+                if (Files.exists(location)) {
+                    //  Our own index may not be loaded, or may be ahead of the file
+                    AssetDatabaseImpl adi = new AssetDatabaseImpl(location);
+                    adi.load();
+                    mi = MetadataIndex.build(adi.statSubfilesAt(adi.getIndex().getEntries()).values());
+                    try {
+                        writeMetadataIndex(mi);
+                    } catch (IOException ex) {
+                        //  Read-only location, we'll just rebuild next time
+                    }
                 }
-                result.put(tgi, loadSubfileImpl(raf, ie));
             }
+            metadataIndex = mi;
         }
-        return result;
-    }
-
-    private Subfile loadSubfileImpl(RandomAccessFile raf, IndexEntry ie) throws IOException {
-        raf.seek(ie.getFileOffset());
-        Subfile sf = new Subfile();
-        sf.load(raf);
-        return sf;
+        return metadataIndex;
     }
 
     @Override
-    public void putSubfile(IndexEntry ie, Subfile sf) {
-        requireNonNull(ie, "IndexEntry cannot be null.");
-
-        ie.setFileSize(sf.getCompressedSize());
-        modIndex.getEntries().add(ie.setChanged());
-        modifiedSubfiles.put(ie.getTgi(), sf);
+    public Set<TypeGroupInstance> findByMetadata(String key, String value) throws IOException {
+        return getMetadataIndex().findEquals(key, value);
     }
 
     @Override
-    public void putSubfiles(Map<IndexEntry, Subfile> files) {
-        requireNonNull(files, "Subfile map cannot be null.");
-        if (files.isEmpty()) {
-            return;
-        }
-        files.entrySet().stream().forEach((e) -> putSubfile(e.getKey(), e.getValue()));
+    public Set<TypeGroupInstance> findByMetadataPrefix(String key, String prefix) throws IOException {
+        return getMetadataIndex().findPrefix(key, prefix);
     }
 
-    @Override
-    public void removeSubfile(TypeGroupInstance tgi) {
-        modIndex.getEntries().removeIf((ie) -> ie.getTgi().equals(tgi));
+    /**
+     * Writes the V3 header and leaves the file pointer at the start of the data
+     * area, after the space reserved for the index, hole index, and metadata.
+     */
+    private void writeHeaderV3(RandomAccessFile raf) throws IOException {
+        //  Using hardcoded offsets for now
+        int indexOffset = HEADER_SIZE;
+        int holeIndexOffset = indexOffset + modIndex().getSizeBytes();
+        int metadataOffset = holeIndexOffset + holeIndex.getSizeBytes();
+
+        //  Header
+        raf.writeInt(MAGIC_NUMBER);                         //  Magic               4   0x0000
+        raf.writeInt(VERSION_3);                            //  Version             4   0x0004
+        raf.writeLong(indexOffset);                         //  Index offset        8   0x0008
+        raf.writeInt(modIndex().getEntries().size());       //  Index entries       4   0x0010
+        raf.writeLong(holeIndexOffset);                     //  Hole index offset   8   0x0014
+        raf.writeInt(holeIndex.getEntries().size());        //  Hole index entries  4   0x001C
+        raf.writeLong(metadataOffset);                      //  Metadata offset     8   0x0020
+        raf.writeShort(metadata.size());                    //  Metadata entries    2   0x0028
+        //  Index and hole index will be saved on second pass
+        trace("End of header at 0x%08X", raf.getFilePointer()); //                      0x002A
+        raf.seek(raf.getFilePointer() + modIndex().getSizeBytes() + holeIndex.getSizeBytes() + metadata.getSizeBytes());
+        trace("Skipped to position 0x%08X", raf.getFilePointer());
     }
 
-    private static void debug(String s, Object... args) {
-        if (args == null || args.length == 0) {
-            System.out.println(s);
-        } else {
-            System.out.println(String.format(s, args));
+    /**
+     * Writes the index, hole index, and metadata into the space reserved by
+     * {@link #writeHeaderV3(RandomAccessFile)}.
+     */
+    private void writeTablesV3(RandomAccessFile raf) throws IOException {
+        long start = Instrumentation.startTimer();
+        int indexOffset = HEADER_SIZE;
+        int holeIndexOffset = indexOffset + modIndex().getSizeBytes();
+        //  Save the index
+        raf.seek(indexOffset);
+        trace("Seeked to pos 0x%08X for index writing.", raf.getFilePointer());
+        modIndex().save(raf);
+        trace("Finished writing index, ended at pos 0x%08X", raf.getFilePointer());
+        //  Save hole index
+        raf.seek(holeIndexOffset);
+        trace("Seeked to pos 0x%08X for hole index writing.", raf.getFilePointer());
+        holeIndex.save(raf);
+        trace("Finished writing hole index, ended at pos 0x%08X", raf.getFilePointer());
+        //  Save metadata
+        trace("Seeked to pos 0x%08X for metadata writing.", raf.getFilePointer());
+        metadata.save(raf);
+        trace("Finished writing metadata, ended at pos 0x%08X", raf.getFilePointer());
+        if (Instrumentation.isEnabled()) {
+            long bytes = HEADER_SIZE + modIndex().getSizeBytes() + holeIndex.getSizeBytes() + metadata.getSizeBytes();
+            Instrumentation.savePhase(location, SavePhase.WRITE_TABLES, bytes, start);
         }
     }
 
     /**
-     * Gets the index of this database. The index returned is a view of the
-     * database <i>on disk.</i> Changes made to it are not reflected through the
-     * index until the database is saved.
+     * Writes the database, with its changes, to a new version 4 PAD at another
+     * location. Its own file and index are left as they were, so reads by
+     * offset can go on meanwhile, but the database must then be replaced by
+     * one loaded from <code>target</code>. Metadata indexes and journals are
+     * not updated.
      *
-     * @return
+     * @param target Where to write the PAD.
+     * @param seal Whether to seal the new PAD (see {@link #seal()}).
+     * @throws IOException If the PAD could not be written.
      */
-    @Override
-    public Index getIndex() {
-        return index;
+    synchronized void saveCopy(Path target, boolean seal) throws IOException {
+        applyCompressionPolicy();
+        checkDictionaries();
+        boolean wasSealed = sealed;
+        sealed = seal;
+        try {
+            writeStreaming(VERSION_4, target);
+        } finally {
+            sealed = wasSealed;
+        }
+    }
+
+    /**
+     * Converts a PAD to another format version by streaming its subfile
+     * records into a new file, without loading their data. The source may be
+     * the same as the target, in which case it is replaced atomically. A
+     * sealed PAD stays sealed unless it is converted to version 3.
+     *
+     * @param source The PAD to convert.
+     * @param target Where to write the converted PAD.
+     * @param targetVersion {@link #VERSION_3} or {@link #VERSION_4}.
+     * @throws IOException If the PAD could not be read or written.
+     */
+    public static void convert(Path source, Path target, int targetVersion) throws IOException {
+        requireNonNull(target, "Target cannot be null.");
+        AssetDatabaseImpl adi = new AssetDatabaseImpl(source);
+        adi.load();
+        adi.setVersion(targetVersion);
+        adi.saveStreaming(targetVersion, target);
+    }
+
+    /**
+     * Rewrites a PAD so that its subfiles are stored in the given order, such
+     * as the first-access order recorded by an
+     * {@link org.phoenix.assetdatabase.instrumentation.AccessTraceRecorder}.
+     * Subfiles that are read together then sit next to each other, and
+     * loading them becomes mostly sequential reads. Subfiles not in the order
+     * follow, in their old order. Records are copied without being decoded,
+     * and the version and seal of the PAD are kept.
+     *
+     * @param source The PAD to rewrite.
+     * @param target Where to write the rewritten PAD. May be the same as the
+     * source, in which case it is replaced atomically.
+     * @param order TGIs in the order to store them. TGIs not in the PAD are
+     * ignored.
+     * @throws IOException If the PAD could not be read or written.
+     */
+    public static void relayout(Path source, Path target, List<TypeGroupInstance> order) throws IOException {
+        requireNonNull(target, "Target cannot be null.");
+        requireNonNull(order, "Order cannot be null.");
+        AssetDatabaseImpl adi = new AssetDatabaseImpl(source);
+        adi.load();
+        Map<TypeGroupInstance, Integer> ranks = new HashMap<>(order.size() * 4 / 3 + 1);
+        for (TypeGroupInstance tgi : order) {
+            requireNonNull(tgi, "TGI cannot be null.");
+            ranks.putIfAbsent(tgi, ranks.size());
+        }
+        adi.layoutRanks = ranks;
+        adi.saveStreaming(adi.version, target);
+    }
+
+    /**
+     * Writes a new version 4 PAD from subfile records copied, undecoded, out
+     * of other PADs. Records are read from each source in file order, and
+     * entries that share a block in their source keep sharing it. Records
+     * compressed against a dictionary that the new PAD gets from another
+     * source, or not at all, are recompressed without one.
+     *
+     * @param target Where to write the PAD. Replaced atomically if it exists.
+     * @param sources For each source database, the entries to copy from it,
+     * with their offsets in that source.
+     * @param tags The pack metadata of the new PAD.
+     * @param sealed Whether to seal the new PAD (see {@link #seal()}).
+     * @throws IOException If a source could not be read or the PAD could not
+     * be written.
+     */
+    static void writeRecords(Path target, Map<AssetDatabaseImpl, ? extends Collection<IndexEntry>> sources, Map<String, String> tags, boolean sealed) throws IOException {
+        AssetDatabaseImpl adi = new AssetDatabaseImpl(target);
+        adi.version = VERSION_4;
+        adi.sealed = sealed;
+        adi.metadata.putAll(tags);
+        Path temp = tempPathFor(target);
+        ByteBuffer buffer = ByteBuffer.allocate(adi.saveBufferSize);
+        byte[] padding = new byte[adi.blockAlignment];
+        try (RandomAccessFile raf = new RandomAccessFile(temp.toFile(), "rw")) {
+            raf.setLength(0);
+            raf.write(new byte[HEADER_SIZE_V4]);
+            FileChannel out = raf.getChannel();
+            //  Which source each dictionary in the new PAD comes from
+            Map<Integer, AssetDatabaseImpl> dictionarySources = new HashMap<>();
+            for (Entry<AssetDatabaseImpl, ? extends Collection<IndexEntry>> e : sources.entrySet()) {
+                for (IndexEntry src : e.getValue()) {
+                    TypeGroupInstance tgi = src.getTgi();
+                    if (tgi.type == CompressionDictionary.DICTIONARY_TYPE && tgi.group == 0
+                            && tgi.instance >= 0 && tgi.instance <= CompressionDictionary.MAX_ID) {
+                        dictionarySources.put((int) tgi.instance, e.getKey());
+                    }
+                }
+            }
+            for (Entry<AssetDatabaseImpl, ? extends Collection<IndexEntry>> e : sources.entrySet()) {
+                List<IndexEntry> sorted = new ArrayList<>(e.getValue());
+                sorted.sort((f, g) -> Long.compare(f.getFileOffset(), g.getFileOffset()));
+                //  Old offset -> first copied entry
+                Map<Long, IndexEntry> moved = new HashMap<>();
+                try (FileChannel in = FileChannel.open(e.getKey().location)) {
+                    for (IndexEntry src : sorted) {
+                        IndexEntry ie = new IndexEntry(src.getTgi());
+                        IndexEntry shared = moved.get(src.getFileOffset());
+                        if (shared != null) {
+                            ie.setFileOffset(shared.getFileOffset());
+                            ie.setFileSize(shared.getFileSize());
+                            ie.setRecordSize(shared.getRecordSize());
+                            ie.setDecompressedSize(shared.getDecompressedSize());
+                            ie.setCompressionType(shared.getCompressionType());
+                        } else {
+                            RecordHeader rh = readRecordHeaderV3(in, src.getFileOffset(), buffer);
+                            if (Subfile.usesDictionary(rh.compressionType)
+                                    && dictionarySources.get(Subfile.dictionaryIdOf(rh.compressionType)) != e.getKey()) {
+                                //  Its dictionary is not the one in the new PAD
+                                Subfile sf = e.getKey().loadSubfilesAt(Collections.singletonList(src)).get(src.getTgi())
+                                        .recompress(Subfile.COMPRESSION_DEFLATE);
+                                long length = Subfile.HEADER_SIZE + sf.getCompressedSize() + sf.getMetadata().getSizeBytes();
+                                ie.setFileOffset(alignRecord(raf, length, padding));
+                                sf.save(raf);
+                                ie.setFileSize(sf.getCompressedSize());
+                                ie.setRecordSize(length);
+                                ie.setDecompressedSize(sf.getDecompressedSize());
+                                ie.setCompressionType(sf.getCompressionType());
+                            } else {
+                                long newOffset = alignRecord(raf, rh.length, padding);
+                                copyRange(in, src.getFileOffset(), rh.length, out, buffer);
+                                ie.setFileOffset(newOffset);
+                                ie.setFileSize(rh.compressedSize);
+                                ie.setRecordSize(rh.length);
+                                ie.setDecompressedSize(rh.decompressedSize);
+                                ie.setCompressionType(rh.compressionType);
+                            }
+                            moved.put(src.getFileOffset(), ie);
+                        }
+                        if (!adi.modIndex.getEntries().add(ie)) {
+                            throw new IllegalArgumentException("Duplicate TGI " + ie.getTgi());
+                        }
+                    }
+                }
+            }
+            adi.writeTablesV4(raf);
+        } catch (IOException | RuntimeException ex) {
+            Files.deleteIfExists(temp);
+            throw ex;
+        }
+        try {
+            Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException ex) {
+            Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    /**
+     * Saves by streaming: unchanged subfiles are copied record by record from
+     * the old file into a temporary file through a buffer of
+     * {@link #saveBufferSize} bytes, changed subfiles are written from memory,
+     * and the temporary file then replaces <code>target</code>. The old file
+     * may be either version.
+     */
+    private void saveStreaming(int targetVersion, Path target) throws IOException {
+        writeStreaming(targetVersion, target);
+        syncIndex();
+    }
+
+    /**
+     * Writes the database to <code>target</code> as
+     * {@link #saveStreaming(int, Path)} does, but leaves the index and the
+     * modified subfiles as they were.
+     */
+    private void writeStreaming(int targetVersion, Path target) throws IOException {
+        final boolean v4 = targetVersion == VERSION_4;
+        //  Only the old index is needed, not the data
+        long start = Instrumentation.startTimer();
+        AssetDatabaseImpl previous = null;
+        if (Files.exists(location) && Files.size(location) > 0) {
+            previous = new AssetDatabaseImpl(location);
+            previous.load();
+        }
+        //  Copy unchanged subfiles in old file order so reads are sequential
+        List<IndexEntry> copied = new ArrayList<>();
+        List<IndexEntry> written = new ArrayList<>();
+        List<IndexEntry> orphaned = new ArrayList<>();
+        for (IndexEntry ie : modIndex().getEntries()) {
+            if (modifiedSubfiles.containsKey(ie.getTgi())) {
+                written.add(ie);
+            } else {
+                IndexEntry old = previous == null ? null : previous.getEntry(ie.getTgi());
+                if (old != null) {
+                    ie.setFileOffset(old.getFileOffset());
+                    copied.add(ie);
+                } else {
+                    orphaned.add(ie);
+                }
+            }
+        }
+        //  Entries that have no data anywhere can't be kept
+        modIndex().getEntries().removeAll(orphaned);
+        copied.sort((e, f) -> Long.compare(e.getFileOffset(), f.getFileOffset()));
+        if (layoutRanks != null) {
+            //  Stable, so unranked subfiles keep their old order at the end
+            copied.sort((e, f) -> Integer.compare(layoutRanks.getOrDefault(e.getTgi(), Integer.MAX_VALUE),
+                    layoutRanks.getOrDefault(f.getTgi(), Integer.MAX_VALUE)));
+        }
+        Instrumentation.savePhase(location, SavePhase.READ_PREVIOUS, 0L, start);
+
+        Path temp = tempPathFor(target);
+        ByteBuffer buffer = ByteBuffer.allocate(saveBufferSize);
+        byte[] padding = v4 && blockAlignment > 1 ? new byte[blockAlignment] : null;
+        //  Blocks already in the new file, by content, for deduplication
+        Map<BlockKey, List<Long>> blocks = new HashMap<>();
+        //  Old offset -> first copied entry, so blocks that are already shared stay shared
+        Map<Long, IndexEntry> moved = new HashMap<>();
+        try (RandomAccessFile raf = new RandomAccessFile(temp.toFile(), "rw");
+                RandomAccessFile old = copied.isEmpty() ? null : new RandomAccessFile(location.toFile(), "r")) {
+            raf.setLength(0);
+            //  The file is rewritten without gaps, the old holes are gone
+            holeIndex.getEntries().clear();
+            if (v4) {
+                //  Written last, once the table locations are known
+                raf.write(new byte[HEADER_SIZE_V4]);
+            } else {
+                writeHeaderV3(raf);
+            }
+            start = Instrumentation.startTimer();
+            long dataStart = raf.getFilePointer();
+            trace("Writing file data starting at pos 0x%08X", dataStart);
+            FileChannel out = raf.getChannel();
+            for (IndexEntry ie : copied) {
+                IndexEntry shared = moved.get(ie.getFileOffset());
+                if (shared != null) {
+                    //  Another entry references the same block, only copy it once
+                    ie.setFileOffset(shared.getFileOffset());
+                    ie.setFileSize(shared.getFileSize());
+                    ie.setRecordSize(shared.getRecordSize());
+                    ie.setDecompressedSize(shared.getDecompressedSize());
+                    ie.setCompressionType(shared.getCompressionType());
+                    continue;
+                }
+                RecordHeader rh = readRecordHeaderV3(old.getChannel(), ie.getFileOffset(), buffer);
+                BlockKey key = deduplicate ? BlockKey.of(rh.hash, rh.compressedSize, rh.length) : null;
+                long newOffset = key == null ? -1L : findBlock(blocks.get(key), out, old.getChannel(), ie.getFileOffset(), null, rh.length, buffer);
+                if (newOffset < 0) {
+                    newOffset = alignRecord(raf, rh.length, padding);
+                    copyRange(old.getChannel(), ie.getFileOffset(), rh.length, out, buffer);
+                    addBlock(blocks, key, newOffset);
+                    if (Instrumentation.isEnabled()) {
+                        Instrumentation.subfileWritten(location, ie.getTgi(), newOffset, rh.length);
+                        trace("Copied %s to 0x%08X", ie.getTgi().toString(), newOffset);
+                    }
+                }
+                moved.put(ie.getFileOffset(), ie);
+                ie.setFileOffset(newOffset);
+                ie.setFileSize(rh.compressedSize);
+                ie.setRecordSize(rh.length);
+                ie.setDecompressedSize(rh.decompressedSize);
+                ie.setCompressionType(rh.compressionType);
+            }
+            for (IndexEntry ie : written) {
+                Subfile sf = modifiedSubfiles.get(ie.getTgi());
+                BlockKey key = null;
+                byte[] record = null;
+                long newOffset = -1L;
+                if (deduplicate) {
+                    ByteArrayOutputStream baos = new ByteArrayOutputStream(Subfile.HEADER_SIZE + (int) sf.getCompressedSize() + 64);
+                    sf.save(new DataOutputStream(baos));
+                    record = baos.toByteArray();
+                    key = BlockKey.of(sf.getHash(), sf.getCompressedSize(), record.length);
+                    if (key != null) {
+                        newOffset = findBlock(blocks.get(key), out, null, 0, record, record.length, buffer);
+                    }
+                }
+                long length = record != null ? record.length : Subfile.HEADER_SIZE + sf.getCompressedSize() + sf.getMetadata().getSizeBytes();
+                if (newOffset < 0) {
+                    newOffset = alignRecord(raf, length, padding);
+                    if (record != null) {
+                        raf.write(record);
+                    } else {
+                        sf.save(raf);
+                    }
+                    addBlock(blocks, key, newOffset);
+                    if (Instrumentation.isEnabled()) {
+                        Instrumentation.subfileWritten(location, ie.getTgi(), newOffset, raf.getFilePointer() - newOffset);
+                        trace("Wrote %s at 0x%08X", ie.getTgi().toString(), newOffset);
+                    }
+                }
+                ie.setFileOffset(newOffset);
+                ie.setFileSize(sf.getCompressedSize());
+                ie.setRecordSize(length);
+                ie.setDecompressedSize(sf.getDecompressedSize());
+                ie.setCompressionType(sf.getCompressionType());
+            }
+            Instrumentation.savePhase(location, SavePhase.WRITE_DATA, raf.getFilePointer() - dataStart, start);
+            if (v4 && compressionPolicy != null) {
+                //  Version 3 metadata is reserved before the data, so it cannot grow here
+                recordCompressionStatistics();
+            }
+            if (v4) {
+                writeTablesV4(raf);
+            } else {
+                writeTablesV3(raf);
+            }
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(temp);
+            throw e;
+        }
+        start = Instrumentation.startTimer();
+        try {
+            Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING);
+        }
+        Instrumentation.savePhase(location, SavePhase.COMMIT, 0L, start);
+    }
+
+    /**
+     * Pads the file so that a record of the given length starts on a block
+     * boundary, if it is at least one block long.
+     *
+     * @param padding Zeroes, one block long, or null to not align.
+     * @return The offset to write the record at.
+     */
+    private static long alignRecord(RandomAccessFile raf, long length, byte[] padding) throws IOException {
+        long pos = raf.getFilePointer();
+        if (padding == null || length < padding.length) {
+            return pos;
+        }
+        int gap = (int) (-pos & (padding.length - 1));
+        raf.write(padding, 0, gap);
+        return pos + gap;
+    }
+
+    /**
+     * Writes the index, hole index, metadata, and (if sealed) hash index after
+     * the data, then the header (see {@link #loadV4(RandomAccessFile)}).
+     */
+    private void writeTablesV4(RandomAccessFile raf) throws IOException {
+        long start = Instrumentation.startTimer();
+        long indexOffset = raf.getFilePointer();
+        trace("Writing index at pos 0x%08X", indexOffset);
+        Collection<IndexEntry> entries = modIndex().getEntries();
+        TGIPerfectHash hash = null;
+        if (sealed) {
+            List<TypeGroupInstance> tgis = new ArrayList<>(entries.size());
+            entries.forEach((ie) -> tgis.add(ie.getTgi()));
+            hash = TGIPerfectHash.build(tgis);
+            IndexEntry[] bySlot = new IndexEntry[entries.size()];
+            for (IndexEntry ie : entries) {
+                bySlot[hash.slotOf(ie.getTgi())] = ie;
+            }
+            entries = Arrays.asList(bySlot);
+        }
+        MappedIndex.write(entries, raf);
+        long holeIndexOffset = raf.getFilePointer();
+        holeIndex.save(raf);
+        long metadataOffset = raf.getFilePointer();
+        metadata.save(raf);
+        long hashOffset = 0L;
+        int hashSize = 0;
+        if (hash != null) {
+            hashOffset = raf.getFilePointer();
+            hashSize = hash.getSizeBytes();
+            hash.save(raf);
+        }
+        long end = raf.getFilePointer();
+        trace("Finished writing tables, ended at pos 0x%08X", end);
+
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE_V4);
+        header.putInt(MAGIC_NUMBER);                        //  Magic               4   0x0000
+        header.putInt(VERSION_4);                           //  Version             4   0x0004
+        header.putInt(HEADER_SIZE_V4);                      //  Header size         4   0x0008
+        header.putInt(sealed ? FLAG_SEALED : 0);            //  Flags               4   0x000C
+        header.putInt(blockAlignment);                      //  Block alignment     4   0x0010
+        header.putInt(MappedIndex.RECORD_SIZE);             //  Index record size   4   0x0014
+        header.putLong(indexOffset);                        //  Index offset        8   0x0018
+        header.putInt(modIndex().getEntries().size());      //  Index entries       4   0x0020
+        header.putInt(holeIndex.getEntries().size());       //  Hole index entries  4   0x0024
+        header.putLong(holeIndexOffset);                    //  Hole index offset   8   0x0028
+        header.putLong(metadataOffset);                     //  Metadata offset     8   0x0030
+        header.putShort((short) metadata.size());           //  Metadata entries    2   0x0038
+        header.position(0x40);                              //  Reserved            6   0x003A
+        header.putLong(hashOffset);                         //  Hash index offset   8   0x0040
+        header.putInt(hashSize);                            //  Hash index size     4   0x0048
+        CRC32 crc = new CRC32();
+        crc.update(header.array(), 0, HEADER_SIZE_V4 - 4);
+        header.putInt(0x4C, (int) crc.getValue());          //  Header CRC32        4   0x004C
+        raf.seek(0);
+        raf.write(header.array());
+        raf.seek(end);
+        if (Instrumentation.isEnabled()) {
+            Instrumentation.savePhase(location, SavePhase.WRITE_TABLES, HEADER_SIZE_V4 + end - indexOffset, start);
+        }
+    }
+
+    /**
+     * The parts of a subfile record header needed to copy it.
+     */
+    private static final class RecordHeader {
+
+        int compressionType;
+        int compressedSize;
+        int decompressedSize;
+        byte[] hash;
+        /**
+         * Size of the whole record (header, data, and metadata).
+         */
+        long length;
+    }
+
+    /**
+     * Identifies a block by content for deduplication. Equal keys are only
+     * candidates; the bytes are compared before a block is shared.
+     */
+    private static final class BlockKey {
+
+        private final byte[] hash;
+        private final long compressedSize;
+        private final long length;
+
+        private BlockKey(byte[] hash, long compressedSize, long length) {
+            this.hash = hash;
+            this.compressedSize = compressedSize;
+            this.length = length;
+        }
+
+        /**
+         * Returns a key, or null if the subfile has no hash to go by.
+         */
+        static BlockKey of(byte[] hash, long compressedSize, long length) {
+            if (hash == null || Subfile.isEmptyArray(hash) || Subfile.isMarkedArray(hash)) {
+                return null;
+            }
+            return new BlockKey(hash, compressedSize, length);
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof BlockKey)) {
+                return false;
+            }
+            BlockKey o = (BlockKey) obj;
+            return compressedSize == o.compressedSize && length == o.length && Arrays.equals(hash, o.hash);
+        }
+
+        @Override
+        public int hashCode() {
+            return Arrays.hashCode(hash) * 31 + (int) (length ^ (length >>> 32));
+        }
+    }
+
+    private static void addBlock(Map<BlockKey, List<Long>> blocks, BlockKey key, long offset) {
+        if (key == null) {
+            return;
+        }
+        List<Long> l = blocks.get(key);
+        if (l == null) {
+            l = new ArrayList<>(1);
+            blocks.put(key, l);
+        }
+        l.add(offset);
+    }
+
+    /**
+     * Finds an already written block with exactly the same bytes as a record,
+     * given either as a range of <code>in</code> or as an array.
+     *
+     * @return The offset of the matching block, or -1 if there is none.
+     */
+    private static long findBlock(List<Long> candidates, FileChannel out, FileChannel in, long offset, byte[] record, long length, ByteBuffer buffer) throws IOException {
+        if (candidates == null) {
+            return -1L;
+        }
+        for (long candidate : candidates) {
+            if (sameBytes(out, candidate, in, offset, record, length, buffer)) {
+                return candidate;
+            }
+        }
+        return -1L;
+    }
+
+    private static boolean sameBytes(FileChannel out, long candidate, FileChannel in, long offset, byte[] record, long length, ByteBuffer buffer) throws IOException {
+        //  Split the buffer between both sides
+        int half = Math.max(1, buffer.capacity() / 2);
+        for (long pos = 0; pos < length;) {
+            int n = (int) Math.min(half, length - pos);
+            buffer.clear();
+            buffer.limit(n);
+            ByteBuffer existing = buffer.slice();
+            readFully(out, existing, candidate + pos);
+            ByteBuffer other;
+            if (record != null) {
+                other = ByteBuffer.wrap(record, (int) pos, n);
+            } else {
+                buffer.limit(2 * n);
+                buffer.position(n);
+                other = buffer.slice();
+                readFully(in, other, offset + pos);
+            }
+            if (!existing.equals(other)) {
+                return false;
+            }
+            pos += n;
+        }
+        return true;
+    }
+
+    /**
+     * Reads the header of a V3 subfile record and measures the whole record.
+     */
+    private static RecordHeader readRecordHeaderV3(FileChannel in, long offset, ByteBuffer buffer) throws IOException {
+        buffer.clear();
+        buffer.limit(Subfile.HEADER_SIZE);
+        readFully(in, buffer, offset);
+        RecordHeader rh = new RecordHeader();
+        rh.compressionType = buffer.getShort(0) & 0xFFFF;
+        rh.compressedSize = buffer.getInt(2);
+        rh.decompressedSize = buffer.getInt(6);
+        rh.hash = new byte[16];
+        buffer.position(10);
+        buffer.get(rh.hash);
+        int numMetadata = buffer.getShort(26) & 0xFFFF;
+        long metadataOffset = offset + Subfile.HEADER_SIZE + rh.compressedSize;
+        DataInputStream metaIn = new DataInputStream(new BufferedInputStream(Channels.newInputStream(in.position(metadataOffset)), 512));
+        rh.length = metadataOffset + MetadataList.skip(metaIn, numMetadata) - offset;
+        return rh;
+    }
+
+    /**
+     * Copies <code>length</code> bytes starting at <code>offset</code> to the
+     * current position of <code>out</code>.
+     */
+    private static void copyRange(FileChannel in, long offset, long length, FileChannel out, ByteBuffer buffer) throws IOException {
+        long end = offset + length;
+        for (long pos = offset; pos < end;) {
+            buffer.clear();
+            buffer.limit((int) Math.min(buffer.capacity(), end - pos));
+            readFully(in, buffer, pos);
+            pos += buffer.remaining();
+            while (buffer.hasRemaining()) {
+                out.write(buffer);
+            }
+        }
+    }
+
+    private static void readFully(FileChannel in, ByteBuffer buffer, long pos) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (in.read(buffer, pos + buffer.position()) < 0) {
+                throw new EOFException("Unexpected end of file at 0x" + Long.toHexString(pos + buffer.position()));
+            }
+        }
+        buffer.flip();
+    }
+
+    /**
+     * Returns the size of the header of the PAD on disk, before which no
+     * record can start. The PAD may not have been loaded, so its version is
+     * read from the file.
+     */
+    private static long headerSizeOf(FileChannel in) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(12);
+        readFully(in, header, 0);
+        if (header.getInt(4) == VERSION_4) {
+            return header.getInt(8) & 0xFFFFFFFFL;
+        }
+        return HEADER_SIZE;
+    }
+
+    private static Path tempPathFor(Path p) {
+        Path name = Paths.get(p.getFileName().toString() + ".tmp");
+        Path parent = p.toAbsolutePath().getParent();
+        return parent == null ? name : parent.resolve(name);
+    }
+
+    private void doWriteFileV3(Map.Entry<TypeGroupInstance, Subfile> e, RandomAccessFile raf) throws IOException {
+        IndexEntry ie = modIndex().getEntry(e.getKey());
+        if(ie == null) {
+            return;
+        }
+        SaveInformation si = e.getValue().save(raf);
+        ie.setFileOffset(si.diskOffset);
+        ie.setFileSize(si.diskSize);
+        if (Instrumentation.isEnabled()) {
+            Instrumentation.subfileWritten(location, e.getKey(), si.diskOffset, raf.getFilePointer() - si.diskOffset);
+            trace("Wrote %s at 0x%08X", e.getKey().toString(), si.diskOffset);
+        }
+    }
+
+    @Override
+    public boolean contains(TypeGroupInstance tgi) {
+        return getEntry(tgi) != null;
+    }
+
+    @Override
+    public Subfile loadSubfile(TypeGroupInstance tgi) throws FileNotFoundException, IOException {
+        IndexEntry ie = getEntry(tgi);
+        if (ie == null) {
+            throw new FileNotFoundException("TGI " + tgi.toString() + " not in database.");
+        }
+        try (RandomAccessFile raf = new RandomAccessFile(location.toFile(), "r")) {
+            return loadSubfileImpl(raf, ie);
+        }
+    }
+
+    @Override
+    public Map<TypeGroupInstance, Subfile> loadSubfiles(Collection<TypeGroupInstance> tgis) throws FileNotFoundException, IOException {
+        if (tgis.isEmpty()) {
+            return Collections.emptyMap();
+        }
+        Map<TypeGroupInstance, Subfile> result = new HashMap<>(tgis.size());
+        try (RandomAccessFile raf = new RandomAccessFile(location.toFile(), "r")) {
+            for (TypeGroupInstance tgi : tgis) {
+                IndexEntry ie = getEntry(tgi);
+                if (ie == null) {
+                    throw new FileNotFoundException("TGI " + tgi.toString() + " not in database.");
+                }
+                result.put(tgi, loadSubfileImpl(raf, ie));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Reads the subfile stored at a known offset without consulting the index.
+     * This allows callers that keep their own copy of the index (such as an
+     * asset manager) to skip loading the database index entirely.
+     *
+     * @param fileOffset The offset of the subfile, as stored in its
+     * {@link IndexEntry}.
+     * @return A {@link Subfile} containing the result.
+     * @throws IOException If there was an issue reading the subfile from the
+     * file.
+     * @deprecated Opens the file for each subfile. Use
+     * {@link #loadSubfilesAt(Collection)}, which reads any number of them
+     * through one file handle.
+     */
+    @Deprecated
+    public Subfile loadSubfileAt(long fileOffset) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(location.toFile(), "r")) {
+            if (fileOffset < headerSizeOf(raf.getChannel())) {
+                throw new IOException(String.format("Invalid subfile offset 0x%08X", fileOffset));
+            }
+            return loadSubfileImpl(raf, null, fileOffset);
+        }
+    }
+
+    /**
+     * Reads multiple subfiles at known offsets without consulting the index
+     * (bulk operation). Subfiles are read in file order using a single file
+     * handle.
+     *
+     * @param entries Index entries with the TGI and file offset set.
+     * @return A Map of results.
+     * @throws IOException If there was an issue reading any subfile from the
+     * file.
+     */
+    public Map<TypeGroupInstance, Subfile> loadSubfilesAt(Collection<IndexEntry> entries) throws IOException {
+        requireNonNull(entries, "Entry collection cannot be null.");
+        if (entries.isEmpty()) {
+            return Collections.emptyMap();
+        }
+        List<IndexEntry> sorted = new ArrayList<>(entries);
+        sorted.sort((e, f) -> Long.compare(e.getFileOffset(), f.getFileOffset()));
+        Map<TypeGroupInstance, Subfile> result = new HashMap<>(sorted.size());
+        try (RandomAccessFile raf = new RandomAccessFile(location.toFile(), "r")) {
+            long headerSize = headerSizeOf(raf.getChannel());
+            for (IndexEntry ie : sorted) {
+                if (ie.getFileOffset() < headerSize) {
+                    throw new IOException(String.format("Invalid subfile offset 0x%08X for TGI %s", ie.getFileOffset(), ie.getTgi()));
+                }
+                result.put(ie.getTgi(), loadSubfileImpl(raf, ie));
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public SubfileStat statSubfile(TypeGroupInstance tgi) throws FileNotFoundException, IOException {
+        IndexEntry ie = getEntry(tgi);
+        if (ie == null) {
+            throw new FileNotFoundException("TGI " + tgi.toString() + " not in database.");
+        }
+        return statSubfilesAt(Collections.singletonList(ie)).get(ie.getTgi());
+    }
+
+    @Override
+    public Map<TypeGroupInstance, SubfileStat> statSubfiles(Collection<TypeGroupInstance> tgis) throws FileNotFoundException, IOException {
+        requireNonNull(tgis, "TGI collection cannot be null.");
+        List<IndexEntry> entries = new ArrayList<>(tgis.size());
+        for (TypeGroupInstance tgi : tgis) {
+            IndexEntry ie = getEntry(tgi);
+            if (ie == null) {
+                throw new FileNotFoundException("TGI " + tgi.toString() + " not in database.");
+            }
+            entries.add(ie);
+        }
+        return statSubfilesAt(entries);
+    }
+
+    /**
+     * Describes subfiles at known offsets without consulting the index or
+     * reading their data (bulk operation). Records are visited in file order
+     * using a single file handle; for each one only the fixed size header and
+     * the metadata after the data are read.
+     *
+     * @see AssetDatabase#statSubfile(TypeGroupInstance)
+     * @param entries Index entries with the TGI and file offset set.
+     * @return A Map of results.
+     * @throws IOException If there was an issue reading any subfile record
+     * from the file.
+     */
+    public Map<TypeGroupInstance, SubfileStat> statSubfilesAt(Collection<IndexEntry> entries) throws IOException {
+        requireNonNull(entries, "Entry collection cannot be null.");
+        if (entries.isEmpty()) {
+            return Collections.emptyMap();
+        }
+        List<IndexEntry> sorted = new ArrayList<>(entries);
+        sorted.sort((e, f) -> Long.compare(e.getFileOffset(), f.getFileOffset()));
+        Map<TypeGroupInstance, SubfileStat> result = new HashMap<>(sorted.size());
+        ByteBuffer header = ByteBuffer.allocate(Subfile.HEADER_SIZE);
+        try (FileChannel channel = FileChannel.open(location)) {
+            long headerSize = headerSizeOf(channel);
+            for (IndexEntry ie : sorted) {
+                if (ie.getFileOffset() < headerSize) {
+                    throw new IOException(String.format("Invalid subfile offset 0x%08X for TGI %s", ie.getFileOffset(), ie.getTgi()));
+                }
+                result.put(ie.getTgi(), statSubfileImpl(channel, ie.getTgi(), ie.getFileOffset(), header));
+            }
+        }
+        return result;
+    }
+
+    private static SubfileStat statSubfileImpl(FileChannel channel, TypeGroupInstance tgi, long fileOffset, ByteBuffer header) throws IOException {
+        header.clear();
+        readFully(channel, header, fileOffset);
+        int compressionType = header.getShort(0) & 0xFFFF;
+        int compressedSize = header.getInt(2);
+        int decompressedSize = header.getInt(6);
+        byte[] hash = new byte[16];
+        header.position(10);
+        header.get(hash);
+        int numMetadata = header.getShort(26) & 0xFFFF;
+        MetadataList metadata = new MetadataList();
+        int metadataSize = 0;
+        if (numMetadata > 0) {
+            //  Skip the data, the metadata is right after it
+            channel.position(fileOffset + Subfile.HEADER_SIZE + compressedSize);
+            DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel), 512));
+            metadataSize = metadata.load(in, numMetadata);
+        }
+        long recordSize = Subfile.HEADER_SIZE + (long) compressedSize + metadataSize;
+        return new SubfileStat(tgi, fileOffset, recordSize, compressionType, compressedSize, decompressedSize, hash, metadata);
+    }
+
+    private Subfile loadSubfileImpl(RandomAccessFile raf, IndexEntry ie) throws IOException {
+        return loadSubfileImpl(raf, ie.getTgi(), ie.getFileOffset());
+    }
+
+    private Subfile loadSubfileImpl(RandomAccessFile raf, TypeGroupInstance tgi, long fileOffset) throws IOException {
+        long start = Instrumentation.startTimer();
+        raf.seek(fileOffset);
+        Subfile sf = new Subfile();
+        BufferPool pool = bufferPool;
+        if (pool != null) {
+            sf.load(raf, pool);
+        } else {
+            sf.load(raf);
+        }
+        long end = raf.getFilePointer();
+        if (Subfile.usesDictionary(sf.getCompressionType())) {
+            sf.setDictionary(storedDictionary(raf, Subfile.dictionaryIdOf(sf.getCompressionType())));
+        }
+        if (Instrumentation.isEnabled()) {
+            Instrumentation.subfileLoaded(location, tgi, fileOffset, end - fileOffset, start);
+        }
+        return sf;
+    }
+
+    /**
+     * Returns a dictionary of the PAD on disk, reading it if needed.
+     *
+     * @return The dictionary, or null if the PAD does not have it.
+     */
+    private CompressionDictionary storedDictionary(RandomAccessFile raf, int id) throws IOException {
+        CompressionDictionary d = dictionaries.get(id);
+        if (d == null) {
+            IndexEntry ie = getEntry(CompressionDictionary.tgiOf(id));
+            if (ie == null && !indexLoaded) {
+                //  Read by offset only, so find the dictionary in the file being read
+                AssetDatabaseImpl onDisk = new AssetDatabaseImpl(location);
+                onDisk.loadFile(raf);
+                ie = onDisk.getEntry(CompressionDictionary.tgiOf(id));
+            }
+            if (ie == null) {
+                return null;
+            }
+            raf.seek(ie.getFileOffset());
+            Subfile sf = new Subfile();
+            sf.load(raf);
+            d = new CompressionDictionary(id, sf.getData());
+            dictionaries.put(id, d);
+        }
+        return d;
+    }
+
+    /**
+     * Returns a compression dictionary stored in the database on disk.
+     *
+     * @param id The dictionary id.
+     * @return The dictionary, or null if there is none with that id.
+     * @throws IOException If the dictionary could not be read.
+     */
+    public CompressionDictionary getDictionary(int id) throws IOException {
+        if (id < 0 || id > CompressionDictionary.MAX_ID) {
+            throw new IllegalArgumentException("Dictionary id must be between 0 and " + CompressionDictionary.MAX_ID);
+        }
+        CompressionDictionary d = dictionaries.get(id);
+        if (d != null || (indexLoaded && getEntry(CompressionDictionary.tgiOf(id)) == null)) {
+            return d;
+        }
+        try (RandomAccessFile raf = new RandomAccessFile(location.toFile(), "r")) {
+            return storedDictionary(raf, id);
+        }
+    }
+
+    /**
+     * Adds a compression dictionary, so that subfiles created with
+     * {@link Subfile#Subfile(CompressionDictionary)} can be saved. The
+     * dictionary is stored uncompressed under
+     * {@link CompressionDictionary#getTgi()}.
+     *
+     * @param dictionary The dictionary.
+     * @throws IOException If the current dictionary with the same id could not
+     * be read.
+     * @throws IllegalStateException If the database already has a different
+     * dictionary with the same id, which subfiles may be using.
+     */
+    public void putDictionary(CompressionDictionary dictionary) throws IOException {
+        requireNonNull(dictionary, "Dictionary cannot be null.");
+        TypeGroupInstance tgi = dictionary.getTgi();
+        CompressionDictionary existing;
+        synchronized (this) {
+            existing = savedDictionary(dictionary.getId());
+        }
+        if (existing != null && !existing.equals(dictionary)) {
+            throw new IllegalStateException("Database already has a different dictionary " + dictionary.getId());
+        }
+        Subfile sf = new Subfile(Subfile.COMPRESSION_NONE);
+        sf.setData(dictionary.getData(), true);
+        putSubfile(new IndexEntry(tgi), sf);
+    }
+
+    /**
+     * Trains a compression dictionary on the small subfiles of one type in the
+     * database on disk and adds it (see
+     * {@link #putDictionary(CompressionDictionary)}). Existing subfiles are not
+     * recompressed.
+     *
+     * @param id The dictionary id.
+     * @param type The subfile type to train on.
+     * @param size The largest dictionary to build, in bytes.
+     * @return The dictionary.
+     * @throws IOException If the subfiles could not be read.
+     */
+    public CompressionDictionary trainDictionary(int id, int type, int size) throws IOException {
+        long budget = (long) size * DICTIONARY_SAMPLE_FACTOR;
+        List<IndexEntry> entries = new ArrayList<>();
+        long[] taken = new long[1];
+        forEachEntry((ie) -> {
+            if (ie.getTgi().type == type && ie.getFileSize() <= MAX_DICTIONARY_SAMPLE_SIZE && taken[0] < budget
+                    && ie.getCompressionType() != Subfile.COMPRESSION_TOMBSTONE) {
+                entries.add(ie);
+                taken[0] += ie.getFileSize();
+            }
+        });
+        List<byte[]> samples = new ArrayList<>(entries.size());
+        for (Subfile sf : loadSubfilesAt(entries).values()) {
+            if (!sf.isTombstone()) {
+                samples.add(sf.getData());
+            }
+            sf.release();
+        }
+        CompressionDictionary dictionary = CompressionDictionary.train(id, samples, size);
+        putDictionary(dictionary);
+        return dictionary;
+    }
+
+    /**
+     * Lets the compression policy, if any, recompress the changed subfiles,
+     * and adds the dictionaries it chose.
+     */
+    private void applyCompressionPolicy() throws IOException {
+        CompressionPolicy policy = compressionPolicy;
+        if (policy == null) {
+            return;
+        }
+        Set<CompressionDictionary> used = new HashSet<>();
+        for (Entry<TypeGroupInstance, Subfile> e : modifiedSubfiles.entrySet()) {
+            IndexEntry ie = modIndex().getEntry(e.getKey());
+            if (ie == null) {
+                continue;
+            }
+            Subfile chosen = policy.apply(e.getKey(), e.getValue());
+            if (chosen != e.getValue()) {
+                if (Subfile.usesDictionary(chosen.getCompressionType())) {
+                    used.add(policy.getDictionary(e.getKey().type));
+                }
+                e.setValue(chosen);
+                ie.setFileSize(chosen.getCompressedSize());
+            }
+        }
+        for (CompressionDictionary d : used) {
+            putDictionary(d);
+        }
+    }
+
+    /**
+     * Sets the compression statistics in the pack metadata from the sizes in
+     * the working index.
+     */
+    private void recordCompressionStatistics() {
+        long[] subfiles = new long[CODEC_NAMES.length];
+        long[] stored = new long[CODEC_NAMES.length];
+        long[] raw = new long[CODEC_NAMES.length];
+        for (IndexEntry ie : modIndex().getEntries()) {
+            int type = ie.getCompressionType();
+            int codec = Subfile.codecOf(type);
+            if (type < 0 || type == Subfile.COMPRESSION_TOMBSTONE || codec >= CODEC_NAMES.length) {
+                continue;
+            }
+            subfiles[codec]++;
+            stored[codec] += ie.getFileSize();
+            raw[codec] += ie.getDecompressedSize();
+        }
+        Map<String, String> tags = new HashMap<>(metadata.getTagsImmutable());
+        tags.keySet().removeIf((k) -> k.startsWith(COMPRESSION_STATISTICS_PREFIX));
+        long totalStored = 0;
+        long totalRaw = 0;
+        for (int codec = 0; codec < CODEC_NAMES.length; codec++) {
+            if (subfiles[codec] > 0) {
+                String prefix = COMPRESSION_STATISTICS_PREFIX + CODEC_NAMES[codec];
+                tags.put(prefix + ".Subfiles", Long.toString(subfiles[codec]));
+                tags.put(prefix + ".StoredBytes", Long.toString(stored[codec]));
+                tags.put(prefix + ".RawBytes", Long.toString(raw[codec]));
+                totalStored += stored[codec];
+                totalRaw += raw[codec];
+            }
+        }
+        if (totalRaw > 0) {
+            tags.put(COMPRESSION_STATISTICS_PREFIX + "Ratio", String.format(Locale.ROOT, "%.4f", (double) totalStored / totalRaw));
+        }
+        metadata.clear();
+        metadata.putAll(tags);
+    }
+
+    /**
+     * Returns the dictionary with an id that the database will have once
+     * saved: the changed one if there is one, else the one on disk.
+     *
+     * @return The dictionary, or null if the database will not have it.
+     */
+    private synchronized CompressionDictionary savedDictionary(int id) throws IOException {
+        TypeGroupInstance tgi = CompressionDictionary.tgiOf(id);
+        if (modIndex().getEntry(tgi) == null) {
+            return null;
+        }
+        Subfile pending = modifiedSubfiles.get(tgi);
+        if (pending == null) {
+            return getDictionary(id);
+        }
+        return pending.isTombstone() ? null : new CompressionDictionary(id, pending.getData());
+    }
+
+    /**
+     * Checks that every changed subfile that is compressed against a
+     * dictionary will be saved along with that same dictionary, and that no
+     * dictionary still used by an unchanged subfile is removed or replaced.
+     */
+    private void checkDictionaries() throws IOException {
+        Map<Integer, CompressionDictionary> saved = new HashMap<>();
+        for (Entry<TypeGroupInstance, Subfile> e : modifiedSubfiles.entrySet()) {
+            int type = e.getValue().getCompressionType();
+            if (!Subfile.usesDictionary(type) || modIndex().getEntry(e.getKey()) == null) {
+                continue;
+            }
+            int id = Subfile.dictionaryIdOf(type);
+            if (!saved.containsKey(id)) {
+                saved.put(id, savedDictionary(id));
+            }
+            CompressionDictionary d = saved.get(id);
+            if (d == null) {
+                throw new IllegalStateException("Subfile " + e.getKey() + " uses dictionary " + id + ", which is not in the database.");
+            }
+            CompressionDictionary own = e.getValue().getDictionary();
+            if (own != null && !own.equals(d)) {
+                throw new IllegalStateException("Subfile " + e.getKey() + " was compressed against a different dictionary " + id + " than the database has.");
+            }
+        }
+        //  Dictionaries on disk that the save removes or replaces
+        Set<Integer> changed = new HashSet<>();
+        for (int id = 0; id <= CompressionDictionary.MAX_ID; id++) {
+            TypeGroupInstance tgi = CompressionDictionary.tgiOf(id);
+            if (getEntry(tgi) != null && (modIndex().getEntry(tgi) == null || modifiedSubfiles.containsKey(tgi))
+                    && !getDictionary(id).equals(savedDictionary(id))) {
+                changed.add(id);
+            }
+        }
+        if (changed.isEmpty()) {
+            return;
+        }
+        List<IndexEntry> unknown = new ArrayList<>();
+        for (IndexEntry ie : modIndex().getEntries()) {
+            if (modifiedSubfiles.containsKey(ie.getTgi())) {
+                continue;
+            }
+            if (ie.getCompressionType() < 0) {
+                //  Not in a version 3 index, read from the record header
+                unknown.add(ie);
+            } else {
+                checkDictionaryKept(ie.getTgi(), ie.getCompressionType(), changed);
+            }
+        }
+        for (SubfileStat st : statSubfilesAt(unknown).values()) {
+            checkDictionaryKept(st.getTgi(), st.getCompressionType(), changed);
+        }
+    }
+
+    private static void checkDictionaryKept(TypeGroupInstance tgi, int compressionType, Set<Integer> changed) {
+        if (Subfile.usesDictionary(compressionType) && changed.contains(Subfile.dictionaryIdOf(compressionType))) {
+            throw new IllegalStateException("Dictionary " + Subfile.dictionaryIdOf(compressionType)
+                    + " is still used by subfile " + tgi + ", so it cannot be removed or replaced.");
+        }
+    }
+
+    /**
+     * Checks the integrity of the PAD on disk. Records are read once each, in
+     * file order, through a large buffer, so a scrub runs at sequential disk
+     * speed; their data is checked against its hash by
+     * <code>parallelism</code> threads while reading goes on. The header
+     * tables, holes, and records are also checked for lying outside the file
+     * and for overlapping, and each record header for matching its index
+     * entry.
+     * <p>
+     * The scrub reads the file as it is when the scrub starts, and can run
+     * while the database is in use: saves made meanwhile replace the file
+     * rather than changing it.
+     *
+     * @param parallelism The number of threads checking hashes.
+     * @param maxBytesPerSecond The most bytes to read per second, or 0 for no
+     * limit.
+     * @return The report.
+     * @throws IOException If the PAD could not be opened, or the thread was
+     * interrupted. Problems in the file are reported instead.
+     */
+    @Override
+    public ScrubReport scrub(int parallelism, long maxBytesPerSecond) throws IOException {
+        try (Scrubber scrubber = new Scrubber(parallelism, maxBytesPerSecond)) {
+            scrub(scrubber);
+            return scrubber.finish();
+        }
+    }
+
+    /**
+     * Scrubs this PAD as part of a larger scrub.
+     */
+    void scrub(Scrubber scrubber) throws IOException {
+        ScrubReport report = scrubber.report;
+        List<IndexEntry> entries = new ArrayList<>(size());
+        RandomAccessFile raf;
+        //  Saves replace the file, so the index must be taken with the file it describes
+        synchronized (this) {
+            raf = new RandomAccessFile(location.toFile(), "r");
+            forEachEntry((ie) -> entries.add(ie.clone()));
+        }
+        try {
+            report.addPad();
+            long length = raf.length();
+            List<Scrubber.Region> regions = new ArrayList<>();
+            long dataStart;
+            try {
+                dataStart = scrubLayout(raf, regions);
+            } catch (IOException e) {
+                report.addProblem(location, null, -1L, ScrubReport.Kind.READ_ERROR, "Unreadable tables: " + e.getMessage());
+                return;
+            }
+            entries.sort((e, f) -> Long.compare(e.getFileOffset(), f.getFileOffset()));
+            FileChannel channel = raf.getChannel();
+            DataInputStream in = null;
+            long pos = 0L;
+            byte[] header = new byte[Subfile.HEADER_SIZE];
+            for (int i = 0; i < entries.size();) {
+                long offset = entries.get(i).getFileOffset();
+                int j = i + 1;
+                while (j < entries.size() && entries.get(j).getFileOffset() == offset) {
+                    j++;
+                }
+                //  Entries that share a record (deduplicated) are checked together
+                List<IndexEntry> shared = entries.subList(i, j);
+                i = j;
+                TypeGroupInstance tgi = shared.get(0).getTgi();
+                if (offset < dataStart || offset > length - Subfile.HEADER_SIZE) {
+                    for (IndexEntry ie : shared) {
+                        report.addProblem(location, ie.getTgi(), offset, ScrubReport.Kind.OUT_OF_BOUNDS,
+                                String.format("Record is outside the data of the file (0x%08X-0x%08X)", dataStart, length));
+                    }
+                    continue;
+                }
+                Subfile sf = new Subfile();
+                long recordLength;
+                try {
+                    if (in == null || offset < pos || offset - pos > SEQUENTIAL_BUFFER_SIZE) {
+                        channel.position(offset);
+                        in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel), SEQUENTIAL_BUFFER_SIZE));
+                    } else {
+                        in.skipBytes((int) (offset - pos));
+                    }
+                    pos = offset;
+                    //  Check the size before allocating for it
+                    in.mark(Subfile.HEADER_SIZE);
+                    in.readFully(header);
+                    in.reset();
+                    int compressedSize = ByteBuffer.wrap(header).getInt(2);
+                    if (compressedSize < 0 || offset + Subfile.HEADER_SIZE + compressedSize > length) {
+                        report.addProblem(location, tgi, offset, ScrubReport.Kind.BAD_RECORD,
+                                "Record data size " + compressedSize + " runs past the end of the file");
+                        in = null;
+                        continue;
+                    }
+                    scrubber.throttle(Subfile.HEADER_SIZE + compressedSize);
+                    sf.load(in);
+                    recordLength = Subfile.HEADER_SIZE + compressedSize + sf.getMetadata().getSizeBytes();
+                    pos = offset + recordLength;
+                } catch (InterruptedIOException e) {
+                    throw e;
+                } catch (IOException | RuntimeException e) {
+                    report.addProblem(location, tgi, offset, ScrubReport.Kind.BAD_RECORD, "Unreadable record: " + e.getMessage());
+                    in = null;
+                    continue;
+                }
+                report.addRecord(shared.size(), recordLength);
+                regions.add(new Scrubber.Region(offset, offset + recordLength, "Record", tgi));
+                for (IndexEntry ie : shared) {
+                    String mismatch = compareRecord(ie, sf, recordLength);
+                    if (mismatch != null) {
+                        report.addProblem(location, ie.getTgi(), offset, ScrubReport.Kind.BAD_RECORD, mismatch);
+                    }
+                }
+                if (sf.isTombstone()) {
+                    continue;
+                }
+                byte[] hash = sf.getHash();
+                if (Subfile.isEmptyArray(hash) || Subfile.isMarkedArray(hash)) {
+                    report.addUnhashed();
+                }
+                if (Subfile.usesDictionary(sf.getCompressionType())) {
+                    int id = Subfile.dictionaryIdOf(sf.getCompressionType());
+                    try {
+                        sf.setDictionary(getDictionary(id));
+                    } catch (IOException | RuntimeException e) {
+                        report.addProblem(location, tgi, offset, ScrubReport.Kind.CORRUPT_DATA,
+                                "Dictionary " + id + " is unreadable: " + e.getMessage());
+                        continue;
+                    }
+                }
+                scrubber.verify(location, tgi, offset, sf);
+            }
+            scrubber.checkRegions(location, length, regions);
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * The PAD is read once, sequentially, through a large buffer. Subfiles
+     * that share a record (deduplicated) are read once and emitted as the same
+     * instance. Tombstones in the PAD are emitted too. Saves made during an
+     * export replace the file and don't disturb it.
+     */
+    @Override
+    public AssetFlow.Publisher<ExportedSubfile> publish(long maxInFlightBytes, Executor executor) {
+        return new SubfilePublisher(() -> new ExportCursor(null), maxInFlightBytes, executor);
+    }
+
+    /**
+     * Opens a cursor over the records of the PAD on disk, for exporting it as
+     * one layer of several (see {@link Layers}), last layer first.
+     *
+     * @param hidden TGIs of the later layers, which are skipped along with
+     * tombstones. The TGIs of this PAD are added to it.
+     */
+    SubfilePublisher.Cursor exportCursor(Set<TypeGroupInstance> hidden) throws IOException {
+        return new ExportCursor(requireNonNull(hidden, "Hidden set cannot be null."));
+    }
+
+    /**
+     * Reads the records of the PAD on disk in file order.
+     */
+    private final class ExportCursor implements SubfilePublisher.Cursor {
+
+        private final RandomAccessFile raf;
+        private final List<IndexEntry> entries = new ArrayList<>();
+        /**
+         * Entries of the dictionaries in the file, which may be hidden.
+         */
+        private final Map<Integer, IndexEntry> dictionaryEntries = new HashMap<>();
+        private final Map<Integer, CompressionDictionary> dictionariesRead = new HashMap<>();
+        private final long length;
+        private final long headerSize;
+        private DataInputStream in;
+        private long pos;
+        private int next;
+
+        /**
+         * @param hidden TGIs to skip along with tombstones, to which the TGIs
+         * of the PAD are added, or null to read every record.
+         */
+        ExportCursor(Set<TypeGroupInstance> hidden) throws IOException {
+            List<IndexEntry> all = new ArrayList<>(size());
+            //  Saves replace the file, so the index must be taken with the file it describes
+            synchronized (AssetDatabaseImpl.this) {
+                raf = new RandomAccessFile(location.toFile(), "r");
+                forEachEntry((ie) -> all.add(ie.clone()));
+            }
+            try {
+                length = raf.length();
+                headerSize = all.isEmpty() ? 0L : headerSizeOf(raf.getChannel());
+            } catch (IOException | RuntimeException e) {
+                raf.close();
+                throw e;
+            }
+            for (IndexEntry ie : all) {
+                TypeGroupInstance tgi = ie.getTgi();
+                if (tgi.type == CompressionDictionary.DICTIONARY_TYPE && tgi.group == 0
+                        && tgi.instance >= 0 && tgi.instance <= CompressionDictionary.MAX_ID) {
+                    dictionaryEntries.put((int) tgi.instance, ie);
+                }
+                if (hidden == null) {
+                    entries.add(ie);
+                } else if (hidden.add(tgi) && ie.getCompressionType() != Subfile.COMPRESSION_TOMBSTONE) {
+                    entries.add(ie);
+                }
+            }
+            entries.sort((e, f) -> Long.compare(e.getFileOffset(), f.getFileOffset()));
+        }
+
+        @Override
+        public SubfilePublisher.Record next() throws IOException {
+            if (next == entries.size()) {
+                return null;
+            }
+            long offset = entries.get(next).getFileOffset();
+            int end = next + 1;
+            while (end < entries.size() && entries.get(end).getFileOffset() == offset) {
+                end++;
+            }
+            List<IndexEntry> shared = new ArrayList<>(entries.subList(next, end));
+            next = end;
+            TypeGroupInstance tgi = shared.get(0).getTgi();
+            if (offset < headerSize || offset > length - Subfile.HEADER_SIZE) {
+                throw new IOException(String.format("Subfile %s at 0x%08X is outside the file", tgi, offset));
+            }
+            long start = Instrumentation.startTimer();
+            if (in == null || offset < pos || offset - pos > SEQUENTIAL_BUFFER_SIZE) {
+                raf.getChannel().position(offset);
+                in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(raf.getChannel()), SEQUENTIAL_BUFFER_SIZE));
+            } else {
+                in.skipBytes((int) (offset - pos));
+            }
+            //  Check the size before allocating for it
+            in.mark(Subfile.HEADER_SIZE);
+            byte[] header = new byte[Subfile.HEADER_SIZE];
+            in.readFully(header);
+            in.reset();
+            int compressedSize = ByteBuffer.wrap(header).getInt(2);
+            if (compressedSize < 0 || offset + Subfile.HEADER_SIZE + compressedSize > length) {
+                throw new IOException(String.format("Subfile %s at 0x%08X has an invalid size %d", tgi, offset, compressedSize));
+            }
+            Subfile sf = new Subfile();
+            sf.load(in);
+            long recordLength = Subfile.HEADER_SIZE + compressedSize + sf.getMetadata().getSizeBytes();
+            pos = offset + recordLength;
+            if (Subfile.usesDictionary(sf.getCompressionType())) {
+                sf.setDictionary(dictionary(Subfile.dictionaryIdOf(sf.getCompressionType())));
+            }
+            if (Instrumentation.isEnabled()) {
+                Instrumentation.subfileLoaded(location, tgi, offset, recordLength, start);
+            }
+            return new SubfilePublisher.Record(shared, sf, recordLength);
+        }
+
+        /**
+         * Reads a dictionary from the file being exported, which may since
+         * have been replaced.
+         */
+        private CompressionDictionary dictionary(int id) throws IOException {
+            CompressionDictionary d = dictionariesRead.get(id);
+            IndexEntry ie = dictionaryEntries.get(id);
+            if (d == null && ie != null) {
+                raf.seek(ie.getFileOffset());
+                Subfile sf = new Subfile();
+                sf.load(raf);
+                d = new CompressionDictionary(id, sf.getData());
+                dictionariesRead.put(id, d);
+                //  The buffered stream no longer matches the file position
+                in = null;
+            }
+            return d;
+        }
+
+        @Override
+        public void close() throws IOException {
+            raf.close();
+        }
+
+    }
+
+    /**
+     * Adds the header, tables, and holes of the PAD on disk to
+     * <code>regions</code>.
+     *
+     * @return The offset of the first byte after the header.
+     */
+    private long scrubLayout(RandomAccessFile raf, List<Scrubber.Region> regions) throws IOException {
+        raf.seek(4);
+        int v = raf.readInt();
+        long headerSize;
+        long indexOffset;
+        long indexSize;
+        long holeIndexOffset;
+        int numHoleEntries;
+        long metadataOffset;
+        int numMetadataEntries;
+        if (v == VERSION_3) {
+            headerSize = HEADER_SIZE;
+            indexOffset = raf.readLong();
+            indexSize = (long) raf.readInt() * IndexEntry.SIZEOF;
+            holeIndexOffset = raf.readLong();
+            numHoleEntries = raf.readInt();
+            metadataOffset = raf.readLong();
+            numMetadataEntries = raf.readUnsignedShort();
+        } else if (v == VERSION_4) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE_V4);
+            readFully(raf.getChannel(), header, 0);
+            headerSize = header.getInt(0x08);
+            indexOffset = header.getLong(0x18);
+            indexSize = (long) header.getInt(0x20) * header.getInt(0x14);
+            numHoleEntries = header.getInt(0x24);
+            holeIndexOffset = header.getLong(0x28);
+            metadataOffset = header.getLong(0x30);
+            numMetadataEntries = header.getShort(0x38) & 0xFFFF;
+            if ((header.getInt(0x0C) & FLAG_SEALED) != 0) {
+                long hashOffset = header.getLong(0x40);
+                regions.add(new Scrubber.Region(hashOffset, hashOffset + header.getInt(0x48), "Hash index", null));
+            }
+        } else {
+            throw new IOException("Cannot process PAD version " + v);
+        }
+        regions.add(new Scrubber.Region(0L, headerSize, "Header", null));
+        regions.add(new Scrubber.Region(indexOffset, indexOffset + indexSize, "Index", null));
+        if (numHoleEntries > 0) {
+            regions.add(new Scrubber.Region(holeIndexOffset, holeIndexOffset + (long) numHoleEntries * HoleIndexEntry.SIZEOF, "Hole index", null));
+            HoleIndex holes = new HoleIndex();
+            raf.seek(holeIndexOffset);
+            holes.load(raf, numHoleEntries);
+            for (HoleIndexEntry hole : holes.getEntries()) {
+                regions.add(new Scrubber.Region(hole.getHoleOffset(), hole.getHoleOffset() + hole.getHoleSize(), "Hole", null));
+            }
+        }
+        if (numMetadataEntries > 0) {
+            raf.seek(metadataOffset);
+            regions.add(new Scrubber.Region(metadataOffset, metadataOffset + MetadataList.skip(raf, numMetadataEntries), "Metadata", null));
+        }
+        return headerSize;
+    }
+
+    /**
+     * Describes how a record differs from its index entry, or returns null if
+     * it matches. Fields the index does not record are not compared.
+     */
+    private static String compareRecord(IndexEntry ie, Subfile sf, long recordLength) {
+        StringBuilder sb = new StringBuilder();
+        if (ie.getFileSize() >= 0 && ie.getFileSize() != sf.getCompressedSize()) {
+            sb.append(String.format(", data size %d in the index, %d in the record", ie.getFileSize(), sf.getCompressedSize()));
+        }
+        if (ie.getRecordSize() >= 0 && ie.getRecordSize() != recordLength) {
+            sb.append(String.format(", record size %d in the index, %d in the file", ie.getRecordSize(), recordLength));
+        }
+        if (ie.getDecompressedSize() >= 0 && ie.getDecompressedSize() != sf.getDecompressedSize()) {
+            sb.append(String.format(", decompressed size %d in the index, %d in the record", ie.getDecompressedSize(), sf.getDecompressedSize()));
+        }
+        if (ie.getCompressionType() >= 0 && ie.getCompressionType() != sf.getCompressionType()) {
+            sb.append(String.format(", compression type 0x%04X in the index, 0x%04X in the record", ie.getCompressionType(), sf.getCompressionType()));
+        }
+        return sb.length() == 0 ? null : "Record does not match the index" + sb.substring(1);
+    }
+
+    @Override
+    public void putSubfile(IndexEntry ie, Subfile sf) {
+        requireNonNull(ie, "IndexEntry cannot be null.");
+
+        if (!journaled) {
+            applyPut(ie, sf);
+            return;
+        }
+        try {
+            Journal j;
+            long pos;
+            synchronized (this) {
+                j = openJournal();
+                pos = j.appendPut(ie, sf);
+                applyPut(ie, sf);
+            }
+            j.sync(pos);
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+    }
+
+    private synchronized void applyPut(IndexEntry ie, Subfile sf) {
+        ie.setFileSize(sf.getCompressedSize());
+        modIndex().getEntries().add(ie.setChanged());
+        modifiedSubfiles.put(ie.getTgi(), sf);
+    }
+
+    @Override
+    public void putSubfiles(Map<IndexEntry, Subfile> files) {
+        requireNonNull(files, "Subfile map cannot be null.");
+        if (files.isEmpty()) {
+            return;
+        }
+        files.entrySet().stream().forEach((e) -> putSubfile(e.getKey(), e.getValue()));
+    }
+
+    @Override
+    public void removeSubfile(TypeGroupInstance tgi) {
+        requireNonNull(tgi, "TGI cannot be null.");
+        if (!journaled) {
+            applyRemove(tgi);
+            return;
+        }
+        try {
+            Journal j;
+            long pos;
+            synchronized (this) {
+                j = openJournal();
+                pos = j.appendRemove(tgi);
+                applyRemove(tgi);
+            }
+            j.sync(pos);
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+    }
+
+    private synchronized void applyRemove(TypeGroupInstance tgi) {
+        modIndex().getEntries().remove(new IndexEntry(tgi));
+    }
+
+    /**
+     * Gets the index of this database. The index returned is a view of the
+     * database <i>on disk.</i> Changes made to it are not reflected through the
+     * index until the database is saved.
+     *
+     * @return
+     */
+    @Override
+    public Index getIndex() {
+        if (indexPending) {
+            synchronized (this) {
+                if (indexPending) {
+                    mappedIndex.copyTo(index);
+                    indexPending = false;
+                }
+            }
+        }
+        return index;
+    }
+
+    /**
+     * Looks up a TGI in the index of the database on disk. Unlike
+     * <code>getIndex().getEntry(tgi)</code> this does not build the index of a
+     * version 4 PAD.
+     *
+     * @param tgi The TGI to look up.
+     * @return The entry, or null if the database does not contain the TGI.
+     */
+    public IndexEntry getEntry(TypeGroupInstance tgi) {
+        requireNonNull(tgi, "TGI cannot be null.");
+        MappedIndex mi = mappedIndex;
+        return mi != null ? mi.getEntry(tgi) : index.getEntry(tgi);
+    }
+
+    /**
+     * Returns the number of entries in the index of the database on disk,
+     * without building the index of a version 4 PAD.
+     *
+     * @return
+     */
+    int size() {
+        MappedIndex mi = mappedIndex;
+        return mi != null ? mi.size() : getIndex().getEntries().size();
+    }
+
+    /**
+     * Passes every entry of the index of the database on disk to an action,
+     * without building the index of a version 4 PAD.
+     *
+     * @param action Receives the entries.
+     */
+    void forEachEntry(Consumer<IndexEntry> action) {
+        MappedIndex mi = mappedIndex;
+        if (mi != null) {
+            for (int i = 0; i < mi.size(); i++) {
+                action.accept(mi.getEntry(i));
+            }
+        } else {
+            getIndex().getEntries().forEach(action);
+        }
     }
 
     /**
@@ -305,7 +2411,7 @@ public class AssetDatabaseImpl implements AssetDatabase {
      * @return 
      */
     public Index getModIndex() {
-        return modIndex;
+        return modIndex();
     }
 
     /**
@@ -323,10 +2429,49 @@ public class AssetDatabaseImpl implements AssetDatabase {
 
     @Override
     public void clear() {
-        modIndex.clear();
+        if (!journaled) {
+            applyClear();
+            return;
+        }
+        try {
+            Journal j;
+            long pos;
+            synchronized (this) {
+                j = openJournal();
+                pos = j.appendClear();
+                applyClear();
+            }
+            j.sync(pos);
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+    }
+
+    private synchronized void applyClear() {
+        modIndex().clear();
         modifiedSubfiles.clear();
     }
 
+    @Override
+    public synchronized void close() {
+        if (journal != null) {
+            try {
+                journal.close();
+            } catch (IOException ex) {
+                trace("Could not close journal:\n%s", ex.getLocalizedMessage());
+            }
+            journal = null;
+        }
+    }
+
+    /**
+     * Returns the version that new PADs are written as, unless
+     * {@link #setVersion(int)} selects another. This stays
+     * {@link #VERSION_3}, which older readers understand; version 4 is only
+     * written when chosen.
+     *
+     * @return
+     */
     public static int getLatestVersion() {
         return VERSION_3;
     }
@@ -0,0 +1,70 @@
+package org.phoenix.assetdatabase;
+
+/**
+ * The reactive streams interfaces of <code>java.util.concurrent.Flow</code>,
+ * which this library cannot use while it targets Java 8. They have the same
+ * methods and contracts, so on Java 9 and later they are adapted with a
+ * wrapper that forwards each call.
+ *
+ * @see AssetDatabase#publish(long, java.util.concurrent.Executor)
+ * @author Vince
+ */
+public final class AssetFlow {
+
+    private AssetFlow() {
+    }
+
+    /**
+     * A producer of items that subscribers receive as they ask for them.
+     *
+     * @param <T> The item type.
+     */
+    @FunctionalInterface
+    public static interface Publisher<T> {
+
+        /**
+         * Adds a subscriber, which receives
+         * {@link Subscriber#onSubscribe(Subscription)} and then items as it
+         * requests them, until it cancels or the publisher completes or fails.
+         *
+         * @param subscriber
+         */
+        public void subscribe(Subscriber<? super T> subscriber);
+    }
+
+    /**
+     * A receiver of items. Its methods are called one at a time, never
+     * concurrently.
+     *
+     * @param <T> The item type.
+     */
+    public static interface Subscriber<T> {
+
+        public void onSubscribe(Subscription subscription);
+
+        public void onNext(T item);
+
+        public void onError(Throwable throwable);
+
+        public void onComplete();
+    }
+
+    /**
+     * The link between a publisher and one subscriber.
+     */
+    public static interface Subscription {
+
+        /**
+         * Asks for up to <code>n</code> more items. Requests add up.
+         *
+         * @param n The number of items, more than zero.
+         */
+        public void request(long n);
+
+        /**
+         * Stops the flow of items. Some may still arrive.
+         */
+        public void cancel();
+    }
+
+}
@@ -0,0 +1,153 @@
+package org.phoenix.assetdatabase;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A pool of direct (off-heap) buffers in power of two size classes, from
+ * {@link #MIN_BUFFER_SIZE} to {@link #MAX_BUFFER_SIZE} bytes. Subfiles loaded
+ * by a database with a pool (see {@link AssetDatabaseImpl#setBufferPool}) keep
+ * their data in a pooled buffer until {@link Subfile#release()}, so serving
+ * assets steadily allocates almost nothing on the Java heap.
+ * <p>
+ * Released buffers are kept for reuse as long as the pool holds less than its
+ * capacity in idle buffers; beyond that, and for requests larger than the
+ * largest class, buffers are left to the garbage collector. The pool is
+ * thread-safe and lock free.
+ *
+ * @author Vince
+ */
+public class BufferPool {
+
+    public static final int MIN_BUFFER_SIZE = 4 * 1024;
+    public static final int MAX_BUFFER_SIZE = 64 * 1024 * 1024;
+    public static final long DEFAULT_CAPACITY = 256L * 1024 * 1024;
+    private static final int MIN_SHIFT = Integer.numberOfTrailingZeros(MIN_BUFFER_SIZE);
+    private static final int NUM_CLASSES = Integer.numberOfTrailingZeros(MAX_BUFFER_SIZE) - MIN_SHIFT + 1;
+
+    private final ConcurrentLinkedQueue<ByteBuffer>[] idle;
+    private final long capacity;
+    private final AtomicLong idleBytes = new AtomicLong();
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    public BufferPool() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @param capacity The most bytes of idle buffers to keep for reuse.
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public BufferPool(long capacity) {
+        if (capacity < 0) {
+            throw new IllegalArgumentException("Capacity cannot be less than zero.");
+        }
+        this.capacity = capacity;
+        idle = new ConcurrentLinkedQueue[NUM_CLASSES];
+        for (int i = 0; i < NUM_CLASSES; i++) {
+            idle[i] = new ConcurrentLinkedQueue<>();
+        }
+    }
+
+    private static int classOf(int size) {
+        if (size <= MIN_BUFFER_SIZE) {
+            return 0;
+        }
+        return 32 - Integer.numberOfLeadingZeros(size - 1) - MIN_SHIFT;
+    }
+
+    /**
+     * Takes a direct buffer with at least <code>size</code> bytes of capacity,
+     * positioned at zero with its limit set to <code>size</code>. Its contents
+     * are undefined.
+     *
+     * @param size The number of bytes needed.
+     * @return
+     */
+    public ByteBuffer acquire(int size) {
+        if (size < 0) {
+            throw new IllegalArgumentException("Size cannot be less than zero.");
+        }
+        if (size > MAX_BUFFER_SIZE) {
+            misses.increment();
+            return ByteBuffer.allocateDirect(size);
+        }
+        int c = classOf(size);
+        ByteBuffer buffer = idle[c].poll();
+        if (buffer != null) {
+            idleBytes.addAndGet(-buffer.capacity());
+            hits.increment();
+        } else {
+            buffer = ByteBuffer.allocateDirect(MIN_BUFFER_SIZE << c);
+            misses.increment();
+        }
+        buffer.clear().limit(size);
+        return buffer;
+    }
+
+    /**
+     * Returns a buffer taken with {@link #acquire(int)} to the pool. The
+     * buffer must not be used afterwards.
+     *
+     * @param buffer
+     */
+    public void release(ByteBuffer buffer) {
+        int cap = buffer.capacity();
+        if (!buffer.isDirect() || cap > MAX_BUFFER_SIZE || Integer.bitCount(cap) != 1 || cap < MIN_BUFFER_SIZE) {
+            return;
+        }
+        long held = idleBytes.addAndGet(cap);
+        if (held > capacity) {
+            idleBytes.addAndGet(-cap);
+            return;
+        }
+        idle[classOf(cap)].offer(buffer);
+    }
+
+    public long getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * Returns the total size of the idle buffers, in bytes.
+     *
+     * @return
+     */
+    public long getIdleBytes() {
+        return idleBytes.get();
+    }
+
+    /**
+     * Returns how many buffers were reused.
+     *
+     * @return
+     */
+    public long getHits() {
+        return hits.sum();
+    }
+
+    /**
+     * Returns how many buffers had to be allocated.
+     *
+     * @return
+     */
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    /**
+     * Drops every idle buffer.
+     */
+    public void clear() {
+        for (ConcurrentLinkedQueue<ByteBuffer> q : idle) {
+            ByteBuffer b;
+            while ((b = q.poll()) != null) {
+                idleBytes.addAndGet(-b.capacity());
+            }
+        }
+    }
+
+}
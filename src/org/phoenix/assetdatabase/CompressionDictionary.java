@@ -0,0 +1,237 @@
+package org.phoenix.assetdatabase;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+
+import static java.util.Objects.requireNonNull;
+
+/**
+ * A preset dictionary for {@link Subfile#COMPRESSION_DEFLATE_DICTIONARY}:
+ * bytes that are common across many small subfiles (typically of one type),
+ * which every subfile compressed against it can refer back to. This lets
+ * subfiles of a few kilobytes compress about as well as they would as part of
+ * one large file.
+ * <p>
+ * A PAD holds up to 16 dictionaries, each stored as an uncompressed subfile
+ * with the TGI <code>(DICTIONARY_TYPE, 0, id)</code>. The id is stored in the
+ * compression type of each subfile that uses it, so a dictionary cannot be
+ * replaced while subfiles may use it (see
+ * {@link AssetDatabaseImpl#putDictionary(CompressionDictionary)}).
+ *
+ * @author Vince
+ */
+public final class CompressionDictionary {
+
+    public static final int DICTIONARY_TYPE = 0x44494354;  //  'DICT'
+    public static final int MAX_ID = 15;
+    /**
+     * Largest useful dictionary, the Deflate window size.
+     */
+    public static final int MAX_SIZE = 32 * 1024;
+    public static final int DEFAULT_SIZE = 16 * 1024;
+    /**
+     * Length of the byte strings counted while training.
+     */
+    private static final int K = 8;
+    /**
+     * Length of the pieces a trained dictionary is made of.
+     */
+    private static final int SEGMENT_SIZE = 64;
+    private static final int TABLE_BITS = 22;
+
+    private final int id;
+    private final byte[] data;
+
+    /**
+     * @param id The dictionary id, from 0 to {@link #MAX_ID}.
+     * @param data The dictionary, at most {@link #MAX_SIZE} bytes. Not copied.
+     */
+    public CompressionDictionary(int id, byte[] data) {
+        requireNonNull(data, "Dictionary data cannot be null.");
+        if (id < 0 || id > MAX_ID) {
+            throw new IllegalArgumentException("Dictionary id must be between 0 and " + MAX_ID);
+        }
+        if (data.length > MAX_SIZE) {
+            throw new IllegalArgumentException("Dictionary cannot be larger than " + MAX_SIZE + " bytes.");
+        }
+        this.id = id;
+        this.data = data;
+    }
+
+    public int getId() {
+        return id;
+    }
+
+    /**
+     * Returns a copy of the dictionary bytes.
+     *
+     * @return
+     */
+    public byte[] getData() {
+        return data.clone();
+    }
+
+    byte[] bytes() {
+        return data;
+    }
+
+    /**
+     * Returns the TGI the dictionary is stored under.
+     *
+     * @return
+     */
+    public TypeGroupInstance getTgi() {
+        return tgiOf(id);
+    }
+
+    public static TypeGroupInstance tgiOf(int id) {
+        return new TypeGroupInstance(DICTIONARY_TYPE, 0, id);
+    }
+
+    /**
+     * Returns the compression type of subfiles compressed with this
+     * dictionary.
+     *
+     * @return
+     */
+    public int getCompressionType() {
+        return Subfile.COMPRESSION_DEFLATE_DICTIONARY | (id << 8);
+    }
+
+    /**
+     * Builds a dictionary from sample subfiles. The byte strings found in the
+     * most samples are kept, in pieces of {@value #SEGMENT_SIZE} bytes, with
+     * the most common last, where Deflate can refer to them most cheaply.
+     *
+     * @param id The dictionary id.
+     * @param samples The (decompressed) data of typical subfiles.
+     * @param size The largest dictionary to build, in bytes.
+     * @return The dictionary, which may be smaller than <code>size</code> if
+     * the samples have little in common.
+     */
+    public static CompressionDictionary train(int id, Collection<byte[]> samples, int size) {
+        requireNonNull(samples, "Sample collection cannot be null.");
+        if (size < SEGMENT_SIZE || size > MAX_SIZE) {
+            throw new IllegalArgumentException("Size must be between " + SEGMENT_SIZE + " and " + MAX_SIZE);
+        }
+        //  How many samples each string occurs in, by hash
+        int mask = (1 << TABLE_BITS) - 1;
+        int[] counts = new int[mask + 1];
+        int[] lastSample = new int[mask + 1];
+        Arrays.fill(lastSample, -1);
+        List<byte[]> usable = new ArrayList<>(samples.size());
+        for (byte[] sample : samples) {
+            requireNonNull(sample, "Sample cannot be null.");
+            if (sample.length < SEGMENT_SIZE) {
+                continue;
+            }
+            int s = usable.size();
+            usable.add(sample);
+            for (int i = 0; i + K <= sample.length; i++) {
+                int h = slot(sample, i, mask);
+                if (lastSample[h] != s) {
+                    lastSample[h] = s;
+                    counts[h]++;
+                }
+            }
+        }
+        //  Pick the best segment of each epoch, so the picks come from all samples
+        int picks = size / SEGMENT_SIZE;
+        long total = 0;
+        for (byte[] sample : usable) {
+            total += sample.length - SEGMENT_SIZE + 1;
+        }
+        List<Segment> chosen = new ArrayList<>(picks);
+        if (total > 0) {
+            long epoch = Math.max(1, total / picks);
+            int sample = 0;
+            int pos = 0;
+            for (int p = 0; p < picks && sample < usable.size(); p++) {
+                long remaining = epoch;
+                long bestScore = 0;
+                byte[] bestSample = null;
+                int bestPos = 0;
+                while (remaining > 0 && sample < usable.size()) {
+                    byte[] s = usable.get(sample);
+                    int last = s.length - SEGMENT_SIZE;
+                    int end = (int) Math.min(last, pos + remaining - 1);
+                    long score = 0;
+                    for (int i = pos; i + K <= pos + SEGMENT_SIZE; i++) {
+                        score += counts[slot(s, i, mask)];
+                    }
+                    for (int i = pos; ; i++) {
+                        if (score > bestScore) {
+                            bestScore = score;
+                            bestSample = s;
+                            bestPos = i;
+                        }
+                        if (i == end) {
+                            break;
+                        }
+                        score += counts[slot(s, i + SEGMENT_SIZE - K + 1, mask)] - counts[slot(s, i, mask)];
+                    }
+                    remaining -= end - pos + 1;
+                    if (end == last) {
+                        sample++;
+                        pos = 0;
+                    } else {
+                        pos = end + 1;
+                    }
+                }
+                //  Only worth keeping if its strings occur in other samples
+                if (bestSample != null && bestScore > SEGMENT_SIZE - K + 1) {
+                    chosen.add(new Segment(Arrays.copyOfRange(bestSample, bestPos, bestPos + SEGMENT_SIZE), bestScore));
+                    //  Don't pick the same strings again
+                    for (int i = bestPos; i + K <= bestPos + SEGMENT_SIZE; i++) {
+                        counts[slot(bestSample, i, mask)] = 0;
+                    }
+                }
+            }
+        }
+        //  Most common strings last
+        chosen.sort((a, b) -> Long.compare(a.score, b.score));
+        byte[] dictionary = new byte[chosen.size() * SEGMENT_SIZE];
+        for (int i = 0; i < chosen.size(); i++) {
+            System.arraycopy(chosen.get(i).bytes, 0, dictionary, i * SEGMENT_SIZE, SEGMENT_SIZE);
+        }
+        return new CompressionDictionary(id, dictionary);
+    }
+
+    private static final class Segment {
+
+        final byte[] bytes;
+        final long score;
+
+        Segment(byte[] bytes, long score) {
+            this.bytes = bytes;
+            this.score = score;
+        }
+
+    }
+
+    private static int slot(byte[] b, int i, int mask) {
+        long v = 0;
+        for (int j = 0; j < K; j++) {
+            v = (v << 8) | (b[i + j] & 0xFF);
+        }
+        v *= 0x9E3779B97F4A7C15L;
+        return (int) (v >>> (64 - TABLE_BITS)) & mask;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (!(obj instanceof CompressionDictionary)) {
+            return false;
+        }
+        CompressionDictionary other = (CompressionDictionary) obj;
+        return id == other.id && Arrays.equals(data, other.data);
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * id + Arrays.hashCode(data);
+    }
+
+}
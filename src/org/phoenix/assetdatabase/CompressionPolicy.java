@@ -0,0 +1,177 @@
+package org.phoenix.assetdatabase;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static java.util.Objects.requireNonNull;
+
+/**
+ * Chooses how each subfile is compressed, so that callers can create every
+ * subfile uncompressed and let the database decide (see
+ * {@link AssetDatabaseImpl#setCompressionPolicy(CompressionPolicy)}).
+ * <p>
+ * For each uncompressed subfile, a sample of its data is compressed with
+ * Deflate and, if its type has one, with a dictionary
+ * ({@link #setDictionary(int, CompressionDictionary)}). The smaller result
+ * wins, unless it saves less than {@link #getMinSavings()} of the size, in
+ * which case the data is stored as is. Already compressed media therefore
+ * costs one sample compression and stays uncompressed, and subfiles smaller
+ * than {@link #getMinSize()} are not tried at all. A type can also be given a
+ * fixed codec with {@link #setCompressionType(int, int)}.
+ * <p>
+ * Subfiles that were created with a codec other than
+ * {@link Subfile#COMPRESSION_NONE} are left alone. A policy is thread-safe.
+ *
+ * @author Vince
+ */
+public class CompressionPolicy {
+
+    public static final int DEFAULT_MIN_SIZE = 256;
+    public static final double DEFAULT_MIN_SAVINGS = 0.1;
+    public static final int DEFAULT_SAMPLE_SIZE = 64 * 1024;
+
+    private volatile int minSize = DEFAULT_MIN_SIZE;
+    private volatile double minSavings = DEFAULT_MIN_SAVINGS;
+    private volatile int sampleSize = DEFAULT_SAMPLE_SIZE;
+    private final Map<Integer, Integer> typeCodecs = new ConcurrentHashMap<>();
+    private final Map<Integer, CompressionDictionary> typeDictionaries = new ConcurrentHashMap<>();
+
+    public int getMinSize() {
+        return minSize;
+    }
+
+    /**
+     * Sets the size below which subfiles are stored uncompressed without
+     * trying.
+     *
+     * @param minSize The size, in bytes.
+     */
+    public void setMinSize(int minSize) {
+        if (minSize < 0) {
+            throw new IllegalArgumentException("Minimum size cannot be less than zero.");
+        }
+        this.minSize = minSize;
+    }
+
+    public double getMinSavings() {
+        return minSavings;
+    }
+
+    /**
+     * Sets the fraction of its size that compression must save for a subfile
+     * to be stored compressed.
+     *
+     * @param minSavings From 0 (keep any gain) to 1 (never compress).
+     */
+    public void setMinSavings(double minSavings) {
+        if (!(minSavings >= 0 && minSavings <= 1)) {
+            throw new IllegalArgumentException("Minimum savings must be between 0 and 1.");
+        }
+        this.minSavings = minSavings;
+    }
+
+    public int getSampleSize() {
+        return sampleSize;
+    }
+
+    /**
+     * Sets how much of a subfile is trial compressed to choose a codec.
+     * Subfiles up to this size are compressed whole.
+     *
+     * @param sampleSize The sample size, in bytes.
+     */
+    public void setSampleSize(int sampleSize) {
+        if (sampleSize < 1) {
+            throw new IllegalArgumentException("Sample size must be positive.");
+        }
+        this.sampleSize = sampleSize;
+    }
+
+    /**
+     * Fixes the codec for a subfile type, such as
+     * {@link Subfile#COMPRESSION_NONE} for types that are already compressed.
+     *
+     * @param type The subfile type.
+     * @param compressionType {@link Subfile#COMPRESSION_NONE} or
+     * {@link Subfile#COMPRESSION_DEFLATE}.
+     */
+    public void setCompressionType(int type, int compressionType) {
+        if (compressionType != Subfile.COMPRESSION_NONE && compressionType != Subfile.COMPRESSION_DEFLATE) {
+            throw new IllegalArgumentException("Use setDictionary for dictionary compression.");
+        }
+        typeCodecs.put(type, compressionType);
+    }
+
+    /**
+     * Removes the fixed codec of a subfile type, so that it is chosen by trial
+     * again.
+     *
+     * @param type
+     */
+    public void clearCompressionType(int type) {
+        typeCodecs.remove(type);
+    }
+
+    /**
+     * Sets a dictionary to try for a subfile type. If it wins for any subfile,
+     * the database adds the dictionary when it is saved.
+     *
+     * @param type The subfile type.
+     * @param dictionary The dictionary, or null to remove it.
+     */
+    public void setDictionary(int type, CompressionDictionary dictionary) {
+        if (dictionary == null) {
+            typeDictionaries.remove(type);
+        } else {
+            typeDictionaries.put(type, dictionary);
+        }
+    }
+
+    public CompressionDictionary getDictionary(int type) {
+        return typeDictionaries.get(type);
+    }
+
+    /**
+     * Chooses how to store a subfile.
+     *
+     * @param tgi The TGI of the subfile.
+     * @param sf The subfile.
+     * @return The subfile itself if it is to be stored as it is, or a copy
+     * with the same data, hash, and metadata, compressed.
+     * @throws IOException If the data of the subfile could not be read.
+     */
+    public Subfile apply(TypeGroupInstance tgi, Subfile sf) throws IOException {
+        requireNonNull(tgi, "TGI cannot be null.");
+        requireNonNull(sf, "Subfile cannot be null.");
+        if (sf.isTombstone() || Subfile.codecOf(sf.getCompressionType()) != Subfile.COMPRESSION_NONE) {
+            return sf;
+        }
+        Integer fixed = typeCodecs.get(tgi.type);
+        if (fixed != null) {
+            return fixed == Subfile.COMPRESSION_NONE ? sf : sf.recompress(fixed);
+        }
+        if (sf.getDecompressedSize() < minSize) {
+            return sf;
+        }
+        byte[] data = sf.getData();
+        byte[] sample = data.length <= sampleSize ? data : Arrays.copyOf(data, sampleSize);
+        CompressionDictionary dictionary = typeDictionaries.get(tgi.type);
+        int deflated = Subfile.deflate(sample, null).length;
+        int withDictionary = dictionary == null ? Integer.MAX_VALUE : Subfile.deflate(sample, dictionary.bytes()).length;
+        int best = Math.min(deflated, withDictionary);
+        if (best > sample.length * (1 - minSavings)) {
+            return sf;
+        }
+        Subfile compressed = withDictionary < deflated
+                ? sf.recompress(dictionary.getCompressionType(), dictionary)
+                : sf.recompress(Subfile.COMPRESSION_DEFLATE);
+        if (sample != data && compressed.getCompressedSize() > data.length * (1 - minSavings)) {
+            //  The sample was not typical
+            return sf;
+        }
+        return compressed;
+    }
+
+}
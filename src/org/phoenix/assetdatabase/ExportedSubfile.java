@@ -0,0 +1,69 @@
+package org.phoenix.assetdatabase;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A subfile emitted by {@link AssetDatabase#publish(long,
+ * java.util.concurrent.Executor)}, with its index entry. Its bytes count
+ * against the in-flight limit of the publisher until it is released, so each
+ * one must be released once its subscriber is done with it.
+ *
+ * @author Vince
+ */
+public final class ExportedSubfile implements AutoCloseable {
+
+    private final IndexEntry entry;
+    private final Subfile subfile;
+    private final Runnable onRelease;
+    private final AtomicBoolean released = new AtomicBoolean();
+
+    ExportedSubfile(IndexEntry entry, Subfile subfile, Runnable onRelease) {
+        this.entry = entry;
+        this.subfile = subfile;
+        this.onRelease = onRelease;
+    }
+
+    /**
+     * Returns the index entry of the subfile, as it was when the export
+     * started.
+     *
+     * @return
+     */
+    public IndexEntry getIndexEntry() {
+        return entry;
+    }
+
+    public TypeGroupInstance getTgi() {
+        return entry.getTgi();
+    }
+
+    /**
+     * Returns the subfile. Subfiles that share a record (deduplicated) are
+     * emitted as the same instance.
+     *
+     * @return
+     */
+    public Subfile getSubfile() {
+        return subfile;
+    }
+
+    /**
+     * Releases the subfile and lets the publisher read further. Releasing
+     * more than once does nothing.
+     */
+    public void release() {
+        if (released.compareAndSet(false, true)) {
+            subfile.release();
+            onRelease.run();
+        }
+    }
+
+    /**
+     * Same as {@link #release()}.
+     */
+    @Override
+    public void close() {
+        release();
+    }
+
+}
@@ -0,0 +1,295 @@
+package org.phoenix.assetdatabase;
+
+import java.lang.reflect.Constructor;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.function.Supplier;
+import java.util.zip.Checksum;
+
+/**
+ * The algorithms a subfile hash can be computed with. The id of the algorithm
+ * is stored in bits 12 to 15 of the compression type of each subfile (see
+ * {@link Subfile#hashAlgorithmOf(int)}), so PADs can mix them. Every hash is
+ * stored in the 16 byte hash field of the record, big endian, padded with
+ * zeroes.
+ * <p>
+ * {@link #MD5} is the default and the only algorithm older readers know.
+ * {@link #CRC32C} uses the hardware accelerated
+ * <code>java.util.zip.CRC32C</code> where the runtime has it (Java 9 and
+ * later) and a table driven implementation otherwise. {@link #XXHASH64} is a
+ * pure Java xxHash64, several times faster than MD5 on any runtime. Neither is
+ * meant to resist deliberate tampering.
+ * <p>
+ * Every algorithm is thread-safe: digests are kept per thread.
+ *
+ * @author Vince
+ */
+public enum HashAlgorithm {
+
+    MD5(0) {
+        @Override
+        public byte[] hash(byte[] data) {
+            MessageDigest digest = MD5_DIGEST.get();
+            digest.reset();
+            return digest.digest(data);
+        }
+
+        @Override
+        public byte[] hash(ByteBuffer data) {
+            MessageDigest digest = MD5_DIGEST.get();
+            digest.reset();
+            digest.update(data);
+            return digest.digest();
+        }
+    },
+    CRC32C(1) {
+        @Override
+        public byte[] hash(byte[] data) {
+            Checksum crc = CRC32C_CHECKSUM.get();
+            crc.reset();
+            crc.update(data, 0, data.length);
+            return padded(crc.getValue() << 32);
+        }
+
+        @Override
+        public byte[] hash(ByteBuffer data) {
+            Checksum crc = CRC32C_CHECKSUM.get();
+            crc.reset();
+            if (data.hasArray()) {
+                crc.update(data.array(), data.arrayOffset() + data.position(), data.remaining());
+                data.position(data.limit());
+            } else {
+                byte[] chunk = SCRATCH.get();
+                while (data.hasRemaining()) {
+                    int n = Math.min(chunk.length, data.remaining());
+                    data.get(chunk, 0, n);
+                    crc.update(chunk, 0, n);
+                }
+            }
+            return padded(crc.getValue() << 32);
+        }
+    },
+    XXHASH64(2) {
+        @Override
+        public byte[] hash(byte[] data) {
+            return padded(xxHash64(ByteBuffer.wrap(data), 0L));
+        }
+
+        @Override
+        public byte[] hash(ByteBuffer data) {
+            long h = xxHash64(data, 0L);
+            data.position(data.limit());
+            return padded(h);
+        }
+    };
+
+    /**
+     * Size of the hash field of a subfile record, in bytes.
+     */
+    public static final int HASH_SIZE = 16;
+
+    private static final ThreadLocal<MessageDigest> MD5_DIGEST = ThreadLocal.withInitial(() -> {
+        try {
+            return MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException ex) {
+            throw new RuntimeException(ex);
+        }
+    });
+    private static final ThreadLocal<Checksum> CRC32C_CHECKSUM = ThreadLocal.withInitial(crc32cFactory());
+    private static final ThreadLocal<byte[]> SCRATCH = ThreadLocal.withInitial(() -> new byte[64 * 1024]);
+    private static final HashAlgorithm[] BY_ID = values();
+
+    private final int id;
+
+    private HashAlgorithm(int id) {
+        this.id = id;
+    }
+
+    /**
+     * Returns the id stored in the compression type of subfiles hashed with
+     * this algorithm.
+     *
+     * @return
+     */
+    public int getId() {
+        return id;
+    }
+
+    /**
+     * Returns the algorithm with an id.
+     *
+     * @param id
+     * @return The algorithm, or null if there is none with that id.
+     */
+    public static HashAlgorithm byId(int id) {
+        return id >= 0 && id < BY_ID.length ? BY_ID[id] : null;
+    }
+
+    /**
+     * Hashes a byte array.
+     *
+     * @param data
+     * @return The {@value #HASH_SIZE} byte hash field.
+     */
+    public abstract byte[] hash(byte[] data);
+
+    /**
+     * Hashes the remaining bytes of a buffer, leaving its position at its
+     * limit.
+     *
+     * @param data
+     * @return The {@value #HASH_SIZE} byte hash field.
+     */
+    public abstract byte[] hash(ByteBuffer data);
+
+    private static byte[] padded(long value) {
+        return ByteBuffer.allocate(HASH_SIZE).putLong(value).array();
+    }
+
+    /**
+     * Returns the CRC32C of the runtime if it has one (Java 9 and later),
+     * which the JIT replaces with the CPU's CRC32 instructions.
+     */
+    private static Supplier<Checksum> crc32cFactory() {
+        try {
+            Constructor<? extends Checksum> c = Class.forName("java.util.zip.CRC32C").asSubclass(Checksum.class).getConstructor();
+            c.newInstance();
+            return () -> {
+                try {
+                    return c.newInstance();
+                } catch (ReflectiveOperationException ex) {
+                    throw new IllegalStateException(ex);
+                }
+            };
+        } catch (ReflectiveOperationException | LinkageError ex) {
+            return Crc32c::new;
+        }
+    }
+
+    /**
+     * CRC32C (Castagnoli), eight bytes at a time.
+     */
+    private static final class Crc32c implements Checksum {
+
+        private static final int[][] TABLES = new int[8][256];
+
+        static {
+            for (int i = 0; i < 256; i++) {
+                int c = i;
+                for (int k = 0; k < 8; k++) {
+                    c = (c & 1) != 0 ? (c >>> 1) ^ 0x82F63B78 : c >>> 1;
+                }
+                TABLES[0][i] = c;
+            }
+            for (int i = 0; i < 256; i++) {
+                for (int t = 1; t < 8; t++) {
+                    int c = TABLES[t - 1][i];
+                    TABLES[t][i] = (c >>> 8) ^ TABLES[0][c & 0xFF];
+                }
+            }
+        }
+
+        private int crc = 0xFFFFFFFF;
+
+        @Override
+        public void update(int b) {
+            crc = (crc >>> 8) ^ TABLES[0][(crc ^ b) & 0xFF];
+        }
+
+        @Override
+        public void update(byte[] b, int off, int len) {
+            int c = crc;
+            int end = off + len;
+            int[][] t = TABLES;
+            for (; off + 8 <= end; off += 8) {
+                int lo = c ^ ((b[off] & 0xFF) | (b[off + 1] & 0xFF) << 8 | (b[off + 2] & 0xFF) << 16 | (b[off + 3] & 0xFF) << 24);
+                c = t[7][lo & 0xFF] ^ t[6][(lo >>> 8) & 0xFF] ^ t[5][(lo >>> 16) & 0xFF] ^ t[4][lo >>> 24]
+                        ^ t[3][b[off + 4] & 0xFF] ^ t[2][b[off + 5] & 0xFF] ^ t[1][b[off + 6] & 0xFF] ^ t[0][b[off + 7] & 0xFF];
+            }
+            for (; off < end; off++) {
+                c = (c >>> 8) ^ t[0][(c ^ b[off]) & 0xFF];
+            }
+            crc = c;
+        }
+
+        @Override
+        public long getValue() {
+            return ~crc & 0xFFFFFFFFL;
+        }
+
+        @Override
+        public void reset() {
+            crc = 0xFFFFFFFF;
+        }
+
+    }
+
+    private static final long P1 = 0x9E3779B185EBCA87L;
+    private static final long P2 = 0xC2B2AE3D27D4EB4FL;
+    private static final long P3 = 0x165667B19E3779F9L;
+    private static final long P4 = 0x85EBCA77C2B2AE63L;
+    private static final long P5 = 0x27D4EB2F165667C5L;
+
+    /**
+     * xxHash64 of the remaining bytes of a buffer. The position is not moved.
+     */
+    static long xxHash64(ByteBuffer data, long seed) {
+        ByteBuffer b = data.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        int pos = b.position();
+        int end = b.limit();
+        long h;
+        if (end - pos >= 32) {
+            long v1 = seed + P1 + P2;
+            long v2 = seed + P2;
+            long v3 = seed;
+            long v4 = seed - P1;
+            for (; pos + 32 <= end; pos += 32) {
+                v1 = round(v1, b.getLong(pos));
+                v2 = round(v2, b.getLong(pos + 8));
+                v3 = round(v3, b.getLong(pos + 16));
+                v4 = round(v4, b.getLong(pos + 24));
+            }
+            h = Long.rotateLeft(v1, 1) + Long.rotateLeft(v2, 7) + Long.rotateLeft(v3, 12) + Long.rotateLeft(v4, 18);
+            h = merge(h, v1);
+            h = merge(h, v2);
+            h = merge(h, v3);
+            h = merge(h, v4);
+        } else {
+            h = seed + P5;
+        }
+        h += end - b.position();
+        for (; pos + 8 <= end; pos += 8) {
+            h ^= round(0, b.getLong(pos));
+            h = Long.rotateLeft(h, 27) * P1 + P4;
+        }
+        if (pos + 4 <= end) {
+            h ^= (b.getInt(pos) & 0xFFFFFFFFL) * P1;
+            h = Long.rotateLeft(h, 23) * P2 + P3;
+            pos += 4;
+        }
+        for (; pos < end; pos++) {
+            h ^= (b.get(pos) & 0xFF) * P5;
+            h = Long.rotateLeft(h, 11) * P1;
+        }
+        h ^= h >>> 33;
+        h *= P2;
+        h ^= h >>> 29;
+        h *= P3;
+        h ^= h >>> 32;
+        return h;
+    }
+
+    private static long round(long acc, long input) {
+        acc += input * P2;
+        acc = Long.rotateLeft(acc, 31);
+        return acc * P1;
+    }
+
+    private static long merge(long h, long v) {
+        h ^= round(0, v);
+        return h * P1 + P4;
+    }
+
+}
@@ -4,14 +4,20 @@ import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.util.ArrayList;
 import java.util.Collections;
-import java.util.LinkedHashSet;
+import java.util.Comparator;
 import java.util.List;
+import java.util.NavigableSet;
 import java.util.Set;
+import java.util.TreeSet;
 
 import static java.util.Objects.requireNonNull;
 
 /**
  * Represents a PAD Index, containing a set of {@link IndexEntry}.
+ * <p>
+ * Entries are kept sorted by TGI (using the unsigned ordering of
+ * {@link TypeGroupInstance#compareTo(TypeGroupInstance)}), so lookups are
+ * O(log n) and range queries by type, group, and instance are O(log n + k).
  * @version 0.0.0.3
  * @since 2013-11-23
  * @author Vince
@@ -19,15 +25,20 @@ import static java.util.Objects.requireNonNull;
 public class Index {
 
     /**
-     * Contains the entries of this Index
+     * Orders index entries by TGI.
      */
-    private final Set<IndexEntry> entries;
+    public static final Comparator<IndexEntry> TGI_ORDER = (a, b) -> a.getTgi().compareTo(b.getTgi());
+
+    /**
+     * Contains the entries of this Index, sorted by TGI
+     */
+    private final NavigableSet<IndexEntry> entries;
 
     /**
      * Creates an empty index.
      */
     public Index() {
-        entries = new LinkedHashSet<>();
+        entries = new TreeSet<>(TGI_ORDER);
     }
 
     /**
@@ -54,18 +65,77 @@ public class Index {
      * @return
      */
     public Set<IndexEntry> getEntriesImmutable() {
-        return Collections.unmodifiableSet(new LinkedHashSet<>(entries));
+        return Collections.unmodifiableSet(new TreeSet<>(entries));
     }
 
     /**
-     * Returns the index entry set.
+     * Returns the index entry set, sorted by TGI.
      *
      * @return
      */
-    public Set<IndexEntry> getEntries() {
+    public NavigableSet<IndexEntry> getEntries() {
         return entries;
     }
 
+    /**
+     * Returns an immutable <b>view</b> of the entries with TGIs between
+     * <code>from</code> and <code>to</code> (both inclusive), in TGI order. The
+     * view is not copied: it reflects later changes to this index and is
+     * iterated lazily.
+     *
+     * @param from The lowest TGI to include.
+     * @param to The highest TGI to include.
+     * @return
+     */
+    public NavigableSet<IndexEntry> getEntriesInRange(TypeGroupInstance from, TypeGroupInstance to) {
+        requireNonNull(from, "From TGI cannot be null.");
+        requireNonNull(to, "To TGI cannot be null.");
+        if (from.compareTo(to) > 0) {
+            return Collections.emptyNavigableSet();
+        }
+        return Collections.unmodifiableNavigableSet(entries.subSet(new IndexEntry(from), true, new IndexEntry(to), true));
+    }
+
+    /**
+     * Returns an immutable <b>view</b> of the entries of the given type.
+     *
+     * @see Index#getEntriesInRange(TypeGroupInstance, TypeGroupInstance)
+     * @param type The TypeID.
+     * @return
+     */
+    public NavigableSet<IndexEntry> getEntriesByType(int type) {
+        return getEntriesInRange(TypeGroupInstance.firstOf(type), TypeGroupInstance.lastOf(type));
+    }
+
+    /**
+     * Returns an immutable <b>view</b> of the entries of the given type and
+     * group.
+     *
+     * @see Index#getEntriesInRange(TypeGroupInstance, TypeGroupInstance)
+     * @param type The TypeID.
+     * @param group The GroupID.
+     * @return
+     */
+    public NavigableSet<IndexEntry> getEntriesByTypeGroup(int type, int group) {
+        return getEntriesInRange(TypeGroupInstance.firstOf(type, group), TypeGroupInstance.lastOf(type, group));
+    }
+
+    /**
+     * Returns an immutable <b>view</b> of the entries of the given type and
+     * group with instances between <code>fromInstance</code> and
+     * <code>toInstance</code> (both inclusive, compared unsigned).
+     *
+     * @see Index#getEntriesInRange(TypeGroupInstance, TypeGroupInstance)
+     * @param type The TypeID.
+     * @param group The GroupID.
+     * @param fromInstance The lowest InstanceID to include.
+     * @param toInstance The highest InstanceID to include.
+     * @return
+     */
+    public NavigableSet<IndexEntry> getEntriesByTypeGroup(int type, int group, long fromInstance, long toInstance) {
+        return getEntriesInRange(new TypeGroupInstance(type, group, fromInstance), new TypeGroupInstance(type, group, toInstance));
+    }
+
     /**
      * Gets the entry with the specified TGI, or null if the index does not
      * contain an entry with the specified TGI.
@@ -76,10 +146,9 @@ public class Index {
      */
     public IndexEntry getEntry(TypeGroupInstance tgi) {
         requireNonNull(tgi, "TGI cannot be null.");
-        for (IndexEntry ie : entries) {
-            if (ie.getTgi().equals(tgi)) {
-                return ie;
-            }
+        IndexEntry ie = entries.ceiling(new IndexEntry(tgi));
+        if (ie != null && ie.getTgi().equals(tgi)) {
+            return ie;
         }
         return null;
     }
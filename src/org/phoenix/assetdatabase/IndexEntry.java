@@ -16,12 +16,22 @@ public class IndexEntry {
     private final TypeGroupInstance tgi;
     private long fileOffset;
     private long fileSize;
+    /**
+     * Record size, decompressed size, and compression type are only stored in
+     * version 4 indexes, and are -1 if unknown.
+     */
+    private long recordSize;
+    private long decompressedSize;
+    private int compressionType;
     private boolean changed;
 
     public IndexEntry(TypeGroupInstance tgi) {
         this.tgi = tgi;
         fileOffset = -1L;
         fileSize = -1L;
+        recordSize = -1L;
+        decompressedSize = -1L;
+        compressionType = -1;
         changed = false;
     }
 
@@ -45,6 +55,46 @@ public class IndexEntry {
         this.fileSize = fileSize;
     }
 
+    /**
+     * Returns the size of the whole subfile record (header, data, and
+     * metadata), or -1 if unknown.
+     *
+     * @return
+     */
+    public long getRecordSize() {
+        return recordSize;
+    }
+
+    public void setRecordSize(long recordSize) {
+        this.recordSize = recordSize;
+    }
+
+    /**
+     * Returns the decompressed size of the subfile data, or -1 if unknown.
+     *
+     * @return
+     */
+    public long getDecompressedSize() {
+        return decompressedSize;
+    }
+
+    public void setDecompressedSize(long decompressedSize) {
+        this.decompressedSize = decompressedSize;
+    }
+
+    /**
+     * Returns the compression type of the subfile, or -1 if unknown.
+     *
+     * @return
+     */
+    public int getCompressionType() {
+        return compressionType;
+    }
+
+    public void setCompressionType(int compressionType) {
+        this.compressionType = compressionType;
+    }
+
     public boolean isChanged() {
         return changed;
     }
@@ -75,6 +125,9 @@ public class IndexEntry {
         IndexEntry ie = new IndexEntry(tgi.clone());
         ie.fileOffset = fileOffset;
         ie.fileSize = fileSize;
+        ie.recordSize = recordSize;
+        ie.decompressedSize = decompressedSize;
+        ie.compressionType = compressionType;
         return ie;
     }
 
@@ -0,0 +1,316 @@
+package org.phoenix.assetdatabase;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
+
+import static java.util.Objects.requireNonNull;
+
+/**
+ * Append-only write-ahead journal of changes made to an
+ * {@link AssetDatabaseImpl} since it was last saved. Each record holds one put
+ * (index delta plus the raw subfile record), remove, or clear, and is
+ * protected by a CRC32 so that a torn tail is detected and discarded on replay.
+ * <p>
+ * Commits use group commit: threads that append concurrently share a single
+ * {@link FileChannel#force(boolean)}.
+ *
+ * <pre>
+ * FORMAT
+ * BYTES   CONTENT
+ * 4       Magic number ('PADJ')
+ * 4       Version
+ * REPEAT {
+ * 4       Length of record body
+ * 4       CRC32 of record body
+ * 1       Operation
+ * 16      TGI (type, group, instance)
+ * n       Subfile record (put only)
+ * } END REPEAT
+ * </pre>
+ *
+ * @author Vince
+ */
+class Journal implements AutoCloseable {
+
+    public static final int MAGIC_NUMBER = 0x5041444A;  //  'PADJ'
+    public static final int VERSION_1 = 1;
+    public static final int HEADER_SIZE = 8;
+    public static final String EXTENSION = ".journal";
+
+    public static final byte OP_PUT = 1;
+    public static final byte OP_REMOVE = 2;
+    public static final byte OP_CLEAR = 3;
+
+    /**
+     * Receives journal records during {@link Journal#replay(Handler)}.
+     */
+    interface Handler {
+
+        void put(IndexEntry ie, Subfile sf);
+
+        void remove(TypeGroupInstance tgi);
+
+        void clear();
+    }
+
+    private final Path location;
+    private final FileChannel channel;
+    /**
+     * End of the last appended record. Guarded by this.
+     */
+    private long writtenPos;
+    /**
+     * Everything before this position is durable. Guarded by syncLock.
+     */
+    private long syncedPos;
+    /**
+     * Whether a thread is currently forcing the channel. Guarded by syncLock.
+     */
+    private boolean syncing;
+    private final Object syncLock = new Object();
+
+    /**
+     * Opens (creating if necessary) the journal for a PAD.
+     *
+     * @param pad The location of the PAD.
+     * @throws IOException
+     */
+    Journal(Path pad) throws IOException {
+        location = journalFor(pad);
+        channel = FileChannel.open(location, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        if (channel.size() < HEADER_SIZE) {
+            writeHeader();
+        } else {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            readFully(header, 0);
+            int magic = header.getInt(0);
+            int version = header.getInt(4);
+            if (magic != MAGIC_NUMBER) {
+                channel.close();
+                throw new IOException(String.format("Invalid magic number for journal: Expected 0x%08X, got 0x%08X", MAGIC_NUMBER, magic));
+            }
+            if (version != VERSION_1) {
+                channel.close();
+                throw new IOException("Cannot process journal version " + version);
+            }
+        }
+        writtenPos = channel.size();
+        syncedPos = writtenPos;
+    }
+
+    /**
+     * Returns the location of the journal file for a PAD.
+     *
+     * @param pad The PAD location.
+     * @return
+     */
+    public static Path journalFor(Path pad) {
+        requireNonNull(pad, "Location cannot be null.");
+        Path name = Paths.get(pad.getFileName().toString() + EXTENSION);
+        Path parent = pad.getParent();
+        return parent == null ? name : parent.resolve(name);
+    }
+
+    private void writeHeader() throws IOException {
+        channel.truncate(0);
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.putInt(MAGIC_NUMBER).putInt(VERSION_1).flip();
+        writeFully(header, 0);
+        channel.force(true);
+    }
+
+    /**
+     * Appends a put record. The record is not durable until
+     * {@link #sync(long)} returns.
+     *
+     * @return The position to pass to {@link #sync(long)}.
+     */
+    long appendPut(IndexEntry ie, Subfile sf) throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream((int) Math.min(Integer.MAX_VALUE - 64, Subfile.HEADER_SIZE + sf.getCompressedSize() + 64));
+        DataOutputStream out = new DataOutputStream(baos);
+        writeOp(out, OP_PUT, ie.getTgi());
+        sf.save(out);
+        return append(baos.toByteArray());
+    }
+
+    long appendRemove(TypeGroupInstance tgi) throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream(17);
+        writeOp(new DataOutputStream(baos), OP_REMOVE, tgi);
+        return append(baos.toByteArray());
+    }
+
+    long appendClear() throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream(17);
+        writeOp(new DataOutputStream(baos), OP_CLEAR, TypeGroupInstance.ZERO_TGI);
+        return append(baos.toByteArray());
+    }
+
+    private static void writeOp(DataOutputStream out, byte op, TypeGroupInstance tgi) throws IOException {
+        out.writeByte(op);
+        out.writeInt(tgi.type);
+        out.writeInt(tgi.group);
+        out.writeLong(tgi.instance);
+    }
+
+    private synchronized long append(byte[] body) throws IOException {
+        CRC32 crc = new CRC32();
+        crc.update(body);
+        ByteBuffer buf = ByteBuffer.allocate(8 + body.length);
+        buf.putInt(body.length).putInt((int) crc.getValue()).put(body).flip();
+        writeFully(buf, writtenPos);
+        writtenPos += 8 + body.length;
+        return writtenPos;
+    }
+
+    /**
+     * Waits until everything up to <code>position</code> is durable. If no
+     * other thread is forcing the journal the caller does so, covering every
+     * record appended so far; otherwise it waits for the running force and
+     * checks again.
+     *
+     * @param position A position returned by one of the append methods.
+     * @throws IOException
+     */
+    void sync(long position) throws IOException {
+        synchronized (syncLock) {
+            while (true) {
+                if (syncedPos >= position) {
+                    return;
+                }
+                if (!syncing) {
+                    syncing = true;
+                    break;
+                }
+                try {
+                    syncLock.wait();
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while waiting for journal commit.");
+                }
+            }
+        }
+        long target;
+        synchronized (this) {
+            target = writtenPos;
+        }
+        boolean done = false;
+        try {
+            channel.force(false);
+            done = true;
+        } finally {
+            synchronized (syncLock) {
+                syncing = false;
+                if (done && target > syncedPos) {
+                    syncedPos = target;
+                }
+                syncLock.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Replays every intact record in order. A truncated or corrupt tail (from a
+     * crash during an append) is discarded.
+     *
+     * @param handler Receives the records.
+     * @return The number of records replayed.
+     * @throws IOException
+     */
+    synchronized int replay(Handler handler) throws IOException {
+        long pos = HEADER_SIZE;
+        long end = channel.size();
+        int count = 0;
+        ByteBuffer lengths = ByteBuffer.allocate(8);
+        while (pos + 8 <= end) {
+            lengths.clear();
+            readFully(lengths, pos);
+            int length = lengths.getInt(0);
+            int expectedCrc = lengths.getInt(4);
+            if (length < 17 || pos + 8 + length > end) {
+                break;
+            }
+            ByteBuffer body = ByteBuffer.allocate(length);
+            readFully(body, pos + 8);
+            CRC32 crc = new CRC32();
+            crc.update(body.array());
+            if ((int) crc.getValue() != expectedCrc) {
+                break;
+            }
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(body.array()));
+            byte op = in.readByte();
+            TypeGroupInstance tgi = new TypeGroupInstance(in.readInt(), in.readInt(), in.readLong());
+            switch (op) {
+                case OP_PUT:
+                    Subfile sf = new Subfile();
+                    sf.load(in);
+                    handler.put(new IndexEntry(tgi), sf);
+                    break;
+                case OP_REMOVE:
+                    handler.remove(tgi);
+                    break;
+                case OP_CLEAR:
+                    handler.clear();
+                    break;
+                default:
+                    throw new IOException("Unknown journal operation " + op);
+            }
+            pos += 8 + length;
+            count++;
+        }
+        if (pos < end) {
+            //  Torn write, drop it
+            channel.truncate(pos);
+            channel.force(true);
+        }
+        writtenPos = pos;
+        synchronized (syncLock) {
+            syncedPos = pos;
+        }
+        return count;
+    }
+
+    /**
+     * Discards every record, after they have been folded into the PAD.
+     *
+     * @throws IOException
+     */
+    synchronized void reset() throws IOException {
+        writeHeader();
+        writtenPos = HEADER_SIZE;
+        synchronized (syncLock) {
+            syncedPos = writtenPos;
+        }
+    }
+
+    private void readFully(ByteBuffer buf, long pos) throws IOException {
+        while (buf.hasRemaining()) {
+            int n = channel.read(buf, pos + buf.position());
+            if (n < 0) {
+                throw new IOException("Unexpected end of journal " + location);
+            }
+        }
+        buf.flip();
+    }
+
+    private void writeFully(ByteBuffer buf, long pos) throws IOException {
+        while (buf.hasRemaining()) {
+            channel.write(buf, pos + buf.position());
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+}
@@ -0,0 +1,344 @@
+package org.phoenix.assetdatabase;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static java.util.Objects.requireNonNull;
+
+/**
+ * A database made of an ordered stack of PADs: a base followed by patches,
+ * where each layer overrides the ones below it. Removing a subfile that a
+ * lower layer holds writes a <i>tombstone</i> ({@link Subfile#tombstone()})
+ * into the top layer, which hides it without rewriting the layer below.
+ * <p>
+ * Every change is written to the top layer, which is saved as version 4. The
+ * other layers are only read. When the database is loaded (and after each
+ * save) the layers are merged into a single {@link TGITable}, so that looking
+ * up a TGI is one probe however many layers there are.
+ * <p>
+ * {@link #flatten(Path)} merges every layer below the top one into a new base
+ * in the background, dropping overridden subfiles and tombstones.
+ * <p>
+ * Tombstones are recognized from the index of version 4 layers. The records
+ * of version 3 layers above the base are read once on load to find them.
+ *
+ * @author Vince
+ */
+public class LayeredAssetDatabase implements AssetDatabase {
+
+    private final List<Path> initialLayers;
+    private volatile Layers layers;
+    /**
+     * Writable top layer.
+     */
+    private AssetDatabaseImpl top;
+    private ExecutorService flattenExecutor;
+    private Future<List<Path>> flattening;
+
+    /**
+     * Creates a layered database. The top (last) layer receives every change
+     * and does not need to exist yet.
+     *
+     * @param layers The PAD locations, base first.
+     */
+    public LayeredAssetDatabase(List<Path> layers) {
+        requireNonNull(layers, "Layer list cannot be null.");
+        if (layers.isEmpty()) {
+            throw new IllegalArgumentException("At least one layer is required.");
+        }
+        for (Path p : layers) {
+            requireNonNull(p, "Layer location cannot be null.");
+        }
+        initialLayers = Collections.unmodifiableList(new ArrayList<>(layers));
+        this.layers = Layers.empty();
+    }
+
+    /**
+     * Returns the locations of the current layers, base first. This changes
+     * when a {@link #flatten(Path)} completes.
+     *
+     * @return
+     */
+    public List<Path> getLayers() {
+        Layers l = layers;
+        if (l.databases.isEmpty()) {
+            return initialLayers;
+        }
+        List<Path> paths = new ArrayList<>(l.databases.size());
+        for (AssetDatabaseImpl adi : l.databases) {
+            paths.add(adi.location);
+        }
+        return Collections.unmodifiableList(paths);
+    }
+
+    @Override
+    public synchronized void load() throws IOException {
+        List<AssetDatabaseImpl> databases = new ArrayList<>(initialLayers.size());
+        for (int i = 0; i < initialLayers.size(); i++) {
+            AssetDatabaseImpl adi = new AssetDatabaseImpl(initialLayers.get(i));
+            boolean isTop = i == initialLayers.size() - 1;
+            if (!isTop || Files.exists(adi.location)) {
+                adi.load();
+            }
+            databases.add(adi);
+        }
+        top = databases.get(databases.size() - 1);
+        layers = Layers.merge(databases);
+    }
+
+    /**
+     * Saves the top layer as version 4 and rebuilds the lookup table.
+     *
+     * @throws IOException If the top layer could not be saved.
+     */
+    @Override
+    public synchronized void save() throws IOException {
+        checkLoaded();
+        top.setVersion(AssetDatabaseImpl.VERSION_4);
+        top.save();
+        layers = Layers.merge(new ArrayList<>(layers.databases));
+    }
+
+    private void checkLoaded() {
+        if (top == null) {
+            throw new IllegalStateException("Database must be loaded first.");
+        }
+    }
+
+    @Override
+    public boolean contains(TypeGroupInstance tgi) {
+        requireNonNull(tgi, "TGI cannot be null.");
+        return layers.table.contains(tgi);
+    }
+
+    @Override
+    public Subfile loadSubfile(TypeGroupInstance tgi) throws FileNotFoundException, IOException {
+        requireNonNull(tgi, "TGI cannot be null.");
+        return loadSubfiles(Collections.singletonList(tgi)).get(tgi);
+    }
+
+    @Override
+    public Map<TypeGroupInstance, Subfile> loadSubfiles(Collection<TypeGroupInstance> tgis) throws FileNotFoundException, IOException {
+        requireNonNull(tgis, "TGI collection cannot be null.");
+        Layers l = layers;
+        Map<TypeGroupInstance, Subfile> result = new HashMap<>(tgis.size());
+        for (Entry<AssetDatabaseImpl, List<IndexEntry>> e : l.bin(tgis).entrySet()) {
+            result.putAll(e.getKey().loadSubfilesAt(e.getValue()));
+        }
+        return result;
+    }
+
+    @Override
+    public SubfileStat statSubfile(TypeGroupInstance tgi) throws FileNotFoundException, IOException {
+        requireNonNull(tgi, "TGI cannot be null.");
+        return statSubfiles(Collections.singletonList(tgi)).get(tgi);
+    }
+
+    @Override
+    public Map<TypeGroupInstance, SubfileStat> statSubfiles(Collection<TypeGroupInstance> tgis) throws FileNotFoundException, IOException {
+        requireNonNull(tgis, "TGI collection cannot be null.");
+        Layers l = layers;
+        Map<TypeGroupInstance, SubfileStat> result = new HashMap<>(tgis.size());
+        for (Entry<AssetDatabaseImpl, List<IndexEntry>> e : l.bin(tgis).entrySet()) {
+            result.putAll(e.getKey().statSubfilesAt(e.getValue()));
+        }
+        return result;
+    }
+
+    /**
+     * Scrubs every layer in turn (see {@link AssetDatabaseImpl#scrub(int, long)}).
+     */
+    @Override
+    public ScrubReport scrub(int parallelism, long maxBytesPerSecond) throws IOException {
+        checkLoaded();
+        try (Scrubber scrubber = new Scrubber(parallelism, maxBytesPerSecond)) {
+            layers.scrub(scrubber);
+            return scrubber.finish();
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * Each layer is read once, sequentially, base first. Subfiles that a
+     * later layer overrides or hides are skipped, and so are tombstones.
+     */
+    @Override
+    public AssetFlow.Publisher<ExportedSubfile> publish(long maxInFlightBytes, Executor executor) {
+        return new SubfilePublisher(() -> layers.exportCursor(), maxInFlightBytes, executor);
+    }
+
+    /**
+     * Adds a subfile to the top layer. It is visible once the database is
+     * saved.
+     */
+    @Override
+    public synchronized void putSubfile(IndexEntry ie, Subfile sf) {
+        checkLoaded();
+        top.putSubfile(ie, sf);
+    }
+
+    @Override
+    public synchronized void putSubfiles(Map<IndexEntry, Subfile> files) {
+        checkLoaded();
+        top.putSubfiles(files);
+    }
+
+    /**
+     * Removes a subfile from the top layer, writing a tombstone if a lower
+     * layer holds it. The change is visible once the database is saved.
+     */
+    @Override
+    public synchronized void removeSubfile(TypeGroupInstance tgi) {
+        requireNonNull(tgi, "TGI cannot be null.");
+        checkLoaded();
+        if (inLowerLayer(layers, tgi)) {
+            top.putSubfile(new IndexEntry(tgi), Subfile.tombstone());
+        } else {
+            top.removeSubfile(tgi);
+        }
+    }
+
+    private boolean inLowerLayer(Layers l, TypeGroupInstance tgi) {
+        for (AssetDatabaseImpl adi : l.databases) {
+            if (adi != top && adi.getEntry(tgi) != null) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns the merged index: for each visible TGI, the entry of the layer
+     * that holds it. Built on first use after each load or save.
+     *
+     * @return
+     */
+    @Override
+    public Index getIndex() {
+        return layers.getIndex();
+    }
+
+    /**
+     * Returns the pack metadata of the top layer.
+     *
+     * @return
+     */
+    @Override
+    public MetadataList getMetadata() {
+        checkLoaded();
+        return top.getMetadata();
+    }
+
+    /**
+     * Clears the top layer and writes a tombstone for every subfile of the
+     * lower layers. The change is visible once the database is saved.
+     */
+    @Override
+    public synchronized void clear() {
+        checkLoaded();
+        top.clear();
+        //  Including subfiles that the cleared top layer hid
+        for (AssetDatabaseImpl adi : layers.databases) {
+            if (adi != top) {
+                adi.forEachEntry((ie) -> {
+                    if (ie.getCompressionType() != Subfile.COMPRESSION_TOMBSTONE) {
+                        top.putSubfile(new IndexEntry(ie.getTgi()), Subfile.tombstone());
+                    }
+                });
+            }
+        }
+    }
+
+    /**
+     * Merges every layer below the top one into a new base PAD, in the
+     * background. Subfiles that are overridden or hidden by a tombstone are
+     * dropped. Once the new base is written it replaces those layers; the old
+     * layer files are left in place for the caller to delete once no reads
+     * that started before the swap remain.
+     * <p>
+     * Reads and writes may continue while flattening. Only one flatten runs at
+     * a time.
+     *
+     * @param target Where to write the new base. Must not be one of the
+     * current layers.
+     * @return The locations of the layers that were replaced.
+     */
+    public synchronized Future<List<Path>> flatten(Path target) {
+        requireNonNull(target, "Target cannot be null.");
+        checkLoaded();
+        if (flattening != null && !flattening.isDone()) {
+            throw new IllegalStateException("A flatten is already running.");
+        }
+        for (AssetDatabaseImpl adi : layers.databases) {
+            if (adi.location.toAbsolutePath().normalize().equals(target.toAbsolutePath().normalize())) {
+                throw new IllegalArgumentException("Target cannot be one of the layers.");
+            }
+        }
+        if (flattenExecutor == null) {
+            flattenExecutor = Executors.newSingleThreadExecutor((r) -> {
+                Thread t = new Thread(r, "LayeredAssetDatabase flatten");
+                t.setDaemon(true);
+                t.setPriority(Thread.MIN_PRIORITY);
+                return t;
+            });
+        }
+        final Layers snapshot = layers;
+        flattening = flattenExecutor.submit(() -> flattenImpl(snapshot, target));
+        return flattening;
+    }
+
+    private List<Path> flattenImpl(Layers snapshot, Path target) throws IOException {
+        List<AssetDatabaseImpl> lower = new ArrayList<>(snapshot.databases);
+        lower.remove(top);
+        if (lower.isEmpty()) {
+            return Collections.emptyList();
+        }
+        //  What the lower layers resolve to on their own
+        Map<AssetDatabaseImpl, List<IndexEntry>> sources = Layers.merge(lower).binAll();
+        Map<String, String> tags = new HashMap<>();
+        for (AssetDatabaseImpl adi : lower) {
+            tags.putAll(adi.getMetadata().getTagsImmutable());
+        }
+        AssetDatabaseImpl.writeRecords(target, sources, tags, false);
+        AssetDatabaseImpl base = new AssetDatabaseImpl(target);
+        base.load();
+        List<Path> replaced = new ArrayList<>(lower.size());
+        synchronized (this) {
+            //  Later saves only change the top layer, so the lower ones are as flattened
+            List<AssetDatabaseImpl> databases = new ArrayList<>(layers.databases);
+            for (AssetDatabaseImpl adi : lower) {
+                databases.remove(adi);
+                replaced.add(adi.location);
+            }
+            databases.add(0, base);
+            layers = Layers.merge(databases);
+        }
+        return replaced;
+    }
+
+    @Override
+    public synchronized void close() {
+        if (flattenExecutor != null) {
+            flattenExecutor.shutdownNow();
+            flattenExecutor = null;
+        }
+        for (AssetDatabaseImpl adi : layers.databases) {
+            adi.close();
+        }
+    }
+
+}
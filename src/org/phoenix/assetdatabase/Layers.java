@@ -0,0 +1,262 @@
+package org.phoenix.assetdatabase;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * An ordered stack of open PADs and the merged lookup table over them, where
+ * each PAD overrides the ones before it and tombstones
+ * ({@link Subfile#tombstone()}) hide TGIs of earlier PADs. Used by
+ * {@link LayeredAssetDatabase} and {@link SegmentedAssetDatabase}.
+ * <p>
+ * Never modified once built, so readers can use it without locking.
+ *
+ * @author Vince
+ */
+final class Layers {
+
+    final List<AssetDatabaseImpl> databases;
+    /**
+     * Visible TGIs; the PAD id of each is its position in
+     * <code>databases</code>.
+     */
+    final TGITable table;
+    /**
+     * Merged index, built on first use. Guarded by this.
+     */
+    private Index index;
+
+    private Layers(List<AssetDatabaseImpl> databases, TGITable table) {
+        this.databases = databases;
+        this.table = table;
+    }
+
+    static Layers empty() {
+        return new Layers(Collections.emptyList(), new TGITable());
+    }
+
+    /**
+     * Builds the lookup table, last PAD first: the first entry found for a
+     * TGI wins, and a tombstone hides the TGI from every PAD before it.
+     *
+     * @param databases The loaded PADs, in override order.
+     * @return
+     * @throws IOException If the tombstones of a version 3 PAD could not be
+     * read.
+     */
+    static Layers merge(List<AssetDatabaseImpl> databases) throws IOException {
+        int expected = 0;
+        for (AssetDatabaseImpl adi : databases) {
+            expected = Math.max(expected, adi.size());
+        }
+        TGITable table = new TGITable(expected);
+        for (AssetDatabaseImpl adi : databases) {
+            table.addPath(adi.location);
+        }
+        Set<TypeGroupInstance> hidden = new HashSet<>();
+        for (int layer = databases.size() - 1; layer >= 0; layer--) {
+            AssetDatabaseImpl adi = databases.get(layer);
+            Set<TypeGroupInstance> tombstones = layer > 0 ? findTombstones(adi) : Collections.emptySet();
+            final int padId = layer;
+            adi.forEachEntry((ie) -> {
+                TypeGroupInstance tgi = ie.getTgi();
+                if (hidden.contains(tgi) || table.contains(tgi)) {
+                    return;
+                }
+                if (ie.getCompressionType() == Subfile.COMPRESSION_TOMBSTONE || tombstones.contains(tgi)) {
+                    hidden.add(tgi);
+                } else {
+                    table.put(ie, padId);
+                }
+            });
+        }
+        return new Layers(Collections.unmodifiableList(new ArrayList<>(databases)), table);
+    }
+
+    /**
+     * Returns the tombstones of a PAD whose index does not record compression
+     * types (version 3), by reading its record headers.
+     */
+    private static Set<TypeGroupInstance> findTombstones(AssetDatabaseImpl adi) throws IOException {
+        List<IndexEntry> unknown = new ArrayList<>();
+        adi.forEachEntry((ie) -> {
+            if (ie.getCompressionType() < 0) {
+                unknown.add(ie);
+            }
+        });
+        if (unknown.isEmpty()) {
+            return Collections.emptySet();
+        }
+        Set<TypeGroupInstance> tombstones = new HashSet<>();
+        for (SubfileStat st : adi.statSubfilesAt(unknown).values()) {
+            if (st.getCompressionType() == Subfile.COMPRESSION_TOMBSTONE) {
+                tombstones.add(st.getTgi());
+            }
+        }
+        return tombstones;
+    }
+
+    /**
+     * Resolves TGIs and groups them by the PAD that holds them.
+     *
+     * @param tgis The TGIs to resolve.
+     * @return Entries with the offset in their PAD set.
+     * @throws FileNotFoundException If a TGI is not visible.
+     */
+    Map<AssetDatabaseImpl, List<IndexEntry>> bin(Collection<TypeGroupInstance> tgis) throws FileNotFoundException {
+        Map<AssetDatabaseImpl, List<IndexEntry>> bins = new LinkedHashMap<>();
+        for (TypeGroupInstance tgi : tgis) {
+            int slot = table.slotOf(tgi);
+            if (slot < 0) {
+                throw new FileNotFoundException("TGI " + tgi.toString() + " not in database.");
+            }
+            add(bins, slot);
+        }
+        return bins;
+    }
+
+    /**
+     * Groups every visible TGI by the PAD that holds it.
+     *
+     * @return Entries with the offset in their PAD set.
+     */
+    Map<AssetDatabaseImpl, List<IndexEntry>> binAll() {
+        Map<AssetDatabaseImpl, List<IndexEntry>> bins = new LinkedHashMap<>();
+        for (int slot = 0; slot < table.capacity(); slot++) {
+            if (table.isOccupied(slot)) {
+                add(bins, slot);
+            }
+        }
+        return bins;
+    }
+
+    private void add(Map<AssetDatabaseImpl, List<IndexEntry>> bins, int slot) {
+        AssetDatabaseImpl adi = databases.get(table.getPadId(slot));
+        List<IndexEntry> bin = bins.get(adi);
+        if (bin == null) {
+            bin = new ArrayList<>();
+            bins.put(adi, bin);
+        }
+        bin.add(entry(slot));
+    }
+
+    private IndexEntry entry(int slot) {
+        IndexEntry ie = new IndexEntry(table.getTgi(slot));
+        ie.setFileOffset(table.getFileOffset(slot));
+        ie.setFileSize(table.getFileSize(slot));
+        return ie;
+    }
+
+    /**
+     * Scrubs every PAD that exists, first to last, including the entries that
+     * later PADs override.
+     */
+    void scrub(Scrubber scrubber) throws IOException {
+        for (AssetDatabaseImpl adi : databases) {
+            try {
+                adi.scrub(scrubber);
+            } catch (FileNotFoundException e) {
+                //  Not written yet, or removed since this was built
+                if (Files.exists(adi.location)) {
+                    throw e;
+                }
+            }
+        }
+    }
+
+    /**
+     * Opens a cursor over the visible subfiles of every PAD that exists, first
+     * to last, each read in file order. Entries that a later PAD overrides or
+     * hides are skipped, and so are tombstones. Every PAD is opened here, so
+     * the cursor reads them as they are now.
+     */
+    SubfilePublisher.Cursor exportCursor() throws IOException {
+        List<SubfilePublisher.Cursor> cursors = new ArrayList<>(databases.size());
+        Set<TypeGroupInstance> hidden = new HashSet<>();
+        try {
+            for (int layer = databases.size() - 1; layer >= 0; layer--) {
+                AssetDatabaseImpl adi = databases.get(layer);
+                try {
+                    cursors.add(0, adi.exportCursor(hidden));
+                } catch (FileNotFoundException e) {
+                    //  Not written yet
+                    if (Files.exists(adi.location)) {
+                        throw e;
+                    }
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            closeAll(cursors);
+            throw e;
+        }
+        return new SubfilePublisher.Cursor() {
+            private int current;
+
+            @Override
+            public SubfilePublisher.Record next() throws IOException {
+                while (current < cursors.size()) {
+                    SubfilePublisher.Record record = cursors.get(current).next();
+                    if (record == null) {
+                        current++;
+                    } else if (record.subfile.isTombstone()) {
+                        //  Version 3 indexes don't tell tombstones apart
+                        record.subfile.release();
+                    } else {
+                        return record;
+                    }
+                }
+                return null;
+            }
+
+            @Override
+            public void close() throws IOException {
+                closeAll(cursors);
+            }
+        };
+    }
+
+    private static void closeAll(List<SubfilePublisher.Cursor> cursors) throws IOException {
+        IOException first = null;
+        for (SubfilePublisher.Cursor c : cursors) {
+            try {
+                c.close();
+            } catch (IOException e) {
+                if (first == null) {
+                    first = e;
+                }
+            }
+        }
+        if (first != null) {
+            throw first;
+        }
+    }
+
+    /**
+     * Returns the merged index: for each visible TGI, the entry of the PAD
+     * that holds it.
+     *
+     * @return
+     */
+    synchronized Index getIndex() {
+        if (index == null) {
+            Index merged = new Index();
+            for (int slot = 0; slot < table.capacity(); slot++) {
+                if (table.isOccupied(slot)) {
+                    merged.getEntries().add(entry(slot));
+                }
+            }
+            index = merged;
+        }
+        return index;
+    }
+
+}
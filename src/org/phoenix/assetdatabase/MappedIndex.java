@@ -0,0 +1,248 @@
+package org.phoenix.assetdatabase;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Collection;
+
+import static java.util.Objects.requireNonNull;
+
+/**
+ * Read-only view of a version 4 PAD index: fixed-width records sorted by TGI
+ * (using the unsigned ordering of
+ * {@link TypeGroupInstance#compareTo(TypeGroupInstance)}), binary-searched in
+ * place. The records are usually memory mapped, so opening an index costs
+ * nothing per entry and {@link IndexEntry} objects are only created for the
+ * entries that are looked up.
+ * <p>
+ * The records of a sealed PAD are instead in the slot order of a
+ * {@link TGIPerfectHash}, and found with one hash and one comparison.
+ *
+ * <pre>
+ * RECORD FORMAT
+ * BYTES   CONTENT
+ * 4       TypeID
+ * 4       GroupID
+ * 8       InstanceID
+ * 8       Record offset
+ * 8       Compressed size
+ * 4       Decompressed size
+ * 4       Record size (header, data, and metadata)
+ * 2       Compression type
+ * 6       Reserved
+ * </pre>
+ *
+ * Readers use the record size stored in the PAD header as the stride, so that
+ * later versions can append fields.
+ *
+ * @author Vince
+ */
+final class MappedIndex {
+
+    /**
+     * Size of the index records written by this version.
+     */
+    static final int RECORD_SIZE = 48;
+
+    /**
+     * Accessed with absolute reads only, so it can be shared between threads.
+     */
+    private final ByteBuffer records;
+    private final int count;
+    private final int stride;
+    /**
+     * Perfect hash giving the position of each record, or null if the records
+     * are sorted.
+     */
+    private final TGIPerfectHash hash;
+
+    MappedIndex(ByteBuffer records, int count, int stride) {
+        this(records, count, stride, null);
+    }
+
+    MappedIndex(ByteBuffer records, int count, int stride, TGIPerfectHash hash) {
+        this.records = requireNonNull(records, "Records cannot be null.");
+        if (count < 0) {
+            throw new IllegalArgumentException("Number of entries cannot be less than zero.");
+        }
+        if (stride < RECORD_SIZE) {
+            throw new IllegalArgumentException("Record size must be at least " + RECORD_SIZE + " bytes.");
+        }
+        if ((long) count * stride > records.capacity()) {
+            throw new IllegalArgumentException("Buffer is too small for " + count + " records.");
+        }
+        if (hash != null && hash.size() != count) {
+            throw new IllegalArgumentException("Hash is for " + hash.size() + " records, not " + count + ".");
+        }
+        this.count = count;
+        this.stride = stride;
+        this.hash = hash;
+    }
+
+    /**
+     * Maps the index stored in a file. The mapping stays valid after the
+     * channel is closed.
+     *
+     * @param channel The file to map.
+     * @param offset The position of the first record.
+     * @param count The number of records.
+     * @param stride The size of each record.
+     * @param hash The perfect hash the records are ordered by, or null if they
+     * are sorted by TGI.
+     * @return
+     * @throws IOException
+     */
+    static MappedIndex map(FileChannel channel, long offset, int count, int stride, TGIPerfectHash hash) throws IOException {
+        long length = (long) count * stride;
+        if (length > Integer.MAX_VALUE) {
+            throw new IOException("Index of " + count + " entries is too large to map.");
+        }
+        ByteBuffer records = length == 0 ? ByteBuffer.allocate(0) : channel.map(FileChannel.MapMode.READ_ONLY, offset, length);
+        return new MappedIndex(records, count, stride, hash);
+    }
+
+    /**
+     * Writes index records for the entries, in iteration order, at the
+     * current position of the file.
+     *
+     * @param entries The entries, in TGI or hash order.
+     * @param raf The file to write to.
+     * @throws IOException
+     */
+    static void write(Collection<IndexEntry> entries, RandomAccessFile raf) throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate(RECORD_SIZE * 256);
+        FileChannel out = raf.getChannel();
+        long pos = raf.getFilePointer();
+        for (IndexEntry ie : entries) {
+            if (!buf.hasRemaining()) {
+                buf.flip();
+                while (buf.hasRemaining()) {
+                    pos += out.write(buf, pos);
+                }
+                buf.clear();
+            }
+            TypeGroupInstance tgi = ie.getTgi();
+            buf.putInt(tgi.type);
+            buf.putInt(tgi.group);
+            buf.putLong(tgi.instance);
+            buf.putLong(ie.getFileOffset());
+            buf.putLong(ie.getFileSize());
+            buf.putInt((int) ie.getDecompressedSize());
+            buf.putInt((int) ie.getRecordSize());
+            buf.putShort((short) ie.getCompressionType());
+            buf.putShort((short) 0);
+            buf.putInt(0);
+        }
+        buf.flip();
+        while (buf.hasRemaining()) {
+            pos += out.write(buf, pos);
+        }
+        raf.seek(pos);
+    }
+
+    /**
+     * Returns the number of entries in the index.
+     *
+     * @return
+     */
+    int size() {
+        return count;
+    }
+
+    /**
+     * Returns the position of a TGI in the index, or a negative value if the
+     * index does not contain it. For sorted records that value is
+     * <code>-(insertionPoint + 1)</code>.
+     *
+     * @param tgi The TGI to look for.
+     * @return
+     */
+    int find(TypeGroupInstance tgi) {
+        requireNonNull(tgi, "TGI cannot be null.");
+        if (hash != null) {
+            int slot = hash.slotOf(tgi);
+            return slot >= 0 && compare(slot, tgi.type, tgi.group, tgi.instance) == 0 ? slot : -1;
+        }
+        int lo = 0;
+        int hi = count - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            int c = compare(mid, tgi.type, tgi.group, tgi.instance);
+            if (c < 0) {
+                lo = mid + 1;
+            } else if (c > 0) {
+                hi = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -(lo + 1);
+    }
+
+    private int compare(int i, int type, int group, long instance) {
+        int base = i * stride;
+        int t = records.getInt(base);
+        if (t != type) {
+            return Integer.compareUnsigned(t, type);
+        }
+        int g = records.getInt(base + 4);
+        if (g != group) {
+            return Integer.compareUnsigned(g, group);
+        }
+        return Long.compareUnsigned(records.getLong(base + 8), instance);
+    }
+
+    /**
+     * Looks up a TGI.
+     *
+     * @param tgi The TGI to look up.
+     * @return A new entry for the TGI, or null if the index does not contain
+     * it.
+     */
+    IndexEntry getEntry(TypeGroupInstance tgi) {
+        int i = find(tgi);
+        return i < 0 ? null : getEntry(i);
+    }
+
+    /**
+     * Creates an entry for the record at a position.
+     *
+     * @param i The position, between 0 and {@link #size()}.
+     * @return
+     */
+    IndexEntry getEntry(int i) {
+        int base = i * stride;
+        IndexEntry ie = new IndexEntry(getTgi(i));
+        ie.setFileOffset(records.getLong(base + 16));
+        ie.setFileSize(records.getLong(base + 24));
+        ie.setDecompressedSize(unsigned(records.getInt(base + 32)));
+        ie.setRecordSize(unsigned(records.getInt(base + 36)));
+        ie.setCompressionType(records.getShort(base + 40) & 0xFFFF);
+        return ie;
+    }
+
+    /**
+     * Reads an unsigned size, keeping -1 (unknown) as is.
+     */
+    private static long unsigned(int size) {
+        return size == -1 ? -1L : size & 0xFFFFFFFFL;
+    }
+
+    TypeGroupInstance getTgi(int i) {
+        int base = i * stride;
+        return new TypeGroupInstance(records.getInt(base), records.getInt(base + 4), records.getLong(base + 8));
+    }
+
+    /**
+     * Adds an entry for every record to an index.
+     *
+     * @param index The index to fill.
+     */
+    void copyTo(Index index) {
+        for (int i = 0; i < count; i++) {
+            index.getEntries().add(getEntry(i));
+        }
+    }
+
+}
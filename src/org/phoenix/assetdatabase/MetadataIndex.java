@@ -0,0 +1,296 @@
+package org.phoenix.assetdatabase;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map.Entry;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.function.Predicate;
+
+import static java.util.Objects.requireNonNull;
+
+/**
+ * An inverted index from subfile metadata (key and value) to the TGIs of the
+ * subfiles that carry it, for answering equality and prefix queries without
+ * reading any subfile.
+ * <p>
+ * Like {@link TGIBloomFilter}, an index can be stamped with the size and
+ * modification time of the PAD it describes and saved next to it (see
+ * {@link #sidecarFor(Path)}), so that stale indexes can be detected. This
+ * class is not thread-safe; an index should not be modified once it is shared.
+ *
+ * <pre>
+ * FORMAT
+ * BYTES   CONTENT
+ * 4       Magic number ('PAMX')
+ * 4       Version
+ * 8       PAD size stamp
+ * 8       PAD modification time stamp
+ * 4       Number of keys
+ * REPEAT for each key {
+ * n       Key (DataOutput.writeUTF)
+ * 4       Number of values
+ * REPEAT for each value {
+ * n       Value (DataOutput.writeUTF)
+ * 4       Number of TGIs
+ * 16      TGI (type, group, instance), repeated
+ * } END REPEAT
+ * } END REPEAT
+ * </pre>
+ *
+ * @author Vince
+ */
+public class MetadataIndex {
+
+    public static final int MAGIC_NUMBER = 0x50414D58;  //  'PAMX'
+    public static final int VERSION_1 = 1;
+    /**
+     * Extension appended to a PAD's file name for its metadata index sidecar
+     * file.
+     */
+    public static final String SIDECAR_EXTENSION = ".mdx";
+
+    /**
+     * Key -> value -> TGIs, both levels in String order.
+     */
+    private final NavigableMap<String, NavigableMap<String, List<TypeGroupInstance>>> entries;
+    private long stampSize;
+    private long stampModified;
+
+    public MetadataIndex() {
+        entries = new TreeMap<>();
+        stampSize = -1L;
+        stampModified = -1L;
+    }
+
+    /**
+     * Creates an index of the metadata of the given subfiles.
+     *
+     * @param stats The subfiles to index.
+     * @return
+     */
+    public static MetadataIndex build(Collection<SubfileStat> stats) {
+        requireNonNull(stats, "Stat collection cannot be null.");
+        MetadataIndex mi = new MetadataIndex();
+        for (SubfileStat st : stats) {
+            mi.add(st.getTgi(), st.getMetadata());
+        }
+        return mi;
+    }
+
+    /**
+     * Adds every metadata entry of a subfile.
+     *
+     * @param tgi The TGI of the subfile.
+     * @param metadata The metadata of the subfile.
+     */
+    public void add(TypeGroupInstance tgi, MetadataList metadata) {
+        requireNonNull(tgi, "TGI cannot be null.");
+        requireNonNull(metadata, "MetadataList cannot be null.");
+        for (Entry<String, String> e : metadata.getTagsImmutable().entrySet()) {
+            NavigableMap<String, List<TypeGroupInstance>> values = entries.get(e.getKey());
+            if (values == null) {
+                values = new TreeMap<>();
+                entries.put(e.getKey(), values);
+            }
+            List<TypeGroupInstance> tgis = values.get(e.getValue());
+            if (tgis == null) {
+                tgis = new ArrayList<>(1);
+                values.put(e.getValue(), tgis);
+            }
+            tgis.add(tgi);
+        }
+    }
+
+    /**
+     * Removes every entry of the TGIs matching a predicate.
+     *
+     * @param filter Returns true for TGIs to remove.
+     */
+    public void removeIf(Predicate<TypeGroupInstance> filter) {
+        requireNonNull(filter, "Filter cannot be null.");
+        for (Iterator<NavigableMap<String, List<TypeGroupInstance>>> ki = entries.values().iterator(); ki.hasNext();) {
+            NavigableMap<String, List<TypeGroupInstance>> values = ki.next();
+            for (Iterator<List<TypeGroupInstance>> vi = values.values().iterator(); vi.hasNext();) {
+                List<TypeGroupInstance> l = vi.next();
+                l.removeIf(filter);
+                if (l.isEmpty()) {
+                    vi.remove();
+                }
+            }
+            if (values.isEmpty()) {
+                ki.remove();
+            }
+        }
+    }
+
+    /**
+     * Returns the TGIs of subfiles whose metadata maps <code>key</code> to
+     * exactly <code>value</code>.
+     *
+     * @param key
+     * @param value
+     * @return
+     */
+    public Set<TypeGroupInstance> findEquals(String key, String value) {
+        requireNonNull(key, "Key cannot be null.");
+        requireNonNull(value, "Value cannot be null.");
+        NavigableMap<String, List<TypeGroupInstance>> values = entries.get(key);
+        if (values == null) {
+            return Collections.emptySet();
+        }
+        List<TypeGroupInstance> l = values.get(value);
+        return l == null ? Collections.emptySet() : new HashSet<>(l);
+    }
+
+    /**
+     * Returns the TGIs of subfiles whose metadata maps <code>key</code> to a
+     * value starting with <code>prefix</code>.
+     *
+     * @param key
+     * @param prefix
+     * @return
+     */
+    public Set<TypeGroupInstance> findPrefix(String key, String prefix) {
+        requireNonNull(key, "Key cannot be null.");
+        requireNonNull(prefix, "Prefix cannot be null.");
+        NavigableMap<String, List<TypeGroupInstance>> values = entries.get(key);
+        if (values == null) {
+            return Collections.emptySet();
+        }
+        Set<TypeGroupInstance> ret = new HashSet<>();
+        for (Entry<String, List<TypeGroupInstance>> e : values.tailMap(prefix, true).entrySet()) {
+            if (!e.getKey().startsWith(prefix)) {
+                break;
+            }
+            ret.addAll(e.getValue());
+        }
+        return ret;
+    }
+
+    /**
+     * Returns the metadata keys present in the index.
+     *
+     * @return
+     */
+    public Set<String> getKeys() {
+        return Collections.unmodifiableSet(entries.keySet());
+    }
+
+    /**
+     * Records the size and modification time of the PAD this index describes.
+     *
+     * @param size The PAD size, in bytes.
+     * @param lastModified The PAD modification time, in milliseconds.
+     */
+    public void setStamp(long size, long lastModified) {
+        stampSize = size;
+        stampModified = lastModified;
+    }
+
+    /**
+     * Checks whether this index was stamped with the given PAD size and
+     * modification time.
+     *
+     * @param size
+     * @param lastModified
+     * @return
+     */
+    public boolean matchesStamp(long size, long lastModified) {
+        return stampSize == size && stampModified == lastModified;
+    }
+
+    /**
+     * Writes this index to the output.
+     *
+     * @param out
+     * @throws IOException
+     */
+    public void save(DataOutput out) throws IOException {
+        requireNonNull(out, "DataOutput cannot be null.");
+        out.writeInt(MAGIC_NUMBER);
+        out.writeInt(VERSION_1);
+        out.writeLong(stampSize);
+        out.writeLong(stampModified);
+        out.writeInt(entries.size());
+        for (Entry<String, NavigableMap<String, List<TypeGroupInstance>>> k : entries.entrySet()) {
+            out.writeUTF(k.getKey());
+            out.writeInt(k.getValue().size());
+            for (Entry<String, List<TypeGroupInstance>> v : k.getValue().entrySet()) {
+                out.writeUTF(v.getKey());
+                out.writeInt(v.getValue().size());
+                for (TypeGroupInstance tgi : v.getValue()) {
+                    out.writeInt(tgi.type);
+                    out.writeInt(tgi.group);
+                    out.writeLong(tgi.instance);
+                }
+            }
+        }
+    }
+
+    /**
+     * Reads an index from the input.
+     *
+     * @param in
+     * @return
+     * @throws IOException If the index could not be read or is not a valid
+     * metadata index.
+     */
+    public static MetadataIndex load(DataInput in) throws IOException {
+        requireNonNull(in, "DataInput cannot be null.");
+        int magic = in.readInt();
+        if (magic != MAGIC_NUMBER) {
+            throw new IOException(String.format("Invalid magic number for metadata index: Expected 0x%08X, got 0x%08X", MAGIC_NUMBER, magic));
+        }
+        int version = in.readInt();
+        if (version != VERSION_1) {
+            throw new IOException("Cannot process metadata index version " + version);
+        }
+        MetadataIndex mi = new MetadataIndex();
+        mi.setStamp(in.readLong(), in.readLong());
+        int numKeys = in.readInt();
+        for (int k = 0; k < numKeys; k++) {
+            String key = in.readUTF();
+            NavigableMap<String, List<TypeGroupInstance>> values = new TreeMap<>();
+            int numValues = in.readInt();
+            for (int v = 0; v < numValues; v++) {
+                String value = in.readUTF();
+                int numTgis = in.readInt();
+                if (numTgis < 0) {
+                    throw new IOException("Invalid metadata index entry count " + numTgis);
+                }
+                List<TypeGroupInstance> tgis = new ArrayList<>(Math.min(numTgis, 1 << 16));
+                for (int i = 0; i < numTgis; i++) {
+                    tgis.add(new TypeGroupInstance(in.readInt(), in.readInt(), in.readLong()));
+                }
+                values.put(value, tgis);
+            }
+            mi.entries.put(key, values);
+        }
+        return mi;
+    }
+
+    /**
+     * Returns the location of the metadata index sidecar file for a PAD.
+     *
+     * @param pad The PAD location.
+     * @return
+     */
+    public static Path sidecarFor(Path pad) {
+        requireNonNull(pad, "Location cannot be null.");
+        Path name = Paths.get(pad.getFileName().toString() + SIDECAR_EXTENSION);
+        Path parent = pad.getParent();
+        return parent == null ? name : parent.resolve(name);
+    }
+
+}
@@ -1,23 +1,33 @@
 package org.phoenix.assetdatabase;
 
-import java.io.ByteArrayOutputStream;
 import java.io.DataInput;
 import java.io.DataOutput;
-import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.UTFDataFormatException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
-import java.util.LinkedList;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Objects;
-import java.util.Queue;
 
 import static java.util.Objects.requireNonNull;
 
 /**
  * Represents a block of metadata entries.
+ * <p>
+ * The block is kept in its encoded (modified UTF-8) form as well as decoded:
+ * a loaded list keeps the raw bytes and only decodes them when the tags are
+ * first accessed, and the encoded form of a list is cached until the next
+ * change, so saving and {@link #getSizeBytes()} don't re-encode every string.
+ * <p>
+ * Older writers stored the <i>character</i> count of each string in its length
+ * byte rather than the byte count. Readers always consume a multibyte group
+ * that starts within the length in full, so such strings with few multibyte
+ * characters still read back; lists loaded from such blocks are re-encoded
+ * with byte counts when saved.
  *
  * @version 0.0.0.3
  * @since 2013-11-23
@@ -25,10 +35,31 @@ import static java.util.Objects.requireNonNull;
  */
 public class MetadataList {
 
-    private final Map<String, String> tags;
+    /**
+     * Maximum encoded length of a key or value, in bytes.
+     */
+    public static final int MAX_STRING_BYTES = 255;
+
+    private static final byte[] EMPTY = new byte[0];
+
+    /**
+     * Decoded tags, or null if the raw block has not been decoded yet.
+     */
+    private volatile Map<String, String> tags;
+    /**
+     * Raw block waiting to be decoded, or null.
+     */
+    private byte[] raw;
+    private int rawCount;
+    /**
+     * Encoded form of the current tags, or null if it must be rebuilt.
+     */
+    private byte[] encoded;
+    private int encodedCount;
 
     public MetadataList() {
         tags = new HashMap<>();
+        encoded = EMPTY;
     }
 
     /**
@@ -42,6 +73,29 @@ public class MetadataList {
         putAll(tags);
     }
 
+    /**
+     * Returns the decoded tags, decoding the raw block first if needed.
+     */
+    private Map<String, String> decoded() {
+        Map<String, String> m = tags;
+        if (m == null) {
+            synchronized (this) {
+                m = tags;
+                if (m == null) {
+                    try {
+                        m = decode(raw, rawCount);
+                    } catch (UTFDataFormatException ex) {
+                        //  Validated when loaded
+                        throw new IllegalStateException(ex);
+                    }
+                    tags = m;
+                    raw = null;
+                }
+            }
+        }
+        return m;
+    }
+
     /**
      * Gets an immutable view of the metadata tags. To put values, use
      * {@link MetadataList#put(String, String)}.
@@ -49,7 +103,19 @@ public class MetadataList {
      * @return
      */
     public final Map<String, String> getTagsImmutable() {
-        return Collections.unmodifiableMap(tags);
+        return Collections.unmodifiableMap(decoded());
+    }
+
+    /**
+     * Returns the number of entries that {@link #save(DataOutput)} writes.
+     * Unlike <code>getTagsImmutable().size()</code> this does not decode a
+     * loaded block.
+     *
+     * @return
+     */
+    public int size() {
+        byte[] e = encoded;
+        return e != null ? encodedCount : decoded().size();
     }
 
     /**
@@ -77,15 +143,11 @@ public class MetadataList {
         if (value == null) {
             value = "";
         }
-        //  Truncate Strings to 255 chars if need be
-        //  TODO replace with proper UTF-8 byte counting. This WILL allow Strings more than 255 bytes long through!
-        if (key.length() > 255) {
-            key = key.substring(0, 255);
-        }
-        if (value.length() > 255) {
-            value = value.substring(0, 255);
-        }
-        return tags.put(key, value);
+        key = truncate(key);
+        value = truncate(value);
+        Map<String, String> m = decoded();
+        encoded = null;
+        return m.put(key, value);
     }
 
     /**
@@ -94,46 +156,71 @@ public class MetadataList {
      */
     public final void putAll(Map<String, String> map) {
         requireNonNull(map, "Map cannot be null.");
-        map.entrySet().parallelStream().forEach((entry) -> {
+        for (Entry<String, String> entry : map.entrySet()) {
             put(entry.getKey(), entry.getValue());
-        });
+        }
     }
 
+    /**
+     * Returns the size of the metadata block in bytes when saved.
+     *
+     * @return
+     */
     public int getSizeBytes() {
-        int count = 0;
-        if (tags.isEmpty()) {
-            return 0;
+        return encoded().length;
+    }
+
+    /**
+     * Returns the encoded block, building it if the tags changed.
+     */
+    private byte[] encoded() {
+        byte[] e = encoded;
+        if (e != null) {
+            return e;
         }
-        for (Entry<String, String> e : tags.entrySet()) {
-            try {
-                //  Dummy output
-                DataOutput dOut = new DataOutputStream(new ByteArrayOutputStream());
-                count += 1;     //  Key length
-                count += 1;     //  Value length
-                count += writeModUTF8String(dOut, e.getKey());
-                count += writeModUTF8String(dOut, e.getValue());
-            } catch (IOException ex) {
-                //  Should never happen when writing to a BAOS.
-                throw new RuntimeException("Impossible exception.", ex);
-            }
+        Map<String, String> m = decoded();
+        int length = 0;
+        for (Entry<String, String> entry : m.entrySet()) {
+            length += 2 + encodedLength(entry.getKey()) + encodedLength(entry.getValue());
         }
-        return count;
+        e = new byte[length];
+        int pos = 0;
+        for (Entry<String, String> entry : m.entrySet()) {
+            int keyPos = pos;
+            pos = encode(entry.getKey(), e, pos + 2);
+            int valuePos = pos;
+            pos = encode(entry.getValue(), e, pos);
+            e[keyPos] = (byte) (valuePos - keyPos - 2);
+            e[keyPos + 1] = (byte) (pos - valuePos);
+        }
+        encodedCount = m.size();
+        encoded = e;
+        return e;
     }
 
     /**
      * Loads the MetadataList from the DataInput, reading
      * <code>numberOfEntries</code> entries. The DataInput <b>must</b> be set to
      * the start of the metadata block.
+     * <p>
+     * The block is read in bulk and validated, but only decoded into Strings
+     * when the tags are first accessed.
      *
      * @param in
      * @param numberOfEntries
+     * @return The number of bytes read.
      * @throws IOException
      */
-    public void load(DataInput in, int numberOfEntries) throws IOException {
+    public int load(DataInput in, int numberOfEntries) throws IOException {
         Objects.requireNonNull(in, "ObjectInput cannot be null.");
-        tags.clear();
         if (numberOfEntries <= 0) {
-            return;
+            synchronized (this) {
+                tags = new HashMap<>();
+                raw = null;
+                encoded = EMPTY;
+                encodedCount = 0;
+            }
+            return 0;
         }
         /*
          FORMAT
@@ -145,13 +232,16 @@ public class MetadataList {
          n       Value string bytes
          } END REPEAT
          */
-        for (int count = 0; count < numberOfEntries; count++) {
-            int lenKey = in.readUnsignedByte();
-            int lenValue = in.readUnsignedByte();
-            String key = readModUTF8String(in, lenKey);
-            String value = readModUTF8String(in, lenValue);
-            tags.put(key, value);
+        byte[] block = readBlock(in, numberOfEntries);
+        synchronized (this) {
+            raw = block;
+            rawCount = numberOfEntries;
+            tags = null;
+            //  A block written with byte lengths can be saved as is
+            encoded = isCanonical(block, numberOfEntries) ? block : null;
+            encodedCount = numberOfEntries;
         }
+        return block.length;
     }
 
     /**
@@ -164,128 +254,266 @@ public class MetadataList {
      */
     public int save(DataOutput out) throws IOException {
         Objects.requireNonNull(out, "ObjectOutput cannot be null.");
-        /*
-         FORMAT
-         BYTES   CONTENT
-         REPEAT numberOfEntries times {
-         1       Length of key string    
-         1       Length of value string
-         n       Key string bytes
-         n       Value string bytes
-         } END REPEAT
-         */
-        int written = 0;
-        for (Entry<String, String> entry : tags.entrySet()) {
-            String key = entry.getKey();
-            String value = entry.getValue();
-            out.write(key.length());
-            out.write(value.length());
-            written += 2;
-            written += writeModUTF8String(out, key);
-            written += writeModUTF8String(out, value);
-        }
-        return written;
+        byte[] e = encoded();
+        out.write(e);
+        return e.length;
     }
 
     @Override
     public String toString() {
-        return tags.toString();
+        return decoded().toString();
     }
 
-    private static String readModUTF8String(DataInput bis, int len) throws IOException {
-        StringBuilder sb = new StringBuilder();
-        int pos = -1;
-        while (true) {
-            if (pos >= len - 1) {
-                return sb.toString();
-            }
-            final int a = bis.readUnsignedByte();
-            pos++;
-            if (a == -1) {
-                return sb.toString();
-            }
-            //  If the first byte of a group matches the bit pattern 0xxxxxxx (where x means "may be 0 or 1"), then the group consists of just that byte. The byte is zero-extended to form a character.
-            if ((a & 0b1000_0000) == 0b0000_0000) {
-                sb.append((char) a);
-                continue;
-            }
-            //  If the first byte of a group matches the bit pattern 110xxxxx, then the group consists of that byte a and a second byte b.
+    /**
+     * Skips over a metadata block of <code>numberOfEntries</code> entries,
+     * consuming exactly the bytes {@link #load(DataInput, int)} would.
+     *
+     * @param in
+     * @param numberOfEntries
+     * @return The number of bytes skipped.
+     * @throws IOException
+     */
+    public static int skip(DataInput in, int numberOfEntries) throws IOException {
+        Objects.requireNonNull(in, "DataInput cannot be null.");
+        if (numberOfEntries <= 0) {
+            return 0;
+        }
+        return readBlock(in, numberOfEntries).length;
+    }
+
+    /**
+     * Reads the raw bytes of a block. Each string is read with one bulk read,
+     * plus one more if its last character straddles its length byte.
+     */
+    private static byte[] readBlock(DataInput in, int numberOfEntries) throws IOException {
+        byte[] buf = new byte[Math.max(64, numberOfEntries * 24)];
+        int pos = 0;
+        for (int count = 0; count < numberOfEntries; count++) {
+            buf = ensureCapacity(buf, pos + 2);
+            in.readFully(buf, pos, 2);
+            int lenKey = buf[pos] & 0xFF;
+            int lenValue = buf[pos + 1] & 0xFF;
+            pos += 2;
+            buf = ensureCapacity(buf, pos + lenKey + 2);
+            pos = readString(in, buf, pos, lenKey);
+            buf = ensureCapacity(buf, pos + lenValue + 2);
+            pos = readString(in, buf, pos, lenValue);
+        }
+        return buf.length == pos ? buf : Arrays.copyOf(buf, pos);
+    }
+
+    private static byte[] ensureCapacity(byte[] buf, int capacity) {
+        return capacity <= buf.length ? buf : Arrays.copyOf(buf, Math.max(capacity, buf.length << 1));
+    }
+
+    /**
+     * Reads one string of length <code>len</code> into <code>buf</code> at
+     * <code>pos</code>, completing a multibyte group that starts within the
+     * length, and validates it.
+     *
+     * @return The position after the string.
+     */
+    private static int readString(DataInput in, byte[] buf, int pos, int len) throws IOException {
+        in.readFully(buf, pos, len);
+        int end = stringEnd(buf, pos, len);
+        if (end > pos + len) {
+            in.readFully(buf, pos + len, end - pos - len);
+        }
+        validate(buf, pos, end);
+        return end;
+    }
+
+    /**
+     * Returns the end of a string of declared length <code>len</code>
+     * starting at <code>pos</code>. Only the lead bytes are inspected, which all
+     * lie within the declared length.
+     */
+    private static int stringEnd(byte[] buf, int pos, int len) {
+        int i = pos;
+        int limit = pos + len;
+        while (i < limit) {
+            int a = buf[i] & 0xFF;
             if ((a & 0b1110_0000) == 0b1100_0000) {
-                //  If there is no byte b (because byte a was the last of the bytes to be read),
-                final int b = bis.readUnsignedByte();
-                pos++;
-                //  or if byte b does not match the bit pattern 10xxxxxx, then a UTFDataFormatException is thrown.
-                if ((b & 0b1100_0000) != 0b1000_0000) {
-                    throw new UTFDataFormatException(String.format("Invalid second byte at pos %s: got binary pattern %08X. So far: \"%s\"", pos, b, sb.toString()));
-                }
-                //  Otherwise, the group is converted to the character:
-                sb.append((char) (((a & 0x1F) << 6) | (b & 0x3F)));
-                continue;
+                i += 2;
+            } else if ((a & 0b1111_0000) == 0b1110_0000) {
+                i += 3;
+            } else {
+                i++;
             }
-            //  If the first byte of a group matches the bit pattern 1110xxxx, then the group consists of that byte a and two more bytes b and c.
-            if ((a & 0b1111_0000) == 0b1110_0000) {
-                //  If there is no byte c or b (because byte a was one of the last two of the bytes to be read),
-                final int b = bis.readUnsignedByte();
-                pos++;
-                final int c = bis.readUnsignedByte();
-                pos++;
-                //  or either byte b or byte c does not match the bit pattern 10xxxxxx, then a UTFDataFormatException is thrown.
-                if ((b & 0b1100_0000) != 0b1000_0000) {
-                    throw new UTFDataFormatException("Invalid second byte at pos " + (pos - 1));
+        }
+        return i;
+    }
+
+    /**
+     * Checks that a string is valid modified UTF-8.
+     */
+    private static void validate(byte[] buf, int from, int to) throws UTFDataFormatException {
+        int i = from;
+        while (i < to) {
+            int a = buf[i] & 0xFF;
+            if (a < 0x80) {
+                i++;
+            } else if ((a & 0b1110_0000) == 0b1100_0000) {
+                if ((buf[i + 1] & 0b1100_0000) != 0b1000_0000) {
+                    throw new UTFDataFormatException("Invalid second byte at pos " + (i + 1 - from));
+                }
+                i += 2;
+            } else if ((a & 0b1111_0000) == 0b1110_0000) {
+                if ((buf[i + 1] & 0b1100_0000) != 0b1000_0000) {
+                    throw new UTFDataFormatException("Invalid second byte at pos " + (i + 1 - from));
                 }
-                if ((c & 0b1100_0000) != 0b1000_0000) {
-                    throw new UTFDataFormatException("Invalid third byte at pos " + pos);
+                if ((buf[i + 2] & 0b1100_0000) != 0b1000_0000) {
+                    throw new UTFDataFormatException("Invalid third byte at pos " + (i + 2 - from));
                 }
-                //  Otherwise, the group is converted to the character:
-                sb.append((char) (((a & 0x0F) << 12) | ((b & 0x3F) << 6) | (c & 0x3F)));
-                continue;
+                i += 3;
+            } else {
+                //  1111xxxx or 10xxxxxx
+                throw new UTFDataFormatException("Invalid byte at pos " + (i - from));
             }
-            //  If the first byte of a group matches the pattern 1111xxxx or the pattern 10xxxxxx, then a UTFDataFormatException is thrown.
-            if ((a & 0b1111_0000) == 0b1111_0000 || (a & 0b1100_0000) == 0b1000_0000) {
-                throw new UTFDataFormatException("Invalid byte at pos " + pos);
+        }
+    }
+
+    /**
+     * Checks whether every length byte in a block is the byte length of its
+     * string, as this class writes them.
+     */
+    private static boolean isCanonical(byte[] block, int numberOfEntries) {
+        int pos = 0;
+        for (int count = 0; count < numberOfEntries; count++) {
+            int lenKey = block[pos] & 0xFF;
+            int lenValue = block[pos + 1] & 0xFF;
+            pos += 2;
+            int end = stringEnd(block, pos, lenKey);
+            if (end != pos + lenKey) {
+                return false;
             }
-            //  Should have handled everything
-            assert false;
+            pos = end;
+            end = stringEnd(block, pos, lenValue);
+            if (end != pos + lenValue) {
+                return false;
+            }
+            pos = end;
+        }
+        return true;
+    }
+
+    /**
+     * Decodes a validated raw block.
+     */
+    private static Map<String, String> decode(byte[] block, int numberOfEntries) throws UTFDataFormatException {
+        Map<String, String> m = new HashMap<>(numberOfEntries * 4 / 3 + 1);
+        ByteBuffer buf = ByteBuffer.wrap(block);
+        char[] chars = new char[MAX_STRING_BYTES + 2];
+        for (int count = 0; count < numberOfEntries; count++) {
+            int lenKey = buf.get() & 0xFF;
+            int lenValue = buf.get() & 0xFF;
+            String key = decodeString(buf, lenKey, chars);
+            String value = decodeString(buf, lenValue, chars);
+            m.put(key, value);
         }
+        return m;
     }
 
-    private static int writeModUTF8String(DataOutput out, String s) throws IOException {
-        Queue<Character> chars = new LinkedList<>();
-        char[] charArray = s.toCharArray();
-        for (int c = 0; c < charArray.length; c++) {
-            chars.add(charArray[c]);
+    private static String decodeString(ByteBuffer buf, int len, char[] chars) {
+        byte[] b = buf.array();
+        int start = buf.position();
+        int end = stringEnd(b, start, len);
+        buf.position(end);
+        int i = start;
+        //  ASCII fast path
+        while (i < end && b[i] > 0) {
+            i++;
+        }
+        if (i == end) {
+            return new String(b, start, end - start, StandardCharsets.ISO_8859_1);
         }
-        int written = 0;
-        while (chars.peek() != null) {
-            char c = chars.poll();
+        int n = 0;
+        for (int j = start; j < i; j++) {
+            chars[n++] = (char) b[j];
+        }
+        while (i < end) {
+            int a = b[i] & 0xFF;
+            if (a < 0x80) {
+                chars[n++] = (char) a;
+                i++;
+            } else if ((a & 0b1110_0000) == 0b1100_0000) {
+                chars[n++] = (char) (((a & 0x1F) << 6) | (b[i + 1] & 0x3F));
+                i += 2;
+            } else {
+                chars[n++] = (char) (((a & 0x0F) << 12) | ((b[i + 1] & 0x3F) << 6) | (b[i + 2] & 0x3F));
+                i += 3;
+            }
+        }
+        return new String(chars, 0, n);
+    }
+
+    /**
+     * Returns the modified UTF-8 length of a String.
+     */
+    private static int encodedLength(String s) {
+        int length = s.length();
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c == '\u0000' || c > '\u007F') {
+                length += c > '\u07FF' ? 2 : 1;
+            }
+        }
+        return length;
+    }
+
+    /**
+     * Writes the modified UTF-8 encoding of a String into an array.
+     *
+     * @return The position after the String.
+     */
+    private static int encode(String s, byte[] out, int pos) {
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
             //  If a character c is in the range \u0001 through \u007f, it is represented by one byte:
             if (c >= '\u0001' && c <= '\u007F') {
-                out.write(c);
-                written++;
-                continue;
+                out[pos++] = (byte) c;
+            } else if (c <= '\u07FF') {
+                //  If a character c is \u0000 or is in the range \u0080 through \u07ff, then it is represented by two bytes:
+                out[pos++] = (byte) (0xc0 | (0x1f & (c >> 6)));
+                out[pos++] = (byte) (0x80 | (0x3f & c));
+            } else {
+                //  If a character c is in the range \u0800 through \uffff, then it is represented by three bytes:
+                out[pos++] = (byte) (0xe0 | (0x0f & (c >> 12)));
+                out[pos++] = (byte) (0x80 | (0x3f & (c >> 6)));
+                out[pos++] = (byte) (0x80 | (0x3f & c));
             }
-            //  If a character c is \u0000 or is in the range \u0080 through \u07ff, then it is represented by two bytes, to be written in the order shown:
-            if (c == '\u0000' || (c >= '\u0080' && c <= '\u07FF')) {
-                out.write((byte) (0xc0 | (0x1f & (c >> 6))));
-                out.write((byte) (0x80 | (0x3f & c)));
-                written += 2;
-                continue;
-            }
-            //  If a character c is in the range \u0800 through uffff, then it is represented by three bytes, to be written in the order shown:
-            if (c >= '\u0800' && c <= '\uFFFF') {
-                out.write((byte) (0xe0 | (0x0f & (c >> 12))));
-                out.write((byte) (0x80 | (0x3f & (c >> 6))));
-                out.write((byte) (0x80 | (0x3f & c)));
-                written += 3;
-                continue;
+        }
+        return pos;
+    }
+
+    /**
+     * Truncates a String so that its encoding fits in
+     * {@link #MAX_STRING_BYTES}, without splitting a surrogate pair.
+     */
+    private static String truncate(String s) {
+        if (s.length() <= MAX_STRING_BYTES / 3) {
+            return s;
+        }
+        int length = 0;
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            length += (c >= '\u0001' && c <= '\u007F') ? 1 : (c <= '\u07FF' ? 2 : 3);
+            if (length > MAX_STRING_BYTES) {
+                if (i > 0 && Character.isHighSurrogate(s.charAt(i - 1)) && Character.isLowSurrogate(c)) {
+                    i--;
+                }
+                return s.substring(0, i);
             }
-            //  Should have handled everything
-            assert false;
         }
-        return written;
+        return s;
     }
 
     public void clear() {
-        tags.clear();
+        synchronized (this) {
+            tags = new HashMap<>();
+            raw = null;
+            encoded = EMPTY;
+            encodedCount = 0;
+        }
     }
 }
@@ -0,0 +1,245 @@
+package org.phoenix.assetdatabase;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static java.util.Objects.requireNonNull;
+
+/**
+ * The result of an integrity scrub (see
+ * {@link AssetDatabase#scrub(int, long)}): how much was checked and every
+ * problem found. A report is thread-safe, and reports of several PADs can be
+ * merged into one.
+ *
+ * @author Vince
+ */
+public class ScrubReport {
+
+    public static enum Kind {
+        /**
+         * A record, table, or hole lies (partly) outside the file or inside
+         * the header.
+         */
+        OUT_OF_BOUNDS,
+        /**
+         * Two records, tables, or holes share bytes.
+         */
+        OVERLAP,
+        /**
+         * A record header or its metadata is unreadable, or does not match its
+         * index entry.
+         */
+        BAD_RECORD,
+        /**
+         * Subfile data does not decompress, or does not match its hash.
+         */
+        CORRUPT_DATA,
+        /**
+         * The file could not be read.
+         */
+        READ_ERROR
+    }
+
+    /**
+     * One problem found by a scrub.
+     */
+    public static final class Problem {
+
+        private final Path pad;
+        private final TypeGroupInstance tgi;
+        private final long offset;
+        private final Kind kind;
+        private final String message;
+
+        public Problem(Path pad, TypeGroupInstance tgi, long offset, Kind kind, String message) {
+            this.pad = pad;
+            this.tgi = tgi;
+            this.offset = offset;
+            this.kind = requireNonNull(kind, "Kind cannot be null.");
+            this.message = requireNonNull(message, "Message cannot be null.");
+        }
+
+        /**
+         * Returns the PAD the problem is in, or null if unknown.
+         *
+         * @return
+         */
+        public Path getPad() {
+            return pad;
+        }
+
+        /**
+         * Returns the TGI of the subfile the problem is in, or null if it is
+         * not in a subfile.
+         *
+         * @return
+         */
+        public TypeGroupInstance getTgi() {
+            return tgi;
+        }
+
+        /**
+         * Returns the file offset of the problem, or -1 if unknown.
+         *
+         * @return
+         */
+        public long getOffset() {
+            return offset;
+        }
+
+        public Kind getKind() {
+            return kind;
+        }
+
+        public String getMessage() {
+            return message;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder();
+            sb.append(kind);
+            if (pad != null) {
+                sb.append(' ').append(pad);
+            }
+            if (offset >= 0) {
+                sb.append(String.format(" @0x%08X", offset));
+            }
+            if (tgi != null) {
+                sb.append(' ').append(tgi);
+            }
+            return sb.append(": ").append(message).toString();
+        }
+
+    }
+
+    private final List<Problem> problems = new ArrayList<>();
+    private long pads;
+    private long subfiles;
+    private long records;
+    private long unhashed;
+    private long bytesRead;
+    private long elapsedNanos;
+
+    /**
+     * Adds a problem, such as a PAD that could not be opened.
+     *
+     * @param problem
+     */
+    public synchronized void addProblem(Problem problem) {
+        requireNonNull(problem, "Problem cannot be null.");
+        problems.add(problem);
+    }
+
+    void addProblem(Path pad, TypeGroupInstance tgi, long offset, Kind kind, String message) {
+        addProblem(new Problem(pad, tgi, offset, kind, message));
+    }
+
+    synchronized void addPad() {
+        pads++;
+    }
+
+    synchronized void addRecord(int subfiles, long bytes) {
+        this.subfiles += subfiles;
+        records++;
+        bytesRead += bytes;
+    }
+
+    synchronized void addUnhashed() {
+        unhashed++;
+    }
+
+    synchronized void setElapsedNanos(long elapsedNanos) {
+        this.elapsedNanos = elapsedNanos;
+    }
+
+    /**
+     * Adds the counts and problems of another report to this one. Elapsed
+     * times are added too, so merge reports of scrubs that ran one after
+     * another.
+     *
+     * @param other
+     */
+    public void merge(ScrubReport other) {
+        requireNonNull(other, "Report cannot be null.");
+        List<Problem> p;
+        long[] counts;
+        synchronized (other) {
+            p = new ArrayList<>(other.problems);
+            counts = new long[]{other.pads, other.subfiles, other.records, other.unhashed, other.bytesRead, other.elapsedNanos};
+        }
+        synchronized (this) {
+            problems.addAll(p);
+            pads += counts[0];
+            subfiles += counts[1];
+            records += counts[2];
+            unhashed += counts[3];
+            bytesRead += counts[4];
+            elapsedNanos += counts[5];
+        }
+    }
+
+    /**
+     * Returns true if no problem was found.
+     *
+     * @return
+     */
+    public synchronized boolean isClean() {
+        return problems.isEmpty();
+    }
+
+    public synchronized List<Problem> getProblems() {
+        return Collections.unmodifiableList(new ArrayList<>(problems));
+    }
+
+    public synchronized long getPads() {
+        return pads;
+    }
+
+    /**
+     * Returns the number of index entries whose records were read.
+     *
+     * @return
+     */
+    public synchronized long getSubfiles() {
+        return subfiles;
+    }
+
+    /**
+     * Returns the number of records read. Deduplicated subfiles share a
+     * record, which is read once.
+     *
+     * @return
+     */
+    public synchronized long getRecords() {
+        return records;
+    }
+
+    /**
+     * Returns the number of records without a hash, whose data could only be
+     * checked for decompressing.
+     *
+     * @return
+     */
+    public synchronized long getUnhashed() {
+        return unhashed;
+    }
+
+    public synchronized long getBytesRead() {
+        return bytesRead;
+    }
+
+    public synchronized long getElapsedNanos() {
+        return elapsedNanos;
+    }
+
+    @Override
+    public synchronized String toString() {
+        double seconds = elapsedNanos / 1e9;
+        return String.format("%d PAD(s), %d subfile(s) in %d record(s), %d byte(s) in %.3f s (%.1f MB/s), %d unhashed, %d problem(s)",
+                pads, subfiles, records, bytesRead, seconds, seconds > 0 ? bytesRead / seconds / 1e6 : 0.0, unhashed, problems.size());
+    }
+
+}
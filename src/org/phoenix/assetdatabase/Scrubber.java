@@ -0,0 +1,218 @@
+package org.phoenix.assetdatabase;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import org.phoenix.assetdatabase.ScrubReport.Kind;
+
+/**
+ * Shared state of one scrub, which may cover several PADs: the report, the
+ * workers that verify subfile data while the caller keeps reading, and the
+ * read rate limit. Reading is done by one thread at a time; only
+ * {@link #verify} hands work to other threads.
+ *
+ * @author Vince
+ */
+final class Scrubber implements AutoCloseable {
+
+    /**
+     * Most bytes of read records waiting to be verified, so that reading
+     * doesn't run ahead of the workers by more than this.
+     */
+    static final int MAX_IN_FLIGHT = 64 * 1024 * 1024;
+    private static final int PERMIT_SIZE = 1024;
+    private static final int PERMITS = MAX_IN_FLIGHT / PERMIT_SIZE;
+    /**
+     * Most read time that may be saved up while reading was slower than the
+     * limit.
+     */
+    private static final long MAX_BURST_NANOS = 100_000_000L;
+
+    final ScrubReport report = new ScrubReport();
+    private final ExecutorService workers;
+    private final Semaphore inFlight = new Semaphore(PERMITS);
+    private final long bytesPerSecond;
+    private final long startNanos = System.nanoTime();
+    /**
+     * Time at which the bytes read so far are paid for.
+     */
+    private long paidUntil = startNanos;
+
+    /**
+     * @param parallelism The number of threads verifying data. With 1, data
+     * is verified by the reading thread.
+     * @param maxBytesPerSecond The read rate limit, or 0 for none.
+     */
+    Scrubber(int parallelism, long maxBytesPerSecond) {
+        if (parallelism < 1) {
+            throw new IllegalArgumentException("Parallelism must be positive.");
+        }
+        if (maxBytesPerSecond < 0) {
+            throw new IllegalArgumentException("Rate limit cannot be less than zero.");
+        }
+        bytesPerSecond = maxBytesPerSecond;
+        workers = parallelism == 1 ? null : Executors.newFixedThreadPool(parallelism, (r) -> {
+            Thread t = new Thread(r, "AssetDatabase scrub");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /**
+     * Waits until reading <code>bytes</code> more keeps within the rate limit.
+     *
+     * @throws InterruptedIOException If the thread was interrupted.
+     */
+    void throttle(long bytes) throws InterruptedIOException {
+        if (bytesPerSecond == 0) {
+            return;
+        }
+        long now = System.nanoTime();
+        if (paidUntil < now - MAX_BURST_NANOS) {
+            paidUntil = now - MAX_BURST_NANOS;
+        }
+        paidUntil += bytes * 1_000_000_000L / bytesPerSecond;
+        long wait = paidUntil - now;
+        if (wait > 0) {
+            try {
+                TimeUnit.NANOSECONDS.sleep(wait);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Scrub interrupted.");
+            }
+        }
+    }
+
+    /**
+     * Checks the data of a record against its hash, on a worker if there are
+     * any. Blocks while too many bytes are waiting to be verified. The subfile
+     * is released afterwards.
+     *
+     * @param pad The PAD of the record.
+     * @param tgi A TGI of the record, for the report.
+     * @param offset The offset of the record.
+     * @param sf The record, with its data on the heap.
+     * @throws InterruptedIOException If the thread was interrupted.
+     */
+    void verify(Path pad, TypeGroupInstance tgi, long offset, Subfile sf) throws InterruptedIOException {
+        if (workers == null) {
+            verifyNow(pad, tgi, offset, sf);
+            return;
+        }
+        int permits = (int) Math.min(PERMITS, 1 + sf.getCompressedSize() / PERMIT_SIZE);
+        try {
+            inFlight.acquire(permits);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Scrub interrupted.");
+        }
+        try {
+            workers.execute(() -> {
+                try {
+                    verifyNow(pad, tgi, offset, sf);
+                } finally {
+                    inFlight.release(permits);
+                }
+            });
+        } catch (RuntimeException e) {
+            inFlight.release(permits);
+            throw e;
+        }
+    }
+
+    private void verifyNow(Path pad, TypeGroupInstance tgi, long offset, Subfile sf) {
+        try {
+            sf.getData();
+        } catch (IOException | RuntimeException e) {
+            report.addProblem(pad, tgi, offset, Kind.CORRUPT_DATA, String.valueOf(e.getMessage()));
+        } finally {
+            sf.release();
+        }
+    }
+
+    /**
+     * Reports regions that lie outside the file, and regions that overlap.
+     *
+     * @param pad The PAD.
+     * @param length The length of the file.
+     * @param regions The header, tables, holes, and records of the PAD.
+     */
+    void checkRegions(Path pad, long length, List<Region> regions) {
+        regions.sort((a, b) -> a.start != b.start ? Long.compare(a.start, b.start) : Long.compare(a.end, b.end));
+        Region furthest = null;
+        for (Region r : regions) {
+            if (r.start < 0 || r.end > length || r.end < r.start) {
+                report.addProblem(pad, r.tgi, r.start, Kind.OUT_OF_BOUNDS,
+                        String.format("%s at 0x%08X-0x%08X is outside the file of 0x%08X bytes", r.name, r.start, r.end, length));
+                continue;
+            }
+            if (r.start == r.end) {
+                continue;
+            }
+            if (furthest != null && r.start < furthest.end) {
+                report.addProblem(pad, r.tgi, r.start, Kind.OVERLAP,
+                        String.format("%s overlaps %s at 0x%08X-0x%08X", r.name, furthest.describe(), furthest.start, furthest.end));
+            }
+            if (furthest == null || r.end > furthest.end) {
+                furthest = r;
+            }
+        }
+    }
+
+    /**
+     * Waits for every verification to finish.
+     *
+     * @return The report.
+     * @throws InterruptedIOException If the thread was interrupted.
+     */
+    ScrubReport finish() throws InterruptedIOException {
+        if (workers != null) {
+            try {
+                inFlight.acquire(PERMITS);
+                inFlight.release(PERMITS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Scrub interrupted.");
+            }
+        }
+        report.setElapsedNanos(System.nanoTime() - startNanos);
+        return report;
+    }
+
+    @Override
+    public void close() {
+        if (workers != null) {
+            workers.shutdownNow();
+        }
+    }
+
+    /**
+     * A range of bytes of a PAD, from <code>start</code> (inclusive) to
+     * <code>end</code> (exclusive).
+     */
+    static final class Region {
+
+        final long start;
+        final long end;
+        final String name;
+        final TypeGroupInstance tgi;
+
+        Region(long start, long end, String name, TypeGroupInstance tgi) {
+            this.start = start;
+            this.end = end;
+            this.name = name;
+            this.tgi = tgi;
+        }
+
+        String describe() {
+            return tgi == null ? name : name + " " + tgi;
+        }
+
+    }
+
+}
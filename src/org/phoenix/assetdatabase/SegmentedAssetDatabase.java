@@ -0,0 +1,642 @@
+package org.phoenix.assetdatabase;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import static java.util.Objects.requireNonNull;
+
+/**
+ * A single logical database spread over many segment PADs, listed in a small
+ * manifest file. New data is written to the <i>active</i> (last) segment,
+ * which is saved as version 4. Once it grows past
+ * {@link #getSegmentSize()} it is sealed (see {@link AssetDatabaseImpl#seal()})
+ * and a new active segment is started, so no single file grows without bound
+ * and saves only rewrite the active segment.
+ * <p>
+ * Later segments override earlier ones. Removing a subfile held by a sealed
+ * segment writes a tombstone into the active segment. The segments share one
+ * index, merged on load and after each save as in
+ * {@link LayeredAssetDatabase}. Segments are loaded, and compacted by
+ * {@link #compact(double)}, in parallel.
+ * <p>
+ * Segmenting scales the size of a pack, not of a single subfile, which is
+ * still limited by the <code>int</code> sizes of a subfile record.
+ *
+ * <pre>
+ * MANIFEST FORMAT
+ * BYTES   CONTENT
+ * 4       Magic number ('PASM')
+ * 4       Version
+ * 4       Next segment number
+ * 4       Number of segments
+ * n       Segment file name (modified UTF-8), repeated, oldest first
+ * 2       Number of pack metadata entries
+ * n       Pack metadata
+ * </pre>
+ *
+ * @author Vince
+ */
+public class SegmentedAssetDatabase implements AssetDatabase {
+
+    public static final int MANIFEST_MAGIC_NUMBER = 0x5041534D;  //  'PASM'
+    public static final int VERSION_1 = 1;
+    /**
+     * Default size at which the active segment is sealed, in bytes.
+     */
+    public static final long DEFAULT_SEGMENT_SIZE = 1L << 30;
+
+    /**
+     * Location of the manifest. Segments are stored next to it.
+     */
+    public final Path location;
+    private final MetadataList metadata;
+    private volatile Layers segments;
+    /**
+     * Writable last segment.
+     */
+    private AssetDatabaseImpl active;
+    private int nextSegment;
+    private boolean cleared;
+    private boolean compacting;
+    private long segmentSize;
+    private int parallelism;
+    /**
+     * Held for reading while reading segment files, and for writing while
+     * segment files are replaced or deleted.
+     */
+    private final ReadWriteLock fileLock;
+
+    public SegmentedAssetDatabase(Path manifest) {
+        location = requireNonNull(manifest, "Location cannot be null.");
+        metadata = new MetadataList();
+        segments = Layers.empty();
+        segmentSize = DEFAULT_SEGMENT_SIZE;
+        parallelism = Runtime.getRuntime().availableProcessors();
+        fileLock = new ReentrantReadWriteLock();
+    }
+
+    public long getSegmentSize() {
+        return segmentSize;
+    }
+
+    /**
+     * Sets the size at which the active segment is sealed and a new one
+     * started.
+     *
+     * @param segmentSize The size, in bytes.
+     */
+    public void setSegmentSize(long segmentSize) {
+        if (segmentSize < 1) {
+            throw new IllegalArgumentException("Segment size must be at least one byte.");
+        }
+        this.segmentSize = segmentSize;
+    }
+
+    public int getParallelism() {
+        return parallelism;
+    }
+
+    /**
+     * Sets the number of segments loaded or compacted at the same time.
+     *
+     * @param parallelism
+     */
+    public void setParallelism(int parallelism) {
+        if (parallelism < 1) {
+            throw new IllegalArgumentException("Parallelism must be at least one.");
+        }
+        this.parallelism = parallelism;
+    }
+
+    /**
+     * Returns the locations of the segments, oldest first. The last one is
+     * the active segment, which may not have been written yet.
+     *
+     * @return
+     */
+    public List<Path> getSegments() {
+        List<Path> paths = new ArrayList<>();
+        for (AssetDatabaseImpl adi : segments.databases) {
+            paths.add(adi.location);
+        }
+        return Collections.unmodifiableList(paths);
+    }
+
+    private Path segmentPath(int number) {
+        return location.resolveSibling(String.format("%s.%05d", location.getFileName(), number));
+    }
+
+    private AssetDatabaseImpl newSegment() {
+        AssetDatabaseImpl adi = new AssetDatabaseImpl(segmentPath(nextSegment++));
+        adi.setVersion(AssetDatabaseImpl.VERSION_4);
+        return adi;
+    }
+
+    @Override
+    public synchronized void load() throws IOException {
+        metadata.clear();
+        cleared = false;
+        List<AssetDatabaseImpl> databases = new ArrayList<>();
+        nextSegment = 0;
+        if (Files.exists(location)) {
+            try (InputStream in = new BufferedInputStream(Files.newInputStream(location))) {
+                DataInputStream din = new DataInputStream(in);
+                int magic = din.readInt();
+                if (magic != MANIFEST_MAGIC_NUMBER) {
+                    throw new IOException(String.format("Invalid magic number for manifest: Expected 0x%08X, got 0x%08X", MANIFEST_MAGIC_NUMBER, magic));
+                }
+                int version = din.readInt();
+                if (version != VERSION_1) {
+                    throw new IOException("Cannot process manifest version " + version);
+                }
+                nextSegment = din.readInt();
+                int count = din.readInt();
+                for (int i = 0; i < count; i++) {
+                    databases.add(new AssetDatabaseImpl(location.resolveSibling(din.readUTF())));
+                }
+                metadata.load(din, din.readUnsignedShort());
+            }
+        }
+        if (databases.isEmpty()) {
+            databases.add(newSegment());
+        }
+        List<Callable<Void>> loads = new ArrayList<>();
+        for (int i = 0; i < databases.size(); i++) {
+            AssetDatabaseImpl adi = databases.get(i);
+            //  A new active segment is only written on the next save
+            if (i < databases.size() - 1 || Files.exists(adi.location)) {
+                loads.add(() -> {
+                    adi.load();
+                    return null;
+                });
+            }
+        }
+        runParallel(loads);
+        active = databases.get(databases.size() - 1);
+        active.setVersion(AssetDatabaseImpl.VERSION_4);
+        segments = Layers.merge(databases);
+    }
+
+    /**
+     * Runs tasks on up to {@link #getParallelism()} threads and waits for all
+     * of them.
+     */
+    private void runParallel(List<Callable<Void>> tasks) throws IOException {
+        if (tasks.size() <= 1 || parallelism == 1) {
+            for (Callable<Void> task : tasks) {
+                call(task);
+            }
+            return;
+        }
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(parallelism, tasks.size()), (r) -> {
+            Thread t = new Thread(r, "SegmentedAssetDatabase worker");
+            t.setDaemon(true);
+            return t;
+        });
+        try {
+            for (Future<Void> f : executor.invokeAll(tasks)) {
+                f.get();
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for segments.");
+        } catch (ExecutionException ex) {
+            rethrow(ex.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private static void call(Callable<Void> task) throws IOException {
+        try {
+            task.call();
+        } catch (Exception ex) {
+            rethrow(ex);
+        }
+    }
+
+    private static void rethrow(Throwable t) throws IOException {
+        if (t instanceof IOException) {
+            throw (IOException) t;
+        }
+        if (t instanceof RuntimeException) {
+            throw (RuntimeException) t;
+        }
+        if (t instanceof Error) {
+            throw (Error) t;
+        }
+        throw new IOException(t);
+    }
+
+    /**
+     * Saves the active segment, sealing it and starting a new one if it has
+     * reached the segment size, then the manifest. The segment is written to
+     * a new file, so reads go on meanwhile and only wait while the segment
+     * list is swapped.
+     *
+     * @throws IOException If the segment or manifest could not be written.
+     */
+    @Override
+    public synchronized void save() throws IOException {
+        checkLoaded();
+        List<AssetDatabaseImpl> databases = new ArrayList<>(segments.databases);
+        if (cleared) {
+            //  Carry the changes made since the clear over to a new segment
+            AssetDatabaseImpl fresh = newSegment();
+            Map<IndexEntry, Subfile> pending = new HashMap<>();
+            for (Entry<TypeGroupInstance, Subfile> e : active.getModifiedSubfiles().entrySet()) {
+                pending.put(new IndexEntry(e.getKey()), e.getValue());
+            }
+            fresh.putSubfiles(pending);
+            fresh.save();
+            swap(Collections.singletonList(fresh), databases);
+            cleared = false;
+        } else {
+            rewriteActive(databases, pendingSize() >= segmentSize);
+        }
+    }
+
+    /**
+     * Estimates the size of the active segment once saved.
+     */
+    private long pendingSize() throws IOException {
+        long size = Files.exists(active.location) ? Files.size(active.location) : 0L;
+        for (Subfile sf : active.getModifiedSubfiles().values()) {
+            size += Subfile.HEADER_SIZE + sf.getCompressedSize();
+        }
+        return size;
+    }
+
+    /**
+     * Seals the active segment now, whatever its size, and starts a new one.
+     *
+     * @throws IOException If the segment or manifest could not be written.
+     */
+    public synchronized void sealActiveSegment() throws IOException {
+        checkLoaded();
+        rewriteActive(new ArrayList<>(segments.databases), true);
+    }
+
+    /**
+     * Writes the active segment, with its changes, to a new file and swaps it
+     * in, followed by a new active segment if it is sealed.
+     *
+     * @param databases The current segments, the active one last.
+     */
+    private void rewriteActive(List<AssetDatabaseImpl> databases, boolean seal) throws IOException {
+        AssetDatabaseImpl written = new AssetDatabaseImpl(segmentPath(nextSegment++));
+        try {
+            active.saveCopy(written.location, seal);
+            written.load();
+        } catch (IOException | RuntimeException ex) {
+            written.close();
+            Files.deleteIfExists(written.location);
+            throw ex;
+        }
+        List<AssetDatabaseImpl> replaced = new ArrayList<>(databases);
+        replaced.set(replaced.size() - 1, written);
+        if (seal) {
+            replaced.add(newSegment());
+        }
+        swap(replaced, Collections.singletonList(active));
+    }
+
+    /**
+     * Makes the given segments current, the last of them active, and deletes
+     * the files of the obsolete ones. Reads wait only while this runs.
+     */
+    private void swap(List<AssetDatabaseImpl> databases, List<AssetDatabaseImpl> obsolete) throws IOException {
+        Layers merged = Layers.merge(databases);
+        fileLock.writeLock().lock();
+        try {
+            writeManifest(databases);
+            segments = merged;
+            active = databases.get(databases.size() - 1);
+            for (AssetDatabaseImpl adi : obsolete) {
+                adi.close();
+                Files.deleteIfExists(adi.location);
+            }
+        } finally {
+            fileLock.writeLock().unlock();
+        }
+    }
+
+    private void writeManifest(List<AssetDatabaseImpl> databases) throws IOException {
+        Path temp = location.resolveSibling(location.getFileName() + ".tmp");
+        try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(temp))) {
+            DataOutputStream dout = new DataOutputStream(out);
+            dout.writeInt(MANIFEST_MAGIC_NUMBER);
+            dout.writeInt(VERSION_1);
+            dout.writeInt(nextSegment);
+            dout.writeInt(databases.size());
+            for (AssetDatabaseImpl adi : databases) {
+                dout.writeUTF(adi.location.getFileName().toString());
+            }
+            dout.writeShort(metadata.size());
+            metadata.save(dout);
+            dout.flush();
+        }
+        try {
+            Files.move(temp, location, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException ex) {
+            Files.move(temp, location, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    /**
+     * Rewrites, in parallel, every sealed segment in which at least
+     * <code>minGarbage</code> of the entries are overridden or hidden, keeping
+     * only the subfiles it still provides and the tombstones that still hide
+     * an older segment. Compacted segments are written sealed to new files;
+     * segments with nothing left are dropped. Reads and writes may continue
+     * meanwhile, except while the segment list is swapped.
+     *
+     * @param minGarbage The fraction of dead entries, between 0 and 1, at
+     * which a segment is compacted.
+     * @return The number of segments compacted or dropped.
+     * @throws IOException If a segment could not be read or written.
+     */
+    public int compact(double minGarbage) throws IOException {
+        if (minGarbage < 0 || minGarbage > 1) {
+            throw new IllegalArgumentException("Garbage fraction must be between 0 and 1.");
+        }
+        final Layers snapshot;
+        final AssetDatabaseImpl current;
+        synchronized (this) {
+            checkLoaded();
+            if (compacting) {
+                throw new IllegalStateException("A compaction is already running.");
+            }
+            compacting = true;
+            snapshot = segments;
+            current = active;
+        }
+        try {
+            Map<AssetDatabaseImpl, List<IndexEntry>> live = snapshot.binAll();
+            //  Old segment -> compacted segment, or null to drop it
+            Map<AssetDatabaseImpl, AssetDatabaseImpl> replacements = Collections.synchronizedMap(new IdentityHashMap<>());
+            List<Callable<Void>> tasks = new ArrayList<>();
+            for (int i = 0; i < snapshot.databases.size(); i++) {
+                AssetDatabaseImpl adi = snapshot.databases.get(i);
+                if (adi == current) {
+                    continue;
+                }
+                List<IndexEntry> keep = new ArrayList<>(live.getOrDefault(adi, Collections.emptyList()));
+                List<AssetDatabaseImpl> older = snapshot.databases.subList(0, i);
+                adi.forEachEntry((ie) -> {
+                    if (ie.getCompressionType() == Subfile.COMPRESSION_TOMBSTONE && heldByAny(older, ie.getTgi())) {
+                        keep.add(ie);
+                    }
+                });
+                int total = adi.size();
+                if (total == 0 || keep.size() > total * (1.0 - minGarbage)) {
+                    continue;
+                }
+                if (keep.isEmpty()) {
+                    replacements.put(adi, null);
+                    continue;
+                }
+                Path target;
+                synchronized (this) {
+                    target = segmentPath(nextSegment++);
+                }
+                tasks.add(() -> {
+                    AssetDatabaseImpl.writeRecords(target, Collections.singletonMap(adi, keep), adi.getMetadata().getTagsImmutable(), true);
+                    AssetDatabaseImpl compacted = new AssetDatabaseImpl(target);
+                    compacted.load();
+                    replacements.put(adi, compacted);
+                    return null;
+                });
+            }
+            runParallel(tasks);
+            if (replacements.isEmpty()) {
+                return 0;
+            }
+            synchronized (this) {
+                fileLock.writeLock().lock();
+                try {
+                    //  Sealed segments only change here, so they are as compacted
+                    List<AssetDatabaseImpl> databases = new ArrayList<>();
+                    for (AssetDatabaseImpl adi : segments.databases) {
+                        if (!replacements.containsKey(adi)) {
+                            databases.add(adi);
+                        } else if (replacements.get(adi) != null) {
+                            databases.add(replacements.get(adi));
+                        }
+                    }
+                    writeManifest(databases);
+                    segments = Layers.merge(databases);
+                    for (AssetDatabaseImpl adi : replacements.keySet()) {
+                        adi.close();
+                        Files.deleteIfExists(adi.location);
+                    }
+                } finally {
+                    fileLock.writeLock().unlock();
+                }
+            }
+            return replacements.size();
+        } finally {
+            synchronized (this) {
+                compacting = false;
+            }
+        }
+    }
+
+    private static boolean heldByAny(List<AssetDatabaseImpl> databases, TypeGroupInstance tgi) {
+        for (AssetDatabaseImpl adi : databases) {
+            if (adi.getEntry(tgi) != null) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void checkLoaded() {
+        if (active == null) {
+            throw new IllegalStateException("Database must be loaded first.");
+        }
+    }
+
+    @Override
+    public boolean contains(TypeGroupInstance tgi) {
+        requireNonNull(tgi, "TGI cannot be null.");
+        return segments.table.contains(tgi);
+    }
+
+    @Override
+    public Subfile loadSubfile(TypeGroupInstance tgi) throws FileNotFoundException, IOException {
+        requireNonNull(tgi, "TGI cannot be null.");
+        return loadSubfiles(Collections.singletonList(tgi)).get(tgi);
+    }
+
+    @Override
+    public Map<TypeGroupInstance, Subfile> loadSubfiles(Collection<TypeGroupInstance> tgis) throws FileNotFoundException, IOException {
+        requireNonNull(tgis, "TGI collection cannot be null.");
+        Map<TypeGroupInstance, Subfile> result = new HashMap<>(tgis.size());
+        fileLock.readLock().lock();
+        try {
+            for (Entry<AssetDatabaseImpl, List<IndexEntry>> e : segments.bin(tgis).entrySet()) {
+                result.putAll(e.getKey().loadSubfilesAt(e.getValue()));
+            }
+        } finally {
+            fileLock.readLock().unlock();
+        }
+        return result;
+    }
+
+    @Override
+    public SubfileStat statSubfile(TypeGroupInstance tgi) throws FileNotFoundException, IOException {
+        requireNonNull(tgi, "TGI cannot be null.");
+        return statSubfiles(Collections.singletonList(tgi)).get(tgi);
+    }
+
+    @Override
+    public Map<TypeGroupInstance, SubfileStat> statSubfiles(Collection<TypeGroupInstance> tgis) throws FileNotFoundException, IOException {
+        requireNonNull(tgis, "TGI collection cannot be null.");
+        Map<TypeGroupInstance, SubfileStat> result = new HashMap<>(tgis.size());
+        fileLock.readLock().lock();
+        try {
+            for (Entry<AssetDatabaseImpl, List<IndexEntry>> e : segments.bin(tgis).entrySet()) {
+                result.putAll(e.getKey().statSubfilesAt(e.getValue()));
+            }
+        } finally {
+            fileLock.readLock().unlock();
+        }
+        return result;
+    }
+
+    /**
+     * Scrubs every segment in turn (see
+     * {@link AssetDatabaseImpl#scrub(int, long)}). Saves and compactions can
+     * go on meanwhile; segments that a compaction removes before the scrub
+     * reaches them are skipped.
+     */
+    @Override
+    public ScrubReport scrub(int parallelism, long maxBytesPerSecond) throws IOException {
+        checkLoaded();
+        try (Scrubber scrubber = new Scrubber(parallelism, maxBytesPerSecond)) {
+            segments.scrub(scrubber);
+            return scrubber.finish();
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * Each segment is read once, sequentially, oldest first. Subfiles that a
+     * later segment overrides or hides are skipped, and so are tombstones.
+     * Saves and compactions can go on meanwhile.
+     */
+    @Override
+    public AssetFlow.Publisher<ExportedSubfile> publish(long maxInFlightBytes, Executor executor) {
+        return new SubfilePublisher(() -> {
+            fileLock.readLock().lock();
+            try {
+                return segments.exportCursor();
+            } finally {
+                fileLock.readLock().unlock();
+            }
+        }, maxInFlightBytes, executor);
+    }
+
+    /**
+     * Adds a subfile to the active segment. It is visible once the database is
+     * saved.
+     */
+    @Override
+    public synchronized void putSubfile(IndexEntry ie, Subfile sf) {
+        checkLoaded();
+        active.putSubfile(ie, sf);
+    }
+
+    @Override
+    public synchronized void putSubfiles(Map<IndexEntry, Subfile> files) {
+        checkLoaded();
+        active.putSubfiles(files);
+    }
+
+    /**
+     * Removes a subfile from the active segment, writing a tombstone if a
+     * sealed segment holds it. The change is visible once the database is
+     * saved.
+     */
+    @Override
+    public synchronized void removeSubfile(TypeGroupInstance tgi) {
+        requireNonNull(tgi, "TGI cannot be null.");
+        checkLoaded();
+        List<AssetDatabaseImpl> sealed = new ArrayList<>(segments.databases);
+        sealed.remove(active);
+        if (!cleared && heldByAny(sealed, tgi)) {
+            active.putSubfile(new IndexEntry(tgi), Subfile.tombstone());
+        } else {
+            active.removeSubfile(tgi);
+        }
+    }
+
+    /**
+     * Returns the shared index: for each visible TGI, the entry of the segment
+     * that holds it. Built on first use after each load or save.
+     *
+     * @return
+     */
+    @Override
+    public Index getIndex() {
+        return segments.getIndex();
+    }
+
+    /**
+     * Returns the pack metadata, which is stored in the manifest.
+     *
+     * @return
+     */
+    @Override
+    public MetadataList getMetadata() {
+        return metadata;
+    }
+
+    /**
+     * Clears the database. On the next save every segment is deleted and
+     * replaced by a new active segment holding the changes made since.
+     */
+    @Override
+    public synchronized void clear() {
+        checkLoaded();
+        active.clear();
+        cleared = true;
+    }
+
+    @Override
+    public synchronized void close() {
+        for (AssetDatabaseImpl adi : segments.databases) {
+            adi.close();
+        }
+    }
+
+}
@@ -1,24 +1,82 @@
 package org.phoenix.assetdatabase;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.Arrays;
 import java.util.Optional;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
 
 import static java.security.MessageDigest.getInstance;
 import static java.util.Objects.requireNonNull;
 
 /**
+ * A subfile record: its data, hash, and metadata.
+ * <p>
+ * A subfile loaded with a {@link BufferPool} keeps its data in a pooled
+ * direct buffer, read with {@link #getDataBuffer()}. Subfiles are reference
+ * counted: each holder other than the first calls {@link #retain()}, and
+ * every holder calls {@link #release()} (or {@link #close()}) when done, after
+ * which the last release returns the buffer to its pool. A subfile that is
+ * never released is simply garbage collected.
  *
  * @version 0.0.0.3
  * @since 2013-11-23
  * @author Vince
  */
-public class Subfile {
+public class Subfile implements AutoCloseable {
 
+    /**
+     * @deprecated Shared by every thread, so not safe to use concurrently. Use
+     * {@link HashAlgorithm#MD5}, which keeps a digest per thread.
+     */
+    @Deprecated
     public static final MessageDigest md5;
+    /**
+     * <code>HEADER_SIZE = 28</code><br/>
+     * The size of the fixed subfile record header, in bytes.
+     */
+    public static final int HEADER_SIZE = 2 + 4 + 4 + 16 + 2;
+    /**
+     * Compression type of a tombstone, a record without data that marks its
+     * TGI as removed from the layers below it (see
+     * {@link LayeredAssetDatabase}).
+     */
+    public static final int COMPRESSION_TOMBSTONE = 0xFFFF;
+    /**
+     * Codec: data stored as is.
+     */
+    public static final int COMPRESSION_NONE = 0;
+    /**
+     * Codec: raw Deflate.
+     */
+    public static final int COMPRESSION_DEFLATE = 1;
+    /**
+     * Codec: raw Deflate against a preset {@link CompressionDictionary}, whose
+     * id is in bits 8 to 11 of the compression type.
+     */
+    public static final int COMPRESSION_DEFLATE_DICTIONARY = 2;
+    /**
+     * Bits of the compression type that hold the codec.
+     */
+    public static final int CODEC_MASK = 0xFF;
+    /**
+     * Bits of the compression type that hold the {@link HashAlgorithm} id.
+     */
+    public static final int HASH_ALGORITHM_MASK = 0xF000;
+    public static final int HASH_ALGORITHM_SHIFT = 12;
+
+    private static final ThreadLocal<Deflater> DEFLATER = ThreadLocal.withInitial(() -> new Deflater(Deflater.DEFAULT_COMPRESSION, true));
+    private static final ThreadLocal<Inflater> INFLATER = ThreadLocal.withInitial(() -> new Inflater(true));
 
     static {
         try {
@@ -29,10 +87,14 @@ public class Subfile {
     }
 
     /**
-     * The type of compression used.
+     * The type of compression used. Bits 0 to 7 hold the codec:
      * <ul>
      * <li> 0 - No compression.</li>
+     * <li> 1 - Deflate.</li>
+     * <li> 2 - Deflate with the dictionary whose id is in bits 8 to 11.</li>
      * </ul>
+     * Bits 12 to 15 hold the id of the {@link HashAlgorithm}. 0xFFFF marks a
+     * tombstone.
      */
     private int compressionType;
     /**
@@ -44,7 +106,7 @@ public class Subfile {
      */
     private int decompressedSize;
     /**
-     * The MD5 hash of the decompressed file data.
+     * The hash of the decompressed file data, all zeroes if there is none.
      */
     private byte[] md5Hash;
     /**
@@ -59,6 +121,18 @@ public class Subfile {
      * Data in memory
      */
     private Optional<byte[]> dataInMemory;
+    /**
+     * Data from disk in a pooled buffer, from position 0 to the limit, or
+     * null.
+     */
+    private ByteBuffer pooledData;
+    private BufferPool pool;
+    private boolean pooledDataVerified;
+    private final AtomicInteger references = new AtomicInteger(1);
+    /**
+     * Dictionary for {@link #COMPRESSION_DEFLATE_DICTIONARY}, or null.
+     */
+    private CompressionDictionary dictionary;
 
     /**
      * Creates a new Subfile with an empty metadata list, no compression, and no data on disk or in memory.
@@ -78,6 +152,92 @@ public class Subfile {
         compressionType = compressionID;
     }
 
+    /**
+     * Creates a new subfile with an empty metadata list and no data on disk or
+     * in memory, which will be compressed against a dictionary. The dictionary
+     * must be stored in every PAD the subfile is put into (see
+     * {@link AssetDatabaseImpl#putDictionary(CompressionDictionary)}).
+     * @param dictionary 
+     */
+    public Subfile(CompressionDictionary dictionary) {
+        this(requireNonNull(dictionary, "Dictionary cannot be null.").getCompressionType());
+        this.dictionary = dictionary;
+    }
+
+    /**
+     * Returns the codec of a compression type, such as
+     * {@link #COMPRESSION_DEFLATE}.
+     * @param compressionType
+     * @return 
+     */
+    public static int codecOf(int compressionType) {
+        return compressionType & CODEC_MASK;
+    }
+
+    /**
+     * Returns the dictionary id of a compression type that uses
+     * {@link #COMPRESSION_DEFLATE_DICTIONARY}.
+     * @param compressionType
+     * @return 
+     */
+    public static int dictionaryIdOf(int compressionType) {
+        return (compressionType >>> 8) & 0xF;
+    }
+
+    /**
+     * Returns the hash algorithm of a compression type.
+     * @param compressionType
+     * @return The algorithm, or null for a tombstone or an unknown algorithm.
+     */
+    public static HashAlgorithm hashAlgorithmOf(int compressionType) {
+        if (compressionType == COMPRESSION_TOMBSTONE) {
+            return null;
+        }
+        return HashAlgorithm.byId((compressionType & HASH_ALGORITHM_MASK) >>> HASH_ALGORITHM_SHIFT);
+    }
+
+    /**
+     * Returns whether the compression type needs a dictionary to decode.
+     * @param compressionType
+     * @return 
+     */
+    public static boolean usesDictionary(int compressionType) {
+        return compressionType != COMPRESSION_TOMBSTONE && codecOf(compressionType) == COMPRESSION_DEFLATE_DICTIONARY;
+    }
+
+    /**
+     * Sets the dictionary to decode with, once loaded.
+     */
+    void setDictionary(CompressionDictionary dictionary) {
+        this.dictionary = dictionary;
+    }
+
+    /**
+     * Returns the dictionary the subfile is compressed against, or null.
+     */
+    CompressionDictionary getDictionary() {
+        return dictionary;
+    }
+
+    /**
+     * Creates a tombstone record.
+     * @return 
+     */
+    public static Subfile tombstone() {
+        Subfile sf = new Subfile(COMPRESSION_TOMBSTONE);
+        sf.md5Hash = new byte[16];
+        sf.dataOnDisk = Optional.of(new byte[0]);
+        return sf;
+    }
+
+    /**
+     * Returns whether this record is a tombstone rather than a file.
+     * @return 
+     */
+    public boolean isTombstone() {
+        return compressionType == COMPRESSION_TOMBSTONE;
+    }
+
     /**
      * Returns the compression type ID that was used to compress this file.
      * @return 
@@ -86,6 +246,34 @@ public class Subfile {
         return compressionType;
     }
 
+    /**
+     * Returns the algorithm of the hash of this subfile.
+     * @return The algorithm, or null for a tombstone or an unknown algorithm.
+     */
+    public HashAlgorithm getHashAlgorithm() {
+        return hashAlgorithmOf(compressionType);
+    }
+
+    /**
+     * Sets the algorithm to hash the data with, {@link HashAlgorithm#MD5} by
+     * default. If the subfile already has a hash, its data is checked against
+     * it and hashed again.
+     * @param algorithm
+     * @throws IOException If the data could not be read or is corrupt.
+     */
+    public void setHashAlgorithm(HashAlgorithm algorithm) throws IOException {
+        requireNonNull(algorithm, "HashAlgorithm cannot be null.");
+        if (isTombstone()) {
+            throw new IllegalStateException("A tombstone has no hash.");
+        }
+        boolean hashed = md5Hash != null && !isEmptyArray(md5Hash) && !isMarkedArray(md5Hash);
+        byte[] data = hashed ? getData() : null;
+        compressionType = (compressionType & ~HASH_ALGORITHM_MASK) | (algorithm.getId() << HASH_ALGORITHM_SHIFT);
+        if (hashed) {
+            md5Hash = algorithm.hash(data);
+        }
+    }
+
     /**
      * Returns the size of the file on disk (compressed).
      * @return 
@@ -112,32 +300,75 @@ public class Subfile {
 
     public byte[] getData() throws IOException {
         if (!dataOnDisk.isPresent()) {
-              throw new DataNotPresentException("File data must be loaded first!");
+            ByteBuffer pooled = pooledData;
+            if (pooled == null) {
+                throw new DataNotPresentException("File data must be loaded first!");
+            }
+            byte[] raw = new byte[pooled.limit()];
+            pooled.duplicate().get(raw);
+            dataOnDisk = Optional.of(raw);
         }
         //  Decompress and process
         if (!dataInMemory.isPresent()) {
             decompressAndSet();
-            //  MD5 check
             if (!isEmptyArray(md5Hash) && !isMarkedArray(md5Hash)) {
-                byte[] digest = calculateMD5(dataInMemory.get());
-                if (!Arrays.equals(md5Hash, digest)) {
-                    throw new DataCorruptedException("MD5 hashes do not match. File possibly corrupt?");
-                }
+                checkHash(hashAlgorithm().hash(dataInMemory.get()));
             }
         }
         return dataInMemory.get();
     }
 
     /**
-     * Sets this subfile's raw (decompressed) data, optionally calculates the MD5 hash, and compresses the data.
+     * Returns the (decompressed) data as a read-only buffer. For uncompressed
+     * subfiles loaded with a {@link BufferPool} this is a view of the pooled
+     * buffer, valid until the subfile is released, and nothing is copied.
+     * Otherwise it wraps {@link #getData()}.
+     * @return 
+     * @throws IOException If the data is corrupt.
+     */
+    public ByteBuffer getDataBuffer() throws IOException {
+        ByteBuffer pooled = pooledData;
+        if (pooled == null || codecOf(compressionType) != COMPRESSION_NONE || isTombstone()) {
+            return ByteBuffer.wrap(getData()).asReadOnlyBuffer();
+        }
+        if (!pooledDataVerified) {
+            if (!isEmptyArray(md5Hash) && !isMarkedArray(md5Hash)) {
+                checkHash(hashAlgorithm().hash(pooled.duplicate()));
+            }
+            pooledDataVerified = true;
+        }
+        return pooled.asReadOnlyBuffer();
+    }
+
+    private HashAlgorithm hashAlgorithm() throws IOException {
+        HashAlgorithm algorithm = getHashAlgorithm();
+        if (algorithm == null) {
+            throw new IOException(String.format("Unsupported hash algorithm in compression type 0x%04X", compressionType));
+        }
+        return algorithm;
+    }
+
+    private void checkHash(byte[] digest) {
+        if (!Arrays.equals(md5Hash, digest)) {
+            throw new DataCorruptedException(getHashAlgorithm() + " hashes do not match. File possibly corrupt?");
+        }
+    }
+
+    /**
+     * Sets this subfile's raw (decompressed) data, optionally calculates the hash (see {@link #setHashAlgorithm(HashAlgorithm)}), and compresses the data.
      * @param newData
      * @param calculateMD5 
      */
     public void setData(byte[] newData, boolean calculateMD5) {
+        discardPooledData();
         this.dataInMemory = Optional.of(newData);
-        //  Calculate MD5
+        //  Calculate the hash
         if (calculateMD5) {
-            md5Hash = calculateMD5(dataInMemory.get());
+            HashAlgorithm algorithm = getHashAlgorithm();
+            if (algorithm == null) {
+                throw new IllegalStateException(String.format("Unsupported hash algorithm in compression type 0x%04X", compressionType));
+            }
+            md5Hash = algorithm.hash(dataInMemory.get());
         } else {
             md5Hash = new byte[16];
             Arrays.fill(md5Hash, (byte)0);
@@ -146,31 +377,128 @@ public class Subfile {
         compressAndSet();
     }
 
-    private void decompressAndSet() {
+    private void decompressAndSet() throws IOException {
         if (!dataOnDisk.isPresent()) {
             throw new IllegalStateException("RawData must first been read before decompressing!");
         }
-        if (compressionType == 0) {
+        if (codecOf(compressionType) == COMPRESSION_NONE || isTombstone()) {
             dataInMemory = Optional.of(new byte[dataOnDisk.get().length]);
             System.arraycopy(dataOnDisk.get(), 0, dataInMemory.get(), 0, dataOnDisk.get().length);
             return;
         }
-        //  Do decompressing
-        //  TODO Impl
+        switch (codecOf(compressionType)) {
+            case COMPRESSION_DEFLATE:
+                dataInMemory = Optional.of(inflate(dataOnDisk.get(), decompressedSize, null));
+                break;
+            case COMPRESSION_DEFLATE_DICTIONARY:
+                if (dictionary == null || dictionary.getId() != dictionaryIdOf(compressionType)) {
+                    throw new DataNotPresentException("Dictionary " + dictionaryIdOf(compressionType) + " is not available.");
+                }
+                dataInMemory = Optional.of(inflate(dataOnDisk.get(), decompressedSize, dictionary.bytes()));
+                break;
+            default:
+                throw new IOException(String.format("Unsupported compression type 0x%04X", compressionType));
+        }
     }
 
     private void compressAndSet() {
         if (!dataInMemory.isPresent()) {
             throw new IllegalStateException("Data must first been set before compressing!");
         }
-        if (compressionType == 0) {
-            dataOnDisk = Optional.of(new byte[dataInMemory.get().length]);
-            System.arraycopy(dataInMemory.get(), 0, dataOnDisk.get(), 0, dataInMemory.get().length);
-            compressedSize = dataOnDisk.get().length;
-            decompressedSize = dataInMemory.get().length;
-            return;
+        byte[] data = dataInMemory.get();
+        decompressedSize = data.length;
+        switch (codecOf(compressionType)) {
+            case COMPRESSION_NONE:
+                dataOnDisk = Optional.of(Arrays.copyOf(data, data.length));
+                break;
+            case COMPRESSION_DEFLATE:
+                dataOnDisk = Optional.of(deflate(data, null));
+                break;
+            case COMPRESSION_DEFLATE_DICTIONARY:
+                if (dictionary == null) {
+                    throw new IllegalStateException("A dictionary is needed to compress with type " + compressionType);
+                }
+                dataOnDisk = Optional.of(deflate(data, dictionary.bytes()));
+                break;
+            default:
+                throw new UnsupportedOperationException(String.format("Unsupported compression type 0x%04X", compressionType));
         }
-        //  TODO Impl
+        compressedSize = dataOnDisk.get().length;
+    }
+
+    static byte[] deflate(byte[] data, byte[] dictionary) {
+        Deflater deflater = DEFLATER.get();
+        deflater.reset();
+        if (dictionary != null && dictionary.length > 0) {
+            deflater.setDictionary(dictionary);
+        }
+        deflater.setInput(data);
+        deflater.finish();
+        byte[] out = new byte[data.length + (data.length >>> 6) + 16];
+        int n = 0;
+        while (!deflater.finished()) {
+            if (n == out.length) {
+                out = Arrays.copyOf(out, out.length * 2);
+            }
+            n += deflater.deflate(out, n, out.length - n);
+        }
+        return Arrays.copyOf(out, n);
+    }
+
+    private static byte[] inflate(byte[] data, int size, byte[] dictionary) throws IOException {
+        Inflater inflater = INFLATER.get();
+        inflater.reset();
+        try {
+            if (dictionary != null && dictionary.length > 0) {
+                inflater.setDictionary(dictionary);
+            }
+            inflater.setInput(data);
+            byte[] out = new byte[size];
+            int n = 0;
+            while (n < size) {
+                int r = inflater.inflate(out, n, size - n);
+                if (r == 0 && (inflater.finished() || inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+                n += r;
+            }
+            if (n != size) {
+                throw new DataCorruptedException("Decompressed " + n + " bytes, expected " + size + ". File possibly corrupt?");
+            }
+            return out;
+        } catch (DataFormatException ex) {
+            throw new DataCorruptedException("Invalid compressed data: " + ex.getMessage());
+        }
+    }
+
+    /**
+     * Returns a copy of this subfile with its data compressed with another
+     * codec. The hash and metadata are kept.
+     * @param compressionType A codec that needs no dictionary.
+     * @return 
+     * @throws IOException If the data could not be decompressed.
+     */
+    Subfile recompress(int compressionType) throws IOException {
+        return recompress(compressionType, null);
+    }
+
+    /**
+     * Returns a copy of this subfile with its data compressed with another
+     * codec. The hash and metadata are kept.
+     * @param compressionType The new compression type.
+     * @param dictionary The dictionary, if the compression type uses one.
+     * @return 
+     * @throws IOException If the data could not be decompressed.
+     */
+    Subfile recompress(int compressionType, CompressionDictionary dictionary) throws IOException {
+        //  The hash is kept, and so is its algorithm
+        Subfile sf = new Subfile((compressionType & ~HASH_ALGORITHM_MASK) | (this.compressionType & HASH_ALGORITHM_MASK));
+        sf.dictionary = dictionary;
+        sf.dataInMemory = Optional.of(getData());
+        sf.md5Hash = md5Hash == null ? new byte[16] : md5Hash.clone();
+        sf.metadata = metadata;
+        sf.compressAndSet();
+        return sf;
     }
     
     /**
@@ -180,6 +508,18 @@ public class Subfile {
      */
     public void load(RandomAccessFile in) throws IOException {
         requireNonNull(in, "RandomAccessFile cannot be null.");
+        load((DataInput) in);
+    }
+
+    /**
+     * Loads this subfile from a DataInput positioned at the start of a subfile
+     * record, such as a journal entry.
+     * @param in
+     * @throws IOException 
+     */
+    public void load(DataInput in) throws IOException {
+        requireNonNull(in, "DataInput cannot be null.");
+        discardPooledData();
         md5Hash = new byte[16];
         dataInMemory = Optional.empty();
         compressionType = in.readUnsignedShort();
@@ -193,6 +533,113 @@ public class Subfile {
         metadata.load(in, numMetadata);
     }
 
+    /**
+     * Loads this subfile from a database, reading the data into a buffer from
+     * the pool rather than onto the heap. The file pointer should be set
+     * beforehand. The buffer goes back to the pool on the last
+     * {@link #release()}.
+     * @param in
+     * @param pool
+     * @throws IOException 
+     */
+    public void load(RandomAccessFile in, BufferPool pool) throws IOException {
+        requireNonNull(in, "RandomAccessFile cannot be null.");
+        requireNonNull(pool, "BufferPool cannot be null.");
+        discardPooledData();
+        md5Hash = new byte[16];
+        dataInMemory = Optional.empty();
+        dataOnDisk = Optional.empty();
+        compressionType = in.readUnsignedShort();
+        compressedSize = in.readInt();
+        decompressedSize = in.readInt();
+        in.readFully(md5Hash);
+        int numMetadata = in.readUnsignedShort();
+        if (compressedSize < 0) {
+            throw new IOException("Invalid subfile size " + compressedSize);
+        }
+        ByteBuffer buffer = pool.acquire(compressedSize);
+        try {
+            FileChannel channel = in.getChannel();
+            long pos = in.getFilePointer();
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer, pos + buffer.position()) < 0) {
+                    throw new EOFException();
+                }
+            }
+            in.seek(pos + compressedSize);
+            metadata = new MetadataList();
+            metadata.load(in, numMetadata);
+        } catch (IOException | RuntimeException e) {
+            pool.release(buffer);
+            throw e;
+        }
+        buffer.flip();
+        pooledData = buffer;
+        this.pool = pool;
+        pooledDataVerified = false;
+    }
+
+    private void discardPooledData() {
+        ByteBuffer buffer = pooledData;
+        if (buffer != null) {
+            pooledData = null;
+            pool.release(buffer);
+            pool = null;
+        }
+    }
+
+    /**
+     * Adds a holder of this subfile, who must call {@link #release()} when
+     * done with it.
+     * @return This subfile.
+     * @throws IllegalStateException If the subfile has already been released
+     * by every holder.
+     */
+    public Subfile retain() {
+        int refs;
+        do {
+            refs = references.get();
+            if (refs <= 0) {
+                throw new IllegalStateException("Subfile already released.");
+            }
+        } while (!references.compareAndSet(refs, refs + 1));
+        return this;
+    }
+
+    /**
+     * Releases one holder of this subfile. When the last holder releases it,
+     * pooled data goes back to its pool and can no longer be read (data on the
+     * heap stays readable).
+     * @throws IllegalStateException If the subfile has already been released
+     * by every holder.
+     */
+    public void release() {
+        int refs = references.decrementAndGet();
+        if (refs < 0) {
+            references.incrementAndGet();
+            throw new IllegalStateException("Subfile already released.");
+        }
+        if (refs == 0) {
+            discardPooledData();
+        }
+    }
+
+    /**
+     * Same as {@link #release()}.
+     */
+    @Override
+    public void close() {
+        release();
+    }
+
+    /**
+     * Returns whether the data is held in a pooled buffer.
+     * @return 
+     */
+    public boolean isPooled() {
+        return pooledData != null;
+    }
+
     /**
      * Saves this subfile to the RandomAccessFile. The file pointer should be set beforehand.
      * @param out
@@ -201,24 +648,72 @@ public class Subfile {
      */
     public SaveInformation save(RandomAccessFile out) throws IOException {
         requireNonNull(out, "RandomAccessFile cannot be null.");
+        long ptr = out.getFilePointer();
+        save((DataOutput) out);
+        return new SaveInformation(ptr, compressedSize);
+    }
+
+    /**
+     * Writes this subfile record to a DataOutput, such as a journal entry.
+     * @param out
+     * @return The number of bytes written.
+     * @throws IOException 
+     */
+    public int save(DataOutput out) throws IOException {
+        requireNonNull(out, "DataOutput cannot be null.");
         if(md5Hash == null) {
             md5Hash = new byte[16];
             Arrays.fill(md5Hash, (byte)0);
         }
-        long ptr = out.getFilePointer();
         out.writeShort(compressionType);
         out.writeInt(compressedSize);
         out.writeInt(decompressedSize);
         out.write(md5Hash);
-        out.writeShort(metadata.getTagsImmutable().size());
-        out.write(dataOnDisk.get());
-        metadata.save(out);
-        return new SaveInformation(ptr, compressedSize);
+        out.writeShort(metadata.size());
+        if (dataOnDisk.isPresent()) {
+            out.write(dataOnDisk.get());
+        } else if (pooledData != null) {
+            writeBuffer(out, pooledData.duplicate());
+        } else {
+            throw new DataNotPresentException("File data must be loaded first!");
+        }
+        return HEADER_SIZE + compressedSize + metadata.save(out);
     }
 
-    public byte[] getMd5Hash() {
+    private static void writeBuffer(DataOutput out, ByteBuffer data) throws IOException {
+        if (out instanceof RandomAccessFile) {
+            //  The channel shares the file pointer
+            FileChannel channel = ((RandomAccessFile) out).getChannel();
+            while (data.hasRemaining()) {
+                channel.write(data);
+            }
+            return;
+        }
+        byte[] chunk = new byte[Math.min(data.remaining(), 8192)];
+        while (data.hasRemaining()) {
+            int n = Math.min(chunk.length, data.remaining());
+            data.get(chunk, 0, n);
+            out.write(chunk, 0, n);
+        }
+    }
+
+    /**
+     * Returns the hash of the data (see {@link #getHashAlgorithm()}). All
+     * zeroes if the subfile has none.
+     * @return 
+     */
+    public byte[] getHash() {
         return md5Hash;
     }
+
+    /**
+     * @deprecated The hash may not be MD5, see {@link #getHash()}.
+     * @return 
+     */
+    @Deprecated
+    public byte[] getMd5Hash() {
+        return getHash();
+    }
     
     
     /**
@@ -227,8 +722,16 @@ public class Subfile {
      * @return 
      */
     public static byte[] calculateMD5(byte[] data) {
-        md5.reset();
-        return md5.digest(data);
+        return HashAlgorithm.MD5.hash(data);
+    }
+
+    /**
+     * Calculates the MD5 hash of the remaining bytes of a buffer.
+     * @param data
+     * @return 
+     */
+    public static byte[] calculateMD5(ByteBuffer data) {
+        return HashAlgorithm.MD5.hash(data);
     }
 
     /**
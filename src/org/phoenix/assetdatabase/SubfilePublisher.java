@@ -0,0 +1,291 @@
+package org.phoenix.assetdatabase;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static java.util.Objects.requireNonNull;
+
+/**
+ * Publishes every subfile of a database, in file order, to each subscriber.
+ * Each subscription reads on its own thread, and only reads ahead while the
+ * subscriber has asked for more and fewer than the in-flight limit of bytes
+ * are unreleased, so a slow subscriber holds back the reading rather than
+ * filling the heap.
+ *
+ * @author Vince
+ */
+final class SubfilePublisher implements AssetFlow.Publisher<ExportedSubfile> {
+
+    /**
+     * One record read from a PAD, shared by one or more index entries.
+     */
+    static final class Record {
+
+        final List<IndexEntry> entries;
+        final Subfile subfile;
+        final long length;
+
+        Record(List<IndexEntry> entries, Subfile subfile, long length) {
+            this.entries = entries;
+            this.subfile = subfile;
+            this.length = length;
+        }
+
+    }
+
+    /**
+     * Reads the records of a database in file order.
+     */
+    static interface Cursor extends Closeable {
+
+        /**
+         * Reads the next record.
+         *
+         * @return The record, or null after the last.
+         * @throws IOException
+         */
+        Record next() throws IOException;
+    }
+
+    /**
+     * Opens a cursor over the database as it is when called.
+     */
+    @FunctionalInterface
+    static interface Source {
+
+        Cursor open() throws IOException;
+    }
+
+    private final Source source;
+    private final long maxInFlightBytes;
+    private final Executor executor;
+
+    /**
+     * @param source The database to read.
+     * @param maxInFlightBytes Most bytes of records read but not released.
+     * @param executor Runs the reading of each subscription, or null for a new
+     * thread each.
+     */
+    SubfilePublisher(Source source, long maxInFlightBytes, Executor executor) {
+        if (maxInFlightBytes < 1) {
+            throw new IllegalArgumentException("In-flight limit must be positive.");
+        }
+        this.source = requireNonNull(source, "Source cannot be null.");
+        this.maxInFlightBytes = maxInFlightBytes;
+        this.executor = executor;
+    }
+
+    /**
+     * Returns a cursor that loads the subfiles of any database one by one, in
+     * the order of their file offsets.
+     *
+     * @param db
+     * @return
+     */
+    static Cursor loading(AssetDatabase db) {
+        List<IndexEntry> entries = new ArrayList<>(db.getIndex().getEntries().size());
+        for (IndexEntry ie : db.getIndex().getEntries()) {
+            entries.add(ie.clone());
+        }
+        entries.sort((e, f) -> Long.compare(e.getFileOffset(), f.getFileOffset()));
+        return new Cursor() {
+            private int next;
+
+            @Override
+            public Record next() throws IOException {
+                if (next == entries.size()) {
+                    return null;
+                }
+                IndexEntry ie = entries.get(next++);
+                Subfile sf = db.loadSubfile(ie.getTgi());
+                return new Record(Collections.singletonList(ie), sf,
+                        Subfile.HEADER_SIZE + sf.getCompressedSize() + sf.getMetadata().getSizeBytes());
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+    }
+
+    @Override
+    public void subscribe(AssetFlow.Subscriber<? super ExportedSubfile> subscriber) {
+        requireNonNull(subscriber, "Subscriber cannot be null.");
+        Subscription s = new Subscription(subscriber);
+        try {
+            subscriber.onSubscribe(s);
+        } catch (RuntimeException e) {
+            return;
+        }
+        try {
+            if (executor != null) {
+                executor.execute(s);
+            } else {
+                Thread t = new Thread(s, "AssetDatabase export");
+                t.setDaemon(true);
+                t.start();
+            }
+        } catch (RuntimeException e) {
+            s.fail(e);
+        }
+    }
+
+    private final class Subscription implements AssetFlow.Subscription, Runnable {
+
+        private final AssetFlow.Subscriber<? super ExportedSubfile> subscriber;
+        /**
+         * Items read but not yet emitted.
+         */
+        private final ArrayDeque<ExportedSubfile> pending = new ArrayDeque<>();
+        private long demand;
+        private long inFlight;
+        private boolean cancelled;
+        private Throwable error;
+
+        Subscription(AssetFlow.Subscriber<? super ExportedSubfile> subscriber) {
+            this.subscriber = subscriber;
+        }
+
+        @Override
+        public synchronized void request(long n) {
+            if (n <= 0) {
+                if (error == null) {
+                    error = new IllegalArgumentException("Request must be positive: " + n);
+                }
+            } else {
+                demand = demand + n < 0 ? Long.MAX_VALUE : demand + n;
+            }
+            notifyAll();
+        }
+
+        @Override
+        public synchronized void cancel() {
+            cancelled = true;
+            notifyAll();
+        }
+
+        private synchronized void released(long bytes) {
+            inFlight -= bytes;
+            notifyAll();
+        }
+
+        /**
+         * Ends the subscription with an error, if it has not ended.
+         */
+        private void fail(Throwable t) {
+            synchronized (this) {
+                if (cancelled) {
+                    return;
+                }
+                cancelled = true;
+            }
+            try {
+                subscriber.onError(t);
+            } catch (RuntimeException e) {
+                //  Nothing left to tell
+            }
+        }
+
+        @Override
+        public void run() {
+            Cursor cursor = null;
+            try {
+                cursor = source.open();
+                while (true) {
+                    ExportedSubfile item = null;
+                    synchronized (this) {
+                        //  Read on only while asked to, and within the limit (one record may exceed it)
+                        while (!cancelled && error == null
+                                && (demand == 0 || (pending.isEmpty() && inFlight > 0 && inFlight >= maxInFlightBytes))) {
+                            wait();
+                        }
+                        if (cancelled || error != null) {
+                            break;
+                        }
+                        if (!pending.isEmpty()) {
+                            item = pending.poll();
+                            demand--;
+                        }
+                    }
+                    if (item == null) {
+                        Record record = cursor.next();
+                        if (record == null) {
+                            synchronized (this) {
+                                if (cancelled) {
+                                    break;
+                                }
+                                cancelled = true;
+                            }
+                            subscriber.onComplete();
+                            break;
+                        }
+                        add(record);
+                    } else {
+                        subscriber.onNext(item);
+                    }
+                }
+                Throwable t;
+                synchronized (this) {
+                    t = error;
+                }
+                if (t != null) {
+                    fail(t);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                fail(new InterruptedIOException("Export interrupted."));
+            } catch (IOException | RuntimeException e) {
+                fail(e);
+            } finally {
+                discardPending();
+                if (cursor != null) {
+                    try {
+                        cursor.close();
+                    } catch (IOException e) {
+                        //  Everything was read
+                    }
+                }
+            }
+        }
+
+        /**
+         * Queues the items of a record, which count against the limit until
+         * the last of them is released.
+         */
+        private void add(Record record) {
+            AtomicInteger holders = new AtomicInteger(record.entries.size());
+            Runnable onRelease = () -> {
+                if (holders.decrementAndGet() == 0) {
+                    released(record.length);
+                }
+            };
+            List<ExportedSubfile> items = new ArrayList<>(record.entries.size());
+            for (int i = 0; i < record.entries.size(); i++) {
+                Subfile sf = i == 0 ? record.subfile : record.subfile.retain();
+                items.add(new ExportedSubfile(record.entries.get(i), sf, onRelease));
+            }
+            synchronized (this) {
+                inFlight += record.length;
+                pending.addAll(items);
+            }
+        }
+
+        private void discardPending() {
+            List<ExportedSubfile> items;
+            synchronized (this) {
+                items = new ArrayList<>(pending);
+                pending.clear();
+            }
+            items.forEach(ExportedSubfile::release);
+        }
+
+    }
+
+}
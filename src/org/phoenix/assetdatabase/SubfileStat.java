@@ -0,0 +1,142 @@
+package org.phoenix.assetdatabase;
+
+import static java.util.Objects.requireNonNull;
+
+/**
+ * Describes a subfile record without its data: its location, sizes, hash,
+ * compression type, and metadata. Obtained from
+ * {@link AssetDatabase#statSubfile(TypeGroupInstance)}, which reads only the
+ * record header and metadata.
+ *
+ * @author Vince
+ */
+public class SubfileStat {
+
+    private final TypeGroupInstance tgi;
+    private final long fileOffset;
+    private final long recordSize;
+    private final int compressionType;
+    private final long compressedSize;
+    private final long decompressedSize;
+    private final byte[] md5Hash;
+    private final MetadataList metadata;
+
+    public SubfileStat(TypeGroupInstance tgi, long fileOffset, long recordSize, int compressionType,
+            long compressedSize, long decompressedSize, byte[] md5Hash, MetadataList metadata) {
+        this.tgi = requireNonNull(tgi, "TGI cannot be null.");
+        this.fileOffset = fileOffset;
+        this.recordSize = recordSize;
+        this.compressionType = compressionType;
+        this.compressedSize = compressedSize;
+        this.decompressedSize = decompressedSize;
+        this.md5Hash = requireNonNull(md5Hash, "Hash cannot be null.").clone();
+        this.metadata = requireNonNull(metadata, "MetadataList cannot be null.");
+    }
+
+    /**
+     * Describes a loaded subfile.
+     *
+     * @param tgi The TGI of the subfile.
+     * @param fileOffset The offset of its record, or -1 if unknown.
+     * @param sf The subfile.
+     * @return
+     */
+    public static SubfileStat describe(TypeGroupInstance tgi, long fileOffset, Subfile sf) {
+        requireNonNull(sf, "Subfile cannot be null.");
+        byte[] hash = sf.getHash();
+        return new SubfileStat(tgi, fileOffset, Subfile.HEADER_SIZE + sf.getCompressedSize() + sf.getMetadata().getSizeBytes(),
+                sf.getCompressionType(), sf.getCompressedSize(), sf.getDecompressedSize(),
+                hash != null ? hash : new byte[HashAlgorithm.HASH_SIZE], sf.getMetadata());
+    }
+
+    public TypeGroupInstance getTgi() {
+        return tgi;
+    }
+
+    /**
+     * Returns the offset of the subfile record within its PAD.
+     *
+     * @return
+     */
+    public long getFileOffset() {
+        return fileOffset;
+    }
+
+    /**
+     * Returns the size of the whole record (header, data, and metadata) within
+     * its PAD.
+     *
+     * @return
+     */
+    public long getRecordSize() {
+        return recordSize;
+    }
+
+    /**
+     * @see Subfile#getCompressionType()
+     * @return
+     */
+    public int getCompressionType() {
+        return compressionType;
+    }
+
+    /**
+     * @see Subfile#getCompressedSize()
+     * @return
+     */
+    public long getCompressedSize() {
+        return compressedSize;
+    }
+
+    /**
+     * @see Subfile#getDecompressedSize()
+     * @return
+     */
+    public long getDecompressedSize() {
+        return decompressedSize;
+    }
+
+    /**
+     * Returns a copy of the stored hash of the subfile data.
+     *
+     * @see Subfile#getHash()
+     * @return
+     */
+    public byte[] getHash() {
+        return md5Hash.clone();
+    }
+
+    /**
+     * @see Subfile#getHashAlgorithm()
+     * @return The algorithm, or null for a tombstone or an unknown algorithm.
+     */
+    public HashAlgorithm getHashAlgorithm() {
+        return Subfile.hashAlgorithmOf(compressionType);
+    }
+
+    /**
+     * @deprecated The hash may not be MD5, see {@link #getHash()}.
+     * @return
+     */
+    @Deprecated
+    public byte[] getMd5Hash() {
+        return getHash();
+    }
+
+    /**
+     * Returns the metadata of the subfile. Changes to it are not saved.
+     *
+     * @return
+     */
+    public MetadataList getMetadata() {
+        return metadata;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s at 0x%08X: %s bytes (%s decompressed), compression %s, hash %s, metadata %s",
+                tgi, fileOffset, compressedSize, decompressedSize, compressionType,
+                Subfile.byteArrayToString(md5Hash), metadata);
+    }
+
+}
@@ -0,0 +1,238 @@
+package org.phoenix.assetdatabase;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+import static java.util.Objects.requireNonNull;
+
+/**
+ * A Bloom filter over the TGIs of a PAD. It answers "definitely not in the
+ * database" or "possibly in the database" using a few bits per TGI, which lets
+ * an asset manager avoid holding or loading every database index.
+ * <p>
+ * A filter can be stamped with the size and modification time of the PAD it
+ * was built from and saved next to it (see {@link #sidecarFor(Path)}), so that
+ * stale filters can be detected and rebuilt.
+ *
+ * @author Vince
+ */
+public class TGIBloomFilter {
+
+    public static final int MAGIC_NUMBER = 0x50414246;  //  'PABF'
+    public static final int VERSION_1 = 1;
+    /**
+     * Default number of bits per TGI, giving a false positive rate of roughly
+     * 1%.
+     */
+    public static final int DEFAULT_BITS_PER_KEY = 10;
+    /**
+     * Extension appended to a PAD's file name for its filter sidecar file.
+     */
+    public static final String SIDECAR_EXTENSION = ".bloom";
+
+    private final long[] bits;
+    private final int numHashes;
+    private long stampSize;
+    private long stampModified;
+
+    private TGIBloomFilter(long[] bits, int numHashes) {
+        this.bits = bits;
+        this.numHashes = numHashes;
+        stampSize = -1L;
+        stampModified = -1L;
+    }
+
+    /**
+     * Creates an empty filter sized for the expected number of TGIs.
+     *
+     * @param expectedEntries The number of TGIs that will be added.
+     * @param bitsPerKey The number of bits to use per TGI. More bits lower the
+     * false positive rate.
+     * @return
+     */
+    public static TGIBloomFilter create(int expectedEntries, int bitsPerKey) {
+        if (expectedEntries < 0) {
+            throw new IllegalArgumentException("Expected entries cannot be less than zero.");
+        }
+        if (bitsPerKey < 1) {
+            throw new IllegalArgumentException("Bits per key must be at least one.");
+        }
+        long numBits = Math.max(64L, (long) expectedEntries * bitsPerKey);
+        int numWords = (int) Math.min(Integer.MAX_VALUE - 8, (numBits + 63) / 64);
+        //  k = ln(2) * m / n is optimal
+        int k = Math.max(1, Math.min(16, (int) Math.round(bitsPerKey * 0.6931)));
+        return new TGIBloomFilter(new long[numWords], k);
+    }
+
+    /**
+     * Creates a filter containing every TGI of an index.
+     *
+     * @param index The index to build from.
+     * @param bitsPerKey The number of bits to use per TGI.
+     * @return
+     */
+    public static TGIBloomFilter build(Index index, int bitsPerKey) {
+        requireNonNull(index, "Index cannot be null.");
+        TGIBloomFilter filter = create(index.getEntries().size(), bitsPerKey);
+        for (IndexEntry ie : index.getEntries()) {
+            filter.add(ie.getTgi());
+        }
+        return filter;
+    }
+
+    /**
+     * Adds a TGI to the filter.
+     *
+     * @param tgi
+     */
+    public void add(TypeGroupInstance tgi) {
+        requireNonNull(tgi, "TGI cannot be null.");
+        long h1 = hash1(tgi);
+        long h2 = hash2(h1);
+        long numBits = (long) bits.length * 64;
+        for (int i = 0; i < numHashes; i++) {
+            long bit = Long.remainderUnsigned(h1 + i * h2, numBits);
+            bits[(int) (bit >>> 6)] |= 1L << bit;
+        }
+    }
+
+    /**
+     * Checks whether a TGI may be in the filter. False positives are possible,
+     * false negatives are not.
+     *
+     * @param tgi
+     * @return False if the TGI was definitely never added.
+     */
+    public boolean mightContain(TypeGroupInstance tgi) {
+        requireNonNull(tgi, "TGI cannot be null.");
+        long h1 = hash1(tgi);
+        long h2 = hash2(h1);
+        long numBits = (long) bits.length * 64;
+        for (int i = 0; i < numHashes; i++) {
+            long bit = Long.remainderUnsigned(h1 + i * h2, numBits);
+            if ((bits[(int) (bit >>> 6)] & (1L << bit)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static long hash1(TypeGroupInstance tgi) {
+        long h = tgi.instance * 0x9E3779B97F4A7C15L;
+        h ^= ((long) tgi.type << 32) | (tgi.group & 0xFFFFFFFFL);
+        h *= 0xC2B2AE3D27D4EB4FL;
+        h ^= h >>> 31;
+        h *= 0x94D049BB133111EBL;
+        return h ^ (h >>> 29);
+    }
+
+    private static long hash2(long h1) {
+        long h = h1 * 0xFF51AFD7ED558CCDL;
+        h ^= h >>> 33;
+        //  Must be odd so successive probes don't cycle early
+        return h | 1L;
+    }
+
+    /**
+     * Records the size and modification time of the PAD this filter describes.
+     *
+     * @param size The PAD size, in bytes.
+     * @param lastModified The PAD modification time, in milliseconds.
+     */
+    public void setStamp(long size, long lastModified) {
+        stampSize = size;
+        stampModified = lastModified;
+    }
+
+    /**
+     * Checks whether this filter was stamped with the given PAD size and
+     * modification time.
+     *
+     * @param size
+     * @param lastModified
+     * @return
+     */
+    public boolean matchesStamp(long size, long lastModified) {
+        return stampSize == size && stampModified == lastModified;
+    }
+
+    /**
+     * Returns the size of this filter, in bytes, when saved.
+     *
+     * @return
+     */
+    public int getSizeBytes() {
+        return 4 + 4 + 8 + 8 + 4 + 4 + bits.length * 8;
+    }
+
+    /**
+     * Writes this filter to the output.
+     *
+     * @param out
+     * @throws IOException
+     */
+    public void save(DataOutput out) throws IOException {
+        requireNonNull(out, "DataOutput cannot be null.");
+        out.writeInt(MAGIC_NUMBER);
+        out.writeInt(VERSION_1);
+        out.writeLong(stampSize);
+        out.writeLong(stampModified);
+        out.writeInt(numHashes);
+        out.writeInt(bits.length);
+        for (long word : bits) {
+            out.writeLong(word);
+        }
+    }
+
+    /**
+     * Reads a filter from the input.
+     *
+     * @param in
+     * @return
+     * @throws IOException If the filter could not be read or is not a valid
+     * filter.
+     */
+    public static TGIBloomFilter load(DataInput in) throws IOException {
+        requireNonNull(in, "DataInput cannot be null.");
+        int magic = in.readInt();
+        if (magic != MAGIC_NUMBER) {
+            throw new IOException(String.format("Invalid magic number for filter: Expected 0x%08X, got 0x%08X", MAGIC_NUMBER, magic));
+        }
+        int version = in.readInt();
+        if (version != VERSION_1) {
+            throw new IOException("Cannot process filter version " + version);
+        }
+        long size = in.readLong();
+        long modified = in.readLong();
+        int k = in.readInt();
+        int numWords = in.readInt();
+        if (k < 1 || numWords < 1) {
+            throw new IOException("Invalid filter parameters.");
+        }
+        long[] bits = new long[numWords];
+        for (int i = 0; i < numWords; i++) {
+            bits[i] = in.readLong();
+        }
+        TGIBloomFilter filter = new TGIBloomFilter(bits, k);
+        filter.setStamp(size, modified);
+        return filter;
+    }
+
+    /**
+     * Returns the location of the filter sidecar file for a PAD.
+     *
+     * @param pad The PAD location.
+     * @return
+     */
+    public static Path sidecarFor(Path pad) {
+        requireNonNull(pad, "Location cannot be null.");
+        Path name = pad.getFileName();
+        Path sidecar = Paths.get(name.toString() + SIDECAR_EXTENSION);
+        Path parent = pad.getParent();
+        return parent == null ? sidecar : parent.resolve(sidecar);
+    }
+
+}
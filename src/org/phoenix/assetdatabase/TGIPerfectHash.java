@@ -0,0 +1,310 @@
+package org.phoenix.assetdatabase;
+
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+
+import static java.util.Objects.requireNonNull;
+
+/**
+ * A minimal perfect hash function over a fixed set of TGIs, mapping each of
+ * the <i>n</i> TGIs to a distinct slot in <code>[0, n)</code>. TGIs that were
+ * not in the set map to an arbitrary slot, so callers must check the key
+ * stored at the slot.
+ * <p>
+ * The function is built by hash-and-displace: TGIs are hashed into buckets of
+ * about {@link #BUCKET_SIZE} keys, and for each bucket (largest first) a small
+ * <i>pilot</i> is searched for that sends every key in it to a free slot.
+ * Pilots are stored as 16 bit values, with the rare larger ones in a sorted
+ * overflow table, for about 3.2 bits per TGI. Lookups are one hash, one
+ * pilot read, and a remainder.
+ *
+ * <pre>
+ * FORMAT
+ * BYTES   CONTENT
+ * 4       Magic number ('PAMH')
+ * 4       Number of keys
+ * 8       Seed
+ * 4       Number of buckets
+ * 4       Number of overflow pilots
+ * 2       Pilot (0xFFFF if in the overflow table), repeated for each bucket
+ * 8       Bucket and pilot, repeated for each overflow pilot, sorted by bucket
+ * </pre>
+ *
+ * @author Vince
+ */
+public class TGIPerfectHash {
+
+    public static final int MAGIC_NUMBER = 0x50414D48;  //  'PAMH'
+    /**
+     * Average number of TGIs per bucket.
+     */
+    public static final int BUCKET_SIZE = 5;
+    private static final int HEADER_SIZE = 4 + 4 + 8 + 4 + 4;
+    private static final int OVERFLOW = 0xFFFF;
+    /**
+     * Pilots tried per bucket before starting over with another seed.
+     */
+    private static final int MAX_PILOT = 1 << 26;
+    private static final int MAX_ATTEMPTS = 16;
+
+    /**
+     * The saved form; accessed with absolute reads only so it can be shared
+     * between threads.
+     */
+    private final ByteBuffer data;
+    private final int numKeys;
+    private final long seed;
+    private final int numBuckets;
+    private final int numOverflow;
+    private final int overflowStart;
+
+    private TGIPerfectHash(ByteBuffer data) throws IOException {
+        this.data = data;
+        if (data.capacity() < HEADER_SIZE || data.getInt(0) != MAGIC_NUMBER) {
+            throw new IOException("Invalid perfect hash.");
+        }
+        numKeys = data.getInt(4);
+        seed = data.getLong(8);
+        numBuckets = data.getInt(16);
+        numOverflow = data.getInt(20);
+        if (numKeys < 0 || numBuckets < 1 || numOverflow < 0
+                || HEADER_SIZE + 2L * numBuckets + 8L * numOverflow > data.capacity()) {
+            throw new IOException("Invalid perfect hash parameters.");
+        }
+        overflowStart = HEADER_SIZE + 2 * numBuckets;
+    }
+
+    /**
+     * Reads a function from its saved form, such as a mapped region of a PAD.
+     * The buffer is used in place, not copied.
+     *
+     * @param data The saved function, from position 0.
+     * @return
+     * @throws IOException If the buffer does not hold a valid function.
+     */
+    public static TGIPerfectHash load(ByteBuffer data) throws IOException {
+        requireNonNull(data, "Buffer cannot be null.");
+        return new TGIPerfectHash(data.slice());
+    }
+
+    /**
+     * Builds a function over a set of distinct TGIs.
+     *
+     * @param tgis The TGIs. Must not contain duplicates.
+     * @return
+     */
+    public static TGIPerfectHash build(Collection<TypeGroupInstance> tgis) {
+        requireNonNull(tgis, "TGI collection cannot be null.");
+        int n = tgis.size();
+        int[] types = new int[n];
+        int[] groups = new int[n];
+        long[] instances = new long[n];
+        int i = 0;
+        for (TypeGroupInstance tgi : tgis) {
+            types[i] = tgi.type;
+            groups[i] = tgi.group;
+            instances[i] = tgi.instance;
+            i++;
+        }
+        long seed = 0x5DEECE66DL;
+        for (int attempt = 0; attempt < MAX_ATTEMPTS; attempt++) {
+            TGIPerfectHash mph = tryBuild(types, groups, instances, seed);
+            if (mph != null) {
+                return mph;
+            }
+            seed = mix(seed + 0x9E3779B97F4A7C15L);
+        }
+        throw new IllegalArgumentException("Could not build a perfect hash. Are there duplicate TGIs?");
+    }
+
+    private static TGIPerfectHash tryBuild(int[] types, int[] groups, long[] instances, long seed) {
+        final int n = types.length;
+        final int numBuckets = Math.max(1, (n + BUCKET_SIZE - 1) / BUCKET_SIZE);
+        long[] hashes = new long[n];
+        int[] bucketSizes = new int[numBuckets];
+        for (int i = 0; i < n; i++) {
+            hashes[i] = hash(types[i], groups[i], instances[i], seed);
+            bucketSizes[bucketOf(hashes[i], numBuckets)]++;
+        }
+        //  Group the keys by bucket
+        int[] bucketStarts = new int[numBuckets + 1];
+        for (int b = 0; b < numBuckets; b++) {
+            bucketStarts[b + 1] = bucketStarts[b] + bucketSizes[b];
+        }
+        long[] byBucket = new long[n];
+        int[] fill = Arrays.copyOf(bucketStarts, numBuckets);
+        for (int i = 0; i < n; i++) {
+            byBucket[fill[bucketOf(hashes[i], numBuckets)]++] = hashes[i];
+        }
+        //  Largest buckets first, while the table is still mostly empty
+        Integer[] order = new Integer[numBuckets];
+        for (int b = 0; b < numBuckets; b++) {
+            order[b] = b;
+        }
+        Arrays.sort(order, (a, b) -> Integer.compare(bucketSizes[b], bucketSizes[a]));
+
+        boolean[] taken = new boolean[n];
+        int[] pilots = new int[numBuckets];
+        int[] slots = new int[BUCKET_SIZE * 8];
+        for (int b : order) {
+            int size = bucketSizes[b];
+            if (size == 0) {
+                break;
+            }
+            if (size > slots.length) {
+                slots = new int[size];
+            }
+            int start = bucketStarts[b];
+            boolean placed = false;
+            for (int pilot = 0; pilot < MAX_PILOT && !placed; pilot++) {
+                placed = true;
+                for (int k = 0; k < size; k++) {
+                    int slot = slotOf(byBucket[start + k], pilot, n);
+                    boolean clash = taken[slot];
+                    for (int j = 0; j < k && !clash; j++) {
+                        clash = slots[j] == slot;
+                    }
+                    if (clash) {
+                        placed = false;
+                        break;
+                    }
+                    slots[k] = slot;
+                }
+                if (placed) {
+                    for (int k = 0; k < size; k++) {
+                        taken[slots[k]] = true;
+                    }
+                    pilots[b] = pilot;
+                }
+            }
+            if (!placed) {
+                return null;
+            }
+        }
+
+        List<int[]> overflow = new ArrayList<>();
+        for (int b = 0; b < numBuckets; b++) {
+            if (pilots[b] >= OVERFLOW) {
+                overflow.add(new int[]{b, pilots[b]});
+            }
+        }
+        ByteBuffer data = ByteBuffer.allocate(HEADER_SIZE + 2 * numBuckets + 8 * overflow.size());
+        data.putInt(MAGIC_NUMBER);
+        data.putInt(n);
+        data.putLong(seed);
+        data.putInt(numBuckets);
+        data.putInt(overflow.size());
+        for (int b = 0; b < numBuckets; b++) {
+            data.putShort((short) Math.min(pilots[b], OVERFLOW));
+        }
+        for (int[] e : overflow) {
+            data.putInt(e[0]);
+            data.putInt(e[1]);
+        }
+        data.flip();
+        try {
+            return new TGIPerfectHash(data);
+        } catch (IOException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    /**
+     * Returns the slot of a TGI. For TGIs outside the set the function was
+     * built from the result is some slot in range, or -1 if the set was empty.
+     *
+     * @param tgi
+     * @return
+     */
+    public int slotOf(TypeGroupInstance tgi) {
+        requireNonNull(tgi, "TGI cannot be null.");
+        if (numKeys == 0) {
+            return -1;
+        }
+        long h = hash(tgi.type, tgi.group, tgi.instance, seed);
+        int bucket = bucketOf(h, numBuckets);
+        int pilot = data.getShort(HEADER_SIZE + 2 * bucket) & 0xFFFF;
+        if (pilot == OVERFLOW) {
+            pilot = overflowPilot(bucket);
+        }
+        return slotOf(h, pilot, numKeys);
+    }
+
+    private int overflowPilot(int bucket) {
+        int lo = 0;
+        int hi = numOverflow - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            int b = data.getInt(overflowStart + 8 * mid);
+            if (b < bucket) {
+                lo = mid + 1;
+            } else if (b > bucket) {
+                hi = mid - 1;
+            } else {
+                return data.getInt(overflowStart + 8 * mid + 4);
+            }
+        }
+        return OVERFLOW;
+    }
+
+    private static long hash(int type, int group, long instance, long seed) {
+        long h = seed ^ (instance * 0x9E3779B97F4A7C15L);
+        h ^= ((long) type << 32) | (group & 0xFFFFFFFFL);
+        return mix(h);
+    }
+
+    private static long mix(long h) {
+        h ^= h >>> 33;
+        h *= 0xFF51AFD7ED558CCDL;
+        h ^= h >>> 33;
+        h *= 0xC4CEB9FE1A85EC53L;
+        return h ^ (h >>> 33);
+    }
+
+    private static int bucketOf(long h, int numBuckets) {
+        return (int) Long.remainderUnsigned(h >>> 32, numBuckets);
+    }
+
+    private static int slotOf(long h, int pilot, int n) {
+        return (int) Long.remainderUnsigned(mix(h ^ (pilot * 0xC2B2AE3D27D4EB4FL)), n);
+    }
+
+    /**
+     * Returns the number of TGIs the function was built from.
+     *
+     * @return
+     */
+    public int size() {
+        return numKeys;
+    }
+
+    /**
+     * Returns the size of this function, in bytes, when saved.
+     *
+     * @return
+     */
+    public int getSizeBytes() {
+        return overflowStart + 8 * numOverflow;
+    }
+
+    /**
+     * Writes this function to the output.
+     *
+     * @param out
+     * @throws IOException
+     */
+    public void save(DataOutput out) throws IOException {
+        requireNonNull(out, "DataOutput cannot be null.");
+        byte[] bytes = new byte[getSizeBytes()];
+        ByteBuffer dup = data.duplicate();
+        dup.position(0);
+        dup.get(bytes);
+        out.write(bytes);
+    }
+
+}
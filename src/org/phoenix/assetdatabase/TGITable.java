@@ -0,0 +1,428 @@
+package org.phoenix.assetdatabase;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.IntStream;
+
+import static java.util.Objects.requireNonNull;
+
+/**
+ * A compact open-addressing table mapping {@link TypeGroupInstance}s to the PAD
+ * that holds them. TGIs are stored unboxed as parallel
+ * <code>(int, int, long)</code> arrays, the owning PAD is stored as a small
+ * integer into a path table, and the subfile's offset and size are kept inline
+ * so that readers can skip the per-PAD index lookup.
+ * <p>
+ * Putting a TGI that already exists replaces the previous mapping, matching the
+ * "last loaded wins" rule of {@link AssetDatabase}. A sorted view of the slots
+ * is built lazily for range queries. This class is not thread-safe.
+ *
+ * @author Vince
+ */
+public class TGITable {
+
+    /**
+     * Default number of entries the table is sized for.
+     */
+    public static final int DEFAULT_CAPACITY = 1024;
+    /**
+     * Marks a slot as unused in the pad array.
+     */
+    private static final int EMPTY = -1;
+    /**
+     * Maximum fill ratio before the table is grown.
+     */
+    private static final float LOAD_FACTOR = 0.75f;
+
+    private final List<Path> paths;
+    private int[] types;
+    private int[] groups;
+    private long[] instances;
+    private int[] pads;
+    private long[] offsets;
+    private long[] sizes;
+    private int size;
+    private int threshold;
+    /**
+     * Occupied slots in TGI order, or null if the table changed since it was
+     * last built.
+     */
+    private int[] sorted;
+
+    /**
+     * Creates an empty table with the default capacity.
+     */
+    public TGITable() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Creates an empty table able to hold <code>expected</code> entries without
+     * growing.
+     *
+     * @param expected The expected number of entries.
+     */
+    public TGITable(int expected) {
+        if (expected < 0) {
+            throw new IllegalArgumentException("Expected size cannot be less than zero.");
+        }
+        paths = new ArrayList<>();
+        allocate(capacityFor(expected));
+    }
+
+    private static int capacityFor(int expected) {
+        int cap = 16;
+        while (cap * LOAD_FACTOR <= expected && cap < (1 << 30)) {
+            cap <<= 1;
+        }
+        return cap;
+    }
+
+    private void allocate(int capacity) {
+        types = new int[capacity];
+        groups = new int[capacity];
+        instances = new long[capacity];
+        pads = new int[capacity];
+        offsets = new long[capacity];
+        sizes = new long[capacity];
+        Arrays.fill(pads, EMPTY);
+        size = 0;
+        sorted = null;
+        threshold = (int) (capacity * LOAD_FACTOR);
+    }
+
+    /**
+     * Registers a PAD location and returns its id for use with
+     * {@link #put(int, int, long, int, long, long)}. Registering the same path
+     * again returns a new id; ids are never reused until {@link #clear()}.
+     *
+     * @param location The PAD location.
+     * @return The id of the PAD.
+     */
+    public int addPath(Path location) {
+        requireNonNull(location, "Location cannot be null.");
+        paths.add(location);
+        return paths.size() - 1;
+    }
+
+    /**
+     * Returns the PAD location registered with the given id.
+     *
+     * @param padId The PAD id.
+     * @return
+     */
+    public Path getPath(int padId) {
+        return paths.get(padId);
+    }
+
+    /**
+     * Returns an immutable view of the registered PAD locations, indexed by id.
+     *
+     * @return
+     */
+    public List<Path> getPaths() {
+        return Collections.unmodifiableList(paths);
+    }
+
+    /**
+     * Mixes a TGI into a well distributed 32 bit hash.
+     */
+    static int hash(int type, int group, long instance) {
+        long h = instance * 0x9E3779B97F4A7C15L;
+        h ^= ((long) type << 32) | (group & 0xFFFFFFFFL);
+        h *= 0xC2B2AE3D27D4EB4FL;
+        h ^= h >>> 29;
+        h *= 0x165667B19E3779F9L;
+        return (int) (h ^ (h >>> 32));
+    }
+
+    /**
+     * Adds or replaces the mapping for a TGI.
+     *
+     * @param type The TypeID.
+     * @param group The GroupID.
+     * @param instance The InstanceID.
+     * @param padId The id of the PAD containing the subfile.
+     * @param fileOffset The offset of the subfile within the PAD, or -1 if
+     * unknown.
+     * @param fileSize The size of the subfile within the PAD, or -1 if unknown.
+     */
+    public void put(int type, int group, long instance, int padId, long fileOffset, long fileSize) {
+        if (padId < 0 || padId >= paths.size()) {
+            throw new IllegalArgumentException("Unknown PAD id " + padId);
+        }
+        int slot = find(type, group, instance);
+        if (slot < 0) {
+            if (size >= threshold) {
+                grow();
+                slot = find(type, group, instance);
+            }
+            slot = -(slot + 1);
+            types[slot] = type;
+            groups[slot] = group;
+            instances[slot] = instance;
+            size++;
+            sorted = null;
+        }
+        pads[slot] = padId;
+        offsets[slot] = fileOffset;
+        sizes[slot] = fileSize;
+    }
+
+    /**
+     * Adds or replaces the mapping for an index entry.
+     *
+     * @param ie The index entry to add.
+     * @param padId The id of the PAD containing the subfile.
+     */
+    public void put(IndexEntry ie, int padId) {
+        TypeGroupInstance tgi = ie.getTgi();
+        put(tgi.type, tgi.group, tgi.instance, padId, ie.getFileOffset(), ie.getFileSize());
+    }
+
+    /**
+     * Returns the slot of the TGI if present, or <code>-(insertionSlot +
+     * 1)</code> if it is not.
+     */
+    private int find(int type, int group, long instance) {
+        final int mask = pads.length - 1;
+        int slot = hash(type, group, instance) & mask;
+        while (true) {
+            if (pads[slot] == EMPTY) {
+                return -(slot + 1);
+            }
+            if (instances[slot] == instance && groups[slot] == group && types[slot] == type) {
+                return slot;
+            }
+            slot = (slot + 1) & mask;
+        }
+    }
+
+    private void grow() {
+        int[] oldTypes = types;
+        int[] oldGroups = groups;
+        long[] oldInstances = instances;
+        int[] oldPads = pads;
+        long[] oldOffsets = offsets;
+        long[] oldSizes = sizes;
+        allocate(oldPads.length << 1);
+        for (int i = 0; i < oldPads.length; i++) {
+            if (oldPads[i] != EMPTY) {
+                int slot = -(find(oldTypes[i], oldGroups[i], oldInstances[i]) + 1);
+                types[slot] = oldTypes[i];
+                groups[slot] = oldGroups[i];
+                instances[slot] = oldInstances[i];
+                pads[slot] = oldPads[i];
+                offsets[slot] = oldOffsets[i];
+                sizes[slot] = oldSizes[i];
+                size++;
+            }
+        }
+    }
+
+    /**
+     * Looks up a TGI.
+     *
+     * @param tgi The TGI to look up.
+     * @return The slot holding the TGI, or -1 if the table does not contain it.
+     */
+    public int slotOf(TypeGroupInstance tgi) {
+        requireNonNull(tgi, "TGI cannot be null.");
+        int slot = find(tgi.type, tgi.group, tgi.instance);
+        return slot < 0 ? -1 : slot;
+    }
+
+    /**
+     * Checks whether or not the table contains a TGI.
+     *
+     * @param tgi The TGI to check for.
+     * @return
+     */
+    public boolean contains(TypeGroupInstance tgi) {
+        return slotOf(tgi) >= 0;
+    }
+
+    /**
+     * Returns the PAD id stored in a slot returned by
+     * {@link #slotOf(TypeGroupInstance)}.
+     *
+     * @param slot
+     * @return
+     */
+    public int getPadId(int slot) {
+        return pads[slot];
+    }
+
+    /**
+     * Returns the PAD location stored in a slot.
+     *
+     * @param slot
+     * @return
+     */
+    public Path getPadLocation(int slot) {
+        return paths.get(pads[slot]);
+    }
+
+    /**
+     * Returns the subfile offset stored in a slot, or -1 if unknown.
+     *
+     * @param slot
+     * @return
+     */
+    public long getFileOffset(int slot) {
+        return offsets[slot];
+    }
+
+    /**
+     * Returns the subfile size stored in a slot, or -1 if unknown.
+     *
+     * @param slot
+     * @return
+     */
+    public long getFileSize(int slot) {
+        return sizes[slot];
+    }
+
+    /**
+     * Creates a TGI for the key stored in a slot.
+     *
+     * @param slot
+     * @return
+     */
+    public TypeGroupInstance getTgi(int slot) {
+        return new TypeGroupInstance(types[slot], groups[slot], instances[slot]);
+    }
+
+    /**
+     * Returns the number of TGIs in this table.
+     *
+     * @return
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Returns the number of slots in this table. Valid slots are in the range
+     * <code>[0, capacity())</code>; use {@link #isOccupied(int)} to skip empty
+     * ones when iterating.
+     *
+     * @return
+     */
+    public int capacity() {
+        return pads.length;
+    }
+
+    /**
+     * Checks whether a slot holds an entry.
+     *
+     * @param slot
+     * @return
+     */
+    public boolean isOccupied(int slot) {
+        return pads[slot] != EMPTY;
+    }
+
+    /**
+     * Returns the occupied slots whose TGIs are between <code>from</code> and
+     * <code>to</code> (both inclusive), in TGI order. The first call after a
+     * modification sorts the table; afterwards each query is O(log n) and the
+     * returned stream is produced lazily without copying the result.
+     *
+     * @param from The lowest TGI to include.
+     * @param to The highest TGI to include.
+     * @return
+     */
+    public IntStream slotsInRange(TypeGroupInstance from, TypeGroupInstance to) {
+        requireNonNull(from, "From TGI cannot be null.");
+        requireNonNull(to, "To TGI cannot be null.");
+        if (from.compareTo(to) > 0) {
+            return IntStream.empty();
+        }
+        final int[] order = sortedSlots();
+        int lo = lowerBound(order, from.type, from.group, from.instance, false);
+        int hi = lowerBound(order, to.type, to.group, to.instance, true);
+        return IntStream.range(lo, hi).map((i) -> order[i]);
+    }
+
+    /**
+     * Returns the index of the first sorted slot whose TGI is greater than (or
+     * equal to, if <code>inclusive</code> is false) the given TGI.
+     */
+    private int lowerBound(int[] order, int type, int group, long instance, boolean inclusive) {
+        int lo = 0;
+        int hi = order.length;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            int c = compare(order[mid], type, group, instance);
+            if (c < 0 || (inclusive && c == 0)) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    private int compare(int slot, int type, int group, long instance) {
+        if (types[slot] != type) {
+            return Integer.compareUnsigned(types[slot], type);
+        }
+        if (groups[slot] != group) {
+            return Integer.compareUnsigned(groups[slot], group);
+        }
+        return Long.compareUnsigned(instances[slot], instance);
+    }
+
+    private int[] sortedSlots() {
+        if (sorted == null) {
+            int[] order = new int[size];
+            int n = 0;
+            for (int i = 0; i < pads.length; i++) {
+                if (pads[i] != EMPTY) {
+                    order[n++] = i;
+                }
+            }
+            mergeSort(order, new int[size], 0, size);
+            sorted = order;
+        }
+        return sorted;
+    }
+
+    /**
+     * Sorts slots by TGI without boxing them.
+     */
+    private void mergeSort(int[] a, int[] tmp, int from, int to) {
+        if (to - from < 2) {
+            return;
+        }
+        int mid = (from + to) >>> 1;
+        mergeSort(a, tmp, from, mid);
+        mergeSort(a, tmp, mid, to);
+        if (compare(a[mid - 1], types[a[mid]], groups[a[mid]], instances[a[mid]]) <= 0) {
+            return;
+        }
+        System.arraycopy(a, from, tmp, from, to - from);
+        int i = from;
+        int j = mid;
+        for (int k = from; k < to; k++) {
+            if (j >= to || (i < mid && compare(tmp[i], types[tmp[j]], groups[tmp[j]], instances[tmp[j]]) <= 0)) {
+                a[k] = tmp[i++];
+            } else {
+                a[k] = tmp[j++];
+            }
+        }
+    }
+
+    /**
+     * Removes all entries and registered paths from the table.
+     */
+    public void clear() {
+        paths.clear();
+        allocate(capacityFor(0));
+    }
+
+}
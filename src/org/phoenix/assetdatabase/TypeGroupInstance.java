@@ -86,6 +86,50 @@ public class TypeGroupInstance
         return Long.compareUnsigned(this.instance, o.instance);
     }
 
+    /**
+     * Returns the smallest TGI (in unsigned order) with the given type.
+     *
+     * @param type The TypeID.
+     * @return
+     */
+    public static TypeGroupInstance firstOf(int type) {
+        return new TypeGroupInstance(type, 0, 0L);
+    }
+
+    /**
+     * Returns the largest TGI (in unsigned order) with the given type.
+     *
+     * @param type The TypeID.
+     * @return
+     */
+    public static TypeGroupInstance lastOf(int type) {
+        return new TypeGroupInstance(type, 0xFFFFFFFF, 0xFFFFFFFF_FFFFFFFFL);
+    }
+
+    /**
+     * Returns the smallest TGI (in unsigned order) with the given type and
+     * group.
+     *
+     * @param type The TypeID.
+     * @param group The GroupID.
+     * @return
+     */
+    public static TypeGroupInstance firstOf(int type, int group) {
+        return new TypeGroupInstance(type, group, 0L);
+    }
+
+    /**
+     * Returns the largest TGI (in unsigned order) with the given type and
+     * group.
+     *
+     * @param type The TypeID.
+     * @param group The GroupID.
+     * @return
+     */
+    public static TypeGroupInstance lastOf(int type, int group) {
+        return new TypeGroupInstance(type, group, 0xFFFFFFFF_FFFFFFFFL);
+    }
+
     @Override
     public TypeGroupInstance clone() {
         return new TypeGroupInstance(type, group, instance);
@@ -0,0 +1,190 @@
+package org.phoenix.assetdatabase.instrumentation;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import org.phoenix.assetdatabase.TypeGroupInstance;
+
+import static java.util.Objects.requireNonNull;
+
+/**
+ * An {@link InstrumentationListener} that records the order in which TGIs are
+ * first read, from subfile loads of any database and from asset manager cache
+ * accesses (hits included, since a cached subfile is read from disk in the next
+ * session). The trace can be saved, and passed to
+ * {@link org.phoenix.assetdatabase.AssetDatabaseImpl#relayout(Path, Path, List)}
+ * to store subfiles that are read together next to each other.
+ *
+ * <pre>
+ * AccessTraceRecorder recorder = new AccessTraceRecorder();
+ * recorder.start();
+ * ... load a level ...
+ * recorder.stop();
+ * AssetDatabaseImpl.relayout(pad, pad, recorder.getAccessOrder());
+ * </pre>
+ *
+ * <pre>
+ * FORMAT
+ * BYTES   CONTENT
+ * 4       Magic number ('PATR')
+ * 4       Version (1)
+ * 4       Number of TGIs
+ * 16      Type, group, and instance, repeated for each TGI in access order
+ * </pre>
+ *
+ * @author Vince
+ */
+public class AccessTraceRecorder implements InstrumentationListener {
+
+    public static final int MAGIC_NUMBER = 0x50415452;  //  'PATR'
+    public static final int VERSION = 1;
+    public static final int DEFAULT_MAX_ENTRIES = 1 << 20;
+
+    /**
+     * Distinct TGIs in first-access order. Guarded by this.
+     */
+    private final LinkedHashSet<TypeGroupInstance> order = new LinkedHashSet<>();
+    private final int maxEntries;
+    private long dropped;
+
+    public AccessTraceRecorder() {
+        this(DEFAULT_MAX_ENTRIES);
+    }
+
+    /**
+     * @param maxEntries The number of distinct TGIs to record. TGIs first
+     * read after that are not recorded.
+     */
+    public AccessTraceRecorder(int maxEntries) {
+        if (maxEntries < 1) {
+            throw new IllegalArgumentException("Maximum entries must be positive.");
+        }
+        this.maxEntries = maxEntries;
+    }
+
+    /**
+     * Adds this recorder to the {@link Instrumentation} listeners.
+     */
+    public void start() {
+        Instrumentation.addListener(this);
+    }
+
+    /**
+     * Removes this recorder from the {@link Instrumentation} listeners. What
+     * was recorded is kept.
+     */
+    public void stop() {
+        Instrumentation.removeListener(this);
+    }
+
+    @Override
+    public void onSubfileLoaded(Path pad, TypeGroupInstance tgi, long offset, long bytes, long nanos) {
+        if (tgi != null) {
+            record(tgi);
+        }
+    }
+
+    @Override
+    public void onCacheAccess(TypeGroupInstance tgi, boolean hit) {
+        record(tgi);
+    }
+
+    /**
+     * Records an access, as if the TGI had been read.
+     *
+     * @param tgi
+     */
+    public synchronized void record(TypeGroupInstance tgi) {
+        requireNonNull(tgi, "TGI cannot be null.");
+        if (order.size() < maxEntries) {
+            order.add(tgi);
+        } else if (!order.contains(tgi)) {
+            dropped++;
+        }
+    }
+
+    /**
+     * Returns the distinct TGIs recorded so far, in the order they were first
+     * read.
+     *
+     * @return
+     */
+    public synchronized List<TypeGroupInstance> getAccessOrder() {
+        return new ArrayList<>(order);
+    }
+
+    /**
+     * Returns the number of distinct TGIs recorded.
+     *
+     * @return
+     */
+    public synchronized int size() {
+        return order.size();
+    }
+
+    /**
+     * Returns the number of accesses that were not recorded because the trace
+     * was full.
+     *
+     * @return
+     */
+    public synchronized long getDropped() {
+        return dropped;
+    }
+
+    public synchronized void clear() {
+        order.clear();
+        dropped = 0;
+    }
+
+    /**
+     * Writes the trace to the output.
+     *
+     * @param out
+     * @throws IOException
+     */
+    public synchronized void save(DataOutput out) throws IOException {
+        requireNonNull(out, "DataOutput cannot be null.");
+        out.writeInt(MAGIC_NUMBER);
+        out.writeInt(VERSION);
+        out.writeInt(order.size());
+        for (TypeGroupInstance tgi : order) {
+            out.writeInt(tgi.type);
+            out.writeInt(tgi.group);
+            out.writeLong(tgi.instance);
+        }
+    }
+
+    /**
+     * Reads a trace written by {@link #save(DataOutput)}, adding its TGIs
+     * after the ones already recorded.
+     *
+     * @param in
+     * @throws IOException If the input does not hold a trace.
+     */
+    public synchronized void load(DataInput in) throws IOException {
+        requireNonNull(in, "DataInput cannot be null.");
+        if (in.readInt() != MAGIC_NUMBER) {
+            throw new IOException("Invalid access trace.");
+        }
+        int version = in.readInt();
+        if (version != VERSION) {
+            throw new IOException("Unsupported access trace version " + version);
+        }
+        int count = in.readInt();
+        if (count < 0) {
+            throw new IOException("Invalid access trace size " + count);
+        }
+        for (int i = 0; i < count; i++) {
+            int type = in.readInt();
+            int group = in.readInt();
+            long instance = in.readLong();
+            record(new TypeGroupInstance(type, group, instance));
+        }
+    }
+
+}
@@ -0,0 +1,171 @@
+package org.phoenix.assetdatabase.instrumentation;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import org.phoenix.assetdatabase.TypeGroupInstance;
+
+import static java.util.Objects.requireNonNull;
+
+/**
+ * A Count-Min sketch of how often each TGI is accessed, in a fixed amount of
+ * memory. Estimates are never below the true count since the last aging, and
+ * are above it by at most a small fraction of all accesses.
+ * <p>
+ * Counts age: once the number of increments reaches the sample size, every
+ * counter is halved, so estimates follow recent popularity rather than all
+ * time totals. Updates are lock and allocation free.
+ *
+ * @author Vince
+ */
+public class FrequencySketch {
+
+    /**
+     * Number of rows, each indexed by a different hash.
+     */
+    public static final int DEPTH = 4;
+    /**
+     * Widest row, for 128 MiB of counters.
+     */
+    public static final int MAX_WIDTH = 1 << 22;
+
+    private final AtomicLongArray counters;
+    private final int mask;
+    private final long sampleSize;
+    private final AtomicLong additions = new AtomicLong();
+    private final AtomicLong agings = new AtomicLong();
+
+    /**
+     * Creates a sketch sized for a number of distinct TGIs, aging after ten
+     * increments per counter.
+     *
+     * @param expectedItems
+     */
+    public FrequencySketch(int expectedItems) {
+        this(expectedItems, 10L * tableWidth(expectedItems));
+    }
+
+    /**
+     * @param expectedItems The number of distinct TGIs expected. Rows are
+     * this wide, rounded up to a power of two and at most
+     * {@link #MAX_WIDTH}.
+     * @param sampleSize The number of increments after which every counter is
+     * halved.
+     */
+    public FrequencySketch(int expectedItems, long sampleSize) {
+        if (expectedItems < 1) {
+            throw new IllegalArgumentException("Expected items must be positive.");
+        }
+        if (sampleSize < 2) {
+            throw new IllegalArgumentException("Sample size must be at least 2.");
+        }
+        int width = tableWidth(expectedItems);
+        counters = new AtomicLongArray(DEPTH * width);
+        mask = width - 1;
+        this.sampleSize = sampleSize;
+    }
+
+    private static int tableWidth(int expectedItems) {
+        return Integer.highestOneBit(Math.max(64, Math.min(expectedItems, MAX_WIDTH)) - 1) << 1;
+    }
+
+    /**
+     * Counts one access.
+     *
+     * @param tgi
+     * @return The new estimate for the TGI.
+     */
+    public long increment(TypeGroupInstance tgi) {
+        requireNonNull(tgi, "TGI cannot be null.");
+        long h = hash(tgi);
+        int h1 = (int) h;
+        int h2 = (int) (h >>> 32) | 1;
+        long min = Long.MAX_VALUE;
+        for (int row = 0; row < DEPTH; row++) {
+            min = Math.min(min, counters.incrementAndGet(index(row, h1, h2)));
+        }
+        long n = additions.incrementAndGet();
+        if (n >= sampleSize && additions.compareAndSet(n, n >>> 1)) {
+            age();
+        }
+        return min;
+    }
+
+    /**
+     * Returns the estimated number of accesses to a TGI since the last aging,
+     * plus the halved counts from before it.
+     *
+     * @param tgi
+     * @return
+     */
+    public long estimate(TypeGroupInstance tgi) {
+        requireNonNull(tgi, "TGI cannot be null.");
+        long h = hash(tgi);
+        int h1 = (int) h;
+        int h2 = (int) (h >>> 32) | 1;
+        long min = Long.MAX_VALUE;
+        for (int row = 0; row < DEPTH; row++) {
+            min = Math.min(min, counters.get(index(row, h1, h2)));
+        }
+        return min;
+    }
+
+    private int index(int row, int h1, int h2) {
+        return row * (mask + 1) + ((h1 + row * h2) & mask);
+    }
+
+    private static long hash(TypeGroupInstance tgi) {
+        long h = tgi.instance * 0x9E3779B97F4A7C15L;
+        h ^= ((long) tgi.type << 32) | (tgi.group & 0xFFFFFFFFL);
+        h ^= h >>> 33;
+        h *= 0xFF51AFD7ED558CCDL;
+        h ^= h >>> 33;
+        h *= 0xC4CEB9FE1A85EC53L;
+        return h ^ (h >>> 33);
+    }
+
+    /**
+     * Halves every counter. Concurrent increments may be halved or not.
+     */
+    private void age() {
+        for (int i = 0; i < counters.length(); i++) {
+            long v;
+            do {
+                v = counters.get(i);
+            } while (v != 0 && !counters.compareAndSet(i, v, v >>> 1));
+        }
+        agings.incrementAndGet();
+    }
+
+    /**
+     * Returns how many times the counters have been halved.
+     *
+     * @return
+     */
+    public long getAgings() {
+        return agings.get();
+    }
+
+    public long getSampleSize() {
+        return sampleSize;
+    }
+
+    /**
+     * Returns the size of the counters, in bytes.
+     *
+     * @return
+     */
+    public long getSizeBytes() {
+        return 8L * counters.length();
+    }
+
+    /**
+     * Sets every counter to zero.
+     */
+    public void reset() {
+        for (int i = 0; i < counters.length(); i++) {
+            counters.set(i, 0L);
+        }
+        additions.set(0L);
+    }
+
+}
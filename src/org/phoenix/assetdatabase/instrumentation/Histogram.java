@@ -0,0 +1,149 @@
+package org.phoenix.assetdatabase.instrumentation;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A thread-safe log-linear histogram of non-negative values (typically
+ * nanoseconds), precise to about 6%. Recording is lock and allocation free.
+ *
+ * @author Vince
+ */
+public class Histogram {
+
+    /**
+     * log2 of the number of buckets per power of two.
+     */
+    private static final int SUB_BITS = 4;
+    private static final int SUB_BUCKETS = 1 << SUB_BITS;
+    /**
+     * Values below this are recorded exactly.
+     */
+    private static final int LINEAR = SUB_BUCKETS << 1;
+    private static final int NUM_BUCKETS = LINEAR + (63 - SUB_BITS - 1) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts;
+    private final LongAdder count;
+    private final LongAdder sum;
+    private final LongAccumulator max;
+
+    public Histogram() {
+        counts = new AtomicLongArray(NUM_BUCKETS);
+        count = new LongAdder();
+        sum = new LongAdder();
+        max = new LongAccumulator(Math::max, 0L);
+    }
+
+    private static int bucketOf(long value) {
+        if (value < LINEAR) {
+            return (int) value;
+        }
+        int exp = 63 - Long.numberOfLeadingZeros(value);
+        return LINEAR + ((exp - SUB_BITS - 1) << SUB_BITS) + (int) ((value >>> (exp - SUB_BITS)) & (SUB_BUCKETS - 1));
+    }
+
+    /**
+     * Returns the value in the middle of a bucket.
+     */
+    private static long valueOf(int bucket) {
+        if (bucket < LINEAR) {
+            return bucket;
+        }
+        int exp = SUB_BITS + 1 + (bucket - LINEAR) / SUB_BUCKETS;
+        int sub = (bucket - LINEAR) % SUB_BUCKETS;
+        long lower = (long) (SUB_BUCKETS + sub) << (exp - SUB_BITS);
+        return lower + ((1L << (exp - SUB_BITS)) >>> 1);
+    }
+
+    /**
+     * Records a value. Negative values are recorded as zero.
+     *
+     * @param value
+     */
+    public void record(long value) {
+        if (value < 0) {
+            value = 0;
+        }
+        counts.incrementAndGet(bucketOf(value));
+        count.increment();
+        sum.add(value);
+        max.accumulate(value);
+    }
+
+    /**
+     * Adds every value recorded in another histogram to this one, such as
+     * the histograms kept by several threads.
+     *
+     * @param other
+     */
+    public void add(Histogram other) {
+        for (int i = 0; i < NUM_BUCKETS; i++) {
+            long n = other.counts.get(i);
+            if (n != 0) {
+                counts.addAndGet(i, n);
+            }
+        }
+        count.add(other.count.sum());
+        sum.add(other.sum.sum());
+        max.accumulate(other.max.get());
+    }
+
+    public long getCount() {
+        return count.sum();
+    }
+
+    public long getSum() {
+        return sum.sum();
+    }
+
+    public long getMax() {
+        return max.get();
+    }
+
+    public double getMean() {
+        long n = count.sum();
+        return n == 0 ? 0 : (double) sum.sum() / n;
+    }
+
+    /**
+     * Returns the value below which the given fraction of recorded values
+     * fall. Values recorded concurrently may or may not be included.
+     *
+     * @param quantile Between 0 and 1, e.g. 0.99 for p99.
+     * @return The value, or 0 if nothing was recorded.
+     */
+    public long getValueAtQuantile(double quantile) {
+        long[] snapshot = new long[NUM_BUCKETS];
+        long total = 0;
+        for (int i = 0; i < NUM_BUCKETS; i++) {
+            snapshot[i] = counts.get(i);
+            total += snapshot[i];
+        }
+        if (total == 0) {
+            return 0;
+        }
+        long rank = Math.max(1L, (long) Math.ceil(quantile * total));
+        long seen = 0;
+        for (int i = 0; i < NUM_BUCKETS; i++) {
+            seen += snapshot[i];
+            if (seen >= rank) {
+                return Math.min(valueOf(i), getMax());
+            }
+        }
+        return getMax();
+    }
+
+    /**
+     * Discards every recorded value.
+     */
+    public void reset() {
+        for (int i = 0; i < NUM_BUCKETS; i++) {
+            counts.set(i, 0);
+        }
+        count.reset();
+        sum.reset();
+        max.reset();
+    }
+
+}
@@ -0,0 +1,305 @@
+package org.phoenix.assetdatabase.instrumentation;
+
+import java.lang.management.ManagementFactory;
+import java.nio.file.Path;
+import java.util.AbstractMap.SimpleImmutableEntry;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import org.phoenix.assetdatabase.TypeGroupInstance;
+
+/**
+ * An {@link InstrumentationListener} that tracks which TGIs are hot, for
+ * sizing caches and choosing assets to pin. Access counts are kept in a
+ * {@link FrequencySketch}, so they age and take a fixed amount of memory, and
+ * the hottest TGIs are kept as candidates for {@link #getTopK(int)}. Read
+ * rates and bytes served are kept per PAD and per subfile type.
+ * <p>
+ * An access is an asset manager cache hit or a subfile read from a PAD (a
+ * cache miss is counted by the read that follows it). Bytes served are the
+ * bytes read from PADs. Every update is lock free, except that the candidate
+ * list is trimmed under a lock once it grows to several times its capacity.
+ *
+ * <pre>
+ * HotAssetTracker hot = new HotAssetTracker(1_000_000, 100);
+ * hot.register(HotAssetTracker.DEFAULT_OBJECT_NAME);
+ * ...
+ * hot.getTopK(20);
+ * </pre>
+ *
+ * @author Vince
+ */
+public class HotAssetTracker implements InstrumentationListener, HotAssetTrackerMXBean {
+
+    public static final String DEFAULT_OBJECT_NAME = "org.phoenix.assetdatabase:type=HotAssets";
+
+    private final FrequencySketch sketch;
+    private final int capacity;
+    /**
+     * TGIs that may be among the hottest, trimmed to <code>capacity</code>
+     * once they reach four times that.
+     */
+    private final Map<TypeGroupInstance, Boolean> candidates = new ConcurrentHashMap<>();
+    /**
+     * Lowest estimate kept by the last trim, and the sketch agings when it was
+     * set. Halved for each aging since.
+     */
+    private volatile long admitThreshold;
+    private volatile long thresholdAgings;
+    private final LongAdder accesses = new LongAdder();
+    private final LongAdder bytesServed = new LongAdder();
+    private final Map<Path, LongAdder> padReads = new ConcurrentHashMap<>();
+    private final Map<Path, LongAdder> padBytes = new ConcurrentHashMap<>();
+    private final Map<Integer, LongAdder> typeAccesses = new ConcurrentHashMap<>();
+    private volatile long startNanos = System.nanoTime();
+    private ObjectName objectName;
+
+    /**
+     * @param expectedItems The number of distinct TGIs expected, which sizes
+     * the sketch.
+     * @param capacity The number of hottest TGIs to keep track of.
+     */
+    public HotAssetTracker(int expectedItems, int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Capacity must be positive.");
+        }
+        sketch = new FrequencySketch(expectedItems);
+        this.capacity = capacity;
+    }
+
+    /**
+     * Adds this tracker to the {@link Instrumentation} listeners and registers
+     * it with the platform MBean server.
+     *
+     * @param name The JMX object name, such as {@link #DEFAULT_OBJECT_NAME}.
+     * @throws JMException If the name is invalid or already registered.
+     */
+    public synchronized void register(String name) throws JMException {
+        if (objectName != null) {
+            throw new IllegalStateException("Already registered as " + objectName);
+        }
+        ObjectName on = new ObjectName(name);
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        server.registerMBean(this, on);
+        objectName = on;
+        Instrumentation.addListener(this);
+    }
+
+    /**
+     * Removes this tracker from the {@link Instrumentation} listeners and
+     * unregisters it from the platform MBean server.
+     *
+     * @throws JMException
+     */
+    public synchronized void unregister() throws JMException {
+        Instrumentation.removeListener(this);
+        if (objectName != null) {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+            objectName = null;
+        }
+    }
+
+    @Override
+    public void onSubfileLoaded(Path pad, TypeGroupInstance tgi, long offset, long bytes, long nanos) {
+        bytesServed.add(bytes);
+        counter(padReads, pad).increment();
+        counter(padBytes, pad).add(bytes);
+        if (tgi != null) {
+            access(tgi);
+        }
+    }
+
+    @Override
+    public void onCacheAccess(TypeGroupInstance tgi, boolean hit) {
+        if (hit) {
+            access(tgi);
+        }
+    }
+
+    private static <K> LongAdder counter(Map<K, LongAdder> counters, K key) {
+        LongAdder c = counters.get(key);
+        if (c == null) {
+            c = counters.computeIfAbsent(key, (k) -> new LongAdder());
+        }
+        return c;
+    }
+
+    private void access(TypeGroupInstance tgi) {
+        accesses.increment();
+        counter(typeAccesses, tgi.type).increment();
+        long estimate = sketch.increment(tgi);
+        if (estimate >= currentThreshold() && candidates.put(tgi, Boolean.TRUE) == null
+                && candidates.size() >= 4 * capacity) {
+            trim();
+        }
+    }
+
+    private long currentThreshold() {
+        long shift = sketch.getAgings() - thresholdAgings;
+        return shift >= 63 ? 0 : admitThreshold >>> shift;
+    }
+
+    /**
+     * Keeps the hottest <code>capacity</code> candidates, and only admits TGIs
+     * at least as hot as the coldest of them from then on.
+     */
+    private synchronized void trim() {
+        if (candidates.size() < 4 * capacity) {
+            return;
+        }
+        List<Entry<TypeGroupInstance, Long>> ranked = rank();
+        for (int i = capacity; i < ranked.size(); i++) {
+            candidates.remove(ranked.get(i).getKey());
+        }
+        thresholdAgings = sketch.getAgings();
+        admitThreshold = ranked.get(capacity - 1).getValue();
+    }
+
+    private List<Entry<TypeGroupInstance, Long>> rank() {
+        List<Entry<TypeGroupInstance, Long>> ranked = new ArrayList<>(candidates.size());
+        for (TypeGroupInstance tgi : candidates.keySet()) {
+            ranked.add(new SimpleImmutableEntry<>(tgi, sketch.estimate(tgi)));
+        }
+        ranked.sort((a, b) -> Long.compare(b.getValue(), a.getValue()));
+        return ranked;
+    }
+
+    /**
+     * Returns the hottest TGIs with their estimated access counts, hottest
+     * first. Counts are halved each time the sketch ages.
+     *
+     * @param k The number of TGIs to return, at most the capacity.
+     * @return
+     */
+    public Map<TypeGroupInstance, Long> getTopK(int k) {
+        if (k < 0 || k > capacity) {
+            throw new IllegalArgumentException("k must be between 0 and " + capacity);
+        }
+        List<Entry<TypeGroupInstance, Long>> ranked = rank();
+        Map<TypeGroupInstance, Long> top = new LinkedHashMap<>();
+        for (int i = 0; i < k && i < ranked.size(); i++) {
+            top.put(ranked.get(i).getKey(), ranked.get(i).getValue());
+        }
+        return top;
+    }
+
+    /**
+     * Returns the estimated recent access count of a TGI.
+     *
+     * @param tgi
+     * @return
+     */
+    public long getFrequency(TypeGroupInstance tgi) {
+        return sketch.estimate(tgi);
+    }
+
+    /**
+     * Returns the subfile reads per second of each PAD since this tracker was
+     * created or reset.
+     *
+     * @return
+     */
+    public Map<Path, Double> getPadReadRates() {
+        return rates(padReads);
+    }
+
+    /**
+     * Returns the bytes read per second from each PAD since this tracker was
+     * created or reset.
+     *
+     * @return
+     */
+    public Map<Path, Double> getPadByteRates() {
+        return rates(padBytes);
+    }
+
+    /**
+     * Returns the accesses per second of each subfile type since this tracker
+     * was created or reset.
+     *
+     * @return
+     */
+    public Map<Integer, Double> getTypeAccessRates() {
+        return rates(typeAccesses);
+    }
+
+    private <K> Map<K, Double> rates(Map<K, LongAdder> counters) {
+        double seconds = Math.max(1e-9, (System.nanoTime() - startNanos) / 1e9);
+        Map<K, Double> m = new LinkedHashMap<>();
+        for (Entry<K, LongAdder> e : counters.entrySet()) {
+            m.put(e.getKey(), e.getValue().sum() / seconds);
+        }
+        return m;
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    @Override
+    public long getAccesses() {
+        return accesses.sum();
+    }
+
+    @Override
+    public long getBytesServed() {
+        return bytesServed.sum();
+    }
+
+    @Override
+    public Map<String, Long> getHottestAssets() {
+        Map<String, Long> m = new LinkedHashMap<>();
+        for (Entry<TypeGroupInstance, Long> e : getTopK(capacity).entrySet()) {
+            m.put(e.getKey().toString(), e.getValue());
+        }
+        return m;
+    }
+
+    @Override
+    public Map<String, Double> getPadReadsPerSecond() {
+        Map<String, Double> m = new LinkedHashMap<>();
+        for (Entry<Path, Double> e : getPadReadRates().entrySet()) {
+            m.put(e.getKey().toString(), e.getValue());
+        }
+        return m;
+    }
+
+    @Override
+    public Map<String, Double> getPadBytesPerSecond() {
+        Map<String, Double> m = new LinkedHashMap<>();
+        for (Entry<Path, Double> e : getPadByteRates().entrySet()) {
+            m.put(e.getKey().toString(), e.getValue());
+        }
+        return m;
+    }
+
+    @Override
+    public Map<String, Double> getTypeAccessesPerSecond() {
+        Map<String, Double> m = new LinkedHashMap<>();
+        for (Entry<Integer, Double> e : getTypeAccessRates().entrySet()) {
+            m.put(String.format("0x%08X", e.getKey()), e.getValue());
+        }
+        return m;
+    }
+
+    @Override
+    public synchronized void reset() {
+        sketch.reset();
+        candidates.clear();
+        admitThreshold = 0;
+        accesses.reset();
+        bytesServed.reset();
+        padReads.clear();
+        padBytes.clear();
+        typeAccesses.clear();
+        startNanos = System.nanoTime();
+    }
+
+}
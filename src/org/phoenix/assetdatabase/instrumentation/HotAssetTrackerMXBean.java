@@ -0,0 +1,51 @@
+package org.phoenix.assetdatabase.instrumentation;
+
+import java.util.Map;
+
+/**
+ * Management interface of {@link HotAssetTracker}. TGIs and types are shown
+ * as hexadecimal strings.
+ *
+ * @author Vince
+ */
+public interface HotAssetTrackerMXBean {
+
+    public long getAccesses();
+
+    public long getBytesServed();
+
+    /**
+     * Returns the hottest TGIs with their estimated recent access counts,
+     * hottest first.
+     *
+     * @return
+     */
+    public Map<String, Long> getHottestAssets();
+
+    /**
+     * Returns the subfile reads per second of each PAD, by PAD location.
+     *
+     * @return
+     */
+    public Map<String, Double> getPadReadsPerSecond();
+
+    /**
+     * Returns the accesses per second of each subfile type.
+     *
+     * @return
+     */
+    public Map<String, Double> getTypeAccessesPerSecond();
+
+    /**
+     * Returns the bytes read per second from each PAD, by PAD location.
+     *
+     * @return
+     */
+    public Map<String, Double> getPadBytesPerSecond();
+
+    /**
+     * Resets every count and the sketch.
+     */
+    public void reset();
+
+}
@@ -0,0 +1,188 @@
+package org.phoenix.assetdatabase.instrumentation;
+
+import java.io.PrintStream;
+import java.nio.file.Path;
+import java.util.Arrays;
+import org.phoenix.assetdatabase.TypeGroupInstance;
+
+import static java.util.Objects.requireNonNull;
+
+/**
+ * Global registry of {@link InstrumentationListener}s, and the methods the
+ * library uses to fire events to them.
+ * <p>
+ * Listeners are kept in a copy-on-write array, so firing an event when nothing
+ * is registered costs a volatile read. Callers that would have to do extra work
+ * to produce an event (reading the clock, formatting a message) should check
+ * {@link #isEnabled()} or {@link #isTraceEnabled()} first.
+ *
+ * @author Vince
+ */
+public final class Instrumentation {
+
+    private static final InstrumentationListener[] NONE = new InstrumentationListener[0];
+
+    private static volatile InstrumentationListener[] listeners = NONE;
+    private static volatile boolean traceEnabled;
+
+    private Instrumentation() {
+    }
+
+    /**
+     * Registers a listener. Registering the same listener twice delivers every
+     * event to it twice.
+     *
+     * @param listener
+     */
+    public static synchronized void addListener(InstrumentationListener listener) {
+        requireNonNull(listener, "Listener cannot be null.");
+        InstrumentationListener[] l = Arrays.copyOf(listeners, listeners.length + 1);
+        l[l.length - 1] = listener;
+        update(l);
+    }
+
+    /**
+     * Unregisters a listener.
+     *
+     * @param listener
+     * @return Whether the listener was registered.
+     */
+    public static synchronized boolean removeListener(InstrumentationListener listener) {
+        InstrumentationListener[] l = listeners;
+        for (int i = 0; i < l.length; i++) {
+            if (l[i] == listener) {
+                InstrumentationListener[] n = new InstrumentationListener[l.length - 1];
+                System.arraycopy(l, 0, n, 0, i);
+                System.arraycopy(l, i + 1, n, i, l.length - i - 1);
+                update(n.length == 0 ? NONE : n);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static void update(InstrumentationListener[] l) {
+        boolean trace = false;
+        for (InstrumentationListener il : l) {
+            trace |= il.isTraceEnabled();
+        }
+        traceEnabled = trace;
+        listeners = l;
+    }
+
+    /**
+     * Checks whether any listener is registered.
+     *
+     * @return
+     */
+    public static boolean isEnabled() {
+        return listeners.length != 0;
+    }
+
+    /**
+     * Checks whether any registered listener wants trace messages.
+     *
+     * @return
+     */
+    public static boolean isTraceEnabled() {
+        return traceEnabled;
+    }
+
+    /**
+     * Returns the current time for timing an operation, or 0 if nobody is
+     * listening.
+     *
+     * @return
+     */
+    public static long startTimer() {
+        return listeners.length == 0 ? 0L : System.nanoTime();
+    }
+
+    /**
+     * Returns a listener that prints trace messages to a stream, as the library
+     * used to do unconditionally.
+     *
+     * @param out
+     * @return
+     */
+    public static InstrumentationListener tracer(PrintStream out) {
+        requireNonNull(out, "PrintStream cannot be null.");
+        return new InstrumentationListener() {
+            @Override
+            public boolean isTraceEnabled() {
+                return true;
+            }
+
+            @Override
+            public void onTrace(String message) {
+                out.println(message);
+            }
+        };
+    }
+
+    /**
+     * Formats a trace message and sends it to listeners that want it. Does
+     * nothing (other than the argument array allocation) when tracing is off.
+     *
+     * @param format A {@link String#format(String, Object...)} format, used as
+     * is if there are no arguments.
+     * @param args
+     */
+    public static void trace(String format, Object... args) {
+        if (!traceEnabled) {
+            return;
+        }
+        String message = args == null || args.length == 0 ? format : String.format(format, args);
+        for (InstrumentationListener l : listeners) {
+            if (l.isTraceEnabled()) {
+                l.onTrace(message);
+            }
+        }
+    }
+
+    public static void indexLoaded(Path pad, int entries, long bytes, long startNanos) {
+        InstrumentationListener[] l = listeners;
+        if (l.length == 0) {
+            return;
+        }
+        long nanos = System.nanoTime() - startNanos;
+        for (InstrumentationListener il : l) {
+            il.onIndexLoaded(pad, entries, bytes, nanos);
+        }
+    }
+
+    public static void subfileLoaded(Path pad, TypeGroupInstance tgi, long offset, long bytes, long startNanos) {
+        InstrumentationListener[] l = listeners;
+        if (l.length == 0) {
+            return;
+        }
+        long nanos = System.nanoTime() - startNanos;
+        for (InstrumentationListener il : l) {
+            il.onSubfileLoaded(pad, tgi, offset, bytes, nanos);
+        }
+    }
+
+    public static void subfileWritten(Path pad, TypeGroupInstance tgi, long offset, long bytes) {
+        for (InstrumentationListener il : listeners) {
+            il.onSubfileWritten(pad, tgi, offset, bytes);
+        }
+    }
+
+    public static void savePhase(Path pad, SavePhase phase, long bytes, long startNanos) {
+        InstrumentationListener[] l = listeners;
+        if (l.length == 0) {
+            return;
+        }
+        long nanos = System.nanoTime() - startNanos;
+        for (InstrumentationListener il : l) {
+            il.onSavePhase(pad, phase, bytes, nanos);
+        }
+    }
+
+    public static void cacheAccess(TypeGroupInstance tgi, boolean hit) {
+        for (InstrumentationListener il : listeners) {
+            il.onCacheAccess(tgi, hit);
+        }
+    }
+
+}
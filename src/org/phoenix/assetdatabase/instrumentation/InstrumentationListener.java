@@ -0,0 +1,92 @@
+package org.phoenix.assetdatabase.instrumentation;
+
+import java.nio.file.Path;
+import org.phoenix.assetdatabase.TypeGroupInstance;
+
+/**
+ * Receives instrumentation events from databases and asset managers. Register
+ * listeners with {@link Instrumentation#addListener(InstrumentationListener)}.
+ * <p>
+ * Events are delivered synchronously on the thread doing the work, possibly
+ * from several threads at once, so implementations must be thread-safe and
+ * should return quickly. Every method does nothing by default.
+ *
+ * @author Vince
+ */
+public interface InstrumentationListener {
+
+    /**
+     * Whether this listener wants {@link #onTrace(String)} messages. Trace
+     * messages are only formatted if at least one listener wants them. This is
+     * read when the listener is registered.
+     *
+     * @return
+     */
+    public default boolean isTraceEnabled() {
+        return false;
+    }
+
+    /**
+     * A human readable description of a step, such as the file position a
+     * table was written at.
+     *
+     * @param message
+     */
+    public default void onTrace(String message) {
+    }
+
+    /**
+     * A PAD header and index were read.
+     *
+     * @param pad The PAD location.
+     * @param entries The number of index entries read.
+     * @param bytes The number of bytes read.
+     * @param nanos The time taken, in nanoseconds.
+     */
+    public default void onIndexLoaded(Path pad, int entries, long bytes, long nanos) {
+    }
+
+    /**
+     * A subfile record was read.
+     *
+     * @param pad The PAD location.
+     * @param tgi The TGI of the subfile, or null if it was read by offset.
+     * @param offset The offset of the record.
+     * @param bytes The size of the record, in bytes.
+     * @param nanos The time taken, in nanoseconds.
+     */
+    public default void onSubfileLoaded(Path pad, TypeGroupInstance tgi, long offset, long bytes, long nanos) {
+    }
+
+    /**
+     * A subfile record was written (or copied) during a save.
+     *
+     * @param pad The PAD location.
+     * @param tgi The TGI of the subfile.
+     * @param offset The offset of the record in the new file.
+     * @param bytes The size of the record, in bytes.
+     */
+    public default void onSubfileWritten(Path pad, TypeGroupInstance tgi, long offset, long bytes) {
+    }
+
+    /**
+     * A phase of a save finished.
+     *
+     * @param pad The PAD location.
+     * @param phase The phase.
+     * @param bytes The number of bytes written during the phase.
+     * @param nanos The time taken, in nanoseconds.
+     */
+    public default void onSavePhase(Path pad, SavePhase phase, long bytes, long nanos) {
+    }
+
+    /**
+     * An asset manager looked up a subfile in its cache.
+     *
+     * @param tgi The TGI looked up.
+     * @param hit Whether the subfile was cached.
+     */
+    public default void onCacheAccess(TypeGroupInstance tgi, boolean hit) {
+    }
+
+}
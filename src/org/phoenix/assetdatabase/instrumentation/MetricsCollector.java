@@ -0,0 +1,237 @@
+package org.phoenix.assetdatabase.instrumentation;
+
+import java.lang.management.ManagementFactory;
+import java.nio.file.Path;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import org.phoenix.assetdatabase.TypeGroupInstance;
+
+/**
+ * An {@link InstrumentationListener} that keeps counters and latency
+ * histograms of everything it is told about, and can publish them as a JMX
+ * MXBean.
+ *
+ * <pre>
+ * MetricsCollector metrics = new MetricsCollector();
+ * metrics.register("org.phoenix.assetdatabase:type=Metrics");
+ * ...
+ * metrics.getSubfileLoadTimes().getValueAtQuantile(0.99);
+ * </pre>
+ *
+ * @author Vince
+ */
+public class MetricsCollector implements InstrumentationListener, MetricsCollectorMXBean {
+
+    public static final String DEFAULT_OBJECT_NAME = "org.phoenix.assetdatabase:type=Metrics";
+
+    private final LongAdder bytesRead = new LongAdder();
+    private final LongAdder bytesWritten = new LongAdder();
+    private final LongAdder subfilesLoaded = new LongAdder();
+    private final LongAdder subfilesWritten = new LongAdder();
+    private final LongAdder cacheHits = new LongAdder();
+    private final LongAdder cacheMisses = new LongAdder();
+    private final Histogram indexLoadTimes = new Histogram();
+    private final Histogram subfileLoadTimes = new Histogram();
+    private final Histogram[] savePhaseTimes;
+    private ObjectName objectName;
+
+    public MetricsCollector() {
+        savePhaseTimes = new Histogram[SavePhase.values().length];
+        for (int i = 0; i < savePhaseTimes.length; i++) {
+            savePhaseTimes[i] = new Histogram();
+        }
+    }
+
+    /**
+     * Adds this collector to the {@link Instrumentation} listeners and
+     * registers it with the platform MBean server.
+     *
+     * @param name The JMX object name, such as {@link #DEFAULT_OBJECT_NAME}.
+     * @throws JMException If the name is invalid or already registered.
+     */
+    public synchronized void register(String name) throws JMException {
+        if (objectName != null) {
+            throw new IllegalStateException("Already registered as " + objectName);
+        }
+        ObjectName on = new ObjectName(name);
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        server.registerMBean(this, on);
+        objectName = on;
+        Instrumentation.addListener(this);
+    }
+
+    /**
+     * Removes this collector from the {@link Instrumentation} listeners and
+     * unregisters it from the platform MBean server.
+     *
+     * @throws JMException
+     */
+    public synchronized void unregister() throws JMException {
+        Instrumentation.removeListener(this);
+        if (objectName != null) {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+            objectName = null;
+        }
+    }
+
+    @Override
+    public void onIndexLoaded(Path pad, int entries, long bytes, long nanos) {
+        bytesRead.add(bytes);
+        indexLoadTimes.record(nanos);
+    }
+
+    @Override
+    public void onSubfileLoaded(Path pad, TypeGroupInstance tgi, long offset, long bytes, long nanos) {
+        bytesRead.add(bytes);
+        subfilesLoaded.increment();
+        subfileLoadTimes.record(nanos);
+    }
+
+    @Override
+    public void onSubfileWritten(Path pad, TypeGroupInstance tgi, long offset, long bytes) {
+        subfilesWritten.increment();
+    }
+
+    @Override
+    public void onSavePhase(Path pad, SavePhase phase, long bytes, long nanos) {
+        bytesWritten.add(bytes);
+        savePhaseTimes[phase.ordinal()].record(nanos);
+    }
+
+    @Override
+    public void onCacheAccess(TypeGroupInstance tgi, boolean hit) {
+        if (hit) {
+            cacheHits.increment();
+        } else {
+            cacheMisses.increment();
+        }
+    }
+
+    public Histogram getIndexLoadTimes() {
+        return indexLoadTimes;
+    }
+
+    public Histogram getSubfileLoadTimes() {
+        return subfileLoadTimes;
+    }
+
+    public Histogram getSavePhaseTimes(SavePhase phase) {
+        return savePhaseTimes[phase.ordinal()];
+    }
+
+    @Override
+    public long getBytesRead() {
+        return bytesRead.sum();
+    }
+
+    @Override
+    public long getBytesWritten() {
+        return bytesWritten.sum();
+    }
+
+    @Override
+    public long getSubfilesLoaded() {
+        return subfilesLoaded.sum();
+    }
+
+    @Override
+    public long getSubfilesWritten() {
+        return subfilesWritten.sum();
+    }
+
+    @Override
+    public long getIndexLoads() {
+        return indexLoadTimes.getCount();
+    }
+
+    @Override
+    public double getIndexLoadMeanMicros() {
+        return indexLoadTimes.getMean() / 1e3;
+    }
+
+    @Override
+    public double getIndexLoadP99Micros() {
+        return indexLoadTimes.getValueAtQuantile(0.99) / 1e3;
+    }
+
+    @Override
+    public double getSubfileLoadMeanMicros() {
+        return subfileLoadTimes.getMean() / 1e3;
+    }
+
+    @Override
+    public double getSubfileLoadP50Micros() {
+        return subfileLoadTimes.getValueAtQuantile(0.5) / 1e3;
+    }
+
+    @Override
+    public double getSubfileLoadP99Micros() {
+        return subfileLoadTimes.getValueAtQuantile(0.99) / 1e3;
+    }
+
+    @Override
+    public double getSubfileLoadP999Micros() {
+        return subfileLoadTimes.getValueAtQuantile(0.999) / 1e3;
+    }
+
+    @Override
+    public long getSaves() {
+        //  Every save ends with its tables
+        return savePhaseTimes[SavePhase.WRITE_TABLES.ordinal()].getCount();
+    }
+
+    @Override
+    public Map<String, Double> getSavePhaseMeanMicros() {
+        Map<String, Double> m = new LinkedHashMap<>();
+        for (SavePhase phase : SavePhase.values()) {
+            m.put(phase.name(), savePhaseTimes[phase.ordinal()].getMean() / 1e3);
+        }
+        return m;
+    }
+
+    @Override
+    public Map<String, Double> getSavePhaseP99Micros() {
+        Map<String, Double> m = new LinkedHashMap<>();
+        for (SavePhase phase : SavePhase.values()) {
+            m.put(phase.name(), savePhaseTimes[phase.ordinal()].getValueAtQuantile(0.99) / 1e3);
+        }
+        return m;
+    }
+
+    @Override
+    public long getCacheHits() {
+        return cacheHits.sum();
+    }
+
+    @Override
+    public long getCacheMisses() {
+        return cacheMisses.sum();
+    }
+
+    @Override
+    public double getCacheHitRatio() {
+        long hits = cacheHits.sum();
+        long total = hits + cacheMisses.sum();
+        return total == 0 ? 0 : (double) hits / total;
+    }
+
+    @Override
+    public void reset() {
+        bytesRead.reset();
+        bytesWritten.reset();
+        subfilesLoaded.reset();
+        subfilesWritten.reset();
+        cacheHits.reset();
+        cacheMisses.reset();
+        indexLoadTimes.reset();
+        subfileLoadTimes.reset();
+        for (Histogram h : savePhaseTimes) {
+            h.reset();
+        }
+    }
+
+}
@@ -0,0 +1,62 @@
+package org.phoenix.assetdatabase.instrumentation;
+
+import java.util.Map;
+
+/**
+ * Management interface of {@link MetricsCollector}. Times are in
+ * microseconds.
+ *
+ * @author Vince
+ */
+public interface MetricsCollectorMXBean {
+
+    public long getBytesRead();
+
+    public long getBytesWritten();
+
+    public long getSubfilesLoaded();
+
+    public long getSubfilesWritten();
+
+    public long getIndexLoads();
+
+    public double getIndexLoadMeanMicros();
+
+    public double getIndexLoadP99Micros();
+
+    public double getSubfileLoadMeanMicros();
+
+    public double getSubfileLoadP50Micros();
+
+    public double getSubfileLoadP99Micros();
+
+    public double getSubfileLoadP999Micros();
+
+    public long getSaves();
+
+    /**
+     * Returns the mean duration of each save phase, by phase name.
+     *
+     * @return
+     */
+    public Map<String, Double> getSavePhaseMeanMicros();
+
+    /**
+     * Returns the 99th percentile duration of each save phase, by phase name.
+     *
+     * @return
+     */
+    public Map<String, Double> getSavePhaseP99Micros();
+
+    public long getCacheHits();
+
+    public long getCacheMisses();
+
+    public double getCacheHitRatio();
+
+    /**
+     * Resets every counter and histogram.
+     */
+    public void reset();
+
+}
@@ -0,0 +1,29 @@
+package org.phoenix.assetdatabase.instrumentation;
+
+/**
+ * The phases of saving a PAD, as reported to
+ * {@link InstrumentationListener#onSavePhase(java.nio.file.Path, SavePhase, long, long)}.
+ *
+ * @author Vince
+ */
+public enum SavePhase {
+
+    /**
+     * Reading the previous version of the PAD (its index, and for a naive
+     * save, every subfile that is kept).
+     */
+    READ_PREVIOUS,
+    /**
+     * Writing subfile records, both copied and changed ones.
+     */
+    WRITE_DATA,
+    /**
+     * Writing the header, index, hole index, and metadata.
+     */
+    WRITE_TABLES,
+    /**
+     * Replacing the PAD with the newly written file.
+     */
+    COMMIT
+
+}
@@ -3,9 +3,16 @@ package org.phoenix.assetmanager;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Future;
 import java.util.function.DoubleConsumer;
+import java.util.stream.Stream;
+import org.phoenix.assetdatabase.ScrubReport;
 import org.phoenix.assetdatabase.Subfile;
+import org.phoenix.assetdatabase.SubfileStat;
 import org.phoenix.assetdatabase.TypeGroupInstance;
 
 /**
@@ -56,6 +63,58 @@ public interface PAssetManager {
      */
     public Map<TypeGroupInstance, Subfile> getSubfiles(Collection<TypeGroupInstance> tgis) throws FileNotFoundException, IOException;
 
+    /**
+     * Describes a subfile without reading its data.
+     * <p>
+     * The default implementation reads the subfile and describes it, without
+     * its file offset; implementations should read only the record header
+     * and metadata.
+     *
+     * @see org.phoenix.assetdatabase.AssetDatabase#statSubfile(TypeGroupInstance)
+     * @param tgi The TGI of the subfile to describe.
+     * @return A {@link SubfileStat} describing the subfile.
+     * @throws FileNotFoundException If no subfile with the specified TGI was found.
+     * @throws IOException If there was an issue reading the subfile record from the source.
+     */
+    public default SubfileStat statSubfile(TypeGroupInstance tgi) throws FileNotFoundException, IOException {
+        return statSubfiles(Collections.singletonList(tgi)).get(tgi);
+    }
+
+    /**
+     * Describes multiple subfiles without reading their data (bulk operation).
+     *
+     * @see PAssetManager#statSubfile(TypeGroupInstance)
+     * @param tgis A collection of TGIs to describe.
+     * @return A Map of results.
+     * @throws FileNotFoundException If no subfile(s) could be found with a given TGI in the collection.
+     * @throws IOException If there was an issue reading any subfile records.
+     */
+    public default Map<TypeGroupInstance, SubfileStat> statSubfiles(Collection<TypeGroupInstance> tgis) throws FileNotFoundException, IOException {
+        Map<TypeGroupInstance, Subfile> loaded = getSubfiles(tgis);
+        Map<TypeGroupInstance, SubfileStat> result = new HashMap<>(loaded.size());
+        for (Map.Entry<TypeGroupInstance, Subfile> e : loaded.entrySet()) {
+            result.put(e.getKey(), SubfileStat.describe(e.getKey(), -1L, e.getValue()));
+            e.getValue().release();
+        }
+        return result;
+    }
+
+    /**
+     * Schedules background reads of subfiles that will be needed soon, such as
+     * before a level transition. Reads are grouped per database and ordered by
+     * position, and yield to foreground {@link #getSubfile(TypeGroupInstance)}
+     * and {@link #getSubfiles(Collection)} requests.
+     * <p>
+     * Depending on implementation prefetched subfiles are kept in the
+     * PAssetManager cache, or the reads only warm the operating system's page
+     * cache. TGIs that do not exist are ignored.
+     *
+     * @param tgis A collection of TGIs to prefetch.
+     * @return A Future that completes with the number of subfiles read once
+     * the prefetch finishes, and that can be cancelled to stop it early.
+     */
+    public Future<Integer> prefetch(Collection<TypeGroupInstance> tgis);
+
     /**
      * Returns whether or not the specified TGI exists.
      *
@@ -80,6 +139,96 @@ public interface PAssetManager {
      */
     public Collection<TypeGroupInstance> containsAny(Collection<TypeGroupInstance> tgis);
 
+    /**
+     * Returns the indexed TGIs between <code>from</code> and <code>to</code>
+     * (both inclusive), in TGI order. TGIs are compared unsigned, as in
+     * {@link TypeGroupInstance#compareTo(TypeGroupInstance)}. The stream is
+     * produced lazily and should be consumed before the index changes.
+     *
+     * @param from The lowest TGI to include.
+     * @param to The highest TGI to include.
+     * @return A Stream of matching TGIs.
+     */
+    public Stream<TypeGroupInstance> findInRange(TypeGroupInstance from, TypeGroupInstance to);
+
+    /**
+     * Returns the indexed TGIs of the given type, in TGI order.
+     *
+     * @see PAssetManager#findInRange(TypeGroupInstance, TypeGroupInstance)
+     * @param type The TypeID.
+     * @return A Stream of matching TGIs.
+     */
+    public default Stream<TypeGroupInstance> findByType(int type) {
+        return findInRange(TypeGroupInstance.firstOf(type), TypeGroupInstance.lastOf(type));
+    }
+
+    /**
+     * Returns the indexed TGIs of the given type and group, in TGI order.
+     *
+     * @see PAssetManager#findInRange(TypeGroupInstance, TypeGroupInstance)
+     * @param type The TypeID.
+     * @param group The GroupID.
+     * @return A Stream of matching TGIs.
+     */
+    public default Stream<TypeGroupInstance> findByTypeGroup(int type, int group) {
+        return findInRange(TypeGroupInstance.firstOf(type, group), TypeGroupInstance.lastOf(type, group));
+    }
+
+    /**
+     * Returns the indexed TGIs of the given type and group with instances
+     * between <code>fromInstance</code> and <code>toInstance</code> (both
+     * inclusive, compared unsigned), in TGI order.
+     *
+     * @see PAssetManager#findInRange(TypeGroupInstance, TypeGroupInstance)
+     * @param type The TypeID.
+     * @param group The GroupID.
+     * @param fromInstance The lowest InstanceID to include.
+     * @param toInstance The highest InstanceID to include.
+     * @return A Stream of matching TGIs.
+     */
+    public default Stream<TypeGroupInstance> findByTypeGroup(int type, int group, long fromInstance, long toInstance) {
+        return findInRange(new TypeGroupInstance(type, group, fromInstance), new TypeGroupInstance(type, group, toInstance));
+    }
+
+    /**
+     * Returns the indexed TGIs whose subfile metadata maps <code>key</code> to
+     * exactly <code>value</code>. Only the subfile that a TGI resolves to is
+     * considered, not the ones it overrides.
+     *
+     * @see org.phoenix.assetdatabase.AssetDatabase#findByMetadata(String, String)
+     * @param key The metadata key.
+     * @param value The metadata value.
+     * @return The matching TGIs.
+     * @throws IOException If there was an issue reading the metadata.
+     */
+    public Set<TypeGroupInstance> findByMetadata(String key, String value) throws IOException;
+
+    /**
+     * Returns the indexed TGIs whose subfile metadata maps <code>key</code> to
+     * a value starting with <code>prefix</code>.
+     *
+     * @see PAssetManager#findByMetadata(String, String)
+     * @param key The metadata key.
+     * @param prefix The value prefix.
+     * @return The matching TGIs.
+     * @throws IOException If there was an issue reading the metadata.
+     */
+    public Set<TypeGroupInstance> findByMetadataPrefix(String key, String prefix) throws IOException;
+
+    /**
+     * Checks the integrity of every indexed PAD, one after another, including
+     * subfiles that later PADs override.
+     *
+     * @see org.phoenix.assetdatabase.AssetDatabase#scrub(int, long)
+     * @param parallelism The number of threads checking hashes.
+     * @param maxBytesPerSecond The most bytes to read per second, or 0 for no
+     * limit.
+     * @return The merged report of every PAD.
+     * @throws IOException If the thread was interrupted. PADs that cannot be
+     * opened are reported instead.
+     */
+    public ScrubReport scrub(int parallelism, long maxBytesPerSecond) throws IOException;
+
     /**
      * Clears the PAssetManager of indexed subfiles.
      */
@@ -1,18 +1,33 @@
 package org.phoenix.assetmanager.simple;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
 import java.io.UncheckedIOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Objects;
 import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
 import java.util.function.DoubleConsumer;
 import java.util.function.Function;
 import java.util.stream.Collectors;
@@ -21,24 +36,100 @@ import org.phoenix.assetdatabase.AssetDatabase;
 import org.phoenix.assetdatabase.AssetDatabaseImpl;
 import org.phoenix.assetdatabase.Index;
 import org.phoenix.assetdatabase.IndexEntry;
+import org.phoenix.assetdatabase.MetadataIndex;
+import org.phoenix.assetdatabase.ScrubReport;
 import org.phoenix.assetdatabase.Subfile;
+import org.phoenix.assetdatabase.SubfileStat;
+import org.phoenix.assetdatabase.TGIBloomFilter;
+import org.phoenix.assetdatabase.TGITable;
 import org.phoenix.assetdatabase.TypeGroupInstance;
+import org.phoenix.assetdatabase.instrumentation.Instrumentation;
 import org.phoenix.assetmanager.PAssetManager;
 
 import static java.util.Objects.requireNonNull;
 
 /**
+ * Asset manager over a folder tree of PADs, where later PADs (in depth-first,
+ * case-insensitive order) override earlier ones.
+ * <p>
+ * By default every TGI is held in a global in-memory index. In <i>lazy
+ * indexing</i> mode only a {@link TGIBloomFilter} per PAD is kept (persisted in
+ * a sidecar file next to the PAD); lookups probe the PADs in override order and
+ * only open those whose filter matches. Sealed PADs (see
+ * {@link AssetDatabaseImpl#seal()}) need no filter: they are kept open, since
+ * their mapped perfect hash answers lookups exactly for a few bits per TGI.
+ * <p>
+ * Subfiles read by {@link #prefetch(Collection)} are kept in an LRU cache
+ * bounded by {@link #setCacheCapacity(long)}. With the default capacity of zero
+ * prefetching only warms the operating system's page cache. Each subfile
+ * returned from the cache is retained for the caller, so callers may
+ * {@link Subfile#release()} what they get, whether or not it was cached.
+ * <p>
+ * Metadata queries read the {@link MetadataIndex} sidecar of each PAD (building
+ * it if needed) on first use and keep it until {@link #clearIndex()}.
  *
  * @author Vince
  */
 public class SimpleFolderAssetManager implements PAssetManager {
 
+    /**
+     * Default number of PADs kept open (with their index loaded) in lazy
+     * indexing mode.
+     */
+    public static final int DEFAULT_OPEN_DATABASE_LIMIT = 16;
+    /**
+     * Number of subfiles a prefetch reads between checks for cancellation and
+     * foreground requests.
+     */
+    private static final int PREFETCH_BATCH_SIZE = 32;
+    /**
+     * How long a prefetch backs off while foreground requests are running.
+     */
+    private static final long PREFETCH_BACKOFF_NANOS = 1_000_000L;
+
     public final Path rootFolder;
 
     private Set<String> acceptableFileExts;
-    private Map<TypeGroupInstance, SimpleManagerEntry> entries;
+    /**
+     * Global index of every TGI and the PAD (and offset) it resolves to.
+     */
+    private TGITable entries;
     private Function<Path, AssetDatabase> databaseSupplier;
 
+    private boolean lazyIndexing;
+    /**
+     * Lazy indexing: PADs and their filters, in load (override) order.
+     */
+    private final List<Path> lazyPads;
+    private final List<TGIBloomFilter> lazyFilters;
+    /**
+     * Lazy indexing: the open database of each sealed PAD, or null for PADs
+     * that use a filter.
+     */
+    private final List<AssetDatabaseImpl> lazySealed;
+    /**
+     * Lazy indexing: recently probed databases, least recently used first.
+     */
+    private final LinkedHashMap<Path, AssetDatabaseImpl> openDatabases;
+    private int openDatabaseLimit;
+
+    /**
+     * Subfile cache, least recently used first. Guarded by itself, since it is
+     * filled by the prefetch thread.
+     */
+    private final LinkedHashMap<TypeGroupInstance, Subfile> cache;
+    private long cacheCapacity;
+    private long cacheSize;
+    /**
+     * Number of foreground reads in progress, which prefetching yields to.
+     */
+    private final AtomicInteger foregroundReads;
+    private ExecutorService prefetchExecutor;
+    /**
+     * Metadata indexes of the PADs queried so far. Guarded by itself.
+     */
+    private final Map<Path, MetadataIndex> metadataIndexes;
+
     public SimpleFolderAssetManager(Path rootFolder, Function<Path, AssetDatabase> supplier) throws FileNotFoundException {
         requireNonNull(rootFolder, "RootFolder cannot be null.");
         requireNonNull(supplier, "Supplier cannot be null.");
@@ -52,13 +143,124 @@ public class SimpleFolderAssetManager implements PAssetManager {
         this.rootFolder = rootFolder;
         databaseSupplier = supplier;
         acceptableFileExts = new HashSet<>();
-        entries = new HashMap<>();
+        entries = new TGITable();
+        lazyPads = new ArrayList<>();
+        lazyFilters = new ArrayList<>();
+        lazySealed = new ArrayList<>();
+        openDatabases = new LinkedHashMap<>(16, 0.75f, true);
+        openDatabaseLimit = DEFAULT_OPEN_DATABASE_LIMIT;
+        cache = new LinkedHashMap<>(16, 0.75f, true);
+        foregroundReads = new AtomicInteger();
+        metadataIndexes = new HashMap<>();
     }
 
     public Set<String> getAcceptableFileExts() {
         return acceptableFileExts;
     }
 
+    public boolean isLazyIndexing() {
+        return lazyIndexing;
+    }
+
+    /**
+     * Enables or disables lazy indexing. Takes effect on the next call to
+     * {@link #indexAssets()}.
+     *
+     * @param lazyIndexing True to only keep a Bloom filter per PAD instead of
+     * a global index.
+     */
+    public void setLazyIndexing(boolean lazyIndexing) {
+        this.lazyIndexing = lazyIndexing;
+    }
+
+    public int getOpenDatabaseLimit() {
+        return openDatabaseLimit;
+    }
+
+    /**
+     * Sets how many PADs are kept open in lazy indexing mode.
+     *
+     * @param openDatabaseLimit
+     */
+    public void setOpenDatabaseLimit(int openDatabaseLimit) {
+        if (openDatabaseLimit < 0) {
+            throw new IllegalArgumentException("Limit cannot be less than zero.");
+        }
+        this.openDatabaseLimit = openDatabaseLimit;
+        trimOpenDatabases();
+    }
+
+    public long getCacheCapacity() {
+        return cacheCapacity;
+    }
+
+    /**
+     * Sets the maximum total size (compressed, in bytes) of subfiles kept in
+     * the cache. Zero disables the cache.
+     *
+     * @param cacheCapacity
+     */
+    public void setCacheCapacity(long cacheCapacity) {
+        if (cacheCapacity < 0) {
+            throw new IllegalArgumentException("Capacity cannot be less than zero.");
+        }
+        synchronized (cache) {
+            this.cacheCapacity = cacheCapacity;
+            trimCache();
+        }
+    }
+
+    /**
+     * Caches a subfile, taking over the caller's reference to it.
+     */
+    private void cachePut(TypeGroupInstance tgi, Subfile sf) {
+        synchronized (cache) {
+            if (cacheCapacity == 0 || sf.getCompressedSize() > cacheCapacity) {
+                sf.release();
+                return;
+            }
+            Subfile old = cache.put(tgi, sf);
+            if (old != null) {
+                cacheSize -= old.getCompressedSize();
+                old.release();
+            }
+            cacheSize += sf.getCompressedSize();
+            trimCache();
+        }
+    }
+
+    private Subfile cacheGet(TypeGroupInstance tgi) {
+        Subfile sf;
+        synchronized (cache) {
+            if (cacheCapacity <= 0) {
+                return null;
+            }
+            sf = cache.isEmpty() ? null : cache.get(tgi);
+            if (sf != null) {
+                //  The caller gets its own reference (see Subfile#release())
+                sf.retain();
+            }
+        }
+        Instrumentation.cacheAccess(tgi, sf != null);
+        return sf;
+    }
+
+    private boolean isCached(TypeGroupInstance tgi) {
+        synchronized (cache) {
+            return cache.containsKey(tgi);
+        }
+    }
+
+    private void trimCache() {
+        while (cacheSize > cacheCapacity && !cache.isEmpty()) {
+            Entry<TypeGroupInstance, Subfile> eldest = cache.entrySet().iterator().next();
+            Subfile evicted = eldest.getValue();
+            cacheSize -= evicted.getCompressedSize();
+            cache.remove(eldest.getKey());
+            evicted.release();
+        }
+    }
+
     @Override
     public void indexAssets() {
         indexAssets((f) -> {
@@ -79,15 +281,32 @@ public class SimpleFolderAssetManager implements PAssetManager {
             return;
         }
         progressUpdateHandler.accept(0);
+        clearIndex();
         try {
             final int count = candidates.size();
             for (int i = 0; i < count; i++) {
                 Path p = candidates.get(i);
+                if (lazyIndexing) {
+                    lazyPads.add(p);
+                    if (AssetDatabaseImpl.isSealed(p)) {
+                        AssetDatabaseImpl sealed = new AssetDatabaseImpl(p);
+                        sealed.load();
+                        lazyFilters.add(null);
+                        lazySealed.add(sealed);
+                    } else {
+                        lazyFilters.add(loadOrBuildFilter(p));
+                        lazySealed.add(null);
+                    }
+                    progressUpdateHandler.accept((double) i / (double) count);
+                    continue;
+                }
                 AssetDatabase ad = new AssetDatabaseImpl(p);
                 ad.load();
                 Index index = ad.getIndex();
-                Set<IndexEntry> e = index.getEntriesImmutable();
-                e.stream().forEach((ie) -> entries.put(ie.getTgi(), new SimpleManagerEntry(ie.getTgi(), p)));
+                int padId = entries.addPath(p);
+                for (IndexEntry ie : index.getEntries()) {
+                    entries.put(ie, padId);
+                }
                 double progress = (double) i / (double) count;
                 progressUpdateHandler.accept(progress);
             }
@@ -97,6 +316,57 @@ public class SimpleFolderAssetManager implements PAssetManager {
         }
     }
 
+    /**
+     * Reads the filter sidecar of a PAD, or builds it from the PAD index (and
+     * tries to write it) if it is missing or out of date.
+     */
+    private TGIBloomFilter loadOrBuildFilter(Path p) throws IOException {
+        long size = Files.size(p);
+        long modified = Files.getLastModifiedTime(p).toMillis();
+        Path sidecar = TGIBloomFilter.sidecarFor(p);
+        if (Files.exists(sidecar)) {
+            try (InputStream in = new BufferedInputStream(Files.newInputStream(sidecar))) {
+                TGIBloomFilter filter = TGIBloomFilter.load(new DataInputStream(in));
+                if (filter.matchesStamp(size, modified)) {
+                    return filter;
+                }
+            } catch (IOException ex) {
+                //  Unreadable, rebuild it
+            }
+        }
+        AssetDatabase ad = new AssetDatabaseImpl(p);
+        ad.load();
+        TGIBloomFilter filter = TGIBloomFilter.build(ad.getIndex(), TGIBloomFilter.DEFAULT_BITS_PER_KEY);
+        filter.setStamp(size, modified);
+        try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(sidecar))) {
+            filter.save(new DataOutputStream(out));
+        } catch (IOException ex) {
+            //  Read-only location, we'll just rebuild next time
+        }
+        return filter;
+    }
+
+    /**
+     * Returns a loaded database for lazy lookups, reusing recently opened ones.
+     */
+    private AssetDatabaseImpl openDatabase(Path p) throws IOException {
+        AssetDatabaseImpl ad = openDatabases.get(p);
+        if (ad == null) {
+            ad = new AssetDatabaseImpl(p);
+            ad.load();
+            openDatabases.put(p, ad);
+            trimOpenDatabases();
+        }
+        return ad;
+    }
+
+    private void trimOpenDatabases() {
+        while (openDatabases.size() > openDatabaseLimit) {
+            Path eldest = openDatabases.keySet().iterator().next();
+            openDatabases.remove(eldest).close();
+        }
+    }
+
     private void listCandidates(Path dir, List<Path> candidates) throws UncheckedIOException {
         Stream<Path> dirs = null;
         try {
@@ -133,54 +403,231 @@ public class SimpleFolderAssetManager implements PAssetManager {
     public Subfile getSubfile(TypeGroupInstance tgi) throws FileNotFoundException, IOException {
         requireNonNull(tgi, "TGI cannot be null.");
 
-        SimpleManagerEntry sme = entries.get(tgi);
-        if (sme == null) {
-            throw new FileNotFoundException("TGI " + tgi.toString() + " not found.");
+        Subfile cached = cacheGet(tgi);
+        if (cached != null) {
+            return cached;
         }
-        AssetDatabase db = databaseSupplier.apply(sme.padLocation);
-        db.load();
-        return db.loadSubfile(tgi);
+        foregroundReads.incrementAndGet();
+        try {
+            SimpleManagerEntry sme = lookup(tgi);
+            if (sme == null) {
+                throw new FileNotFoundException("TGI " + tgi.toString() + " not found.");
+            }
+            return readSubfiles(sme.padLocation, Collections.singletonList(sme)).get(tgi);
+        } finally {
+            foregroundReads.decrementAndGet();
+        }
+    }
+
+    /**
+     * Looks up the PAD and location of a TGI in the global index.
+     *
+     * @param tgi The TGI to look up.
+     * @return The entry, or null if the TGI is not indexed.
+     */
+    private SimpleManagerEntry lookup(TypeGroupInstance tgi) throws IOException {
+        if (lazyIndexing) {
+            //  Last loaded takes precedence
+            for (int i = lazyPads.size() - 1; i >= 0; i--) {
+                AssetDatabaseImpl sealed = lazySealed.get(i);
+                if (sealed == null && !lazyFilters.get(i).mightContain(tgi)) {
+                    continue;
+                }
+                Path p = lazyPads.get(i);
+                IndexEntry ie = (sealed != null ? sealed : openDatabase(p)).getEntry(tgi);
+                if (ie != null) {
+                    return new SimpleManagerEntry(tgi, p, ie.getFileOffset(), ie.getFileSize());
+                }
+            }
+            return null;
+        }
+        int slot = entries.slotOf(tgi);
+        if (slot < 0) {
+            return null;
+        }
+        return new SimpleManagerEntry(tgi, entries.getPadLocation(slot), entries.getFileOffset(slot), entries.getFileSize(slot));
     }
 
     @Override
     public Map<TypeGroupInstance, Subfile> getSubfiles(Collection<TypeGroupInstance> tgis) throws FileNotFoundException, IOException {
         requireNonNull(tgis, "TGI cannot be null.");
+        //  Each subfile is only read once, however often it is asked for
         Set<TypeGroupInstance> set;
         if (tgis instanceof Set) {
-            set = (Set) tgis;
+            set = (Set<TypeGroupInstance>) tgis;
         } else {
-            set = new HashSet(tgis);
+            set = new HashSet<>(tgis);
+        }
+        Map<TypeGroupInstance, Subfile> ret = new HashMap<>();
+        foregroundReads.incrementAndGet();
+        try {
+            Map<Path, List<SimpleManagerEntry>> bins = binByPad(set, ret);
+            //  Go through each and load
+            for(Entry<Path, List<SimpleManagerEntry>> e : bins.entrySet()) {
+                ret.putAll(readSubfiles(e.getKey(), e.getValue()));
+            }
+        } finally {
+            foregroundReads.decrementAndGet();
         }
-        //  Collect TGIs that have the same Path
-        Map<Path,List<TypeGroupInstance>> bins = new HashMap<>();
-        for(TypeGroupInstance tgi : tgis) {
-            SimpleManagerEntry sme = entries.get(tgi);
-            if(sme == null) {
+        return ret;
+    }
+
+    /**
+     * Collects the entries of TGIs that are in the same PAD.
+     *
+     * @param tgis The TGIs to look up.
+     * @param cached Receives the TGIs found in the cache, which are left out,
+     * or null to look up every TGI.
+     * @return The entries of each PAD.
+     * @throws FileNotFoundException If a TGI is not indexed.
+     */
+    private Map<Path, List<SimpleManagerEntry>> binByPad(Collection<TypeGroupInstance> tgis, Map<TypeGroupInstance, Subfile> cached) throws IOException {
+        Map<Path, List<SimpleManagerEntry>> bins = new HashMap<>();
+        for (TypeGroupInstance tgi : tgis) {
+            if (cached != null) {
+                Subfile sf = cacheGet(tgi);
+                if (sf != null) {
+                    cached.put(tgi, sf);
+                    continue;
+                }
+            }
+            SimpleManagerEntry sme = lookup(tgi);
+            if (sme == null) {
                 throw new FileNotFoundException("TGI " + tgi.toString() + " not found.");
             }
-            List<TypeGroupInstance> l = bins.get(sme.padLocation);
-            if(l == null) {
-                l = new ArrayList<>();
-                bins.put(sme.padLocation, l);
+            bins.computeIfAbsent(sme.padLocation, (k) -> new ArrayList<>()).add(sme);
+        }
+        return bins;
+    }
+
+    /**
+     * Returns index entries that locate subfiles in their PAD, so that they
+     * can be read without loading the PAD's index.
+     *
+     * @return The entries, or null if the location of any subfile is unknown.
+     */
+    private static List<IndexEntry> locate(List<SimpleManagerEntry> l) {
+        List<IndexEntry> ies = new ArrayList<>(l.size());
+        for (SimpleManagerEntry sme : l) {
+            if (sme.fileOffset < 0) {
+                return null;
             }
-            l.add(tgi);
+            IndexEntry ie = new IndexEntry(sme.tgi);
+            ie.setFileOffset(sme.fileOffset);
+            ie.setFileSize(sme.fileSize);
+            ies.add(ie);
         }
-        Map<TypeGroupInstance, Subfile> ret = new HashMap<>();
-        //  Go through each and load
-        for(Entry<Path, List<TypeGroupInstance>> e : bins.entrySet()) {
-            Path p = e.getKey();
-            List<TypeGroupInstance> l = e.getValue();
-            AssetDatabase db = databaseSupplier.apply(p);
-            db.load();
-            ret.putAll(db.loadSubfiles(l));
+        return ies;
+    }
+
+    /**
+     * Reads subfiles that are all in the same PAD.
+     */
+    private Map<TypeGroupInstance, Subfile> readSubfiles(Path p, List<SimpleManagerEntry> l) throws IOException {
+        AssetDatabase db = databaseSupplier.apply(p);
+        List<IndexEntry> ies = db instanceof AssetDatabaseImpl ? locate(l) : null;
+        if (ies != null) {
+            //  We already know where they are, skip loading the PAD's index
+            return ((AssetDatabaseImpl) db).loadSubfilesAt(ies);
+        }
+        db.load();
+        return db.loadSubfiles(l.stream().map((sme) -> sme.tgi).collect(Collectors.toList()));
+    }
+
+    @Override
+    public SubfileStat statSubfile(TypeGroupInstance tgi) throws FileNotFoundException, IOException {
+        requireNonNull(tgi, "TGI cannot be null.");
+        return statSubfiles(Collections.singletonList(tgi)).get(tgi);
+    }
+
+    @Override
+    public Map<TypeGroupInstance, SubfileStat> statSubfiles(Collection<TypeGroupInstance> tgis) throws FileNotFoundException, IOException {
+        requireNonNull(tgis, "TGI collection cannot be null.");
+        Map<Path, List<SimpleManagerEntry>> bins = binByPad(tgis, null);
+        Map<TypeGroupInstance, SubfileStat> ret = new HashMap<>();
+        for (Entry<Path, List<SimpleManagerEntry>> e : bins.entrySet()) {
+            AssetDatabase db = databaseSupplier.apply(e.getKey());
+            List<SimpleManagerEntry> l = e.getValue();
+            List<IndexEntry> ies = db instanceof AssetDatabaseImpl ? locate(l) : null;
+            if (ies != null) {
+                ret.putAll(((AssetDatabaseImpl) db).statSubfilesAt(ies));
+            } else {
+                db.load();
+                ret.putAll(db.statSubfiles(l.stream().map((sme) -> sme.tgi).collect(Collectors.toList())));
+            }
         }
         return ret;
     }
 
+    @Override
+    public Future<Integer> prefetch(Collection<TypeGroupInstance> tgis) {
+        requireNonNull(tgis, "TGI collection cannot be null.");
+        //  Resolve on the calling thread, the index is not thread-safe
+        Map<Path, List<SimpleManagerEntry>> bins = new LinkedHashMap<>();
+        for (TypeGroupInstance tgi : new HashSet<>(tgis)) {
+            if (isCached(tgi)) {
+                continue;
+            }
+            SimpleManagerEntry sme;
+            try {
+                sme = lookup(tgi);
+            } catch (IOException ex) {
+                sme = null;
+            }
+            if (sme == null) {
+                continue;
+            }
+            bins.computeIfAbsent(sme.padLocation, (k) -> new ArrayList<>()).add(sme);
+        }
+        for (List<SimpleManagerEntry> l : bins.values()) {
+            l.sort((a, b) -> Long.compare(a.fileOffset, b.fileOffset));
+        }
+        synchronized (this) {
+            if (prefetchExecutor == null) {
+                prefetchExecutor = Executors.newSingleThreadExecutor((r) -> {
+                    Thread t = new Thread(r, "PAssetManager prefetch");
+                    t.setDaemon(true);
+                    t.setPriority(Thread.MIN_PRIORITY);
+                    return t;
+                });
+            }
+        }
+        return prefetchExecutor.submit(() -> {
+            int count = 0;
+            for (Entry<Path, List<SimpleManagerEntry>> e : bins.entrySet()) {
+                List<SimpleManagerEntry> l = e.getValue();
+                for (int i = 0; i < l.size(); i += PREFETCH_BATCH_SIZE) {
+                    //  Give way to foreground requests
+                    while (foregroundReads.get() > 0 && !Thread.currentThread().isInterrupted()) {
+                        LockSupport.parkNanos(PREFETCH_BACKOFF_NANOS);
+                    }
+                    if (Thread.currentThread().isInterrupted()) {
+                        return count;
+                    }
+                    Map<TypeGroupInstance, Subfile> read = readSubfiles(e.getKey(), l.subList(i, Math.min(l.size(), i + PREFETCH_BATCH_SIZE)));
+                    read.forEach(this::cachePut);
+                    count += read.size();
+                }
+            }
+            return count;
+        });
+    }
+
     @Override
     public boolean contains(TypeGroupInstance tgi) {
         requireNonNull(tgi, "TGI cannot be null.");
-        return entries.containsKey(tgi);
+        return isIndexed(tgi);
+    }
+
+    private boolean isIndexed(TypeGroupInstance tgi) {
+        if (!lazyIndexing) {
+            return entries.contains(tgi);
+        }
+        try {
+            return lookup(tgi) != null;
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
     }
 
     @Override
@@ -195,7 +642,7 @@ public class SimpleFolderAssetManager implements PAssetManager {
         //  anyMatch returns true if any element in the stream matches the predicate.
         //  In this case, the predicate returns true if the TGI is NOT contained in the index.
         return !set.stream().
-                anyMatch((tgi) -> !entries.containsKey(tgi));
+                anyMatch((tgi) -> !isIndexed(tgi));
     }
 
     @Override
@@ -208,18 +655,106 @@ public class SimpleFolderAssetManager implements PAssetManager {
             set = new HashSet(tgis);
         }
         return set.stream().
-                filter(entries::containsKey).
+                filter(this::isIndexed).
                 collect(Collectors.toSet());
     }
 
+    @Override
+    public Stream<TypeGroupInstance> findInRange(TypeGroupInstance from, TypeGroupInstance to) {
+        if (lazyIndexing) {
+            throw new UnsupportedOperationException("Range queries are not supported with lazy indexing.");
+        }
+        return entries.slotsInRange(from, to).mapToObj(entries::getTgi);
+    }
+
+    @Override
+    public Set<TypeGroupInstance> findByMetadata(String key, String value) throws IOException {
+        requireNonNull(key, "Key cannot be null.");
+        requireNonNull(value, "Value cannot be null.");
+        return findByMetadata((mi) -> mi.findEquals(key, value));
+    }
+
+    @Override
+    public Set<TypeGroupInstance> findByMetadataPrefix(String key, String prefix) throws IOException {
+        requireNonNull(key, "Key cannot be null.");
+        requireNonNull(prefix, "Prefix cannot be null.");
+        return findByMetadata((mi) -> mi.findPrefix(key, prefix));
+    }
+
+    /**
+     * Runs a query against the metadata index of every PAD and keeps the TGIs
+     * that resolve to the PAD that matched.
+     */
+    private Set<TypeGroupInstance> findByMetadata(Function<MetadataIndex, Set<TypeGroupInstance>> query) throws IOException {
+        List<Path> pads = lazyIndexing ? lazyPads : entries.getPaths();
+        Set<TypeGroupInstance> result = new HashSet<>();
+        for (Path p : pads) {
+            for (TypeGroupInstance tgi : query.apply(metadataIndexFor(p))) {
+                //  Skip subfiles that a later PAD overrides
+                SimpleManagerEntry sme = lookup(tgi);
+                if (sme != null && sme.padLocation.equals(p)) {
+                    result.add(tgi);
+                }
+            }
+        }
+        return result;
+    }
+
+    private MetadataIndex metadataIndexFor(Path p) throws IOException {
+        synchronized (metadataIndexes) {
+            MetadataIndex mi = metadataIndexes.get(p);
+            if (mi == null) {
+                mi = new AssetDatabaseImpl(p).getMetadataIndex();
+                metadataIndexes.put(p, mi);
+            }
+            return mi;
+        }
+    }
+
+    @Override
+    public ScrubReport scrub(int parallelism, long maxBytesPerSecond) throws IOException {
+        List<Path> pads = new ArrayList<>(lazyIndexing ? lazyPads : entries.getPaths());
+        ScrubReport report = new ScrubReport();
+        for (Path p : pads) {
+            AssetDatabase db = databaseSupplier.apply(p);
+            try {
+                db.load();
+                report.merge(db.scrub(parallelism, maxBytesPerSecond));
+            } catch (InterruptedIOException ex) {
+                throw ex;
+            } catch (IOException | RuntimeException ex) {
+                report.addProblem(new ScrubReport.Problem(p, null, -1L, ScrubReport.Kind.READ_ERROR, String.valueOf(ex.getMessage())));
+            } finally {
+                db.close();
+            }
+        }
+        return report;
+    }
+
     @Override
     public void clearIndex() {
         entries.clear();
+        lazyPads.clear();
+        lazyFilters.clear();
+        lazySealed.stream().
+                filter(Objects::nonNull).
+                forEach(AssetDatabase::close);
+        lazySealed.clear();
+        synchronized (metadataIndexes) {
+            metadataIndexes.clear();
+        }
+        clearCache();
     }
 
     @Override
     public void clearCache() {
-        //  Do nothing
+        openDatabases.values().forEach(AssetDatabase::close);
+        openDatabases.clear();
+        synchronized (cache) {
+            cache.values().forEach(Subfile::release);
+            cache.clear();
+            cacheSize = 0;
+        }
     }
 
 }
@@ -11,10 +11,24 @@ public class SimpleManagerEntry {
 
     public final TypeGroupInstance tgi;
     public final Path padLocation;
+    /**
+     * Offset of the subfile within the PAD, or -1 if unknown.
+     */
+    public final long fileOffset;
+    /**
+     * Size of the subfile within the PAD, or -1 if unknown.
+     */
+    public final long fileSize;
 
     public SimpleManagerEntry(TypeGroupInstance tgi, Path padLocation) {
+        this(tgi, padLocation, -1L, -1L);
+    }
+
+    public SimpleManagerEntry(TypeGroupInstance tgi, Path padLocation, long fileOffset, long fileSize) {
         this.tgi = tgi;
         this.padLocation = padLocation;
+        this.fileOffset = fileOffset;
+        this.fileSize = fileSize;
     }
     
 }